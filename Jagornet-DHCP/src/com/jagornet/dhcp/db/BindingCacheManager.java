@@ -0,0 +1,849 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file BindingCacheManager.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.db;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.jagornet.dhcp.option.base.BaseDhcpOption;
+import com.jagornet.dhcp.server.request.binding.Range;
+import com.jagornet.dhcp.util.Util;
+
+/**
+ * Title: BindingCacheManager
+ * Description: A read-through cache of IdentityAssocs in front of any
+ * IaManager backend, so that finding the current binding of a client does
+ * not go to the database, and rebuild the IA and decode its options, for
+ * every message.  IAs are cached by their DUID/IATYPE/IAID tuple, and
+ * indexed by the IP addresses they contain.  Every change made through
+ * this manager is passed to the backend and then removes the affected
+ * IAs from the cache, which are loaded again on the next lookup.
+ * <p>
+ * The cache is bounded by the estimated size, in bytes, of the cached IAs.
+ * Eviction follows the W-TinyLFU design: new IAs enter a small LRU window,
+ * and an IA leaving the window is only admitted to the main cache if it
+ * has been used more often than the IA that it would evict, according to
+ * a small frequency sketch of recent lookups.  The main cache is split
+ * into a probation segment, and a protected segment for IAs that have
+ * been found again since they were admitted.  This keeps the IAs of
+ * clients that renew regularly cached through a burst of new clients.
+ * <p>
+ * Cached IAs are copied on the way in and out, so callers may modify the
+ * IAs they are given, as they can with the backend.
+ * <p>
+ * The v1 schema JdbcIaManager finds only the IA itself by IP address,
+ * so with that backend lookups by address are not cached.
+ * 
+ * @author A. Gregory Rabil
+ */
+public class BindingCacheManager implements IaManager
+{
+	/** The backend that lookups are read through to. */
+	protected IaManager iaMgr;
+	
+	/** The maximum estimated size, in bytes, of the cached IAs. */
+	protected long maxSize;
+	
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+	
+	// all of the following are guarded by the lock
+	private final Object lock = new Object();
+	private final Map<String, Node> nodes = new HashMap<String, Node>();
+	private final Map<InetAddress, String> keysByIp = new HashMap<InetAddress, String>();
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private final LinkedHashMap<String, Node>[] segments = new LinkedHashMap[] {
+		new LinkedHashMap<String, Node>(), new LinkedHashMap<String, Node>(),
+		new LinkedHashMap<String, Node>()
+	};
+	private final long[] segmentSizes = new long[3];
+	private final long windowMax;
+	private final long protectedMax;
+	private final FrequencySketch sketch;
+	// invalidation counts, which a lookup checks to not cache an IA
+	// that was changed while it was being loaded from the backend
+	private final long[] keyGens = new long[256];
+	private long ipGen;
+	private long allGen;
+	private long hitCount;
+	private long missCount;
+	private long evictionCount;
+	
+	/**
+	 * Instantiates a new binding cache manager.
+	 *
+	 * @param iaMgr the backend IA manager
+	 * @param maxSize the maximum estimated size, in bytes, of the cached IAs
+	 */
+	public BindingCacheManager(IaManager iaMgr, long maxSize)
+	{
+		this.iaMgr = iaMgr;
+		this.maxSize = maxSize;
+		windowMax = Math.max(maxSize / 100, 1);
+		protectedMax = (maxSize - windowMax) * 80 / 100;
+		// a typical IA with one address and a few options is around 256 bytes
+		sketch = new FrequencySketch((int) Math.min(Math.max(maxSize / 256, 16), 1 << 24));
+	}
+	
+	/**
+	 * Empty the cache.  The backend must already be initialized.
+	 */
+	public void init() throws Exception
+	{
+		clear();
+	}
+	
+	/**
+	 * Gets the backend IA manager.
+	 * 
+	 * @return the backend
+	 */
+	public IaManager getIaMgr()
+	{
+		return iaMgr;
+	}
+
+	public void createIA(IdentityAssoc ia)
+	{
+		try {
+			iaMgr.createIA(ia);
+		}
+		finally {
+			// the addresses may have belonged to other IAs
+			invalidate(ia, ia.getIaAddresses(), true);
+		}
+	}
+
+	public void updateIA(IdentityAssoc ia, Collection<? extends IaAddress> addAddrs,
+			Collection<? extends IaAddress> updateAddrs, Collection<? extends IaAddress> delAddrs)
+	{
+		try {
+			iaMgr.updateIA(ia, addAddrs, updateAddrs, delAddrs);
+		}
+		finally {
+			List<IaAddress> iaAddrs = new ArrayList<IaAddress>();
+			if (ia.getIaAddresses() != null) {
+				iaAddrs.addAll(ia.getIaAddresses());
+			}
+			if (addAddrs != null) {
+				iaAddrs.addAll(addAddrs);
+			}
+			if (delAddrs != null) {
+				iaAddrs.addAll(delAddrs);
+			}
+			invalidate(ia, iaAddrs, (addAddrs != null) && !addAddrs.isEmpty());
+		}
+	}
+
+	public void deleteIA(IdentityAssoc ia)
+	{
+		try {
+			iaMgr.deleteIA(ia);
+		}
+		finally {
+			invalidate(ia, ia.getIaAddresses(), false);
+		}
+	}
+
+	public IdentityAssoc findIA(byte[] duid, byte iatype, long iaid)
+	{
+		String key = iaKey(duid, iatype, iaid);
+		long gen;
+		long ipGenAtLoad;
+		synchronized (lock) {
+			sketch.increment(key);
+			Node node = nodes.get(key);
+			if (node != null) {
+				hitCount++;
+				touch(node);
+				return copy(node.ia);
+			}
+			missCount++;
+			gen = keyGens[stripe(key)];
+			ipGenAtLoad = ipGen;
+		}
+		IdentityAssoc ia = iaMgr.findIA(duid, iatype, iaid);
+		if (ia != null) {
+			synchronized (lock) {
+				if ((keyGens[stripe(key)] == gen) && (ipGen == ipGenAtLoad)) {
+					put(key, ia);
+				}
+			}
+		}
+		return ia;
+	}
+
+	public IdentityAssoc findIA(IaAddress iaAddress)
+	{
+		// not cached, because some backends find only the IA itself, by ID
+		return iaMgr.findIA(iaAddress);
+	}
+
+	public IdentityAssoc findIA(InetAddress inetAddr)
+	{
+		long gen;
+		synchronized (lock) {
+			String key = keysByIp.get(inetAddr);
+			if (key != null) {
+				Node node = nodes.get(key);
+				if (node != null) {
+					sketch.increment(key);
+					hitCount++;
+					touch(node);
+					return copy(node.ia);
+				}
+			}
+			missCount++;
+			gen = allGen;
+		}
+		IdentityAssoc ia = iaMgr.findIA(inetAddr);
+		// the v1 schema finds only the IA itself, without its addresses,
+		// so it must not be cached as the whole IA for its key
+		if ((ia != null) && (ia.getIaAddresses() != null)) {
+			String key = iaKey(ia.getDuid(), ia.getIatype(), ia.getIaid());
+			synchronized (lock) {
+				sketch.increment(key);
+				if ((allGen == gen) && !nodes.containsKey(key)) {
+					put(key, ia);
+				}
+			}
+		}
+		return ia;
+	}
+
+	public List<IdentityAssoc> findIAs(List<InetAddress> inetAddrs)
+	{
+		// not cached, because some backends find only the lease of each address
+		return iaMgr.findIAs(inetAddrs);
+	}
+
+	public List<IdentityAssoc> findExpiredIAs(byte iatype)
+	{
+		return iaMgr.findExpiredIAs(iatype);
+	}
+
+	public void saveDhcpOption(IaAddress iaAddr, BaseDhcpOption option)
+	{
+		try {
+			iaMgr.saveDhcpOption(iaAddr, option);
+		}
+		finally {
+			invalidate(iaAddr.getIpAddress());
+		}
+	}
+
+	public void deleteDhcpOption(IaAddress iaAddr, BaseDhcpOption option)
+	{
+		try {
+			iaMgr.deleteDhcpOption(iaAddr, option);
+		}
+		finally {
+			invalidate(iaAddr.getIpAddress());
+		}
+	}
+
+	public void updateIaAddr(IaAddress iaAddr)
+	{
+		try {
+			iaMgr.updateIaAddr(iaAddr);
+		}
+		finally {
+			invalidate(iaAddr.getIpAddress());
+		}
+	}
+
+	public void deleteIaAddr(IaAddress iaAddr)
+	{
+		try {
+			iaMgr.deleteIaAddr(iaAddr);
+		}
+		finally {
+			invalidate(iaAddr.getIpAddress());
+		}
+	}
+
+	public void updateIaAddrs(List<? extends IaAddress> iaAddrs)
+	{
+		try {
+			iaMgr.updateIaAddrs(iaAddrs);
+		}
+		finally {
+			for (IaAddress iaAddr : iaAddrs) {
+				invalidate(iaAddr.getIpAddress());
+			}
+		}
+	}
+
+	public void deleteIaAddrs(List<? extends IaAddress> iaAddrs)
+	{
+		try {
+			iaMgr.deleteIaAddrs(iaAddrs);
+		}
+		finally {
+			for (IaAddress iaAddr : iaAddrs) {
+				invalidate(iaAddr.getIpAddress());
+			}
+		}
+	}
+
+	public void updateIaPrefix(IaPrefix iaPrefix)
+	{
+		try {
+			iaMgr.updateIaPrefix(iaPrefix);
+		}
+		finally {
+			invalidate(iaPrefix.getIpAddress());
+		}
+	}
+
+	public void deleteIaPrefix(IaPrefix iaPrefix)
+	{
+		try {
+			iaMgr.deleteIaPrefix(iaPrefix);
+		}
+		finally {
+			invalidate(iaPrefix.getIpAddress());
+		}
+	}
+
+	public List<InetAddress> findExistingIPs(InetAddress startAddr, InetAddress endAddr)
+	{
+		return iaMgr.findExistingIPs(startAddr, endAddr);
+	}
+
+	public List<IaAddress> findIaAddresses(InetAddress startAddr, InetAddress endAddr)
+	{
+		return iaMgr.findIaAddresses(startAddr, endAddr);
+	}
+
+	public List<IaAddress> findUnusedIaAddresses(InetAddress startAddr, InetAddress endAddr)
+	{
+		return iaMgr.findUnusedIaAddresses(startAddr, endAddr);
+	}
+
+	public List<IaAddress> findExpiredIaAddresses(byte iatype)
+	{
+		return iaMgr.findExpiredIaAddresses(iatype);
+	}
+
+	public List<IaPrefix> findUnusedIaPrefixes(InetAddress startAddr, InetAddress endAddr)
+	{
+		return iaMgr.findUnusedIaPrefixes(startAddr, endAddr);
+	}
+
+	public List<IaPrefix> findExpiredIaPrefixes()
+	{
+		return iaMgr.findExpiredIaPrefixes();
+	}
+
+	public void reconcileIaAddresses(List<Range> ranges)
+	{
+		try {
+			iaMgr.reconcileIaAddresses(ranges);
+		}
+		finally {
+			clear();
+		}
+	}
+
+	public void deleteAllIAs()
+	{
+		try {
+			iaMgr.deleteAllIAs();
+		}
+		finally {
+			clear();
+		}
+	}
+	
+	/**
+	 * Gets the number of lookups found in the cache.
+	 * 
+	 * @return the hit count
+	 */
+	public long getHitCount()
+	{
+		synchronized (lock) {
+			return hitCount;
+		}
+	}
+	
+	/**
+	 * Gets the number of lookups read through to the backend.
+	 * 
+	 * @return the miss count
+	 */
+	public long getMissCount()
+	{
+		synchronized (lock) {
+			return missCount;
+		}
+	}
+	
+	/**
+	 * Gets the number of IAs evicted, or not admitted, to keep within the maximum size.
+	 * 
+	 * @return the eviction count
+	 */
+	public long getEvictionCount()
+	{
+		synchronized (lock) {
+			return evictionCount;
+		}
+	}
+	
+	/**
+	 * Gets the number of cached IAs.
+	 * 
+	 * @return the size
+	 */
+	public int size()
+	{
+		synchronized (lock) {
+			return nodes.size();
+		}
+	}
+	
+	public String toString()
+	{
+		synchronized (lock) {
+			StringBuffer sb = new StringBuffer();
+			sb.append("BindingCacheManager:");
+			sb.append(" size=" + nodes.size());
+			sb.append(" bytes=" + (segmentSizes[WINDOW] + segmentSizes[PROBATION] +
+									segmentSizes[PROTECTED]));
+			sb.append(" hits=" + hitCount);
+			sb.append(" misses=" + missCount);
+			sb.append(" evictions=" + evictionCount);
+			return sb.toString();
+		}
+	}
+	
+	/**
+	 * Remove an IA from the cache, and any cached IAs that contain its addresses.
+	 *
+	 * @param ia the IA
+	 * @param iaAddrs the addresses of the IA
+	 * @param moved true if addresses may have moved to this IA from another IA
+	 */
+	private void invalidate(IdentityAssoc ia, Collection<? extends IaAddress> iaAddrs, boolean moved)
+	{
+		synchronized (lock) {
+			invalidate(iaKey(ia.getDuid(), ia.getIatype(), ia.getIaid()));
+			if (iaAddrs != null) {
+				for (IaAddress iaAddr : iaAddrs) {
+					String key = keysByIp.get(iaAddr.getIpAddress());
+					if (key != null) {
+						invalidate(key);
+					}
+				}
+			}
+			if (moved) {
+				// an IA being loaded may still hold one of the moved addresses
+				ipGen++;
+			}
+		}
+	}
+	
+	/**
+	 * Remove the IA containing an address from the cache.
+	 *
+	 * @param inetAddr the address
+	 */
+	private void invalidate(InetAddress inetAddr)
+	{
+		synchronized (lock) {
+			String key = keysByIp.get(inetAddr);
+			if (key != null) {
+				invalidate(key);
+			}
+			else {
+				// the IA of the address may be being loaded
+				ipGen++;
+				allGen++;
+			}
+		}
+	}
+	
+	/**
+	 * Remove an IA from the cache, and stop any load of it that is
+	 * in progress from caching it.  The caller must hold the lock.
+	 *
+	 * @param key the IA key
+	 */
+	private void invalidate(String key)
+	{
+		remove(key);
+		keyGens[stripe(key)]++;
+		allGen++;
+	}
+	
+	private void clear()
+	{
+		synchronized (lock) {
+			nodes.clear();
+			keysByIp.clear();
+			for (int i=0; i<segments.length; i++) {
+				segments[i].clear();
+				segmentSizes[i] = 0;
+			}
+			for (int i=0; i<keyGens.length; i++) {
+				keyGens[i]++;
+			}
+			ipGen++;
+			allGen++;
+		}
+	}
+	
+	/**
+	 * Cache a copy of an IA loaded from the backend, in the window segment,
+	 * and then evict to keep within the maximum size.  The caller must hold the lock.
+	 *
+	 * @param key the IA key
+	 * @param ia the IA
+	 */
+	private void put(String key, IdentityAssoc ia)
+	{
+		remove(key);
+		Node node = new Node(key, copy(ia));
+		nodes.put(key, node);
+		if (ia.getIaAddresses() != null) {
+			for (IaAddress iaAddr : ia.getIaAddresses()) {
+				String oldKey = keysByIp.put(iaAddr.getIpAddress(), key);
+				if ((oldKey != null) && !oldKey.equals(key)) {
+					// the address has moved from another cached IA
+					remove(oldKey);
+				}
+			}
+		}
+		add(node, WINDOW);
+		while (segmentSizes[WINDOW] > windowMax) {
+			Node candidate = segments[WINDOW].values().iterator().next();
+			unlink(candidate);
+			admit(candidate);
+		}
+	}
+	
+	/**
+	 * Admit an IA leaving the window to the probation segment, if there is
+	 * room, or if it is used more often than each of the IAs that must be
+	 * evicted to make room.  Otherwise, the IA itself is evicted.
+	 *
+	 * @param candidate the IA leaving the window
+	 */
+	private void admit(Node candidate)
+	{
+		long mainMax = maxSize - windowMax;
+		int candidateFreq = sketch.frequency(candidate.key);
+		while (segmentSizes[PROBATION] + segmentSizes[PROTECTED] + candidate.size > mainMax) {
+			Node victim = null;
+			if (!segments[PROBATION].isEmpty()) {
+				victim = segments[PROBATION].values().iterator().next();
+			}
+			else if (!segments[PROTECTED].isEmpty()) {
+				victim = segments[PROTECTED].values().iterator().next();
+			}
+			if ((victim == null) || (candidateFreq <= sketch.frequency(victim.key))) {
+				evict(candidate);
+				return;
+			}
+			unlink(victim);
+			evict(victim);
+		}
+		add(candidate, PROBATION);
+	}
+	
+	/**
+	 * Move a cached IA that was found to the most recently used position of
+	 * its segment, or promote it from probation to the protected segment.
+	 */
+	private void touch(Node node)
+	{
+		int segment = node.segment;
+		unlink(node);
+		if (segment == PROBATION) {
+			add(node, PROTECTED);
+			while (segmentSizes[PROTECTED] > protectedMax) {
+				// demote the least recently used protected IAs
+				Node demoted = segments[PROTECTED].values().iterator().next();
+				unlink(demoted);
+				add(demoted, PROBATION);
+			}
+		}
+		else {
+			add(node, segment);
+		}
+	}
+	
+	private void add(Node node, int segment)
+	{
+		node.segment = segment;
+		segments[segment].put(node.key, node);
+		segmentSizes[segment] += node.size;
+	}
+	
+	private void unlink(Node node)
+	{
+		segments[node.segment].remove(node.key);
+		segmentSizes[node.segment] -= node.size;
+	}
+	
+	private void evict(Node node)
+	{
+		evictionCount++;
+		drop(node);
+	}
+	
+	private void remove(String key)
+	{
+		Node node = nodes.get(key);
+		if (node != null) {
+			unlink(node);
+			drop(node);
+		}
+	}
+	
+	private void drop(Node node)
+	{
+		nodes.remove(node.key);
+		if (node.ia.getIaAddresses() != null) {
+			for (IaAddress iaAddr : node.ia.getIaAddresses()) {
+				if (node.key.equals(keysByIp.get(iaAddr.getIpAddress()))) {
+					keysByIp.remove(iaAddr.getIpAddress());
+				}
+			}
+		}
+	}
+	
+	private static int stripe(String key)
+	{
+		return key.hashCode() & 0xff;
+	}
+	
+	private static String iaKey(byte[] duid, byte iatype, long iaid)
+	{
+		return Util.toHexString(duid) + "/" + iatype + "/" + iaid;
+	}
+	
+	/**
+	 * Copy an IA, its addresses and prefixes, and their options.
+	 *
+	 * @param ia the IA
+	 * @return the copy
+	 */
+	protected static IdentityAssoc copy(IdentityAssoc ia)
+	{
+		IdentityAssoc copy = new IdentityAssoc();
+		copy.setId(ia.getId());
+		copy.setDuid(ia.getDuid());
+		copy.setIatype(ia.getIatype());
+		copy.setIaid(ia.getIaid());
+		copy.setState(ia.getState());
+		copy.setDhcpOptions(copy(ia.getDhcpOptions()));
+		if (ia.getIaAddresses() != null) {
+			List<IaAddress> iaAddrs = new ArrayList<IaAddress>();
+			for (IaAddress iaAddr : ia.getIaAddresses()) {
+				IaAddress addrCopy;
+				if (iaAddr instanceof IaPrefix) {
+					IaPrefix prefixCopy = new IaPrefix();
+					prefixCopy.setPrefixLength(((IaPrefix) iaAddr).getPrefixLength());
+					addrCopy = prefixCopy;
+				}
+				else {
+					addrCopy = new IaAddress();
+				}
+				addrCopy.copyFrom(iaAddr);
+				addrCopy.setStartTime(copy(iaAddr.getStartTime()));
+				addrCopy.setPreferredEndTime(copy(iaAddr.getPreferredEndTime()));
+				addrCopy.setValidEndTime(copy(iaAddr.getValidEndTime()));
+				addrCopy.setDhcpOptions(copy(iaAddr.getDhcpOptions()));
+				iaAddrs.add(addrCopy);
+			}
+			copy.setIaAddresses(iaAddrs);
+		}
+		return copy;
+	}
+	
+	private static Collection<DhcpOption> copy(Collection<DhcpOption> options)
+	{
+		if (options == null) {
+			return null;
+		}
+		Collection<DhcpOption> copy = new ArrayList<DhcpOption>(options.size());
+		for (DhcpOption option : options) {
+			DhcpOption optCopy = new DhcpOption();
+			optCopy.setId(option.getId());
+			optCopy.setCode(option.getCode());
+			optCopy.setValue(option.getValue());
+			optCopy.setIdentityAssocId(option.getIdentityAssocId());
+			optCopy.setIaAddressId(option.getIaAddressId());
+			optCopy.setIaPrefixId(option.getIaPrefixId());
+			copy.add(optCopy);
+		}
+		return copy;
+	}
+	
+	private static Date copy(Date date)
+	{
+		return (date != null) ? new Date(date.getTime()) : null;
+	}
+	
+	/**
+	 * Estimate the size, in bytes, of a cached IA.
+	 *
+	 * @param ia the IA
+	 * @return the estimated size
+	 */
+	protected static long sizeOf(IdentityAssoc ia)
+	{
+		long size = 128 + ((ia.getDuid() != null) ? ia.getDuid().length : 0);
+		size += sizeOf(ia.getDhcpOptions());
+		if (ia.getIaAddresses() != null) {
+			for (IaAddress iaAddr : ia.getIaAddresses()) {
+				// the address, its dates, and its entry in the IP index
+				size += 160 + sizeOf(iaAddr.getDhcpOptions());
+			}
+		}
+		return size;
+	}
+	
+	private static long sizeOf(Collection<DhcpOption> options)
+	{
+		long size = 0;
+		if (options != null) {
+			for (DhcpOption option : options) {
+				size += 48 + ((option.getValue() != null) ? option.getValue().length : 0);
+			}
+		}
+		return size;
+	}
+	
+	/**
+	 * A cached IA.
+	 */
+	private static class Node
+	{
+		final String key;
+		final IdentityAssoc ia;
+		final long size;
+		int segment;
+		
+		Node(String key, IdentityAssoc ia)
+		{
+			this.key = key;
+			this.ia = ia;
+			this.size = sizeOf(ia);
+		}
+	}
+	
+	/**
+	 * A count-min sketch of how often each IA has been looked up recently,
+	 * with four 4-bit counters per IA, packed into longs.  All counters are
+	 * halved after every ten lookups per counter, so that IAs which are no
+	 * longer used are eventually evicted.
+	 */
+	private static class FrequencySketch
+	{
+		private static final long[] SEEDS = {
+			0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+		};
+		private static final long RESET_MASK = 0x7777777777777777L;
+		
+		private final long[] table;
+		private final int sampleSize;
+		private int additions;
+		
+		FrequencySketch(int maxEntries)
+		{
+			// 16 counters per long, 4 per entry
+			int len = Integer.highestOneBit(Math.max(maxEntries / 4, 1) * 2 - 1);
+			table = new long[Math.max(len, 1)];
+			sampleSize = 10 * maxEntries;
+		}
+		
+		int frequency(String key)
+		{
+			int hash = spread(key.hashCode());
+			int freq = Integer.MAX_VALUE;
+			for (int i=0; i<4; i++) {
+				freq = Math.min(freq, (int) ((table[index(hash, i)] >>> offset(hash, i)) & 0xf));
+			}
+			return freq;
+		}
+		
+		void increment(String key)
+		{
+			int hash = spread(key.hashCode());
+			boolean added = false;
+			for (int i=0; i<4; i++) {
+				int ndx = index(hash, i);
+				int shift = offset(hash, i);
+				if (((table[ndx] >>> shift) & 0xf) < 15) {
+					table[ndx] += 1L << shift;
+					added = true;
+				}
+			}
+			if (added && (++additions >= sampleSize)) {
+				for (int i=0; i<table.length; i++) {
+					table[i] = (table[i] >>> 1) & RESET_MASK;
+				}
+				additions /= 2;
+			}
+		}
+		
+		private int index(int hash, int i)
+		{
+			long h = (hash + SEEDS[i]) * SEEDS[i];
+			return (int) (h >>> 32) & (table.length - 1);
+		}
+		
+		/**
+		 * The bit offset of the i-th counter within its long,
+		 * which is one of four counters selected by the hash.
+		 */
+		private static int offset(int hash, int i)
+		{
+			return ((((hash >>> (i * 8)) & 3) << 2) + i) << 2;
+		}
+		
+		private static int spread(int h)
+		{
+			h ^= h >>> 17;
+			h *= 0xed5ad4bb;
+			h ^= h >>> 11;
+			h *= 0xac4c1b51;
+			h ^= h >>> 15;
+			return h;
+		}
+	}
+}
@@ -127,6 +127,19 @@ public interface IaManager
 	 * @return the identity assoc
 	 */
 	public IdentityAssoc findIA(InetAddress inetAddr);
+	
+	/**
+	 * Find the IdentityAssocs for a list of IP addresses, such as the
+	 * leases which have expired together, with as few lookups as the
+	 * backend allows.  Each IdentityAssoc returned contains at least
+	 * the IaAddress or IaPrefix for one of the addresses, and the same
+	 * IdentityAssoc may be returned for more than one of the addresses.
+	 * 
+	 * @param inetAddrs the inet addrs
+	 * 
+	 * @return the identity assocs found, or an empty list if none
+	 */
+	public List<IdentityAssoc> findIAs(List<InetAddress> inetAddrs);
 
 	/**
 	 * Find expired IAs.  That is, find all the expired IaAddresses
@@ -172,6 +185,22 @@ public interface IaManager
 	 */
 	public void deleteIaAddr(IaAddress iaAddr);
 	
+	/**
+	 * Update a batch of IaAddresses or IaPrefixes, such as the leases
+	 * expired together by the reaper.
+	 * 
+	 * @param iaAddrs the IaAddresses/IaPrefixes to update
+	 */
+	public void updateIaAddrs(List<? extends IaAddress> iaAddrs);
+	
+	/**
+	 * Delete a batch of IaAddresses or IaPrefixes, such as the leases
+	 * expired together by the reaper.
+	 * 
+	 * @param iaAddrs the IaAddresses/IaPrefixes to delete
+	 */
+	public void deleteIaAddrs(List<? extends IaAddress> iaAddrs);
+	
 	/**
 	 * Update an IaPrefix.
 	 * 
@@ -196,6 +225,16 @@ public interface IaManager
 	 */
 	public List<InetAddress> findExistingIPs(final InetAddress startAddr, final InetAddress endAddr);
 
+	/**
+	 * Find all IA Addresses, in any state, within an inclusive address range.
+	 * 
+	 * @param startAddr the start address of the range
+	 * @param endAddr the end address of the range
+	 * 
+	 * @return the list of IaAddress objects in the range
+	 */
+	public List<IaAddress> findIaAddresses(InetAddress startAddr, InetAddress endAddr);
+
 	/**
 	 * Find the unused IA Addresses within an inclusive address range.
 	 * 
@@ -222,6 +222,26 @@ public class JdbcIaManager extends JdbcDaoSupport implements IaManager
 		return ia;
 	}
 
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#findIAs(java.util.List)
+	 */
+	public List<IdentityAssoc> findIAs(List<InetAddress> inetAddrs)
+	{
+		// the v1 schema keeps the addresses apart from their IAs,
+		// so each IA is found, and then loaded with its addresses
+		List<IdentityAssoc> ias = new ArrayList<IdentityAssoc>();
+		for (InetAddress inetAddr : inetAddrs) {
+			IdentityAssoc ia = findIA(inetAddr);
+			if (ia != null) {
+				ia = findIA(ia.getDuid(), ia.getIatype(), ia.getIaid());
+				if (ia != null) {
+					ias.add(ia);
+				}
+			}
+		}
+		return ias;
+	}
+
 	/* (non-Javadoc)
 	 * @see com.jagornet.dhcpv6.db.IaManager#findIA(java.net.InetAddress)
 	 */
@@ -229,16 +249,27 @@ public class JdbcIaManager extends JdbcDaoSupport implements IaManager
 	{
 		IdentityAssoc ia = null;
 		if (inetAddr != null) {
+			IaAddress iaAddr = null;
 			try {
-				IaAddress iaAddr = iaAddrDao.getByInetAddress(inetAddr);
-				if (iaAddr != null) {
-					ia = iaDao.getById(iaAddr.getIdentityAssocId());
-				}
+				iaAddr = iaAddrDao.getByInetAddress(inetAddr);
 			}
 			catch (EmptyResultDataAccessException ex) {
 				log.debug("No IaAddress found for IP=" + inetAddr.getHostAddress() +
 						": " + ex);
 			}
+			if (iaAddr == null) {
+				// prefixes are kept in their own table
+				try {
+					iaAddr = iaPrefixDao.getByInetAddress(inetAddr);
+				}
+				catch (EmptyResultDataAccessException ex) {
+					log.debug("No IaPrefix found for IP=" + inetAddr.getHostAddress() +
+							": " + ex);
+				}
+			}
+			if (iaAddr != null) {
+				ia = iaDao.getById(iaAddr.getIdentityAssocId());
+			}
 		}
 		return ia;
 	}
@@ -384,6 +415,36 @@ public class JdbcIaManager extends JdbcDaoSupport implements IaManager
 		deleteExpiredIA(iaAddr.getIdentityAssocId());
 	}
 	
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#updateIaAddrs(java.util.List)
+	 */
+	public void updateIaAddrs(List<? extends IaAddress> iaAddrs)
+	{
+		for (IaAddress iaAddr : iaAddrs) {
+			if (iaAddr instanceof IaPrefix) {
+				updateIaPrefix((IaPrefix) iaAddr);
+			}
+			else {
+				updateIaAddr(iaAddr);
+			}
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#deleteIaAddrs(java.util.List)
+	 */
+	public void deleteIaAddrs(List<? extends IaAddress> iaAddrs)
+	{
+		for (IaAddress iaAddr : iaAddrs) {
+			if (iaAddr instanceof IaPrefix) {
+				deleteIaPrefix((IaPrefix) iaAddr);
+			}
+			else {
+				deleteIaAddr(iaAddr);
+			}
+		}
+	}
+	
 	/* (non-Javadoc)
 	 * @see com.jagornet.dhcpv6.db.IaManager#updateIaPrefix(com.jagornet.dhcpv6.db.IaPrefix)
 	 */
@@ -410,6 +471,23 @@ public class JdbcIaManager extends JdbcDaoSupport implements IaManager
 		return iaAddrDao.findExistingIPs(startAddr, endAddr);
 	}
 	
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcpv6.db.IaManager#findIaAddresses(java.net.InetAddress, java.net.InetAddress)
+	 */
+	@Override
+	public List<IaAddress> findIaAddresses(InetAddress startAddr, InetAddress endAddr) {
+		List<IaAddress> iaAddrs = new ArrayList<IaAddress>();
+		List<IaAddress> addrs = iaAddrDao.findAllByRange(startAddr, endAddr);
+		if (addrs != null) {
+			iaAddrs.addAll(addrs);
+		}
+		List<IaPrefix> prefixes = iaPrefixDao.findAllByRange(startAddr, endAddr);
+		if (prefixes != null) {
+			iaAddrs.addAll(prefixes);
+		}
+		return iaAddrs;
+	}
+	
 	/* (non-Javadoc)
 	 * @see com.jagornet.dhcpv6.db.IaManager#findUnusedIaAddresses(java.net.InetAddress, java.net.InetAddress)
 	 */
@@ -182,7 +182,7 @@ public class JdbcIaPrefixDAO extends JdbcDaoSupport implements IaPrefixDAO
 	public IaPrefix getByInetAddress(InetAddress inetAddr) 
 	{
         return getJdbcTemplate().queryForObject(
-                "select * from iaprefix where ipprefix = ?", 
+                "select * from iaprefix where prefixaddress = ?", 
                 new IaPrefixRowMapper(), inetAddr.getAddress());
 	}
 
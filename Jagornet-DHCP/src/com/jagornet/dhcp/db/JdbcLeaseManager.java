@@ -41,10 +41,15 @@ import javax.sql.DataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.dao.DataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.PreparedStatementSetter;
 import org.springframework.jdbc.core.ResultSetExtractor;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallbackWithoutResult;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import com.jagornet.dhcp.server.config.DhcpServerPolicies;
 import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
@@ -61,8 +66,30 @@ public class JdbcLeaseManager extends LeaseManager
 {	
 	private static Logger log = LoggerFactory.getLogger(JdbcLeaseManager.class);
 	
+	/** The most addresses found by one query, to bound the size of the statement. */
+	private static final int MAX_QUERY_ADDRS = 100;
+	
+	private static final String INSERT_SQL = "insert into dhcplease" +
+			" (ipaddress, duid, iatype, iaid, prefixlen, state," +
+			" starttime, preferredendtime, validendtime," +
+			" ia_options, ipaddr_options)" +
+			" values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+	
+	private static final String UPDATE_SQL = "update dhcplease" +
+			" set state=?," +
+			" starttime=?," +
+			" preferredendtime=?," +
+			" validendtime=?," +
+			" ia_options=?," +
+			" ipaddr_options=?" +
+			" where ipaddress=?";
+	
+	private static final String DELETE_SQL = "delete from dhcplease" +
+			" where ipaddress=?";
+	
 	protected DataSource dataSource;
 	protected JdbcTemplate jdbcTemplate;
+	protected TransactionTemplate transactionTemplate;
 	
 	public DataSource getDataSource() {
 		return dataSource;
@@ -78,6 +105,14 @@ public class JdbcLeaseManager extends LeaseManager
 		return jdbcTemplate;
 	}
 	
+	public TransactionTemplate getTransactionTemplate() {
+		if (transactionTemplate == null) {
+			transactionTemplate = 
+				new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+		}
+		return transactionTemplate;
+	}
+	
 	// Spring bean init-method
 	public void init() throws Exception {
         String schemaType = DhcpServerPolicies.globalPolicy(Property.DATABASE_SCHEMA_TYTPE);
@@ -89,6 +124,179 @@ public class JdbcLeaseManager extends LeaseManager
         }
 	}
 	
+	/**
+	 * Create the leases of an IA with one batched insert, in a single transaction.
+	 */
+	@Override
+	public void createIA(IdentityAssoc ia) {
+		if (ia != null) {
+			final List<DhcpLease> leases = toDhcpLeases(ia);
+			if ((leases != null) && !leases.isEmpty()) {
+				getTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
+					@Override
+					protected void doInTransactionWithoutResult(TransactionStatus status) {
+						insertDhcpLeases(leases);
+					}
+				});
+			}
+		}
+	}
+	
+	/**
+	 * Add, update and delete the leases of an IA with batched statements,
+	 * in a single transaction, so that a failure leaves no partial changes.
+	 */
+	@Override
+	public void updateIA(IdentityAssoc ia, Collection<? extends IaAddress> addAddrs,
+			Collection<? extends IaAddress> updateAddrs, Collection<? extends IaAddress> delAddrs)
+	{
+		final List<DhcpLease> addLeases = toDhcpLeases(ia, addAddrs);
+		final List<DhcpLease> updateLeases = toDhcpLeases(ia, updateAddrs);
+		final List<DhcpLease> delLeases = toDhcpLeases(ia, delAddrs);
+		if (addLeases.isEmpty() && updateLeases.isEmpty() && delLeases.isEmpty()) {
+			return;
+		}
+		getTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				insertDhcpLeases(addLeases);
+				updateDhcpLeases(updateLeases);
+				deleteDhcpLeases(delLeases);
+			}
+		});
+	}
+	
+	/**
+	 * Delete the leases of an IA with one batched delete, in a single transaction.
+	 */
+	@Override
+	public void deleteIA(IdentityAssoc ia)
+	{
+		if (ia != null) {
+			final List<DhcpLease> leases = toDhcpLeases(ia);
+			if ((leases != null) && !leases.isEmpty()) {
+				getTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
+					@Override
+					protected void doInTransactionWithoutResult(TransactionStatus status) {
+						deleteDhcpLeases(leases);
+					}
+				});
+			}
+		}
+	}
+	
+	/**
+	 * Insert dhcp leases as a single batch.
+	 *
+	 * @param leases the leases
+	 */
+	protected void insertDhcpLeases(final List<DhcpLease> leases)
+	{
+		if (!leases.isEmpty()) {
+			getJdbcTemplate().batchUpdate(INSERT_SQL, new BatchPreparedStatementSetter() {
+				@Override
+				public void setValues(PreparedStatement ps, int i) throws SQLException {
+					setInsertValues(ps, leases.get(i));
+				}
+				@Override
+				public int getBatchSize() {
+					return leases.size();
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Update dhcp leases as a single batch.
+	 *
+	 * @param leases the leases
+	 */
+	protected void updateDhcpLeases(final List<DhcpLease> leases)
+	{
+		if (!leases.isEmpty()) {
+			getJdbcTemplate().batchUpdate(UPDATE_SQL, new BatchPreparedStatementSetter() {
+				@Override
+				public void setValues(PreparedStatement ps, int i) throws SQLException {
+					setUpdateValues(ps, leases.get(i));
+				}
+				@Override
+				public int getBatchSize() {
+					return leases.size();
+				}
+			});
+		}
+	}
+	
+	/**
+	 * Delete dhcp leases as a single batch.
+	 *
+	 * @param leases the leases
+	 */
+	protected void deleteDhcpLeases(final List<DhcpLease> leases)
+	{
+		if (!leases.isEmpty()) {
+			getJdbcTemplate().batchUpdate(DELETE_SQL, new BatchPreparedStatementSetter() {
+				@Override
+				public void setValues(PreparedStatement ps, int i) throws SQLException {
+					ps.setBytes(1, leases.get(i).getIpAddress().getAddress());
+				}
+				@Override
+				public int getBatchSize() {
+					return leases.size();
+				}
+			});
+		}
+	}
+	
+	private List<DhcpLease> toDhcpLeases(IdentityAssoc ia, Collection<? extends IaAddress> iaAddrs)
+	{
+		List<DhcpLease> leases = new ArrayList<DhcpLease>();
+		if (iaAddrs != null) {
+			for (IaAddress iaAddr : iaAddrs) {
+				leases.add(toDhcpLease(ia, iaAddr));
+			}
+		}
+		return leases;
+	}
+	
+	private void setInsertValues(PreparedStatement ps, DhcpLease lease) throws SQLException
+	{
+		ps.setBytes(1, lease.getIpAddress().getAddress());
+		ps.setBytes(2, lease.getDuid());
+		ps.setByte(3, lease.getIatype());
+		ps.setLong(4, lease.getIaid());
+		ps.setShort(5, lease.getPrefixLength());
+		ps.setByte(6, lease.getState());
+		java.sql.Timestamp sts = 
+			new java.sql.Timestamp(lease.getStartTime().getTime());
+		ps.setTimestamp(7, sts, Util.GMT_CALENDAR);
+		java.sql.Timestamp pts = 
+			new java.sql.Timestamp(lease.getPreferredEndTime().getTime());
+		ps.setTimestamp(8, pts, Util.GMT_CALENDAR);
+		java.sql.Timestamp vts = 
+			new java.sql.Timestamp(lease.getValidEndTime().getTime());
+		ps.setTimestamp(9, vts, Util.GMT_CALENDAR);
+		ps.setBytes(10, encodeOptions(lease.getIaDhcpOptions()));
+		ps.setBytes(11, encodeOptions(lease.getIaAddrDhcpOptions()));
+	}
+	
+	private void setUpdateValues(PreparedStatement ps, DhcpLease lease) throws SQLException
+	{
+		ps.setByte(1, lease.getState());
+		java.sql.Timestamp sts = 
+			new java.sql.Timestamp(lease.getStartTime().getTime());
+		ps.setTimestamp(2, sts, Util.GMT_CALENDAR);
+		java.sql.Timestamp pts = 
+			new java.sql.Timestamp(lease.getPreferredEndTime().getTime());
+		ps.setTimestamp(3, pts, Util.GMT_CALENDAR);
+		java.sql.Timestamp vts = 
+			new java.sql.Timestamp(lease.getValidEndTime().getTime());
+		ps.setTimestamp(4, vts, Util.GMT_CALENDAR);
+		ps.setBytes(5, encodeOptions(lease.getIaDhcpOptions()));
+		ps.setBytes(6, encodeOptions(lease.getIaAddrDhcpOptions()));
+		ps.setBytes(7, lease.getIpAddress().getAddress());
+	}
+	
 	/**
 	 * Insert dhcp lease.
 	 *
@@ -96,32 +304,12 @@ public class JdbcLeaseManager extends LeaseManager
 	 */
 	protected void insertDhcpLease(final DhcpLease lease)
 	{
-		getJdbcTemplate().update("insert into dhcplease" +
-				" (ipaddress, duid, iatype, iaid, prefixlen, state," +
-				" starttime, preferredendtime, validendtime," +
-				" ia_options, ipaddr_options)" +
-				" values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)",
+		getJdbcTemplate().update(INSERT_SQL,
 				new PreparedStatementSetter() {
 			@Override
 			public void setValues(PreparedStatement ps)
 					throws SQLException {
-				ps.setBytes(1, lease.getIpAddress().getAddress());
-				ps.setBytes(2, lease.getDuid());
-				ps.setByte(3, lease.getIatype());
-				ps.setLong(4, lease.getIaid());
-				ps.setShort(5, lease.getPrefixLength());
-				ps.setByte(6, lease.getState());
-				java.sql.Timestamp sts = 
-					new java.sql.Timestamp(lease.getStartTime().getTime());
-				ps.setTimestamp(7, sts, Util.GMT_CALENDAR);
-				java.sql.Timestamp pts = 
-					new java.sql.Timestamp(lease.getPreferredEndTime().getTime());
-				ps.setTimestamp(8, pts, Util.GMT_CALENDAR);
-				java.sql.Timestamp vts = 
-					new java.sql.Timestamp(lease.getValidEndTime().getTime());
-				ps.setTimestamp(9, vts, Util.GMT_CALENDAR);
-				ps.setBytes(10, encodeOptions(lease.getIaDhcpOptions()));
-				ps.setBytes(11, encodeOptions(lease.getIaAddrDhcpOptions()));
+				setInsertValues(ps, lease);
 			}
 		});
 	}
@@ -133,31 +321,12 @@ public class JdbcLeaseManager extends LeaseManager
 	 */
 	protected void updateDhcpLease(final DhcpLease lease)
 	{
-		getJdbcTemplate().update("update dhcplease" +
-				" set state=?," +
-				" starttime=?," +
-				" preferredendtime=?," +
-				" validendtime=?," +
-				" ia_options=?," +
-				" ipaddr_options=?" +
-				" where ipaddress=?",
+		getJdbcTemplate().update(UPDATE_SQL,
 				new PreparedStatementSetter() {
 			@Override
 			public void setValues(PreparedStatement ps)
 					throws SQLException {
-				ps.setByte(1, lease.getState());
-				java.sql.Timestamp sts = 
-					new java.sql.Timestamp(lease.getStartTime().getTime());
-				ps.setTimestamp(2, sts, Util.GMT_CALENDAR);
-				java.sql.Timestamp pts = 
-					new java.sql.Timestamp(lease.getPreferredEndTime().getTime());
-				ps.setTimestamp(3, pts, Util.GMT_CALENDAR);
-				java.sql.Timestamp vts = 
-					new java.sql.Timestamp(lease.getValidEndTime().getTime());
-				ps.setTimestamp(4, vts, Util.GMT_CALENDAR);
-				ps.setBytes(5, encodeOptions(lease.getIaDhcpOptions()));
-				ps.setBytes(6, encodeOptions(lease.getIaAddrDhcpOptions()));
-				ps.setBytes(7, lease.getIpAddress().getAddress());
+				setUpdateValues(ps, lease);
 			}
 		});
 	}
@@ -169,8 +338,7 @@ public class JdbcLeaseManager extends LeaseManager
 	 */
 	protected void deleteDhcpLease(final DhcpLease lease)
 	{
-		getJdbcTemplate().update("delete from dhcplease" +
-				" where ipaddress=?",
+		getJdbcTemplate().update(DELETE_SQL,
 				new PreparedStatementSetter() {
 			@Override
 			public void setValues(PreparedStatement ps)
@@ -277,55 +445,175 @@ public class JdbcLeaseManager extends LeaseManager
         return null;
 	}
 		
+	/**
+	 * Find the leases for a list of IP addresses, with one query for
+	 * each chunk of addresses, rather than one query for each address.
+	 * 
+	 * @param inetAddrs the inet addrs
+	 * @return the leases found
+	 */
+	@Override
+	protected List<DhcpLease> findDhcpLeasesForInetAddrs(final List<InetAddress> inetAddrs)
+	{
+		List<DhcpLease> leases = new ArrayList<DhcpLease>();
+		for (int i=0; i<inetAddrs.size(); i+=MAX_QUERY_ADDRS) {
+			final List<InetAddress> addrs = 
+				inetAddrs.subList(i, Math.min(i + MAX_QUERY_ADDRS, inetAddrs.size()));
+			StringBuilder sql = new StringBuilder("select * from dhcplease where ipaddress in (");
+			for (int j=0; j<addrs.size(); j++) {
+				sql.append((j == 0) ? "?" : ", ?");
+			}
+			sql.append(")");
+			leases.addAll(getJdbcTemplate().query(
+					sql.toString(),
+					new PreparedStatementSetter() {
+						@Override
+						public void setValues(PreparedStatement ps) throws SQLException {
+							for (int j=0; j<addrs.size(); j++) {
+								ps.setBytes(j+1, addrs.get(j).getAddress());
+							}
+						}
+					},
+					new DhcpLeaseRowMapper()));
+		}
+		return leases;
+	}
+		
 	/* (non-Javadoc)
 	 * @see com.jagornet.dhcpv6.db.IaManager#updateIaAddr(com.jagornet.dhcpv6.db.IaAddress)
 	 */
 	public void updateIaAddr(final IaAddress iaAddr)
 	{
-		getJdbcTemplate().update("update dhcplease" +
-				" set state = ?," +
-				((iaAddr instanceof IaPrefix) ? " prefixlen = ?," : "") + 
-				" starttime = ?," +
-				" preferredendtime = ?," +
-				" validendtime = ?" +
-				" where ipaddress = ?",
+		getJdbcTemplate().update(updateIaAddrSql(iaAddr instanceof IaPrefix),
 				new PreparedStatementSetter() {
 			@Override
 			public void setValues(PreparedStatement ps) throws SQLException {
-				int i = 1;
-				ps.setByte(i++, iaAddr.getState());
-				if (iaAddr instanceof IaPrefix) {
-					ps.setShort(i++, ((IaPrefix)iaAddr).getPrefixLength());
-				}
-				Date start = iaAddr.getStartTime();
-				if (start != null) {
-					java.sql.Timestamp sts = new java.sql.Timestamp(start.getTime());
-					ps.setTimestamp(i++, sts, Util.GMT_CALENDAR);
-				}
-				else {
-					ps.setNull(i++, java.sql.Types.TIMESTAMP);
-				}
-				Date preferred = iaAddr.getPreferredEndTime();
-				if (preferred != null) {
-					java.sql.Timestamp pts = new java.sql.Timestamp(preferred.getTime());
-					ps.setTimestamp(i++, pts, Util.GMT_CALENDAR);
-				}
-				else {
-					ps.setNull(i++, java.sql.Types.TIMESTAMP);
-				}
-				Date valid = iaAddr.getValidEndTime();
-				if (valid != null) {
-					java.sql.Timestamp vts = new java.sql.Timestamp(valid.getTime());
-					ps.setTimestamp(i++, vts, Util.GMT_CALENDAR);
-				}
-				else {
-					ps.setNull(i++, java.sql.Types.TIMESTAMP);
-				}
-				ps.setBytes(i++, iaAddr.getIpAddress().getAddress());
+				setIaAddrValues(ps, iaAddr);
+			}
+		});
+	}
+	
+	/**
+	 * Update a batch of IaAddresses, such as the leases expired together by
+	 * the reaper, with one batched update for the addresses and one for the
+	 * prefixes, in a single transaction.
+	 *
+	 * @param iaAddrs the IaAddresses
+	 */
+	@Override
+	public void updateIaAddrs(List<? extends IaAddress> iaAddrs)
+	{
+		final List<IaAddress> addrs = new ArrayList<IaAddress>();
+		final List<IaAddress> prefixes = new ArrayList<IaAddress>();
+		for (IaAddress iaAddr : iaAddrs) {
+			if (iaAddr instanceof IaPrefix) {
+				prefixes.add(iaAddr);
+			}
+			else {
+				addrs.add(iaAddr);
+			}
+		}
+		if (addrs.isEmpty() && prefixes.isEmpty()) {
+			return;
+		}
+		getTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				batchUpdateIaAddrs(updateIaAddrSql(false), addrs);
+				batchUpdateIaAddrs(updateIaAddrSql(true), prefixes);
 			}
 		});
 	}
 	
+	/**
+	 * Delete a batch of IaAddresses with one batched delete, in a single transaction.
+	 *
+	 * @param iaAddrs the IaAddresses
+	 */
+	@Override
+	public void deleteIaAddrs(final List<? extends IaAddress> iaAddrs)
+	{
+		if (iaAddrs.isEmpty()) {
+			return;
+		}
+		getTransactionTemplate().execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				getJdbcTemplate().batchUpdate(DELETE_SQL, new BatchPreparedStatementSetter() {
+					@Override
+					public void setValues(PreparedStatement ps, int i) throws SQLException {
+						ps.setBytes(1, iaAddrs.get(i).getIpAddress().getAddress());
+					}
+					@Override
+					public int getBatchSize() {
+						return iaAddrs.size();
+					}
+				});
+			}
+		});
+	}
+	
+	private void batchUpdateIaAddrs(String sql, final List<IaAddress> iaAddrs)
+	{
+		if (!iaAddrs.isEmpty()) {
+			getJdbcTemplate().batchUpdate(sql, new BatchPreparedStatementSetter() {
+				@Override
+				public void setValues(PreparedStatement ps, int i) throws SQLException {
+					setIaAddrValues(ps, iaAddrs.get(i));
+				}
+				@Override
+				public int getBatchSize() {
+					return iaAddrs.size();
+				}
+			});
+		}
+	}
+	
+	private static String updateIaAddrSql(boolean prefix)
+	{
+		return "update dhcplease" +
+				" set state = ?," +
+				(prefix ? " prefixlen = ?," : "") + 
+				" starttime = ?," +
+				" preferredendtime = ?," +
+				" validendtime = ?" +
+				" where ipaddress = ?";
+	}
+	
+	private static void setIaAddrValues(PreparedStatement ps, IaAddress iaAddr) throws SQLException
+	{
+		int i = 1;
+		ps.setByte(i++, iaAddr.getState());
+		if (iaAddr instanceof IaPrefix) {
+			ps.setShort(i++, ((IaPrefix)iaAddr).getPrefixLength());
+		}
+		Date start = iaAddr.getStartTime();
+		if (start != null) {
+			java.sql.Timestamp sts = new java.sql.Timestamp(start.getTime());
+			ps.setTimestamp(i++, sts, Util.GMT_CALENDAR);
+		}
+		else {
+			ps.setNull(i++, java.sql.Types.TIMESTAMP);
+		}
+		Date preferred = iaAddr.getPreferredEndTime();
+		if (preferred != null) {
+			java.sql.Timestamp pts = new java.sql.Timestamp(preferred.getTime());
+			ps.setTimestamp(i++, pts, Util.GMT_CALENDAR);
+		}
+		else {
+			ps.setNull(i++, java.sql.Types.TIMESTAMP);
+		}
+		Date valid = iaAddr.getValidEndTime();
+		if (valid != null) {
+			java.sql.Timestamp vts = new java.sql.Timestamp(valid.getTime());
+			ps.setTimestamp(i++, vts, Util.GMT_CALENDAR);
+		}
+		else {
+			ps.setNull(i++, java.sql.Types.TIMESTAMP);
+		}
+		ps.setBytes(i++, iaAddr.getIpAddress().getAddress());
+	}
+	
 	/* (non-Javadoc)
 	 * @see com.jagornet.dhcpv6.db.IaManager#deleteIaAddr(com.jagornet.dhcpv6.db.IaAddress)
 	 */
@@ -374,6 +662,27 @@ public class JdbcLeaseManager extends LeaseManager
                 });
 	}
 	
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcpv6.db.IaManager#findIaAddresses(java.net.InetAddress, java.net.InetAddress)
+	 */
+	@Override
+	public List<IaAddress> findIaAddresses(final InetAddress startAddr, final InetAddress endAddr)
+	{
+        List<DhcpLease> leases = getJdbcTemplate().query(
+                "select * from dhcplease" +
+                " where ipaddress >= ? and ipaddress <= ?" +
+                " order by ipaddress",
+                new PreparedStatementSetter() {
+					@Override
+					public void setValues(PreparedStatement ps) throws SQLException {
+						ps.setBytes(1, startAddr.getAddress());
+						ps.setBytes(2, endAddr.getAddress());
+					}                	
+                },
+                new DhcpLeaseRowMapper());
+		return toIaAddresses(leases);
+	}
+
 	/* (non-Javadoc)
 	 * @see com.jagornet.dhcpv6.db.IaManager#findUnusedIaAddresses(java.net.InetAddress, java.net.InetAddress)
 	 */
@@ -0,0 +1,909 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file LeaseJournalManager.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jagornet.dhcp.server.request.binding.Range;
+import com.jagornet.dhcp.util.Util;
+
+/**
+ * Title: LeaseJournalManager
+ * Description: A write-behind IaManager in front of any LeaseManager backend.
+ * The lease changes made by createIA, updateIA and deleteIA, and by the
+ * updates and deletes of single addresses and prefixes, are appended to an
+ * append-only journal file and the caller returns as soon as its entries
+ * are durable.  A single writer thread group commits all of the entries
+ * queued by the worker threads with one write and one fsync, and a single
+ * applier thread then drains the durable entries, in order, into the backend.
+ * <p>
+ * Lookups by IA or by IP address wait only if that IA or address still has
+ * entries waiting to be applied, so unrelated clients never block on the
+ * backend.  All other lookups wait for the applier to catch up and then
+ * call the backend directly.  The few other changes, such as to the options
+ * of an address or to whole ranges, hold off new entries until the applier
+ * has caught up, change the backend directly and then empty the journal, so
+ * that a replay never applies an older entry over such a change.  Once every
+ * entry has been applied and the journal has grown past its maximum size,
+ * it is truncated, as it is by a clean stop.  Any entries left in the
+ * journal by a crash are replayed into the backend by init.
+ * An entry that the backend fails to apply is retried until it succeeds,
+ * so the applier never gets ahead of the backend and the journal is never
+ * truncated past an entry that has not been applied.
+ * 
+ * @author A. Gregory Rabil
+ */
+public class LeaseJournalManager implements IaManager
+{
+	private static Logger log = LoggerFactory.getLogger(LeaseJournalManager.class);
+	
+	/** The initial and maximum delays before retrying a failed apply. */
+	private static final long MIN_RETRY_DELAY = 100;
+	private static final long MAX_RETRY_DELAY = 10000;
+	
+	/** The backend that the journal entries are applied to. */
+	protected LeaseManager leaseMgr;
+	
+	/** The journal file. */
+	protected File journalFile;
+	
+	/** The maximum number of entries written per fsync. */
+	protected int maxBatch;
+	
+	/** The journal size, in bytes, at which it is truncated once applied. */
+	protected long maxSize;
+
+	private FileChannel channel;
+	private Thread writer;
+	private Thread applier;
+	
+	// all of the following are guarded by the lock
+	private final Object lock = new Object();
+	private final LinkedList<Entry> queued = new LinkedList<Entry>();
+	private final LinkedList<Entry> durable = new LinkedList<Entry>();
+	private final Map<InetAddress, Integer> pendingAddrs = new HashMap<InetAddress, Integer>();
+	private final Map<String, Integer> pendingIAs = new HashMap<String, Integer>();
+	private long nextSeq;
+	private long durableSeq;
+	private long appliedSeq;
+	private boolean writing;
+	private boolean applying;
+	private boolean exclusive;
+	private IOException failure;
+	private long commitCount;
+	
+	/**
+	 * Instantiates a new lease journal manager.
+	 *
+	 * @param leaseMgr the initialized backend lease manager
+	 * @param journalFile the journal file
+	 * @param maxBatch the maximum number of entries written per fsync
+	 * @param maxSize the journal size at which it is truncated once applied
+	 */
+	public LeaseJournalManager(LeaseManager leaseMgr, File journalFile, int maxBatch, long maxSize)
+	{
+		this.leaseMgr = leaseMgr;
+		this.journalFile = journalFile;
+		this.maxBatch = (maxBatch > 0) ? maxBatch : 1;
+		this.maxSize = maxSize;
+	}
+	
+	/**
+	 * Replay any entries left in the journal into the backend, then start
+	 * the writer and applier threads.  The backend must already be initialized.
+	 */
+	public void init() throws Exception
+	{
+		File dir = journalFile.getAbsoluteFile().getParentFile();
+		if ((dir != null) && !dir.exists()) {
+			dir.mkdirs();
+		}
+		if (journalFile.exists()) {
+			int n = replay();
+			if (n > 0) {
+				log.info("Replayed " + n + " lease journal entries from " + journalFile);
+			}
+		}
+		channel = new RandomAccessFile(journalFile, "rw").getChannel();
+		channel.truncate(0);
+		channel.force(true);
+		synchronized (lock) {
+			writing = true;
+			applying = true;
+		}
+		writer = new Thread("LeaseJournalWriter") {
+			public void run() {
+				writeLoop();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+		applier = new Thread("LeaseJournalApplier") {
+			public void run() {
+				applyLoop();
+			}
+		};
+		applier.setDaemon(true);
+		applier.start();
+		log.info("Lease journal started: " + journalFile + " maxBatch=" + maxBatch +
+				" maxSize=" + maxSize);
+	}
+	
+	/**
+	 * Stop the journal.  All of the entries already appended are written
+	 * and applied to the backend before the journal file is closed.
+	 */
+	public void stop()
+	{
+		try {
+			synchronized (lock) {
+				writing = false;
+				lock.notifyAll();
+			}
+			if (writer != null) {
+				writer.join();
+			}
+			synchronized (lock) {
+				applying = false;
+				lock.notifyAll();
+			}
+			if (applier != null) {
+				applier.join();
+			}
+			if (channel != null) {
+				boolean applied;
+				synchronized (lock) {
+					applied = (appliedSeq == durableSeq);
+				}
+				if (applied) {
+					// nothing is left to replay
+					channel.truncate(0);
+					channel.force(true);
+				}
+				channel.close();
+			}
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		catch (IOException ex) {
+			log.error("Failed to close lease journal", ex);
+		}
+	}
+	
+	/**
+	 * Gets the backend lease manager.
+	 *
+	 * @return the lease manager
+	 */
+	public LeaseManager getLeaseMgr()
+	{
+		return leaseMgr;
+	}
+	
+	/**
+	 * Gets the number of fsyncs of the journal, each covering one or more entries.
+	 *
+	 * @return the commit count
+	 */
+	public long getCommitCount()
+	{
+		synchronized (lock) {
+			return commitCount;
+		}
+	}
+	
+	/**
+	 * Wait until every entry appended so far has been applied to the backend.
+	 */
+	public void sync()
+	{
+		synchronized (lock) {
+			long seq = nextSeq;
+			while ((appliedSeq < seq) && (failure == null)) {
+				waitOnLock();
+			}
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#createIA(com.jagornet.dhcp.db.IdentityAssoc)
+	 */
+	public void createIA(IdentityAssoc ia)
+	{
+		if (ia != null) {
+			List<DhcpLease> leases = leaseMgr.toDhcpLeases(ia);
+			if ((leases != null) && !leases.isEmpty()) {
+				List<Entry> entries = new ArrayList<Entry>();
+				for (DhcpLease lease : leases) {
+					entries.add(new Entry(LeaseManager.LEASE_INSERT, lease));
+				}
+				append(entries);
+			}
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#updateIA(com.jagornet.dhcp.db.IdentityAssoc, java.util.Collection, java.util.Collection, java.util.Collection)
+	 */
+	public void updateIA(IdentityAssoc ia, Collection<? extends IaAddress> addAddrs,
+			Collection<? extends IaAddress> updateAddrs, Collection<? extends IaAddress> delAddrs)
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+		if (addAddrs != null) {
+			for (IaAddress addAddr : addAddrs) {
+				entries.add(new Entry(LeaseManager.LEASE_INSERT, leaseMgr.toDhcpLease(ia, addAddr)));
+			}
+		}
+		if (updateAddrs != null) {
+			for (IaAddress updateAddr : updateAddrs) {
+				entries.add(new Entry(LeaseManager.LEASE_UPDATE, leaseMgr.toDhcpLease(ia, updateAddr)));
+			}
+		}
+		if (delAddrs != null) {
+			for (IaAddress delAddr : delAddrs) {
+				entries.add(new Entry(LeaseManager.LEASE_DELETE, leaseMgr.toDhcpLease(ia, delAddr)));
+			}
+		}
+		if (!entries.isEmpty()) {
+			append(entries);
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#deleteIA(com.jagornet.dhcp.db.IdentityAssoc)
+	 */
+	public void deleteIA(IdentityAssoc ia)
+	{
+		if (ia != null) {
+			List<DhcpLease> leases = leaseMgr.toDhcpLeases(ia);
+			if ((leases != null) && !leases.isEmpty()) {
+				List<Entry> entries = new ArrayList<Entry>();
+				for (DhcpLease lease : leases) {
+					entries.add(new Entry(LeaseManager.LEASE_DELETE, lease));
+				}
+				append(entries);
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#findIA(byte[], byte, long)
+	 */
+	public IdentityAssoc findIA(byte[] duid, byte iatype, long iaid)
+	{
+		awaitIA(iaKey(duid, iatype, iaid));
+		return leaseMgr.findIA(duid, iatype, iaid);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#findIA(com.jagornet.dhcp.db.IaAddress)
+	 */
+	public IdentityAssoc findIA(IaAddress iaAddress)
+	{
+		return findIA(iaAddress.getIpAddress());
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#findIA(java.net.InetAddress)
+	 */
+	public IdentityAssoc findIA(InetAddress inetAddr)
+	{
+		awaitAddr(inetAddr);
+		IdentityAssoc ia = leaseMgr.findIA(inetAddr);
+		if ((ia != null) && awaitIA(iaKey(ia.getDuid(), ia.getIatype(), ia.getIaid()))) {
+			// other addresses of the IA were still waiting, so look again
+			ia = leaseMgr.findIA(inetAddr);
+		}
+		return ia;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#findIAs(java.util.List)
+	 */
+	public List<IdentityAssoc> findIAs(List<InetAddress> inetAddrs)
+	{
+		for (InetAddress inetAddr : inetAddrs) {
+			awaitAddr(inetAddr);
+		}
+		return leaseMgr.findIAs(inetAddrs);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#findExpiredIAs(byte)
+	 */
+	public List<IdentityAssoc> findExpiredIAs(byte iatype)
+	{
+		sync();
+		return leaseMgr.findExpiredIAs(iatype);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#saveDhcpOption(com.jagornet.dhcp.db.IaAddress, com.jagornet.dhcp.option.base.BaseDhcpOption)
+	 */
+	public void saveDhcpOption(final IaAddress iaAddr,
+			final com.jagornet.dhcp.option.base.BaseDhcpOption option)
+	{
+		writeThrough(new Runnable() {
+			public void run() {
+				leaseMgr.saveDhcpOption(iaAddr, option);
+			}
+		});
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#deleteDhcpOption(com.jagornet.dhcp.db.IaAddress, com.jagornet.dhcp.option.base.BaseDhcpOption)
+	 */
+	public void deleteDhcpOption(final IaAddress iaAddr,
+			final com.jagornet.dhcp.option.base.BaseDhcpOption option)
+	{
+		writeThrough(new Runnable() {
+			public void run() {
+				leaseMgr.deleteDhcpOption(iaAddr, option);
+			}
+		});
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#updateIaAddr(com.jagornet.dhcp.db.IaAddress)
+	 */
+	public void updateIaAddr(IaAddress iaAddr)
+	{
+		updateIaAddrs(Collections.singletonList(iaAddr));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#deleteIaAddr(com.jagornet.dhcp.db.IaAddress)
+	 */
+	public void deleteIaAddr(IaAddress iaAddr)
+	{
+		deleteIaAddrs(Collections.singletonList(iaAddr));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#updateIaAddrs(java.util.List)
+	 */
+	public void updateIaAddrs(List<? extends IaAddress> iaAddrs)
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+		for (IaAddress iaAddr : iaAddrs) {
+			DhcpLease lease = findLease(iaAddr.getIpAddress());
+			if (lease != null) {
+				// the same fields as the backend's updateIaAddr
+				lease.setState(iaAddr.getState());
+				if (iaAddr instanceof IaPrefix) {
+					lease.setPrefixLength(((IaPrefix)iaAddr).getPrefixLength());
+				}
+				lease.setStartTime(iaAddr.getStartTime());
+				lease.setPreferredEndTime(iaAddr.getPreferredEndTime());
+				lease.setValidEndTime(iaAddr.getValidEndTime());
+				entries.add(new Entry(LeaseManager.LEASE_UPDATE, lease));
+			}
+		}
+		if (!entries.isEmpty()) {
+			append(entries);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#deleteIaAddrs(java.util.List)
+	 */
+	public void deleteIaAddrs(List<? extends IaAddress> iaAddrs)
+	{
+		List<Entry> entries = new ArrayList<Entry>();
+		for (IaAddress iaAddr : iaAddrs) {
+			DhcpLease lease = findLease(iaAddr.getIpAddress());
+			if (lease != null) {
+				entries.add(new Entry(LeaseManager.LEASE_DELETE, lease));
+			}
+		}
+		if (!entries.isEmpty()) {
+			append(entries);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#updateIaPrefix(com.jagornet.dhcp.db.IaPrefix)
+	 */
+	public void updateIaPrefix(IaPrefix iaPrefix)
+	{
+		updateIaAddrs(Collections.singletonList(iaPrefix));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#deleteIaPrefix(com.jagornet.dhcp.db.IaPrefix)
+	 */
+	public void deleteIaPrefix(IaPrefix iaPrefix)
+	{
+		deleteIaAddrs(Collections.singletonList(iaPrefix));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#findExistingIPs(java.net.InetAddress, java.net.InetAddress)
+	 */
+	public List<InetAddress> findExistingIPs(InetAddress startAddr, InetAddress endAddr)
+	{
+		sync();
+		return leaseMgr.findExistingIPs(startAddr, endAddr);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#findIaAddresses(java.net.InetAddress, java.net.InetAddress)
+	 */
+	public List<IaAddress> findIaAddresses(InetAddress startAddr, InetAddress endAddr)
+	{
+		sync();
+		return leaseMgr.findIaAddresses(startAddr, endAddr);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#findUnusedIaAddresses(java.net.InetAddress, java.net.InetAddress)
+	 */
+	public List<IaAddress> findUnusedIaAddresses(InetAddress startAddr, InetAddress endAddr)
+	{
+		sync();
+		return leaseMgr.findUnusedIaAddresses(startAddr, endAddr);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#findExpiredIaAddresses(byte)
+	 */
+	public List<IaAddress> findExpiredIaAddresses(byte iatype)
+	{
+		sync();
+		return leaseMgr.findExpiredIaAddresses(iatype);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#findUnusedIaPrefixes(java.net.InetAddress, java.net.InetAddress)
+	 */
+	public List<IaPrefix> findUnusedIaPrefixes(InetAddress startAddr, InetAddress endAddr)
+	{
+		sync();
+		return leaseMgr.findUnusedIaPrefixes(startAddr, endAddr);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#findExpiredIaPrefixes()
+	 */
+	public List<IaPrefix> findExpiredIaPrefixes()
+	{
+		sync();
+		return leaseMgr.findExpiredIaPrefixes();
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#reconcileIaAddresses(java.util.List)
+	 */
+	public void reconcileIaAddresses(final List<Range> ranges)
+	{
+		writeThrough(new Runnable() {
+			public void run() {
+				leaseMgr.reconcileIaAddresses(ranges);
+			}
+		});
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#deleteAllIAs()
+	 */
+	public void deleteAllIAs()
+	{
+		writeThrough(new Runnable() {
+			public void run() {
+				leaseMgr.deleteAllIAs();
+			}
+		});
+	}
+	
+	/**
+	 * Find the lease for an address, once any entries for it are applied.
+	 *
+	 * @param inetAddr the address
+	 * @return the lease, or null if none
+	 */
+	private DhcpLease findLease(InetAddress inetAddr)
+	{
+		awaitAddr(inetAddr);
+		return leaseMgr.findDhcpLeaseForInetAddr(inetAddr);
+	}
+	
+	/**
+	 * Change the backend directly, rather than through the journal.  New
+	 * entries are held off until every entry already appended is applied,
+	 * and the journal is emptied after the change, so that a replay never
+	 * applies one of those entries over the change.
+	 *
+	 * @param write the change to the backend
+	 */
+	protected void writeThrough(Runnable write)
+	{
+		synchronized (lock) {
+			while (exclusive) {
+				waitOnLock();
+			}
+			exclusive = true;
+		}
+		try {
+			boolean applied;
+			synchronized (lock) {
+				while ((appliedSeq < nextSeq) && applying && (failure == null)) {
+					waitOnLock();
+				}
+				if (failure != null) {
+					throw new IllegalStateException("Lease journal failed", failure);
+				}
+				applied = (appliedSeq == nextSeq);
+			}
+			write.run();
+			// the writer is idle, because nothing can be appended
+			if (applied && (channel != null) && channel.isOpen() && (channel.size() > 0)) {
+				channel.truncate(0);
+				channel.position(0);
+				channel.force(true);
+			}
+		}
+		catch (IOException ex) {
+			log.error("Failed to truncate lease journal: " + journalFile, ex);
+			throw new IllegalStateException("Lease journal failed", ex);
+		}
+		finally {
+			synchronized (lock) {
+				exclusive = false;
+				lock.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Append the entries to the journal, and wait until they are durable.
+	 *
+	 * @param entries the entries
+	 */
+	protected void append(List<Entry> entries)
+	{
+		for (Entry entry : entries) {
+			entry.record = leaseMgr.encodeLeaseRecord(entry.op, entry.lease);
+		}
+		synchronized (lock) {
+			if (failure != null) {
+				throw new IllegalStateException("Lease journal failed", failure);
+			}
+			if (!writing) {
+				throw new IllegalStateException("Lease journal is not running");
+			}
+			while (exclusive) {
+				waitOnLock();
+			}
+			for (Entry entry : entries) {
+				entry.seq = ++nextSeq;
+				increment(pendingAddrs, entry.lease.getIpAddress());
+				increment(pendingIAs, entry.iaKey);
+				queued.add(entry);
+			}
+			lock.notifyAll();
+			long seq = nextSeq;
+			while ((durableSeq < seq) && (failure == null)) {
+				waitOnLock();
+			}
+			if (durableSeq < seq) {
+				throw new IllegalStateException("Lease journal failed", failure);
+			}
+		}
+	}
+	
+	/**
+	 * The writer thread loop.  Take everything queued, up to the maximum
+	 * batch size, write it to the journal with a single fsync, and then
+	 * wake up the waiting callers and hand the entries to the applier.
+	 */
+	private void writeLoop()
+	{
+		List<Entry> batch = new ArrayList<Entry>();
+		while (true) {
+			boolean truncate = false;
+			synchronized (lock) {
+				while (queued.isEmpty() && writing) {
+					waitOnLock();
+				}
+				if (queued.isEmpty()) {
+					break;
+				}
+				while (!queued.isEmpty() && (batch.size() < maxBatch)) {
+					batch.add(queued.removeFirst());
+				}
+				// safe to truncate only when the applier has nothing left
+				// to do, and it gets nothing more until we publish the batch
+				truncate = (appliedSeq == durableSeq);
+			}
+			try {
+				if (truncate && (channel.size() > maxSize)) {
+					channel.truncate(0);
+					channel.position(0);
+				}
+				ByteBuffer[] bufs = new ByteBuffer[batch.size()];
+				long len = 0;
+				for (int i=0; i<bufs.length; i++) {
+					bufs[i] = ByteBuffer.wrap(batch.get(i).record);
+					len += bufs[i].remaining();
+				}
+				while (len > 0) {
+					len -= channel.write(bufs);
+				}
+				channel.force(false);
+				synchronized (lock) {
+					durableSeq = batch.get(batch.size()-1).seq;
+					durable.addAll(batch);
+					commitCount++;
+					lock.notifyAll();
+				}
+			}
+			catch (IOException ex) {
+				log.error("Failed to write lease journal: " + journalFile, ex);
+				synchronized (lock) {
+					failure = ex;
+					writing = false;
+					queued.clear();
+					lock.notifyAll();
+				}
+				break;
+			}
+			batch.clear();
+		}
+	}
+	
+	/**
+	 * The applier thread loop.  Apply the durable entries to the backend,
+	 * in the order in which they were appended.
+	 */
+	private void applyLoop()
+	{
+		List<Entry> batch = new ArrayList<Entry>();
+		while (true) {
+			synchronized (lock) {
+				while (durable.isEmpty() && applying) {
+					waitOnLock();
+				}
+				if (durable.isEmpty()) {
+					break;
+				}
+				batch.addAll(durable);
+				durable.clear();
+			}
+			int applied = 0;
+			for (Entry entry : batch) {
+				if (!applyWithRetry(entry)) {
+					break;
+				}
+				applied++;
+			}
+			synchronized (lock) {
+				for (Entry entry : batch.subList(0, applied)) {
+					decrement(pendingAddrs, entry.lease.getIpAddress());
+					decrement(pendingIAs, entry.iaKey);
+				}
+				if (applied > 0) {
+					appliedSeq = batch.get(applied-1).seq;
+				}
+				lock.notifyAll();
+			}
+			if (applied < batch.size()) {
+				// stopped while the backend was still failing: the entries not
+				// applied stay in the journal file, which is only truncated once
+				// every durable entry is applied, and are replayed on the next start
+				log.warn("Lease journal stopped with " + (batch.size() - applied) +
+						" entries not applied to the backend");
+				break;
+			}
+			batch.clear();
+		}
+	}
+	
+	/**
+	 * Apply a journal entry to the backend, retrying until it succeeds.
+	 * Entries must be applied in order, so the applier never moves past
+	 * a failed entry.
+	 *
+	 * @param entry the entry
+	 * 
+	 * @return true, if applied, false if the journal was stopped first
+	 */
+	private boolean applyWithRetry(Entry entry)
+	{
+		long delay = MIN_RETRY_DELAY;
+		while (true) {
+			try {
+				apply(entry.op, entry.lease);
+				return true;
+			}
+			catch (RuntimeException ex) {
+				log.error("Failed to apply lease journal entry for " +
+						entry.lease.getIpAddress().getHostAddress() +
+						", retrying in " + delay + "ms", ex);
+			}
+			synchronized (lock) {
+				if (!applying) {
+					return false;
+				}
+				try {
+					lock.wait(delay);
+				}
+				catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+				if (!applying) {
+					return false;
+				}
+			}
+			delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+		}
+	}
+	
+	/**
+	 * Apply a journal entry to the backend.
+	 *
+	 * @param op the operation
+	 * @param lease the lease
+	 */
+	protected void apply(byte op, DhcpLease lease)
+	{
+		if (op == LeaseManager.LEASE_DELETE) {
+			leaseMgr.deleteDhcpLease(lease);
+		}
+		else if (leaseMgr.findDhcpLeaseForInetAddr(lease.getIpAddress()) != null) {
+			// an insert may already have been applied by an earlier attempt
+			// or by a replay, and an update may follow a delete of the row
+			leaseMgr.updateDhcpLease(lease);
+		}
+		else {
+			leaseMgr.insertDhcpLease(lease);
+		}
+	}
+	
+	/**
+	 * Replay the journal file into the backend.  Replay stops at the
+	 * first incomplete or corrupt record, which can only be the tail
+	 * of a write that never completed, and so was never acknowledged.
+	 *
+	 * @return the number of entries replayed
+	 * 
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected int replay() throws IOException
+	{
+		return leaseMgr.readLeaseRecords(journalFile, new LeaseManager.LeaseRecordHandler() {
+			public void handleLeaseRecord(byte op, DhcpLease lease) {
+				apply(op, lease);
+			}
+		});
+	}
+	
+	/**
+	 * Wait while the address has entries waiting to be applied.
+	 *
+	 * @param inetAddr the address
+	 * 
+	 * @return true, if had to wait
+	 */
+	private boolean awaitAddr(InetAddress inetAddr)
+	{
+		boolean waited = false;
+		synchronized (lock) {
+			while (pendingAddrs.containsKey(inetAddr) && (failure == null)) {
+				waited = true;
+				waitOnLock();
+			}
+		}
+		return waited;
+	}
+	
+	/**
+	 * Wait while the IA has entries waiting to be applied.
+	 *
+	 * @param key the IA key
+	 * 
+	 * @return true, if had to wait
+	 */
+	private boolean awaitIA(String key)
+	{
+		boolean waited = false;
+		synchronized (lock) {
+			while (pendingIAs.containsKey(key) && (failure == null)) {
+				waited = true;
+				waitOnLock();
+			}
+		}
+		return waited;
+	}
+	
+	private void waitOnLock()
+	{
+		try {
+			lock.wait();
+		}
+		catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted waiting for lease journal", ex);
+		}
+	}
+	
+	private static <K> void increment(Map<K, Integer> map, K key)
+	{
+		Integer count = map.get(key);
+		map.put(key, (count == null) ? 1 : count + 1);
+	}
+	
+	private static <K> void decrement(Map<K, Integer> map, K key)
+	{
+		Integer count = map.get(key);
+		if ((count == null) || (count <= 1)) {
+			map.remove(key);
+		}
+		else {
+			map.put(key, count - 1);
+		}
+	}
+	
+	private static String iaKey(byte[] duid, byte iatype, long iaid)
+	{
+		return Util.toHexString(duid) + "/" + iatype + "/" + iaid;
+	}
+	
+	/**
+	 * A lease change waiting in the journal.
+	 */
+	protected static class Entry
+	{
+		final byte op;
+		final DhcpLease lease;
+		final String iaKey;
+		long seq;
+		byte[] record;
+		
+		Entry(byte op, DhcpLease lease)
+		{
+			this.op = op;
+			this.lease = lease;
+			this.iaKey = iaKey(lease.getDuid(), lease.getIatype(), lease.getIaid());
+		}
+	}
+}
@@ -25,16 +25,23 @@
  */
 package com.jagornet.dhcp.db;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.zip.CRC32;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,6 +49,19 @@ import org.slf4j.LoggerFactory;
 public abstract class LeaseManager implements IaManager {
 	
 	private static Logger log = LoggerFactory.getLogger(LeaseManager.class);
+	
+	/** The operations of a lease record, in a journal or log of lease changes. */
+	public static final byte LEASE_INSERT = 1;
+	public static final byte LEASE_UPDATE = 2;
+	public static final byte LEASE_DELETE = 3;
+	
+	/**
+	 * The handler for the lease records read from a file.
+	 */
+	protected interface LeaseRecordHandler
+	{
+		public void handleLeaseRecord(byte op, DhcpLease lease);
+	}
 
 	protected abstract void insertDhcpLease(final DhcpLease lease);
 	protected abstract void updateDhcpLease(final DhcpLease lease);
@@ -255,6 +275,59 @@ public abstract class LeaseManager implements IaManager {
         return ia;
 	}
 	
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#findIAs(java.util.List)
+	 */
+	public List<IdentityAssoc> findIAs(List<InetAddress> inetAddrs)
+	{
+		// only the lease for each address is needed, not all those of its IA
+		List<IdentityAssoc> ias = toIdentityAssocs(findDhcpLeasesForInetAddrs(inetAddrs));
+		if (ias == null) {
+			ias = new ArrayList<IdentityAssoc>();
+		}
+		return ias;
+	}
+	
+	/**
+	 * Find the leases for a list of IP addresses.  This finds each lease
+	 * in turn, so backends which can find them all with one query should
+	 * override it.
+	 * 
+	 * @param inetAddrs the inet addrs
+	 * @return the leases found
+	 */
+	protected List<DhcpLease> findDhcpLeasesForInetAddrs(List<InetAddress> inetAddrs)
+	{
+		List<DhcpLease> leases = new ArrayList<DhcpLease>();
+		for (InetAddress inetAddr : inetAddrs) {
+			DhcpLease lease = findDhcpLeaseForInetAddr(inetAddr);
+			if (lease != null) {
+				leases.add(lease);
+			}
+		}
+		return leases;
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#updateIaAddrs(java.util.List)
+	 */
+	public void updateIaAddrs(List<? extends IaAddress> iaAddrs)
+	{
+		for (IaAddress iaAddr : iaAddrs) {
+			updateIaAddr(iaAddr);
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#deleteIaAddrs(java.util.List)
+	 */
+	public void deleteIaAddrs(List<? extends IaAddress> iaAddrs)
+	{
+		for (IaAddress iaAddr : iaAddrs) {
+			deleteIaAddr(iaAddr);
+		}
+	}
+	
 	/* (non-Javadoc)
 	 * @see com.jagornet.dhcpv6.db.IaManager#updateIaPrefix(com.jagornet.dhcpv6.db.IaPrefix)
 	 */
@@ -491,5 +564,155 @@ public abstract class LeaseManager implements IaManager {
         }
         return options;
 	}
+	
+	/**
+	 * Encode a lease record: the body length, the body, which is the
+	 * operation followed by the lease, and a CRC32 of the body.
+	 *
+	 * @param op the operation
+	 * @param lease the lease
+	 * @return the record
+	 */
+	protected byte[] encodeLeaseRecord(byte op, DhcpLease lease)
+	{
+		byte[] ip = lease.getIpAddress().getAddress();
+		byte[] duid = lease.getDuid();
+		byte[] iaOpts = encodeOptions(lease.getIaDhcpOptions());
+		byte[] addrOpts = encodeOptions(lease.getIaAddrDhcpOptions());
+		int len = 1 + 1 + ip.length + 2 + (duid != null ? duid.length : 0) +
+				1 + 8 + 2 + 1 + 24 + 4 + (iaOpts != null ? iaOpts.length : 0) +
+				4 + (addrOpts != null ? addrOpts.length : 0);
+		ByteBuffer bb = ByteBuffer.allocate(len + 8);
+		bb.putInt(len);
+		bb.put(op);
+		bb.put((byte)ip.length);
+		bb.put(ip);
+		putBytes(bb, duid, true);
+		bb.put(lease.getIatype());
+		bb.putLong(lease.getIaid());
+		bb.putShort(lease.getPrefixLength());
+		bb.put(lease.getState());
+		putTime(bb, lease.getStartTime());
+		putTime(bb, lease.getPreferredEndTime());
+		putTime(bb, lease.getValidEndTime());
+		putBytes(bb, iaOpts, false);
+		putBytes(bb, addrOpts, false);
+		CRC32 crc = new CRC32();
+		crc.update(bb.array(), 4, len);
+		bb.putInt((int)crc.getValue());
+		return bb.array();
+	}
+	
+	/**
+	 * Read the lease records from a file.  Reading stops at the first
+	 * incomplete or corrupt record, which can only be the tail of a
+	 * write that never completed.
+	 *
+	 * @param file the file
+	 * @param handler the handler for each record
+	 * @return the number of records read
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected int readLeaseRecords(File file, LeaseRecordHandler handler) throws IOException
+	{
+		int n = 0;
+		long remaining = file.length();
+		DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(file)));
+		try {
+			CRC32 crc = new CRC32();
+			while (remaining >= 8) {
+				int len = in.readInt();
+				if ((len <= 0) || (len > remaining - 8)) {
+					break;
+				}
+				byte[] body = new byte[len];
+				in.readFully(body);
+				int sum = in.readInt();
+				crc.reset();
+				crc.update(body);
+				if ((int)crc.getValue() != sum) {
+					break;
+				}
+				remaining -= (len + 8);
+				ByteBuffer bb = ByteBuffer.wrap(body);
+				byte op = bb.get();
+				handler.handleLeaseRecord(op, decodeLease(bb));
+				n++;
+			}
+			if (remaining > 0) {
+				log.warn("Ignored " + remaining + " bytes at the end of " + file);
+			}
+		}
+		catch (EOFException ex) {
+			log.warn("Lease records ended unexpectedly: " + file);
+		}
+		finally {
+			in.close();
+		}
+		return n;
+	}
+	
+	/**
+	 * Decode the lease from a lease record body, positioned after the operation.
+	 *
+	 * @param bb the record body
+	 * @return the lease
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected DhcpLease decodeLease(ByteBuffer bb) throws IOException
+	{
+		DhcpLease lease = new DhcpLease();
+		byte[] ip = new byte[bb.get()];
+		bb.get(ip);
+		lease.setIpAddress(InetAddress.getByAddress(ip));
+		lease.setDuid(getBytes(bb, true));
+		lease.setIatype(bb.get());
+		lease.setIaid(bb.getLong());
+		lease.setPrefixLength(bb.getShort());
+		lease.setState(bb.get());
+		lease.setStartTime(getTime(bb));
+		lease.setPreferredEndTime(getTime(bb));
+		lease.setValidEndTime(getTime(bb));
+		lease.setIaDhcpOptions(decodeOptions(getBytes(bb, false)));
+		lease.setIaAddrDhcpOptions(decodeOptions(getBytes(bb, false)));
+		return lease;
+	}
+	
+	protected static void putBytes(ByteBuffer bb, byte[] b, boolean shortLen)
+	{
+		int len = (b != null) ? b.length : -1;
+		if (shortLen) {
+			bb.putShort((short)len);
+		}
+		else {
+			bb.putInt(len);
+		}
+		if (b != null) {
+			bb.put(b);
+		}
+	}
+	
+	protected static byte[] getBytes(ByteBuffer bb, boolean shortLen)
+	{
+		int len = shortLen ? bb.getShort() : bb.getInt();
+		if (len < 0) {
+			return null;
+		}
+		byte[] b = new byte[len];
+		bb.get(b);
+		return b;
+	}
+	
+	private static void putTime(ByteBuffer bb, Date date)
+	{
+		bb.putLong((date != null) ? date.getTime() : Long.MIN_VALUE);
+	}
+	
+	private static Date getTime(ByteBuffer bb)
+	{
+		long time = bb.getLong();
+		return (time != Long.MIN_VALUE) ? new Date(time) : null;
+	}
 
 }
@@ -0,0 +1,1288 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file MappedLeaseManager.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jagornet.dhcp.server.config.DhcpLink;
+import com.jagornet.dhcp.server.config.DhcpServerConfigException;
+import com.jagornet.dhcp.server.config.DhcpServerConfiguration;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
+import com.jagornet.dhcp.server.request.binding.Range;
+import com.jagornet.dhcp.util.Util;
+import com.jagornet.dhcp.xml.LinkFilter;
+import com.jagornet.dhcp.xml.V4AddressPool;
+import com.jagornet.dhcp.xml.V4AddressPoolsType;
+
+/**
+ * The MappedLeaseManager implementation class for the IaManager interface.
+ * The leases for the addresses in the configured DHCPv4 pools are stored in
+ * a memory-mapped file of fixed-size slots, one slot for each address in the
+ * pools, so the slot of a lease is found directly from its pool offset.  The
+ * variable length DUID and options of each lease are appended to a side log,
+ * and the slot holds their offset, length and checksum.  A change of only
+ * the state or times of a lease, such as a renewal, is a single in-place
+ * write of its slot.  The mapped file is forced to disk periodically, or
+ * after every change if the force interval is zero.
+ * <p>
+ * All other leases - DHCPv6 leases, and any DHCPv4 leases outside of the
+ * configured pools - are kept by the MemoryLeaseManager.  If the configured
+ * pools change, or the side log has grown to more than twice the size of
+ * the data it still holds, the files are rebuilt when the server starts.
+ * A rebuild writes new files under temporary names, and replaces the old
+ * files only once the new files are complete and forced to disk, so that
+ * a crash during a rebuild leaves either the old or the new files.
+ * 
+ * @author A. Gregory Rabil
+ */
+public class MappedLeaseManager extends MemoryLeaseManager
+{
+	private static Logger log = LoggerFactory.getLogger(MappedLeaseManager.class);
+	
+	public static String SLOT_FILENAME = "jagornet-dhcp-v4leases.slots";
+	public static String BLOB_FILENAME = "jagornet-dhcp-v4leases.blobs";
+	
+	protected static final int MAGIC = 0x4a444c53;	// "JDLS"
+	protected static final int VERSION = 1;
+	protected static final int HEADER_SIZE = 4096;
+	protected static final int MAX_RANGES = (HEADER_SIZE - 16) / 8;
+	protected static final int SLOT_SIZE = 64;
+	
+	// slot field offsets, the slot CRC covers the bytes before it
+	private static final int IN_USE = 0;
+	private static final int STATE = 1;
+	private static final int IATYPE = 2;
+	private static final int BLOB_LEN = 4;
+	private static final int IAID = 8;
+	private static final int START_TIME = 16;
+	private static final int PREFERRED_END_TIME = 24;
+	private static final int VALID_END_TIME = 32;
+	private static final int BLOB_OFFSET = 40;
+	private static final int BLOB_CRC = 48;
+	private static final int SLOT_CRC = 52;
+	
+	// each mapping holds 1M slots, or 64MB
+	private static final int CHUNK_SHIFT = 20;
+	private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+	
+	private static final int NUM_STRIPES = 64;
+	
+	/** The layout of the slots for the configured pools. */
+	protected Layout layout;
+	
+	private MappedByteBuffer[] chunks;
+	private FileChannel slotChannel;
+	private FileChannel blobChannel;
+	private final Object[] stripes = new Object[NUM_STRIPES];
+	private final Object blobLock = new Object();
+	private final IaIndex iaIndex = new IaIndex();
+	private long forceInterval;
+	private Timer forceTimer;
+	private volatile boolean dirty;
+	
+	public MappedLeaseManager()
+	{
+		dbDir = new File(DbSchemaManager.DB_HOME + "mapped");
+		for (int i=0; i<NUM_STRIPES; i++) {
+			stripes[i] = new Object();
+		}
+	}
+
+	// Spring bean init-method
+	public void init() throws Exception {
+		close();
+		super.init();
+		forceInterval = DhcpServerPolicies.globalPolicyAsLong(Property.DATABASE_MAPPED_FORCE_INTERVAL);
+		
+		Layout newLayout = new Layout(getConfiguredV4Ranges());
+		File slotFile = new File(dbDir, SLOT_FILENAME);
+		File blobFile = new File(dbDir, BLOB_FILENAME);
+		// finish, or discard, a rebuild that was interrupted by a crash
+		commitRebuild();
+		List<DhcpLease> rebuild = null;
+		if (slotFile.exists()) {
+			open(slotFile, blobFile);
+			layout = readHeader();
+			if (layout != null) {
+				map();
+				long liveBytes = scan();
+				long blobSize = blobChannel.size();
+				if (!layout.equals(newLayout)) {
+					log.info("Configured DHCPv4 pools have changed, rebuilding " + slotFile);
+					rebuild = readAllSlots();
+				}
+				else if (blobSize > 2*liveBytes + 1048576) {
+					log.info("Compacting " + blobFile + ": size=" + blobSize +
+							" live=" + liveBytes);
+					rebuild = readAllSlots();
+				}
+			}
+			else {
+				log.warn("Invalid header, recreating " + slotFile);
+				rebuild = new ArrayList<DhcpLease>();
+			}
+			if (rebuild != null) {
+				close();
+			}
+		}
+		if (slotChannel == null) {
+			rebuild(newLayout, (rebuild != null) ? rebuild : new ArrayList<DhcpLease>());
+			open(slotFile, blobFile);
+			layout = readHeader();
+			map();
+			scan();
+		}
+		// move any leases kept in memory that are now within the pools
+		for (int i=0; i<layout.starts.length; i++) {
+			List<InetAddress> inetAddrs = super.findExistingIPs(
+					Util.longToV4Addr(layout.starts[i]), Util.longToV4Addr(layout.ends[i]));
+			for (InetAddress inetAddr : inetAddrs) {
+				DhcpLease lease = super.findDhcpLeaseForInetAddr(inetAddr);
+				if (lease != null) {
+					writeSlot(layout.slotOf(inetAddr), lease);
+					super.deleteDhcpLease(lease);
+				}
+			}
+		}
+		force();
+		if (forceInterval > 0) {
+			forceTimer = new Timer("MappedLeaseForce", true);
+			forceTimer.schedule(new TimerTask() {
+				public void run() {
+					if (dirty) {
+						force();
+					}
+				}
+			}, forceInterval, forceInterval);
+		}
+		log.info("Mapped " + layout.slotCount + " DHCPv4 lease slots in " + slotFile);
+	}
+	
+	/**
+	 * Write new slot and side log files for the given layout and leases.
+	 * The files are written under temporary names, forced to disk, and only
+	 * then moved over the old files.  Any leases that are no longer within
+	 * the pools are moved to the MemoryLeaseManager before the old files
+	 * are replaced.
+	 *
+	 * @param newLayout the new layout
+	 * @param leases the leases to write
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void rebuild(Layout newLayout, List<DhcpLease> leases) throws IOException
+	{
+		File slotTmp = new File(dbDir, SLOT_FILENAME + ".tmp");
+		File blobTmp = new File(dbDir, BLOB_FILENAME + ".tmp");
+		slotTmp.delete();
+		blobTmp.delete();
+		open(slotTmp, blobTmp);
+		layout = newLayout;
+		writeHeader();
+		map();
+		iaIndex.init(layout.slotCount);
+		for (DhcpLease lease : leases) {
+			insertDhcpLease(lease);
+		}
+		close();
+		// the new files are complete once the slot file has its ".new" name
+		rename(slotTmp, new File(dbDir, SLOT_FILENAME + ".new"));
+		commitRebuild();
+	}
+	
+	/**
+	 * Move the files of a complete rebuild over the old files, or
+	 * delete the temporary files of a rebuild that did not complete.
+	 *
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private void commitRebuild() throws IOException
+	{
+		File slotNew = new File(dbDir, SLOT_FILENAME + ".new");
+		File slotTmp = new File(dbDir, SLOT_FILENAME + ".tmp");
+		File blobTmp = new File(dbDir, BLOB_FILENAME + ".tmp");
+		if (slotNew.exists()) {
+			// the side log is moved first, and the slot file last,
+			// because the ".new" slot file marks the rebuild as complete
+			if (blobTmp.exists()) {
+				rename(blobTmp, new File(dbDir, BLOB_FILENAME));
+			}
+			rename(slotNew, new File(dbDir, SLOT_FILENAME));
+		}
+		else {
+			slotTmp.delete();
+			blobTmp.delete();
+		}
+	}
+	
+	private static void rename(File from, File to) throws IOException
+	{
+		if (!from.renameTo(to)) {
+			// some platforms will not rename over an existing file
+			to.delete();
+			if (!from.renameTo(to)) {
+				throw new IOException("Failed to rename " + from + " to " + to);
+			}
+		}
+	}
+	
+	private void open(File slotFile, File blobFile) throws IOException
+	{
+		slotChannel = new RandomAccessFile(slotFile, "rw").getChannel();
+		blobChannel = new RandomAccessFile(blobFile, "rw").getChannel();
+	}
+	
+	/**
+	 * Force the mapped slots and the side log to disk.
+	 */
+	public void force()
+	{
+		try {
+			dirty = false;
+			synchronized (blobLock) {
+				blobChannel.force(false);
+			}
+			for (MappedByteBuffer chunk : chunks) {
+				chunk.force();
+			}
+		}
+		catch (IOException ex) {
+			log.error("Failed to force lease file", ex);
+		}
+	}
+	
+	/**
+	 * Stop the force timer, force the files to disk and close them.
+	 */
+	public void close()
+	{
+		if (forceTimer != null) {
+			forceTimer.cancel();
+			forceTimer = null;
+		}
+		try {
+			if (chunks != null) {
+				force();
+				chunks = null;
+			}
+			if (slotChannel != null) {
+				slotChannel.close();
+				slotChannel = null;
+			}
+			if (blobChannel != null) {
+				blobChannel.close();
+				blobChannel = null;
+			}
+		}
+		catch (IOException ex) {
+			log.error("Failed to close lease file", ex);
+		}
+	}
+	
+	/**
+	 * Get the address ranges of all the configured DHCPv4 pools.
+	 *
+	 * @return the ranges
+	 * @throws DhcpServerConfigException if a pool range is invalid
+	 * @throws UnknownHostException if a pool range is invalid
+	 */
+	protected List<Range> getConfiguredV4Ranges()
+			throws DhcpServerConfigException, UnknownHostException
+	{
+		List<Range> ranges = new ArrayList<Range>();
+		DhcpServerConfiguration serverConfig = DhcpServerConfiguration.getInstance();
+		if ((serverConfig != null) && (serverConfig.getLinkMap() != null)) {
+			for (DhcpLink dhcpLink : serverConfig.getLinkMap().values()) {
+				if (dhcpLink.getLink().getLinkFilters() != null) {
+					for (LinkFilter linkFilter : 
+							dhcpLink.getLink().getLinkFilters().getLinkFilterList()) {
+						addRanges(ranges, linkFilter.getV4AddrPools());
+					}
+				}
+				addRanges(ranges, dhcpLink.getLink().getV4AddrPools());
+			}
+		}
+		return ranges;
+	}
+	
+	private static void addRanges(List<Range> ranges, V4AddressPoolsType poolsType)
+			throws DhcpServerConfigException, UnknownHostException
+	{
+		if ((poolsType != null) && (poolsType.getPoolList() != null)) {
+			for (V4AddressPool pool : poolsType.getPoolList()) {
+				ranges.add(new Range(pool.getRange()));
+			}
+		}
+	}
+
+	/**
+	 * Insert dhcp lease.
+	 *
+	 * @param lease the lease
+	 */
+	protected void insertDhcpLease(final DhcpLease lease)
+	{
+		int slot = layout.slotOf(lease.getIpAddress());
+		if (slot < 0) {
+			super.insertDhcpLease(lease);
+		}
+		else {
+			writeSlot(slot, lease);
+		}
+	}
+
+	/**
+	 * Update dhcp lease.
+	 *
+	 * @param lease the lease
+	 */
+	protected void updateDhcpLease(final DhcpLease lease)
+	{
+		int slot = layout.slotOf(lease.getIpAddress());
+		if (slot < 0) {
+			super.updateDhcpLease(lease);
+			return;
+		}
+		synchronized (stripe(slot)) {
+			DhcpLease existing = readSlot(slot);
+			if (existing != null) {
+				existing.setState(lease.getState());
+				existing.setStartTime(lease.getStartTime());
+				existing.setPreferredEndTime(lease.getPreferredEndTime());
+				existing.setValidEndTime(lease.getValidEndTime());
+				existing.setIaDhcpOptions(lease.getIaDhcpOptions());
+				existing.setIaAddrDhcpOptions(lease.getIaAddrDhcpOptions());
+				writeSlot(slot, existing);
+			}
+		}
+	}
+
+	/**
+	 * Delete dhcp lease.
+	 *
+	 * @param lease the lease
+	 */
+	protected void deleteDhcpLease(final DhcpLease lease)
+	{
+		int slot = layout.slotOf(lease.getIpAddress());
+		if (slot < 0) {
+			super.deleteDhcpLease(lease);
+		}
+		else {
+			clearSlot(slot);
+		}
+	}
+
+	/**
+	 * Update ia options.
+	 */
+	protected void updateIaOptions(final InetAddress inetAddr, 
+									final Collection<DhcpOption> iaOptions)
+	{
+		int slot = layout.slotOf(inetAddr);
+		if (slot < 0) {
+			super.updateIaOptions(inetAddr, iaOptions);
+			return;
+		}
+		synchronized (stripe(slot)) {
+			DhcpLease existing = readSlot(slot);
+			if (existing != null) {
+				existing.setIaDhcpOptions(iaOptions);
+				writeSlot(slot, existing);
+			}
+		}
+	}
+
+	/**
+	 * Update ipaddr options.
+	 */
+	protected void updateIpAddrOptions(final InetAddress inetAddr,
+										final Collection<DhcpOption> ipAddrOptions)
+	{
+		int slot = layout.slotOf(inetAddr);
+		if (slot < 0) {
+			super.updateIpAddrOptions(inetAddr, ipAddrOptions);
+			return;
+		}
+		synchronized (stripe(slot)) {
+			DhcpLease existing = readSlot(slot);
+			if (existing != null) {
+				existing.setIaAddrDhcpOptions(ipAddrOptions);
+				writeSlot(slot, existing);
+			}
+		}
+	}
+
+	/**
+	 * Find dhcp leases for ia.
+	 *
+	 * @param duid the duid
+	 * @param iatype the iatype
+	 * @param iaid the iaid
+	 * @return the list
+	 */
+	protected List<DhcpLease> findDhcpLeasesForIA(final byte[] duid, final byte iatype, final long iaid)
+	{
+		List<DhcpLease> leases = super.findDhcpLeasesForIA(duid, iatype, iaid);
+		if (iatype == IdentityAssoc.V4_TYPE) {
+			for (int slot : iaIndex.get(iaHash(duid, iatype, iaid))) {
+				DhcpLease lease = readSlot(slot);
+				// the index is by hash, so check that the lease is for this IA
+				if ((lease != null) && (lease.getIatype() == iatype) &&
+						(lease.getIaid() == iaid) && Arrays.equals(lease.getDuid(), duid)) {
+					leases.add(lease);
+				}
+			}
+		}
+		return leases;
+	}
+
+	/**
+	 * Find dhcp lease for InetAddr.
+	 *
+	 * @param inetAddr the InetAddr
+	 * @return the DhcpLease
+	 */
+	protected DhcpLease findDhcpLeaseForInetAddr(final InetAddress inetAddr)
+	{
+		int slot = layout.slotOf(inetAddr);
+		if (slot < 0) {
+			return super.findDhcpLeaseForInetAddr(inetAddr);
+		}
+		return readSlot(slot);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#updateIaAddr(com.jagornet.dhcp.db.IaAddress)
+	 */
+	public void updateIaAddr(final IaAddress iaAddr)
+	{
+		int slot = layout.slotOf(iaAddr.getIpAddress());
+		if (slot < 0) {
+			super.updateIaAddr(iaAddr);
+			return;
+		}
+		synchronized (stripe(slot)) {
+			DhcpLease existing = readSlot(slot);
+			if (existing != null) {
+				existing.setState(iaAddr.getState());
+				existing.setStartTime(iaAddr.getStartTime());
+				existing.setPreferredEndTime(iaAddr.getPreferredEndTime());
+				existing.setValidEndTime(iaAddr.getValidEndTime());
+				writeSlot(slot, existing);
+			}
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#deleteIaAddr(com.jagornet.dhcp.db.IaAddress)
+	 */
+	public void deleteIaAddr(final IaAddress iaAddr)
+	{
+		int slot = layout.slotOf(iaAddr.getIpAddress());
+		if (slot < 0) {
+			super.deleteIaAddr(iaAddr);
+		}
+		else {
+			clearSlot(slot);
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#findExistingIPs(java.net.InetAddress, java.net.InetAddress)
+	 */
+	public List<InetAddress> findExistingIPs(final InetAddress startAddr, final InetAddress endAddr)
+	{
+		List<InetAddress> inetAddrs = super.findExistingIPs(startAddr, endAddr);
+		boolean merge = !inetAddrs.isEmpty();
+		int[] slots = layout.slotRange(startAddr, endAddr);
+		for (int i=0; i<slots.length; i+=2) {
+			for (int slot=slots[i]; slot<=slots[i+1]; slot++) {
+				if (chunk(slot).get(slotPosition(slot) + IN_USE) != 0) {
+					inetAddrs.add(Util.longToV4Addr(layout.ipOf(slot)));
+				}
+			}
+		}
+		if (merge) {
+			Collections.sort(inetAddrs, new Comparator<InetAddress>() {
+				public int compare(InetAddress a1, InetAddress a2) {
+					return compareAddrs(a1.getAddress(), a2.getAddress());
+				}
+			});
+		}
+		return inetAddrs;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#findIaAddresses(java.net.InetAddress, java.net.InetAddress)
+	 */
+	public List<IaAddress> findIaAddresses(final InetAddress startAddr, final InetAddress endAddr)
+	{
+		List<IaAddress> iaAddrs = super.findIaAddresses(startAddr, endAddr);
+		boolean merge = !iaAddrs.isEmpty();
+		List<DhcpLease> leases = readSlots(startAddr, endAddr);
+		iaAddrs.addAll(toIaAddresses(leases));
+		if (merge && !leases.isEmpty()) {
+			Collections.sort(iaAddrs, new Comparator<IaAddress>() {
+				public int compare(IaAddress a1, IaAddress a2) {
+					return compareAddrs(a1.getIpAddress().getAddress(),
+										a2.getIpAddress().getAddress());
+				}
+			});
+		}
+		return iaAddrs;
+	}
+
+	/**
+	 * Find the unused leases in a range, in the order of state,
+	 * valid end time, and IP address.
+	 *
+	 * @param startAddr the start addr
+	 * @param endAddr the end addr
+	 * @return the list
+	 */
+	protected List<DhcpLease> findUnusedLeases(final InetAddress startAddr, final InetAddress endAddr)
+	{
+		List<DhcpLease> leases = super.findUnusedLeases(startAddr, endAddr);
+		long offerExpireMillis = 
+			DhcpServerPolicies.globalPolicyAsLong(Property.BINDING_MANAGER_OFFER_EXPIRATION);
+		long offerExpiration = new Date().getTime() - offerExpireMillis;
+		for (DhcpLease lease : readSlots(startAddr, endAddr)) {
+			byte state = lease.getState();
+			if (((state == IaAddress.ADVERTISED) && (lease.getStartTime() != null) &&
+					(lease.getStartTime().getTime() <= offerExpiration)) ||
+					(state == IaAddress.EXPIRED) || (state == IaAddress.RELEASED)) {
+				leases.add(lease);
+			}
+		}
+		Collections.sort(leases, UNUSED_ORDER);
+		return leases;
+	}
+
+	/**
+	 * Find the expired leases of an IA type, in valid end time order.
+	 *
+	 * @param iatype the iatype
+	 * @return the list
+	 */
+	protected List<DhcpLease> findExpiredLeases(final byte iatype) {
+		List<DhcpLease> leases = super.findExpiredLeases(iatype);
+		if (iatype == IdentityAssoc.V4_TYPE) {
+			long now = new Date().getTime();
+			for (int slot=0; slot<layout.slotCount; slot++) {
+				// check the fixed fields first, to decode only the expired leases
+				ByteBuffer chunk = chunk(slot);
+				int pos = slotPosition(slot);
+				if ((chunk.get(pos + IN_USE) != 0) &&
+						(chunk.get(pos + STATE) != IaAddress.STATIC) &&
+						(chunk.getLong(pos + VALID_END_TIME) < now)) {
+					DhcpLease lease = readSlot(slot);
+					if ((lease != null) && (lease.getIatype() == iatype)) {
+						leases.add(lease);
+					}
+				}
+			}
+			Collections.sort(leases, new Comparator<DhcpLease>() {
+				public int compare(DhcpLease l1, DhcpLease l2) {
+					long v1 = validEndTime(l1);
+					long v2 = validEndTime(l2);
+					return (v1 < v2) ? -1 : ((v1 == v2) ? 0 : 1);
+				}
+			});
+		}
+		return leases;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#reconcileIaAddresses(java.util.List)
+	 */
+	public void reconcileIaAddresses(List<Range> ranges)
+	{
+		super.reconcileIaAddresses(ranges);
+		for (int slot=0; slot<layout.slotCount; slot++) {
+			if (chunk(slot).get(slotPosition(slot) + IN_USE) != 0) {
+				InetAddress inetAddr = Util.longToV4Addr(layout.ipOf(slot));
+				boolean inRange = false;
+				for (Range range : ranges) {
+					if (range.contains(inetAddr)) {
+						inRange = true;
+						break;
+					}
+				}
+				if (!inRange) {
+					clearSlot(slot);
+				}
+			}
+		}
+	}
+
+	/**
+	 * For unit tests only
+	 */
+	public void deleteAllIAs()
+	{
+		super.deleteAllIAs();
+		for (int slot=0; slot<layout.slotCount; slot++) {
+			clearSlot(slot);
+		}
+		try {
+			synchronized (blobLock) {
+				blobChannel.truncate(0);
+			}
+		}
+		catch (IOException ex) {
+			log.error("deleteAllIAs failed", ex);
+			throw new RuntimeException(ex);
+		}
+		force();
+	}
+	
+	/**
+	 * Read the leases of the used slots within an address range.
+	 *
+	 * @param startAddr the start addr
+	 * @param endAddr the end addr
+	 * @return the leases, in address order
+	 */
+	protected List<DhcpLease> readSlots(InetAddress startAddr, InetAddress endAddr)
+	{
+		List<DhcpLease> leases = new ArrayList<DhcpLease>();
+		int[] slots = layout.slotRange(startAddr, endAddr);
+		for (int i=0; i<slots.length; i+=2) {
+			for (int slot=slots[i]; slot<=slots[i+1]; slot++) {
+				if (chunk(slot).get(slotPosition(slot) + IN_USE) != 0) {
+					DhcpLease lease = readSlot(slot);
+					if (lease != null) {
+						leases.add(lease);
+					}
+				}
+			}
+		}
+		return leases;
+	}
+	
+	/**
+	 * Read the lease in a slot.
+	 *
+	 * @param slot the slot
+	 * @return the lease, or null if the slot is empty or invalid
+	 */
+	protected DhcpLease readSlot(int slot)
+	{
+		byte[] b = new byte[SLOT_SIZE];
+		synchronized (stripe(slot)) {
+			ByteBuffer chunk = chunk(slot).duplicate();
+			chunk.position(slotPosition(slot));
+			chunk.get(b);
+		}
+		ByteBuffer bb = ByteBuffer.wrap(b);
+		if (bb.get(IN_USE) == 0) {
+			return null;
+		}
+		if (crc(b, 0, SLOT_CRC) != bb.getInt(SLOT_CRC)) {
+			log.warn("Invalid lease slot for " + Util.longToV4Addr(layout.ipOf(slot)).getHostAddress());
+			return null;
+		}
+		DhcpLease lease = new DhcpLease();
+		lease.setIpAddress(Util.longToV4Addr(layout.ipOf(slot)));
+		lease.setState(bb.get(STATE));
+		lease.setIatype(bb.get(IATYPE));
+		lease.setIaid(bb.getLong(IAID));
+		lease.setStartTime(toDate(bb.getLong(START_TIME)));
+		lease.setPreferredEndTime(toDate(bb.getLong(PREFERRED_END_TIME)));
+		lease.setValidEndTime(toDate(bb.getLong(VALID_END_TIME)));
+		byte[] blob = readBlob(bb.getLong(BLOB_OFFSET), bb.getInt(BLOB_LEN));
+		if ((blob == null) || (crc(blob, 0, blob.length) != bb.getInt(BLOB_CRC))) {
+			log.warn("Invalid lease data for " + lease.getIpAddress().getHostAddress());
+			return null;
+		}
+		ByteBuffer blobBuf = ByteBuffer.wrap(blob);
+		lease.setDuid(getBytes(blobBuf, true));
+		lease.setIaDhcpOptions(decodeOptions(getBytes(blobBuf, false)));
+		lease.setIaAddrDhcpOptions(decodeOptions(getBytes(blobBuf, false)));
+		return lease;
+	}
+	
+	/**
+	 * Write a lease to a slot.  The DUID and options are appended to the side
+	 * log, unless they are unchanged from those of the lease already in the slot.
+	 *
+	 * @param slot the slot
+	 * @param lease the lease
+	 */
+	protected void writeSlot(int slot, DhcpLease lease)
+	{
+		byte[] duid = lease.getDuid();
+		byte[] iaOpts = encodeOptions(lease.getIaDhcpOptions());
+		byte[] addrOpts = encodeOptions(lease.getIaAddrDhcpOptions());
+		ByteBuffer blobBuf = ByteBuffer.allocate(2 + (duid != null ? duid.length : 0) +
+				4 + (iaOpts != null ? iaOpts.length : 0) + 4 + (addrOpts != null ? addrOpts.length : 0));
+		putBytes(blobBuf, duid, true);
+		putBytes(blobBuf, iaOpts, false);
+		putBytes(blobBuf, addrOpts, false);
+		byte[] blob = blobBuf.array();
+		int blobCrc = crc(blob, 0, blob.length);
+		
+		synchronized (stripe(slot)) {
+			ByteBuffer chunk = chunk(slot);
+			int pos = slotPosition(slot);
+			long blobOffset;
+			if ((chunk.get(pos + IN_USE) != 0) && (chunk.getInt(pos + BLOB_LEN) == blob.length) &&
+					(chunk.getInt(pos + BLOB_CRC) == blobCrc)) {
+				blobOffset = chunk.getLong(pos + BLOB_OFFSET);
+			}
+			else {
+				blobOffset = appendBlob(blob);
+			}
+			// replaces any entry for the slot, in case the IA has changed
+			iaIndex.put(iaHash(duid, lease.getIatype(), lease.getIaid()), slot);
+			ByteBuffer bb = ByteBuffer.allocate(SLOT_SIZE);
+			bb.put(IN_USE, (byte)1);
+			bb.put(STATE, lease.getState());
+			bb.put(IATYPE, lease.getIatype());
+			bb.putInt(BLOB_LEN, blob.length);
+			bb.putLong(IAID, lease.getIaid());
+			bb.putLong(START_TIME, toTime(lease.getStartTime()));
+			bb.putLong(PREFERRED_END_TIME, toTime(lease.getPreferredEndTime()));
+			bb.putLong(VALID_END_TIME, toTime(lease.getValidEndTime()));
+			bb.putLong(BLOB_OFFSET, blobOffset);
+			bb.putInt(BLOB_CRC, blobCrc);
+			bb.putInt(SLOT_CRC, crc(bb.array(), 0, SLOT_CRC));
+			ByteBuffer dup = chunk.duplicate();
+			dup.position(pos);
+			dup.put(bb.array());
+		}
+		changed();
+	}
+	
+	/**
+	 * Clear a slot.
+	 *
+	 * @param slot the slot
+	 */
+	protected void clearSlot(int slot)
+	{
+		synchronized (stripe(slot)) {
+			ByteBuffer chunk = chunk(slot);
+			int pos = slotPosition(slot);
+			if (chunk.get(pos + IN_USE) == 0) {
+				return;
+			}
+			chunk.put(pos + IN_USE, (byte)0);
+			iaIndex.remove(slot);
+		}
+		changed();
+	}
+	
+	private void changed()
+	{
+		if (forceInterval > 0) {
+			dirty = true;
+		}
+		else {
+			force();
+		}
+	}
+	
+	private long appendBlob(byte[] blob)
+	{
+		try {
+			synchronized (blobLock) {
+				long offset = blobChannel.size();
+				ByteBuffer bb = ByteBuffer.wrap(blob);
+				long pos = offset;
+				while (bb.hasRemaining()) {
+					pos += blobChannel.write(bb, pos);
+				}
+				return offset;
+			}
+		}
+		catch (IOException ex) {
+			log.error("Failed to write lease data", ex);
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	private byte[] readBlob(long offset, int len)
+	{
+		try {
+			if ((len < 0) || (offset < 0) || (offset + len > blobChannel.size())) {
+				return null;
+			}
+			ByteBuffer bb = ByteBuffer.allocate(len);
+			long pos = offset;
+			while (bb.hasRemaining()) {
+				int n = blobChannel.read(bb, pos);
+				if (n < 0) {
+					return null;
+				}
+				pos += n;
+			}
+			return bb.array();
+		}
+		catch (IOException ex) {
+			log.error("Failed to read lease data", ex);
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/**
+	 * Read the header of the slot file.
+	 *
+	 * @return the layout of the file, or null if the header is invalid
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	private Layout readHeader() throws IOException
+	{
+		if (slotChannel.size() < HEADER_SIZE) {
+			return null;
+		}
+		ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE);
+		while (bb.hasRemaining()) {
+			if (slotChannel.read(bb, bb.position()) < 0) {
+				return null;
+			}
+		}
+		bb.flip();
+		if ((bb.getInt() != MAGIC) || (bb.getInt() != VERSION) || (bb.getInt() != SLOT_SIZE)) {
+			return null;
+		}
+		int n = bb.getInt();
+		if ((n < 0) || (n > MAX_RANGES)) {
+			return null;
+		}
+		long[] starts = new long[n];
+		long[] ends = new long[n];
+		for (int i=0; i<n; i++) {
+			starts[i] = bb.getInt() & 0xffffffffL;
+			ends[i] = bb.getInt() & 0xffffffffL;
+		}
+		Layout fileLayout = new Layout(starts, ends);
+		if (slotChannel.size() < HEADER_SIZE + (long)fileLayout.slotCount*SLOT_SIZE) {
+			return null;
+		}
+		return fileLayout;
+	}
+	
+	private void writeHeader() throws IOException
+	{
+		ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE);
+		bb.putInt(MAGIC);
+		bb.putInt(VERSION);
+		bb.putInt(SLOT_SIZE);
+		bb.putInt(layout.starts.length);
+		for (int i=0; i<layout.starts.length; i++) {
+			bb.putInt((int)layout.starts[i]);
+			bb.putInt((int)layout.ends[i]);
+		}
+		bb.clear();
+		while (bb.hasRemaining()) {
+			slotChannel.write(bb, bb.position());
+		}
+	}
+	
+	private void map() throws IOException
+	{
+		int nchunks = (layout.slotCount + CHUNK_MASK) >>> CHUNK_SHIFT;
+		chunks = new MappedByteBuffer[nchunks];
+		for (int i=0; i<nchunks; i++) {
+			int slots = Math.min(CHUNK_MASK + 1, layout.slotCount - (i << CHUNK_SHIFT));
+			chunks[i] = slotChannel.map(FileChannel.MapMode.READ_WRITE,
+					HEADER_SIZE + ((long)i << CHUNK_SHIFT)*SLOT_SIZE, (long)slots*SLOT_SIZE);
+		}
+	}
+	
+	/**
+	 * Scan the slots to build the IA index.
+	 *
+	 * @return the number of bytes of the side log still used
+	 */
+	private long scan()
+	{
+		iaIndex.init(layout.slotCount);
+		long liveBytes = 0;
+		for (int slot=0; slot<layout.slotCount; slot++) {
+			if (chunk(slot).get(slotPosition(slot) + IN_USE) != 0) {
+				DhcpLease lease = readSlot(slot);
+				if (lease != null) {
+					iaIndex.put(iaHash(lease.getDuid(), lease.getIatype(), lease.getIaid()), slot);
+					liveBytes += chunk(slot).getInt(slotPosition(slot) + BLOB_LEN);
+				}
+				else {
+					// the lease was torn by a crash before it was forced
+					chunk(slot).put(slotPosition(slot) + IN_USE, (byte)0);
+				}
+			}
+		}
+		return liveBytes;
+	}
+	
+	private List<DhcpLease> readAllSlots()
+	{
+		List<DhcpLease> leases = new ArrayList<DhcpLease>();
+		for (int slot=0; slot<layout.slotCount; slot++) {
+			DhcpLease lease = readSlot(slot);
+			if (lease != null) {
+				leases.add(lease);
+			}
+		}
+		return leases;
+	}
+	
+	private ByteBuffer chunk(int slot)
+	{
+		return chunks[slot >>> CHUNK_SHIFT];
+	}
+	
+	private static int slotPosition(int slot)
+	{
+		return (slot & CHUNK_MASK) * SLOT_SIZE;
+	}
+	
+	private Object stripe(int slot)
+	{
+		return stripes[slot & (NUM_STRIPES - 1)];
+	}
+	
+	private static int crc(byte[] b, int off, int len)
+	{
+		CRC32 crc = new CRC32();
+		crc.update(b, off, len);
+		return (int)crc.getValue();
+	}
+	
+	private static long toTime(Date date)
+	{
+		return (date != null) ? date.getTime() : Long.MAX_VALUE;
+	}
+	
+	private static Date toDate(long time)
+	{
+		return (time != Long.MAX_VALUE) ? new Date(time) : null;
+	}
+	
+	/**
+	 * A 64-bit FNV-1a hash of the DUID/IATYPE/IAID tuple of an IA.
+	 */
+	private static long iaHash(byte[] duid, byte iatype, long iaid)
+	{
+		long h = 0xcbf29ce484222325L;
+		if (duid != null) {
+			for (byte b : duid) {
+				h = (h ^ (b & 0xff)) * 0x100000001b3L;
+			}
+		}
+		h = (h ^ (iatype & 0xff)) * 0x100000001b3L;
+		for (int i=0; i<8; i++) {
+			h = (h ^ ((iaid >>> (i*8)) & 0xff)) * 0x100000001b3L;
+		}
+		return h;
+	}
+	
+	/**
+	 * The layout of the slots: the sorted, non-overlapping pool
+	 * ranges, and the index of the first slot of each range.
+	 */
+	protected static class Layout
+	{
+		final long[] starts;
+		final long[] ends;
+		final int[] bases;
+		final int slotCount;
+		
+		Layout(List<Range> ranges)
+		{
+			this(toStarts(ranges), toEnds(ranges));
+		}
+		
+		Layout(long[] rangeStarts, long[] rangeEnds)
+		{
+			// sort by start, and drop any ranges that overlap an earlier range
+			long[][] pairs = new long[rangeStarts.length][];
+			for (int i=0; i<pairs.length; i++) {
+				pairs[i] = new long[] { rangeStarts[i], rangeEnds[i] };
+			}
+			Arrays.sort(pairs, new Comparator<long[]>() {
+				public int compare(long[] p1, long[] p2) {
+					return (p1[0] < p2[0]) ? -1 : ((p1[0] == p2[0]) ? 0 : 1);
+				}
+			});
+			List<long[]> kept = new ArrayList<long[]>();
+			long total = 0;
+			for (long[] pair : pairs) {
+				if ((pair[1] < pair[0]) || (kept.size() == MAX_RANGES) ||
+						(!kept.isEmpty() && (pair[0] <= kept.get(kept.size()-1)[1]))) {
+					log.warn("DHCPv4 pool not mapped: " + Util.longToV4Addr(pair[0]).getHostAddress() +
+							"-" + Util.longToV4Addr(pair[1]).getHostAddress());
+					continue;
+				}
+				long size = pair[1] - pair[0] + 1;
+				if (total + size > Integer.MAX_VALUE) {
+					log.warn("DHCPv4 pool not mapped: " + Util.longToV4Addr(pair[0]).getHostAddress() +
+							"-" + Util.longToV4Addr(pair[1]).getHostAddress());
+					continue;
+				}
+				kept.add(pair);
+				total += size;
+			}
+			starts = new long[kept.size()];
+			ends = new long[kept.size()];
+			bases = new int[kept.size()];
+			int base = 0;
+			for (int i=0; i<kept.size(); i++) {
+				starts[i] = kept.get(i)[0];
+				ends[i] = kept.get(i)[1];
+				bases[i] = base;
+				base += (int)(ends[i] - starts[i] + 1);
+			}
+			slotCount = base;
+		}
+		
+		private static long[] toStarts(List<Range> ranges)
+		{
+			List<Long> starts = new ArrayList<Long>();
+			for (Range range : ranges) {
+				if (range.getStartAddress() instanceof Inet4Address) {
+					starts.add(Util.v4AddrToLong(range.getStartAddress()));
+				}
+			}
+			long[] a = new long[starts.size()];
+			for (int i=0; i<a.length; i++) {
+				a[i] = starts.get(i);
+			}
+			return a;
+		}
+		
+		private static long[] toEnds(List<Range> ranges)
+		{
+			List<Long> ends = new ArrayList<Long>();
+			for (Range range : ranges) {
+				if (range.getStartAddress() instanceof Inet4Address) {
+					ends.add(Util.v4AddrToLong(range.getEndAddress()));
+				}
+			}
+			long[] a = new long[ends.size()];
+			for (int i=0; i<a.length; i++) {
+				a[i] = ends.get(i);
+			}
+			return a;
+		}
+		
+		/**
+		 * Get the index of the range containing an address.
+		 */
+		private int rangeOf(long ip)
+		{
+			int i = Arrays.binarySearch(starts, ip);
+			if (i < 0) {
+				i = -i - 2;		// the range starting before the address
+			}
+			if ((i >= 0) && (ip <= ends[i])) {
+				return i;
+			}
+			return -1;
+		}
+		
+		/**
+		 * Get the slot of an address.
+		 *
+		 * @return the slot, or -1 if the address is not in a mapped pool
+		 */
+		int slotOf(InetAddress inetAddr)
+		{
+			if (!(inetAddr instanceof Inet4Address)) {
+				return -1;
+			}
+			long ip = Util.v4AddrToLong(inetAddr);
+			int i = rangeOf(ip);
+			return (i >= 0) ? bases[i] + (int)(ip - starts[i]) : -1;
+		}
+		
+		/**
+		 * Get the address of a slot.
+		 */
+		long ipOf(int slot)
+		{
+			int i = Arrays.binarySearch(bases, slot);
+			if (i < 0) {
+				i = -i - 2;
+			}
+			return starts[i] + (slot - bases[i]);
+		}
+		
+		/**
+		 * Get the slots within an address range.
+		 *
+		 * @return pairs of first and last slots, in address order
+		 */
+		int[] slotRange(InetAddress startAddr, InetAddress endAddr)
+		{
+			if (!(startAddr instanceof Inet4Address) || !(endAddr instanceof Inet4Address)) {
+				return new int[0];
+			}
+			long start = Util.v4AddrToLong(startAddr);
+			long end = Util.v4AddrToLong(endAddr);
+			List<Integer> slots = new ArrayList<Integer>();
+			for (int i=0; i<starts.length; i++) {
+				long s = Math.max(start, starts[i]);
+				long e = Math.min(end, ends[i]);
+				if (s <= e) {
+					slots.add(bases[i] + (int)(s - starts[i]));
+					slots.add(bases[i] + (int)(e - starts[i]));
+				}
+			}
+			int[] a = new int[slots.size()];
+			for (int i=0; i<a.length; i++) {
+				a[i] = slots.get(i);
+			}
+			return a;
+		}
+		
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Layout)) {
+				return false;
+			}
+			Layout that = (Layout)obj;
+			return Arrays.equals(this.starts, that.starts) && Arrays.equals(this.ends, that.ends);
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return Arrays.hashCode(starts) ^ Arrays.hashCode(ends);
+		}
+	}
+	
+	/**
+	 * An open addressing hash index from the hash of an IA to the slots of
+	 * its leases, with one entry per used slot.  Kept in primitive arrays so
+	 * that millions of leases cost 12 bytes each rather than an object each.
+	 * Entries are removed by shifting the following entries of the probe
+	 * sequence back, rather than leaving tombstones, so that a lookup never
+	 * probes further than the entries actually in the index.
+	 */
+	private static class IaIndex
+	{
+		private static final int EMPTY = -1;
+		
+		private long[] hashes = new long[0];
+		private int[] slots = new int[0];
+		private int[] entryOfSlot = new int[0];
+		private int mask;
+		
+		synchronized void init(int slotCount)
+		{
+			int capacity = Integer.highestOneBit(Math.max(slotCount, 1) * 2 - 1) << 1;
+			hashes = new long[capacity];
+			slots = new int[capacity];
+			Arrays.fill(slots, EMPTY);
+			entryOfSlot = new int[slotCount];
+			Arrays.fill(entryOfSlot, EMPTY);
+			mask = capacity - 1;
+		}
+		
+		synchronized void put(long hash, int slot)
+		{
+			if (entryOfSlot[slot] != EMPTY) {
+				remove(slot);
+			}
+			int i = home(hash);
+			while (slots[i] != EMPTY) {
+				i = (i + 1) & mask;
+			}
+			hashes[i] = hash;
+			slots[i] = slot;
+			entryOfSlot[slot] = i;
+		}
+		
+		synchronized void remove(int slot)
+		{
+			int i = entryOfSlot[slot];
+			if (i == EMPTY) {
+				return;
+			}
+			entryOfSlot[slot] = EMPTY;
+			// move back any following entry whose home is not between
+			// the hole and that entry, so it stays reachable from its home
+			int j = i;
+			while (true) {
+				j = (j + 1) & mask;
+				if (slots[j] == EMPTY) {
+					break;
+				}
+				int k = home(hashes[j]);
+				if (((j - k) & mask) >= ((j - i) & mask)) {
+					hashes[i] = hashes[j];
+					slots[i] = slots[j];
+					entryOfSlot[slots[i]] = i;
+					i = j;
+				}
+			}
+			slots[i] = EMPTY;
+		}
+		
+		synchronized List<Integer> get(long hash)
+		{
+			List<Integer> found = new ArrayList<Integer>(1);
+			int i = home(hash);
+			for (int n=0; (n<=mask) && (slots[i] != EMPTY); n++) {
+				if (hashes[i] == hash) {
+					found.add(slots[i]);
+				}
+				i = (i + 1) & mask;
+			}
+			return found;
+		}
+		
+		private int home(long hash)
+		{
+			return (int)(hash ^ (hash >>> 32)) & mask;
+		}
+	}
+}
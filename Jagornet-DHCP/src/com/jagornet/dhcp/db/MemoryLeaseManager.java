@@ -0,0 +1,795 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file MemoryLeaseManager.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.db;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
+import com.jagornet.dhcp.server.request.binding.Range;
+import com.jagornet.dhcp.util.Util;
+
+/**
+ * The MemoryLeaseManager implementation class for the IaManager interface.
+ * All of the leases are held in memory, in concurrent indexes by IP address,
+ * by the DUID/IATYPE/IAID tuple of the IA, and by valid end time, so that
+ * lookups never leave the heap and never block.  Changes are serialized
+ * by a single write lock, appended to a binary write-ahead log, and then
+ * made visible in the indexes.  When the log grows past the snapshot size,
+ * all of the leases are written to a new snapshot and the log is emptied.
+ * On startup, the snapshot is loaded and the log is replayed over it.
+ * <p>
+ * The leases in the indexes are never modified; every change replaces the
+ * lease, and the leases returned to callers are copies.
+ * 
+ * @author A. Gregory Rabil
+ */
+public class MemoryLeaseManager extends LeaseManager
+{
+	private static Logger log = LoggerFactory.getLogger(MemoryLeaseManager.class);
+	
+	public static String SNAPSHOT_FILENAME = "jagornet-dhcp-leases.snapshot";
+	public static String WAL_FILENAME = "jagornet-dhcp-leases.wal";
+	
+	/** The directory of the snapshot and write-ahead log. */
+	protected File dbDir = new File(DbSchemaManager.DB_HOME + "memory");
+	
+	/** The leases by IP address, in address order. */
+	protected final ConcurrentSkipListMap<byte[], DhcpLease> leasesByIp =
+		new ConcurrentSkipListMap<byte[], DhcpLease>(new AddressComparator());
+	
+	/** The IP addresses of the leases by IA. */
+	protected final ConcurrentHashMap<String, List<byte[]>> ipsByIA =
+		new ConcurrentHashMap<String, List<byte[]>>();
+	
+	/** The leases by valid end time. */
+	protected final ConcurrentSkipListSet<ExpiryKey> leasesByExpiry =
+		new ConcurrentSkipListSet<ExpiryKey>();
+	
+	/** The order of the unused leases: by state, valid end time, and IP address. */
+	protected static final Comparator<DhcpLease> UNUSED_ORDER = new Comparator<DhcpLease>() {
+		public int compare(DhcpLease l1, DhcpLease l2) {
+			if (l1.getState() != l2.getState()) {
+				return (l1.getState() < l2.getState()) ? -1 : 1;
+			}
+			long v1 = validEndTime(l1);
+			long v2 = validEndTime(l2);
+			if (v1 != v2) {
+				return (v1 < v2) ? -1 : 1;
+			}
+			return compareAddrs(l1.getIpAddress().getAddress(),
+								l2.getIpAddress().getAddress());
+		}
+	};
+	
+	private final Object writeLock = new Object();
+	private FileChannel wal;
+	private boolean syncWrites;
+	private long snapshotSize;
+	
+	/**
+	 * Sets the directory of the snapshot and write-ahead log.
+	 *
+	 * @param dbDir the directory
+	 */
+	public void setDbDir(File dbDir) {
+		this.dbDir = dbDir;
+	}
+
+	// Spring bean init-method
+	public void init() throws Exception {
+		syncWrites = DhcpServerPolicies.globalPolicyAsBoolean(Property.DATABASE_MEMORY_SYNC_WRITES);
+		snapshotSize = DhcpServerPolicies.globalPolicyAsLong(Property.DATABASE_MEMORY_SNAPSHOT_SIZE);
+		synchronized (writeLock) {
+			if (wal != null) {
+				wal.close();
+			}
+			clear();
+			if (!dbDir.exists()) {
+				dbDir.mkdirs();
+			}
+			LeaseRecordHandler loader = new LeaseRecordHandler() {
+				public void handleLeaseRecord(byte op, DhcpLease lease) {
+					if (op == LEASE_DELETE) {
+						remove(lease.getIpAddress().getAddress());
+					}
+					else {
+						put(lease);
+					}
+				}
+			};
+			File snapshot = new File(dbDir, SNAPSHOT_FILENAME);
+			if (snapshot.exists()) {
+				readLeaseRecords(snapshot, loader);
+			}
+			File walFile = new File(dbDir, WAL_FILENAME);
+			if (walFile.exists()) {
+				int n = readLeaseRecords(walFile, loader);
+				log.info("Replayed " + n + " lease changes from " + walFile);
+			}
+			wal = new RandomAccessFile(walFile, "rw").getChannel();
+			// start from a fresh snapshot, which also
+			// drops any torn record at the end of the log
+			snapshot();
+		}
+		log.info("Loaded " + leasesByIp.size() + " leases from " + dbDir);
+	}
+	
+	/**
+	 * Write all the leases to a new snapshot, and empty the write-ahead log.
+	 * The caller must hold the write lock.
+	 * 
+	 * @throws IOException Signals that an I/O exception has occurred.
+	 */
+	protected void snapshot() throws IOException
+	{
+		File tmp = new File(dbDir, SNAPSHOT_FILENAME + ".tmp");
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			byte[] buf = new byte[65536];
+			int pos = 0;
+			for (DhcpLease lease : leasesByIp.values()) {
+				byte[] record = encodeLeaseRecord(LEASE_INSERT, lease);
+				if (pos + record.length > buf.length) {
+					out.write(buf, 0, pos);
+					pos = 0;
+				}
+				if (record.length > buf.length) {
+					out.write(record);
+				}
+				else {
+					System.arraycopy(record, 0, buf, pos, record.length);
+					pos += record.length;
+				}
+			}
+			out.write(buf, 0, pos);
+			out.getFD().sync();
+		}
+		finally {
+			out.close();
+		}
+		File snapshot = new File(dbDir, SNAPSHOT_FILENAME);
+		if (!tmp.renameTo(snapshot)) {
+			// the rename will not replace an existing file on some platforms
+			snapshot.delete();
+			if (!tmp.renameTo(snapshot)) {
+				throw new IOException("Failed to rename " + tmp + " to " + snapshot);
+			}
+		}
+		wal.truncate(0);
+		wal.position(0);
+		wal.force(true);
+		log.debug("Wrote snapshot of " + leasesByIp.size() + " leases");
+	}
+	
+	/**
+	 * Append a lease change to the write-ahead log.  If the write fails,
+	 * the log is truncated back to where the record started, so that the
+	 * next record is not appended after a torn one.
+	 * The caller must hold the write lock.
+	 *
+	 * @param op the operation
+	 * @param lease the lease
+	 */
+	protected void writeAhead(byte op, DhcpLease lease)
+	{
+		long start = -1;
+		try {
+			start = wal.position();
+			ByteBuffer bb = ByteBuffer.wrap(encodeLeaseRecord(op, lease));
+			while (bb.hasRemaining()) {
+				wal.write(bb);
+			}
+			if (syncWrites) {
+				wal.force(false);
+			}
+		}
+		catch (IOException ex) {
+			log.error("Failed to write lease change", ex);
+			if (start >= 0) {
+				try {
+					wal.truncate(start);
+					wal.position(start);
+				}
+				catch (IOException ex2) {
+					log.error("Failed to truncate lease log", ex2);
+				}
+			}
+			throw new RuntimeException(ex);
+		}
+	}
+	
+	/**
+	 * Take a snapshot if the write-ahead log has grown past the snapshot size.
+	 * The caller must hold the write lock.
+	 */
+	protected void checkSnapshot()
+	{
+		try {
+			if ((snapshotSize > 0) && (wal.position() > snapshotSize)) {
+				snapshot();
+			}
+		}
+		catch (IOException ex) {
+			// the log is still intact, so try again after the next change
+			log.error("Failed to write lease snapshot", ex);
+		}
+	}
+	
+	/**
+	 * Store a lease: log it, then replace it in the indexes.
+	 *
+	 * @param lease the new lease, which must not be modified afterwards
+	 */
+	protected void store(DhcpLease lease)
+	{
+		synchronized (writeLock) {
+			writeAhead(LEASE_UPDATE, lease);
+			put(lease);
+			checkSnapshot();
+		}
+	}
+
+	/**
+	 * Insert dhcp lease.
+	 *
+	 * @param lease the lease
+	 */
+	protected void insertDhcpLease(final DhcpLease lease)
+	{
+		store(copy(lease));
+	}
+
+	/**
+	 * Update dhcp lease.
+	 *
+	 * @param lease the lease
+	 */
+	protected void updateDhcpLease(final DhcpLease lease)
+	{
+		synchronized (writeLock) {
+			DhcpLease existing = leasesByIp.get(lease.getIpAddress().getAddress());
+			if (existing != null) {
+				DhcpLease updated = copy(existing);
+				updated.setState(lease.getState());
+				updated.setStartTime(lease.getStartTime());
+				updated.setPreferredEndTime(lease.getPreferredEndTime());
+				updated.setValidEndTime(lease.getValidEndTime());
+				updated.setIaDhcpOptions(copy(lease.getIaDhcpOptions()));
+				updated.setIaAddrDhcpOptions(copy(lease.getIaAddrDhcpOptions()));
+				store(updated);
+			}
+		}
+	}
+
+	/**
+	 * Delete dhcp lease.
+	 *
+	 * @param lease the lease
+	 */
+	protected void deleteDhcpLease(final DhcpLease lease)
+	{
+		delete(lease.getIpAddress());
+	}
+	
+	/**
+	 * Delete the lease for an IP address: log it, then remove it from the indexes.
+	 *
+	 * @param inetAddr the IP address
+	 */
+	protected void delete(InetAddress inetAddr)
+	{
+		synchronized (writeLock) {
+			DhcpLease existing = leasesByIp.get(inetAddr.getAddress());
+			if (existing != null) {
+				writeAhead(LEASE_DELETE, existing);
+				remove(inetAddr.getAddress());
+				checkSnapshot();
+			}
+		}
+	}
+
+	/**
+	 * Update ia options.
+	 */
+	protected void updateIaOptions(final InetAddress inetAddr, 
+									final Collection<DhcpOption> iaOptions)
+	{
+		synchronized (writeLock) {
+			DhcpLease existing = leasesByIp.get(inetAddr.getAddress());
+			if (existing != null) {
+				DhcpLease updated = copy(existing);
+				updated.setIaDhcpOptions(copy(iaOptions));
+				store(updated);
+			}
+		}
+	}
+	
+	/**
+	 * Update ipaddr options.
+	 */
+	protected void updateIpAddrOptions(final InetAddress inetAddr,
+										final Collection<DhcpOption> ipAddrOptions)
+	{
+		synchronized (writeLock) {
+			DhcpLease existing = leasesByIp.get(inetAddr.getAddress());
+			if (existing != null) {
+				DhcpLease updated = copy(existing);
+				updated.setIaAddrDhcpOptions(copy(ipAddrOptions));
+				store(updated);
+			}
+		}
+	}
+
+	/**
+	 * Find dhcp leases for ia.
+	 *
+	 * @param duid the duid
+	 * @param iatype the iatype
+	 * @param iaid the iaid
+	 * @return the list
+	 */
+	protected List<DhcpLease> findDhcpLeasesForIA(final byte[] duid, final byte iatype, final long iaid)
+	{
+		List<DhcpLease> leases = new ArrayList<DhcpLease>();
+		List<byte[]> ips = ipsByIA.get(iaKey(duid, iatype, iaid));
+		if (ips != null) {
+			for (byte[] ip : ips) {
+				DhcpLease lease = leasesByIp.get(ip);
+				if (lease != null) {
+					leases.add(copy(lease));
+				}
+			}
+		}
+		return leases;
+	}
+
+	/**
+	 * Find dhcp lease for InetAddr.
+	 *
+	 * @param inetAddr the InetAddr
+	 * @return the DhcpLease
+	 */
+	protected DhcpLease findDhcpLeaseForInetAddr(final InetAddress inetAddr)
+	{
+		DhcpLease lease = leasesByIp.get(inetAddr.getAddress());
+		return (lease != null) ? copy(lease) : null;
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#updateIaAddr(com.jagornet.dhcp.db.IaAddress)
+	 */
+	public void updateIaAddr(final IaAddress iaAddr)
+	{
+		synchronized (writeLock) {
+			DhcpLease existing = leasesByIp.get(iaAddr.getIpAddress().getAddress());
+			if (existing != null) {
+				DhcpLease updated = copy(existing);
+				updated.setState(iaAddr.getState());
+				if (iaAddr instanceof IaPrefix) {
+					updated.setPrefixLength(((IaPrefix)iaAddr).getPrefixLength());
+				}
+				updated.setStartTime(iaAddr.getStartTime());
+				updated.setPreferredEndTime(iaAddr.getPreferredEndTime());
+				updated.setValidEndTime(iaAddr.getValidEndTime());
+				store(updated);
+			}
+		}
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#deleteIaAddr(com.jagornet.dhcp.db.IaAddress)
+	 */
+	public void deleteIaAddr(final IaAddress iaAddr)
+	{
+		delete(iaAddr.getIpAddress());
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#findExistingIPs(java.net.InetAddress, java.net.InetAddress)
+	 */
+	public List<InetAddress> findExistingIPs(final InetAddress startAddr, final InetAddress endAddr)
+	{
+		List<InetAddress> inetAddrs = new ArrayList<InetAddress>();
+		for (DhcpLease lease : range(startAddr, endAddr)) {
+			inetAddrs.add(lease.getIpAddress());
+		}
+		return inetAddrs;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#findIaAddresses(java.net.InetAddress, java.net.InetAddress)
+	 */
+	public List<IaAddress> findIaAddresses(final InetAddress startAddr, final InetAddress endAddr)
+	{
+		return toIaAddresses(copyAll(range(startAddr, endAddr)));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#findUnusedIaAddresses(java.net.InetAddress, java.net.InetAddress)
+	 */
+	public List<IaAddress> findUnusedIaAddresses(final InetAddress startAddr, final InetAddress endAddr)
+	{
+		return toIaAddresses(findUnusedLeases(startAddr, endAddr));
+	}
+
+	/**
+	 * Find the unused leases in a range, which are expired, released, or offered
+	 * but not requested, in the order of state, valid end time, and IP address.
+	 *
+	 * @param startAddr the start addr
+	 * @param endAddr the end addr
+	 * @return the list
+	 */
+	protected List<DhcpLease> findUnusedLeases(final InetAddress startAddr, final InetAddress endAddr)
+	{
+		long offerExpireMillis = 
+			DhcpServerPolicies.globalPolicyAsLong(Property.BINDING_MANAGER_OFFER_EXPIRATION);
+		long offerExpiration = new Date().getTime() - offerExpireMillis;
+		
+		List<DhcpLease> leases = new ArrayList<DhcpLease>();
+		for (DhcpLease lease : range(startAddr, endAddr)) {
+			byte state = lease.getState();
+			if (((state == IaAddress.ADVERTISED) && (lease.getStartTime() != null) &&
+					(lease.getStartTime().getTime() <= offerExpiration)) ||
+					(state == IaAddress.EXPIRED) || (state == IaAddress.RELEASED)) {
+				leases.add(copy(lease));
+			}
+		}
+		Collections.sort(leases, UNUSED_ORDER);
+		return leases;
+	}
+
+	/**
+	 * Find the expired leases of an IA type, in valid end time order.
+	 *
+	 * @param iatype the iatype
+	 * @return the list
+	 */
+	protected List<DhcpLease> findExpiredLeases(final byte iatype) {
+		List<DhcpLease> leases = new ArrayList<DhcpLease>();
+		ExpiryKey now = new ExpiryKey(new Date().getTime(), new byte[0]);
+		for (ExpiryKey key : leasesByExpiry.headSet(now)) {
+			DhcpLease lease = leasesByIp.get(key.ip);
+			if ((lease != null) && (lease.getIatype() == iatype) &&
+					(lease.getState() != IaAddress.STATIC)) {
+				leases.add(copy(lease));
+			}
+		}
+		return leases;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#findUnusedIaPrefixes(java.net.InetAddress, java.net.InetAddress)
+	 */
+	public List<IaPrefix> findUnusedIaPrefixes(final InetAddress startAddr, final InetAddress endAddr)
+	{
+		return toIaPrefixes(findUnusedLeases(startAddr, endAddr));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#findExpiredIaPrefixes()
+	 */
+	public List<IaPrefix> findExpiredIaPrefixes()
+	{
+		List<DhcpLease> leases = new ArrayList<DhcpLease>();
+		ExpiryKey now = new ExpiryKey(new Date().getTime(), new byte[0]);
+		for (ExpiryKey key : leasesByExpiry.headSet(now)) {
+			DhcpLease lease = leasesByIp.get(key.ip);
+			if ((lease != null) && (lease.getIatype() == IdentityAssoc.PD_TYPE)) {
+				leases.add(copy(lease));
+			}
+		}
+		return toIaPrefixes(leases);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.db.IaManager#reconcileIaAddresses(java.util.List)
+	 */
+	public void reconcileIaAddresses(List<Range> ranges)
+	{
+		synchronized (writeLock) {
+			Iterator<DhcpLease> leaseIter = leasesByIp.values().iterator();
+			while (leaseIter.hasNext()) {
+				DhcpLease lease = leaseIter.next();
+				boolean inRange = false;
+				for (Range range : ranges) {
+					if (range.contains(lease.getIpAddress())) {
+						inRange = true;
+						break;
+					}
+				}
+				if (!inRange) {
+					delete(lease.getIpAddress());
+				}
+			}
+		}
+	}
+
+	/**
+	 * For unit tests only
+	 */
+	public void deleteAllIAs()
+	{
+		synchronized (writeLock) {
+			int n = leasesByIp.size();
+			clear();
+			try {
+				snapshot();
+			}
+			catch (IOException ex) {
+				log.error("deleteAllIAs failed", ex);
+				throw new RuntimeException(ex);
+			}
+			log.info("Deleted all " + n + " dhcpleases");
+		}
+	}
+	
+	/**
+	 * Put a lease in the indexes, replacing any existing lease for the address.
+	 * The lease is replaced in place, and the other indexes are then fixed up
+	 * by adding before removing, so that readers never miss the address.
+	 * The caller must hold the write lock.
+	 *
+	 * @param lease the lease
+	 */
+	private void put(DhcpLease lease)
+	{
+		byte[] ip = lease.getIpAddress().getAddress();
+		DhcpLease oldLease = leasesByIp.put(ip, lease);
+		String key = iaKey(lease.getDuid(), lease.getIatype(), lease.getIaid());
+		ExpiryKey expiry = new ExpiryKey(validEndTime(lease), ip);
+		if (oldLease == null) {
+			addIp(key, ip);
+			leasesByExpiry.add(expiry);
+			return;
+		}
+		String oldKey = iaKey(oldLease.getDuid(), oldLease.getIatype(), oldLease.getIaid());
+		if (!oldKey.equals(key)) {
+			addIp(key, ip);
+			removeIp(oldKey, ip);
+		}
+		ExpiryKey oldExpiry = new ExpiryKey(validEndTime(oldLease), ip);
+		if (oldExpiry.compareTo(expiry) != 0) {
+			leasesByExpiry.add(expiry);
+			leasesByExpiry.remove(oldExpiry);
+		}
+	}
+	
+	/**
+	 * Remove the lease for an address from the indexes.
+	 * The caller must hold the write lock.
+	 *
+	 * @param ip the address
+	 */
+	private void remove(byte[] ip)
+	{
+		DhcpLease lease = leasesByIp.remove(ip);
+		if (lease != null) {
+			removeIp(iaKey(lease.getDuid(), lease.getIatype(), lease.getIaid()), ip);
+			leasesByExpiry.remove(new ExpiryKey(validEndTime(lease), ip));
+		}
+	}
+	
+	/**
+	 * Add an address to the copy-on-write address list of an IA.
+	 * The caller must hold the write lock.
+	 *
+	 * @param key the IA key
+	 * @param ip the address
+	 */
+	private void addIp(String key, byte[] ip)
+	{
+		List<byte[]> ips = ipsByIA.get(key);
+		List<byte[]> newIps = new ArrayList<byte[]>((ips != null) ? ips.size() + 1 : 1);
+		if (ips != null) {
+			newIps.addAll(ips);
+		}
+		newIps.add(ip);
+		ipsByIA.put(key, Collections.unmodifiableList(newIps));
+	}
+	
+	/**
+	 * Remove an address from the copy-on-write address list of an IA.
+	 * The caller must hold the write lock.
+	 *
+	 * @param key the IA key
+	 * @param ip the address
+	 */
+	private void removeIp(String key, byte[] ip)
+	{
+		List<byte[]> ips = ipsByIA.get(key);
+		if (ips != null) {
+			List<byte[]> newIps = new ArrayList<byte[]>(ips.size());
+			for (byte[] b : ips) {
+				if (compareAddrs(b, ip) != 0) {
+					newIps.add(b);
+				}
+			}
+			if (newIps.isEmpty()) {
+				ipsByIA.remove(key);
+			}
+			else {
+				ipsByIA.put(key, Collections.unmodifiableList(newIps));
+			}
+		}
+	}
+	
+	private void clear()
+	{
+		leasesByIp.clear();
+		ipsByIA.clear();
+		leasesByExpiry.clear();
+	}
+	
+	/**
+	 * Get the leases within an inclusive address range, in address order.
+	 *
+	 * @param startAddr the start addr
+	 * @param endAddr the end addr
+	 * @return the leases, which must not be modified
+	 */
+	private Collection<DhcpLease> range(InetAddress startAddr, InetAddress endAddr)
+	{
+		byte[] start = startAddr.getAddress();
+		byte[] end = endAddr.getAddress();
+		if (compareAddrs(start, end) > 0) {
+			return Collections.emptyList();
+		}
+		return leasesByIp.subMap(start, true, end, true).values();
+	}
+	
+	private List<DhcpLease> copyAll(Collection<DhcpLease> leases)
+	{
+		List<DhcpLease> copies = new ArrayList<DhcpLease>(leases.size());
+		for (DhcpLease lease : leases) {
+			copies.add(copy(lease));
+		}
+		return copies;
+	}
+	
+	/**
+	 * Copy a lease, including its option collections, so that neither the
+	 * caller nor the indexes can see changes made to the other's lease.
+	 *
+	 * @param lease the lease
+	 * @return the copy
+	 */
+	private DhcpLease copy(DhcpLease lease)
+	{
+		DhcpLease copy = new DhcpLease();
+		copy.setIpAddress(lease.getIpAddress());
+		copy.setDuid(lease.getDuid());
+		copy.setIatype(lease.getIatype());
+		copy.setIaid(lease.getIaid());
+		copy.setPrefixLength(lease.getPrefixLength());
+		copy.setState(lease.getState());
+		copy.setStartTime(lease.getStartTime());
+		copy.setPreferredEndTime(lease.getPreferredEndTime());
+		copy.setValidEndTime(lease.getValidEndTime());
+		copy.setIaDhcpOptions(copy(lease.getIaDhcpOptions()));
+		copy.setIaAddrDhcpOptions(copy(lease.getIaAddrDhcpOptions()));
+		return copy;
+	}
+	
+	private static Collection<DhcpOption> copy(Collection<DhcpOption> options)
+	{
+		if (options == null) {
+			return null;
+		}
+		Collection<DhcpOption> copies = new ArrayList<DhcpOption>(options.size());
+		for (DhcpOption option : options) {
+			DhcpOption copy = new DhcpOption();
+			copy.setCode(option.getCode());
+			copy.setValue(option.getValue());
+			copies.add(copy);
+		}
+		return copies;
+	}
+	
+	protected static long validEndTime(DhcpLease lease)
+	{
+		// a lease without a valid end time never expires
+		Date validEnd = lease.getValidEndTime();
+		return (validEnd != null) ? validEnd.getTime() : Long.MAX_VALUE;
+	}
+	
+	private static String iaKey(byte[] duid, byte iatype, long iaid)
+	{
+		return Util.toHexString(duid) + "/" + iatype + "/" + iaid;
+	}
+	
+	/**
+	 * Compare addresses as the database does: IPv4 before IPv6,
+	 * then byte by byte as unsigned values.
+	 */
+	protected static int compareAddrs(byte[] a1, byte[] a2)
+	{
+		if (a1.length != a2.length) {
+			return (a1.length < a2.length) ? -1 : 1;
+		}
+		for (int i=0; i<a1.length; i++) {
+			int b1 = a1[i] & 0xff;
+			int b2 = a2[i] & 0xff;
+			if (b1 != b2) {
+				return (b1 < b2) ? -1 : 1;
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * The address order of the leases by IP index.
+	 */
+	private static class AddressComparator implements Comparator<byte[]>
+	{
+		public int compare(byte[] a1, byte[] a2) {
+			return compareAddrs(a1, a2);
+		}
+	}
+	
+	/**
+	 * The key of the leases by valid end time index.
+	 */
+	private static class ExpiryKey implements Comparable<ExpiryKey>
+	{
+		final long validEnd;
+		final byte[] ip;
+		
+		ExpiryKey(long validEnd, byte[] ip)
+		{
+			this.validEnd = validEnd;
+			this.ip = ip;
+		}
+		
+		public int compareTo(ExpiryKey that)
+		{
+			if (this.validEnd != that.validEnd) {
+				return (this.validEnd < that.validEnd) ? -1 : 1;
+			}
+			return compareAddrs(this.ip, that.ip);
+		}
+	}
+}
@@ -358,6 +358,34 @@ public class MongoLeaseManager extends LeaseManager
 		return inetAddrs;
 	}
 	
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcpv6.db.IaManager#findIaAddresses(java.net.InetAddress, java.net.InetAddress)
+	 */
+	@Override
+	public List<IaAddress> findIaAddresses(final InetAddress startAddr, final InetAddress endAddr)
+	{
+		List<DhcpLease> leases = new ArrayList<DhcpLease>();
+
+		BasicDBList ipBetw = new BasicDBList();
+		ipBetw.add(new BasicDBObject("ipAddress", new BasicDBObject("$gte", startAddr.getAddress())));
+		ipBetw.add(new BasicDBObject("ipAddress", new BasicDBObject("$lte", endAddr.getAddress())));
+		
+		DBObject query = new BasicDBObject("$and", ipBetw);
+
+		DBCursor cursor = dhcpLeases.find(query).sort(new BasicDBObject("ipAddress", 1));
+		try {
+			if (cursor.count() > 0) {
+				while (cursor.hasNext()) {
+					leases.add(convertDBObject(cursor.next()));
+				}
+			}
+		}
+		finally {
+			cursor.close();
+		}
+		return toIaAddresses(leases);
+	}
+	
 	/* (non-Javadoc)
 	 * @see com.jagornet.dhcpv6.db.IaManager#findUnusedIaAddresses(java.net.InetAddress, java.net.InetAddress)
 	 */
@@ -475,6 +475,36 @@ public class SqliteLeaseManager extends LeaseManager
 		}
 	}
 	
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcpv6.db.IaManager#findIaAddresses(java.net.InetAddress, java.net.InetAddress)
+	 */
+	@Override
+	public List<IaAddress> findIaAddresses(final InetAddress startAddr, final InetAddress endAddr)
+	{
+		SQLiteConnection connection = null;
+		SQLiteStatement statement = null;
+		try {
+			connection = getSQLiteConnection();
+			statement = connection.prepare(
+		                "select * from dhcplease" +
+		                " where ipaddress >= ? and ipaddress <= ?" +
+		                " order by ipaddress");
+			statement.bind(1, startAddr.getAddress());
+			statement.bind(2, endAddr.getAddress());
+			
+			List<DhcpLease> leases = mapLeases(statement);
+			return toIaAddresses(leases);
+		}
+		catch (SQLiteException ex) {
+			log.error("findIaAddresses failed", ex);
+			throw new RuntimeException(ex);
+		}
+		finally {
+			closeStatement(statement);
+			closeConnection(connection);
+		}
+	}
+	
 	/* (non-Javadoc)
 	 * @see com.jagornet.dhcpv6.db.IaManager#findUnusedIaAddresses(java.net.InetAddress, java.net.InetAddress)
 	 */
@@ -26,6 +26,7 @@
 package com.jagornet.dhcp.message;
 
 import com.jagornet.dhcp.option.base.DhcpOption;
+import com.jagornet.dhcp.xml.Filter;
 
 /**
  * The Interface DhcpMessage.
@@ -55,4 +56,23 @@ public interface DhcpMessage {
 	 * @return the dhcp option
 	 */
 	public DhcpOption getDhcpOption(int optionCode);
+	
+	/**
+	 * Gets the result of evaluating a filter for this message, if the
+	 * filter has already been evaluated for this message.
+	 *
+	 * @param filter the filter
+	 * @return the result, or null if not yet evaluated
+	 */
+	public Boolean getFilterMatch(Filter filter);
+	
+	/**
+	 * Sets the result of evaluating a filter for this message.  Like
+	 * the options of the message, the results are not thread-safe, so
+	 * filters must be evaluated on the thread processing the message.
+	 *
+	 * @param filter the filter
+	 * @param matches true if the message matches the filter
+	 */
+	public void setFilterMatch(Filter filter, boolean matches);
 }
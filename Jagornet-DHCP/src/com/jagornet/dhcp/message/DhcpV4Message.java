@@ -30,9 +30,9 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -46,6 +46,7 @@ import com.jagornet.dhcp.option.v4.DhcpV4ParamRequestOption;
 import com.jagornet.dhcp.option.v4.DhcpV4ServerIdOption;
 import com.jagornet.dhcp.util.DhcpConstants;
 import com.jagornet.dhcp.util.Util;
+import com.jagornet.dhcp.xml.Filter;
 
 /**
  * Title:        DhcpV4Message
@@ -118,11 +119,21 @@ public class DhcpV4Message implements DhcpMessage
     protected InetAddress yiAddr = DhcpConstants.ZEROADDR_V4;
     protected InetAddress siAddr = DhcpConstants.ZEROADDR_V4;
     protected InetAddress giAddr = DhcpConstants.ZEROADDR_V4;
+    // the raw values of the non-zero addresses of a decoded message,
+    // which are only converted to InetAddresses when they are needed
+    protected int ciAddrBits = 0;
+    protected int yiAddrBits = 0;
+    protected int siAddrBits = 0;
+    protected int giAddrBits = 0;
     protected byte[] chAddr;
     protected String sName;
     protected String file;
-    protected static byte[] magicCookie = new byte[] { (byte)99, (byte)130, (byte)83, (byte)99 };
+    protected static final int MAGIC_COOKIE = 0x63825363;
     protected Map<Integer, DhcpOption> dhcpOptions = new HashMap<Integer, DhcpOption>();
+    
+    // the results of the filters evaluated for this message,
+    // which are cleared whenever the options are changed
+    protected Map<Filter, Boolean> filterMatches;
 
     /**
      * Construct a DhcpMessage.
@@ -155,12 +166,29 @@ public class DhcpV4Message implements DhcpMessage
      * @throws IOException
      */
     public ByteBuffer encode() throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(getLength());
+        encode(buf);
+        buf.flip();
+        return buf;
+    }
+    
+    /**
+     * Encode this DhcpMessage to wire format directly into the given buffer,
+     * which must have at least getLength() bytes remaining.  Every byte of
+     * the message is written, including the padding, so the buffer need
+     * not be zeroed, and may be a pooled or direct buffer.
+     * 
+     * @param buf	ByteBuffer positioned where the message is to be written
+     * @throws IOException
+     */
+    public void encode(ByteBuffer buf) throws IOException
     {
         if (log.isDebugEnabled())
             log.debug("Encoding DhcpMessage for: " + 
             		Util.socketAddressAsString(remoteAddress));
         
-        ByteBuffer buf = ByteBuffer.allocate(1024);
+        int start = buf.position();
         buf.put((byte)op);
         buf.put((byte)htype);
         buf.put((byte)hlen);
@@ -168,82 +196,84 @@ public class DhcpV4Message implements DhcpMessage
         buf.putInt((int)transactionId);
         buf.putShort((short)secs);
         buf.putShort((short)flags);
-        if (ciAddr != null) {
-        	buf.put(ciAddr.getAddress());
-        }
-        else {
-        	buf.put(DhcpConstants.ZEROADDR_V4.getAddress());
-        }
-        if (yiAddr != null) {
-        	buf.put(yiAddr.getAddress());
-        }
-        else {
-        	buf.put(DhcpConstants.ZEROADDR_V4.getAddress());
-        }
-        if (siAddr != null) {
-        	buf.put(siAddr.getAddress());
-        }
-        else {
-        	buf.put(DhcpConstants.ZEROADDR_V4.getAddress());
-        }
-        if (giAddr != null) {
-        	buf.put(giAddr.getAddress());
-        }
-        else {
-        	buf.put(DhcpConstants.ZEROADDR_V4.getAddress());
-        }
-        buf.put(Arrays.copyOf(chAddr, 16));		// pad to 16 bytes for encoded packet
-        
-        StringBuffer sNameBuf = new StringBuffer();
-        if (sName != null) {
-        	sNameBuf.append(sName);
-        }
-        sNameBuf.setLength(64-sNameBuf.length());
-        buf.put(sNameBuf.toString().getBytes());
-        
-        StringBuffer fileBuf = new StringBuffer();
-        if (file != null) {
-        	fileBuf.append(file);
-        }
-        fileBuf.setLength(128-fileBuf.length());
-        buf.put(fileBuf.toString().getBytes());
-
-        buf.put(encodeOptions());
-    	int msglen = buf.position();
+        encodeAddr(buf, ciAddr, ciAddrBits);
+        encodeAddr(buf, yiAddr, yiAddrBits);
+        encodeAddr(buf, siAddr, siAddrBits);
+        encodeAddr(buf, giAddr, giAddrBits);
+        encodeBytes(buf, chAddr, 16);		// pad to 16 bytes for encoded packet
+        encodeBytes(buf, ((sName != null) && (sName.length() > 0)) ? 
+        		sName.getBytes() : null, 64);
+        encodeBytes(buf, ((file != null) && (file.length() > 0)) ? 
+        		file.getBytes() : null, 128);
+
+        encodeOptions(buf);
+    	int msglen = buf.position() - start;
         if (log.isDebugEnabled())
             log.debug("DHCPv4 Message is " + msglen + " bytes");
         if (msglen < 300) {
         	int pad = 300 - msglen;
             if (log.isDebugEnabled())
                 log.debug("Padding with " + pad + " bytes to 300 byte (Bootp) minimum");
-        	buf.put(new byte[pad]);
+            encodeBytes(buf, null, pad);
         }
-        buf.flip();
         
         if (log.isDebugEnabled())
             log.debug("DhcpMessage encoded.");
-        
-        return buf;
+    }
+
+    /**
+     * Encode a fixed length field, truncated or padded with zeros as needed.
+     * 
+     * @param buf	ByteBuffer positioned at the field
+     * @param bytes	the field value, or null for an empty field
+     * @param len	the length of the field
+     */
+    private static void encodeBytes(ByteBuffer buf, byte[] bytes, int len)
+    {
+    	int n = 0;
+    	if (bytes != null) {
+    		n = Math.min(bytes.length, len);
+    		buf.put(bytes, 0, n);
+    	}
+    	for (; n<len; n++) {
+    		buf.put((byte)0);
+    	}
+    }
+
+    /**
+     * Encode an address of the fixed header.  If the address was decoded
+     * and never materialized, then the raw value is written as is.
+     * 
+     * @param buf	ByteBuffer positioned at the address
+     * @param addr	the address, or null
+     * @param bits	the raw value of the address, if not yet materialized
+     */
+    private static void encodeAddr(ByteBuffer buf, InetAddress addr, int bits)
+    {
+    	if (addr != null) {
+    		buf.put(addr.getAddress());
+    	}
+    	else {
+    		buf.putInt(bits);
+    	}
     }
 
     /**
      * Encode the options of this DhcpMessage to wire format for sending.
      * 
-     * @return	a ByteBuffer containing the encoded options
+     * @param buf	ByteBuffer positioned where the options are to be written
      * @throws IOException
      */
-    protected ByteBuffer encodeOptions() throws IOException
+    protected void encodeOptions(ByteBuffer buf) throws IOException
     {
-    	ByteBuffer buf = ByteBuffer.allocate(788); // 788 - 236 = 1020 (options)
         if (dhcpOptions != null) {
         	// magic cookie as per rfc1497
-        	buf.put(magicCookie);
+        	buf.putInt(MAGIC_COOKIE);
         	for (DhcpOption option : dhcpOptions.values()) {
                  buf.put(option.encode());
             }
         	buf.put((byte)DhcpConstants.V4OPTION_EOF);	// end option
         }
-        return (ByteBuffer)buf.flip();
     }
 
     /**
@@ -317,69 +347,56 @@ public class DhcpV4Message implements DhcpMessage
         	// portion of the DHCPv4 header plus the required
         	// "magic cookie", and at least the message type option
         	// and the end option: 244 = 236 + 4 + 3 + 1
-        	if (buf.limit() >= 244) {
-	        	op = buf.get();
-        		log.debug("op=" + op);
-	        	if (op != 1) {
-	        		// TODO
+        	if (buf.remaining() >= 244) {
+        		// read the fixed portion of the header in place, at absolute
+        		// offsets from the start of the message, so that nothing is
+        		// copied out of the buffer except the client hardware address
+        		int start = buf.position();
+	        	op = buf.get(start);
+	        	htype = buf.get(start + 1);
+	        	hlen = buf.get(start + 2);
+	        	hops = buf.get(start + 3);
+	        	transactionId = buf.getInt(start + 4);
+	        	secs = buf.getShort(start + 8);
+	        	flags = buf.getShort(start + 10);
+	        	ciAddrBits = buf.getInt(start + 12);
+	        	ciAddr = (ciAddrBits == 0) ? DhcpConstants.ZEROADDR_V4 : null;
+	        	yiAddrBits = buf.getInt(start + 16);
+	        	yiAddr = (yiAddrBits == 0) ? DhcpConstants.ZEROADDR_V4 : null;
+	        	siAddrBits = buf.getInt(start + 20);
+	        	siAddr = (siAddrBits == 0) ? DhcpConstants.ZEROADDR_V4 : null;
+	        	giAddrBits = buf.getInt(start + 24);
+	        	giAddr = (giAddrBits == 0) ? DhcpConstants.ZEROADDR_V4 : null;
+	        	chAddr = new byte[hlen];	// hlen defines len of chAddr
+	        	int chlen = Math.min(hlen, 16);
+	        	for (int i=0; i<chlen; i++) {
+	        		chAddr[i] = buf.get(start + 28 + i);
 	        	}
-        		htype = buf.get();
-        		if (log.isDebugEnabled())
-        			log.debug("htype=" + htype);
-      			hlen = buf.get();
-      			log.debug("hlen=" + hlen);
-      			hops = buf.get();
-      			if (log.isDebugEnabled())
-        			log.debug("hops=" + hops);
-      			transactionId = buf.getInt();
-      			if (log.isDebugEnabled())
-        			log.debug("xid=" + transactionId);
-      			secs = buf.getShort();
-      			if (log.isDebugEnabled())
-        			log.debug("secs=" + secs);
-      			flags = buf.getShort();
-      			if (log.isDebugEnabled())
-        			log.debug("flags=" + flags);
-      			byte[] ipbuf = new byte[4];
-      			buf.get(ipbuf);
-      			ciAddr = InetAddress.getByAddress(ipbuf);
-      			if (log.isDebugEnabled())
-        			log.debug("ciaddr=" + ciAddr.getHostAddress());
-      			buf.get(ipbuf);
-      			yiAddr = InetAddress.getByAddress(ipbuf);
-      			if (log.isDebugEnabled())
-        			log.debug("yiaddr=" + yiAddr.getHostAddress());
-      			buf.get(ipbuf);
-      			siAddr = InetAddress.getByAddress(ipbuf);
-      			if (log.isDebugEnabled())
-        			log.debug("siaddr=" + siAddr.getHostAddress());
-      			buf.get(ipbuf);
-      			giAddr = InetAddress.getByAddress(ipbuf);
-      			if (log.isDebugEnabled())
-        			log.debug("giaddr=" + giAddr.getHostAddress());
-      			byte[] chbuf = new byte[16];
-      			buf.get(chbuf);
-      			chAddr = Arrays.copyOf(chbuf, hlen);	// hlen defines len of chAddr
-      			if (log.isDebugEnabled())
-        			log.debug("chaddr=" + Util.toHexString(chAddr));
-      			byte[] sbuf = new byte[64];
-      			buf.get(sbuf);
-      			sName = new String(sbuf);
-      			if (log.isDebugEnabled())
-        			log.debug("sname=" + sName);
-      			byte[] fbuf = new byte[128];
-      			buf.get(fbuf);
-      			file = new String(fbuf);
-      			if (log.isDebugEnabled())
-        			log.debug("file=" + file);
-      			byte[] cookieBuf = new byte[4];
-      			buf.get(cookieBuf);
-      			if (!Arrays.equals(cookieBuf, magicCookie)) {
+	        	if (buf.getInt(start + 236) != MAGIC_COOKIE) {
                     String errmsg = "Failed to decode DHCPv4 message: invalid magic cookie";
                     log.error(errmsg);
                     throw new IOException(errmsg);
-      			}
-      			decodeOptions(buf);
+	        	}
+	        	buf.position(start + 240);
+	        	decodeOptions(buf);
+	        	// the sname and file fields are usually empty, and unless
+	        	// the option overload option says that they hold options,
+	        	// only the text up to the first null byte is of interest
+	        	boolean overload =
+	        		dhcpOptions.containsKey(DhcpConstants.V4OPTION_OVERLOAD);
+	        	sName = decodeString(buf, start + 44, 64, overload);
+	        	file = decodeString(buf, start + 108, 128, overload);
+	        	if (log.isDebugEnabled()) {
+	        		log.debug("op=" + op + " htype=" + htype + " hlen=" + hlen +
+	        				" hops=" + hops + " xid=" + transactionId +
+	        				" secs=" + secs + " flags=" + flags);
+	        		log.debug("ciaddr=" + getCiAddr().getHostAddress() +
+	        				" yiaddr=" + getYiAddr().getHostAddress() +
+	        				" siaddr=" + getSiAddr().getHostAddress() +
+	        				" giaddr=" + getGiAddr().getHostAddress());
+	        		log.debug("chaddr=" + Util.toHexString(chAddr) +
+	        				" sname=" + sName + " file=" + file);
+	        	}
             }
             else {
                 String errmsg = "Failed to decode DHCPv4 message: packet too short";
@@ -399,7 +416,37 @@ public class DhcpV4Message implements DhcpMessage
     }
     
     /**
-     * Decode the options.
+     * Decode the sname or file field of the fixed header.
+     * 
+     * @param buf	ByteBuffer containing the packet
+     * @param offset	the absolute offset of the field in the buffer
+     * @param len	the length of the field
+     * @param whole	if true, decode the whole field, otherwise
+     * 				stop at the first null byte
+     * @return	the decoded String, which is empty if the field is empty
+     */
+    private static String decodeString(ByteBuffer buf, int offset, int len, boolean whole)
+    {
+    	int strlen = len;
+    	if (!whole) {
+    		strlen = 0;
+    		while ((strlen < len) && (buf.get(offset + strlen) != 0)) {
+    			strlen++;
+    		}
+    		if (strlen == 0) {
+    			return "";
+    		}
+    	}
+    	byte[] sbuf = new byte[strlen];
+    	for (int i=0; i<strlen; i++) {
+    		sbuf[i] = buf.get(offset + i);
+    	}
+    	return new String(sbuf);
+    }
+
+    /**
+     * Decode the options.  If lazy option decoding is enabled, the options
+     * are only indexed here, and each is decoded when first asked for.
      * @param buf	ByteBuffer positioned at the start of the options in the packet
      * @return	a Map of DhcpOptions keyed by the option code
      * @throws IOException
@@ -407,6 +454,23 @@ public class DhcpV4Message implements DhcpMessage
     protected Map<Integer, DhcpOption> decodeOptions(ByteBuffer buf) 
             throws IOException
     {
+    	if (LazyOptionMap.isEnabled()) {
+    		LazyOptionMap lazyOptions = new LazyOptionMap(buf, true);
+    		while (buf.hasRemaining()) {
+    			short code = Util.getUnsignedByte(buf);
+    			if (code == DhcpConstants.V4OPTION_EOF) {
+    				break;
+    			}
+    			if (code == 0) {
+    				continue;	// pad
+    			}
+    			if (!lazyOptions.index(code, buf)) {
+    				throw new IOException("Malformed option code=" + code);
+    			}
+    		}
+    		dhcpOptions = lazyOptions;
+    		return dhcpOptions;
+    	}
         while (buf.hasRemaining()) {
             short code = Util.getUnsignedByte(buf);
             if (log.isDebugEnabled())
@@ -424,17 +488,19 @@ public class DhcpV4Message implements DhcpMessage
     }
 
     /**
-     * Return the length of this DhcpMessage in bytes.
-     * @return	an int containing a length of a least four(4)
+     * Return the length of this DhcpMessage in bytes, as encoded.
+     * @return	an int containing a length of a least 300
      */
     public int getLength()
     {
-    	// portion of the DHCPv4 header plus the required
-    	// "magic cookie", and at least the message type option
-    	// and the end option: 244 = 236 + 4 + 3 + 1
-    	int len = 244;
-        len += getOptionsLength();
-        return len;
+    	// fixed portion of the DHCPv4 header
+    	int len = 236;
+    	if (dhcpOptions != null) {
+    		// the "magic cookie", the options, and the end option
+    		len += 4 + getOptionsLength() + 1;
+    	}
+    	// padded to the Bootp minimum
+        return Math.max(len, 300);
     }
     
     /**
@@ -485,11 +551,13 @@ public class DhcpV4Message implements DhcpMessage
     {
         if(dhcpOption != null) {
             dhcpOptions.put(dhcpOption.getCode(), dhcpOption);
+            filterMatches = null;
         }
     }
     public void putAllDhcpOptions(Map<Integer, DhcpOption> dhcpOptions)
     {
     	this.dhcpOptions.putAll(dhcpOptions);
+    	filterMatches = null;
     }
     
     public Map<Integer, DhcpOption> getDhcpOptionMap()
@@ -499,6 +567,22 @@ public class DhcpV4Message implements DhcpMessage
     public void setDhcpOptionMap(Map<Integer, DhcpOption> dhcpOptions)
     {
         this.dhcpOptions = dhcpOptions;
+        filterMatches = null;
+    }
+    
+    public Boolean getFilterMatch(Filter filter)
+    {
+    	if (filterMatches != null) {
+    		return filterMatches.get(filter);
+    	}
+    	return null;
+    }
+    public void setFilterMatch(Filter filter, boolean matches)
+    {
+    	if (filterMatches == null) {
+    		filterMatches = new IdentityHashMap<Filter, Boolean>();
+    	}
+    	filterMatches.put(filter, matches);
     }
 
     public Collection<DhcpOption> getDhcpOptions()
@@ -648,35 +732,51 @@ public class DhcpV4Message implements DhcpMessage
 	}
 
 	public InetAddress getCiAddr() {
+		if ((ciAddr == null) && (ciAddrBits != 0)) {
+			ciAddr = Util.longToV4Addr(ciAddrBits & 0xffffffffL);
+		}
 		return ciAddr;
 	}
 
 	public void setCiAddr(InetAddress ciAddr) {
 		this.ciAddr = ciAddr;
+		this.ciAddrBits = 0;
 	}
 
 	public InetAddress getYiAddr() {
+		if ((yiAddr == null) && (yiAddrBits != 0)) {
+			yiAddr = Util.longToV4Addr(yiAddrBits & 0xffffffffL);
+		}
 		return yiAddr;
 	}
 
 	public void setYiAddr(InetAddress yiAddr) {
 		this.yiAddr = yiAddr;
+		this.yiAddrBits = 0;
 	}
 
 	public InetAddress getSiAddr() {
+		if ((siAddr == null) && (siAddrBits != 0)) {
+			siAddr = Util.longToV4Addr(siAddrBits & 0xffffffffL);
+		}
 		return siAddr;
 	}
 
 	public void setSiAddr(InetAddress siAddr) {
 		this.siAddr = siAddr;
+		this.siAddrBits = 0;
 	}
 
 	public InetAddress getGiAddr() {
+		if ((giAddr == null) && (giAddrBits != 0)) {
+			giAddr = Util.longToV4Addr(giAddrBits & 0xffffffffL);
+		}
 		return giAddr;
 	}
 
 	public void setGiAddr(InetAddress giAddr) {
 		this.giAddr = giAddr;
+		this.giAddrBits = 0;
 	}
 
 	public byte[] getChAddr() {
@@ -31,6 +31,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -48,6 +49,7 @@ import com.jagornet.dhcp.option.v6.DhcpV6RelayOption;
 import com.jagornet.dhcp.option.v6.DhcpV6ServerIdOption;
 import com.jagornet.dhcp.util.DhcpConstants;
 import com.jagornet.dhcp.util.Util;
+import com.jagornet.dhcp.xml.Filter;
 
 /**
  * Title:        DhcpV6Message
@@ -122,6 +124,10 @@ public class DhcpV6Message implements DhcpMessage
     protected short messageType = 0;	// need a short to hold unsigned byte
     protected int transactionId = 0;   	// we only use low order three bytes
     protected Map<Integer, DhcpOption> dhcpOptions = new HashMap<Integer, DhcpOption>();
+    
+    // the results of the filters evaluated for this message,
+    // which are cleared whenever the options are changed
+    protected Map<Filter, Boolean> filterMatches;
     protected List<DhcpV6IaNaOption> iaNaOptions = new ArrayList<DhcpV6IaNaOption>();
     protected List<DhcpV6IaTaOption> iaTaOptions = new ArrayList<DhcpV6IaTaOption>();
     protected List<DhcpV6IaPdOption> iaPdOptions = new ArrayList<DhcpV6IaPdOption>();
@@ -167,32 +173,42 @@ public class DhcpV6Message implements DhcpMessage
      * @throws IOException
      */
     public ByteBuffer encode() throws IOException
+    {
+        ByteBuffer buf = ByteBuffer.allocate(getLength());
+        encode(buf);
+        buf.flip();
+        return buf;
+    }
+    
+    /**
+     * Encode this DhcpMessage to wire format directly into the given buffer,
+     * which must have at least getLength() bytes remaining.
+     * 
+     * @param buf	ByteBuffer positioned where the message is to be written
+     * @throws IOException
+     */
+    public void encode(ByteBuffer buf) throws IOException
     {
         if (log.isDebugEnabled())
             log.debug("Encoding DhcpMessage for: " + 
             		Util.socketAddressAsString(remoteAddress));
         
-        ByteBuffer buf = ByteBuffer.allocate(1024);
         buf.put((byte)messageType);
-        buf.put(DhcpTransactionId.encode(transactionId));
-        buf.put(encodeOptions());
-        buf.flip();
+        Util.putMediumInt(buf, transactionId);
+        encodeOptions(buf);
         
         if (log.isDebugEnabled())
             log.debug("DhcpMessage encoded.");
-        
-        return buf;
     }
 
     /**
      * Encode the options of this DhcpMessage to wire format for sending.
      * 
-     * @return	a ByteBuffer containing the encoded options
+     * @param buf	ByteBuffer positioned where the options are to be written
      * @throws IOException
      */
-    protected ByteBuffer encodeOptions() throws IOException
+    protected void encodeOptions(ByteBuffer buf) throws IOException
     {
-    	ByteBuffer buf = ByteBuffer.allocate(1020); // 1024 - 1(msgType) - 3(transId) = 1020 (options)
         if (dhcpOptions != null) {
             for (DhcpOption option : dhcpOptions.values()) {
                  buf.put(option.encode());
@@ -213,7 +229,6 @@ public class DhcpV6Message implements DhcpMessage
 				buf.put(iaPdOption.encode());
 			}
         }
-        return (ByteBuffer)buf.flip();
     }
 
     /**
@@ -340,7 +355,9 @@ public class DhcpV6Message implements DhcpMessage
     }
     
     /**
-     * Decode the options.
+     * Decode the options.  If lazy option decoding is enabled, the options,
+     * except for those which are always decoded, are only indexed here,
+     * and each is decoded when first asked for.
      * @param buf	ByteBuffer positioned at the start of the options in the packet
      * @return	a Map of DhcpOptions keyed by the option code
      * @throws IOException
@@ -348,10 +365,21 @@ public class DhcpV6Message implements DhcpMessage
     protected Map<Integer, DhcpOption> decodeOptions(ByteBuffer buf) 
             throws IOException
     {
+    	LazyOptionMap lazyOptions = null;
+    	if (LazyOptionMap.isEnabled()) {
+    		lazyOptions = new LazyOptionMap(buf, false);
+    		dhcpOptions = lazyOptions;
+    	}
         while (buf.hasRemaining()) {
             int code = Util.getUnsignedShort(buf);
             if (log.isDebugEnabled())
     			log.debug("Option code=" + code);
+            if ((lazyOptions != null) && !isEagerOption(code)) {
+            	if (!lazyOptions.index(code, buf)) {
+            		throw new IOException("Malformed option code=" + code);
+            	}
+            	continue;
+            }
             DhcpOption option = DhcpV6OptionFactory.getDhcpOption(code);
             if (option != null) {
             	if ((option instanceof DhcpV6RelayOption) &&
@@ -379,6 +407,24 @@ public class DhcpV6Message implements DhcpMessage
         }
         return dhcpOptions;
     }
+    
+    /**
+     * Checks if an option is decoded with the message, even when lazy option
+     * decoding is enabled.  The IA options are kept in lists rather than the
+     * option map, and the relay message option is needed to decode a relay
+     * message, so these options are always decoded.
+     * 
+     * @param code the option code
+     * 
+     * @return true, if the option is always decoded
+     */
+    protected boolean isEagerOption(int code)
+    {
+    	return (code == DhcpConstants.V6OPTION_IA_NA) ||
+    			(code == DhcpConstants.V6OPTION_IA_TA) ||
+    			(code == DhcpConstants.V6OPTION_IA_PD) ||
+    			(code == DhcpConstants.V6OPTION_RELAY_MSG);
+    }
 
     /**
      * Return the length of this DhcpMessage in bytes.
@@ -507,11 +553,13 @@ public class DhcpV6Message implements DhcpMessage
     {
         if(dhcpOption != null) {
             dhcpOptions.put(dhcpOption.getCode(), dhcpOption);
+            filterMatches = null;
         }
     }
     public void putAllDhcpOptions(Map<Integer, DhcpOption> dhcpOptions)
     {
     	this.dhcpOptions.putAll(dhcpOptions);
+    	filterMatches = null;
     }
     
     public Map<Integer, DhcpOption> getDhcpOptionMap()
@@ -521,6 +569,22 @@ public class DhcpV6Message implements DhcpMessage
     public void setDhcpOptionMap(Map<Integer, DhcpOption> dhcpOptions)
     {
         this.dhcpOptions = dhcpOptions;
+        filterMatches = null;
+    }
+    
+    public Boolean getFilterMatch(Filter filter)
+    {
+    	if (filterMatches != null) {
+    		return filterMatches.get(filter);
+    	}
+    	return null;
+    }
+    public void setFilterMatch(Filter filter, boolean matches)
+    {
+    	if (filterMatches == null) {
+    		filterMatches = new IdentityHashMap<Filter, Boolean>();
+    	}
+    	filterMatches.put(filter, matches);
     }
 
     public Collection<DhcpOption> getDhcpOptions()
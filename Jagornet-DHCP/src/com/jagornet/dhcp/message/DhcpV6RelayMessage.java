@@ -154,23 +154,19 @@ public class DhcpV6RelayMessage extends DhcpV6Message
      * @see com.jagornet.dhcpv6.message.DhcpMessage#encode()
      */
     @Override
-    public ByteBuffer encode() throws IOException
+    public void encode(ByteBuffer buf) throws IOException
     {
         if (log.isDebugEnabled())
             log.debug("Encoding DhcpRelayMessage for: " + remoteAddress);
         
-        ByteBuffer buf = ByteBuffer.allocate(1024);
         buf.put((byte)messageType);
         buf.put((byte)hopCount);
         buf.put(linkAddress.getAddress());
         buf.put(peerAddress.getAddress());
-        buf.put(encodeOptions());
-        buf.flip();
+        encodeOptions(buf);
         
         if (log.isDebugEnabled())
             log.debug("DhcpRelayMessage encoded.");
-        
-        return buf;
     }
 
     /* (non-Javadoc)
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file LazyOptionMap.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.message;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import com.jagornet.dhcp.option.base.DhcpOption;
+import com.jagornet.dhcp.option.v4.DhcpV4OptionFactory;
+import com.jagornet.dhcp.option.v6.DhcpV6OptionFactory;
+
+/**
+ * Title: LazyOptionMap
+ * Description: The option map of a decoded message, which decodes each
+ * option only when it is first asked for.  When the message is decoded,
+ * the options are only scanned, and the code and offset of each option
+ * is kept in a small index, so an option which the server never looks
+ * at, such as a large vendor or relay agent option, is never copied
+ * out of the packet.  Once decoded, an option is kept in a HashMap,
+ * as are any options put into the map, so the map behaves like the
+ * HashMap it replaces.  Iterating the map decodes all of the options.
+ * <p>
+ * Because looking up an option may decode it, the methods of this map
+ * are synchronized, so that a message may be read by more than one
+ * thread.  An option which is well formed in the packet, but which
+ * cannot be decoded, fails the lookup with an IllegalStateException,
+ * rather than being treated as absent.  Because the map holds on to
+ * the packet buffer, the buffer must not be reused while the message
+ * is in use.
+ * 
+ * @author A. Gregory Rabil
+ */
+public class LazyOptionMap extends AbstractMap<Integer, DhcpOption>
+{
+	/** True if decoded messages use a LazyOptionMap. */
+	private static volatile boolean enabled = true;
+	
+	/** The packet holding the options which are not yet decoded. */
+	private final ByteBuffer buf;
+	
+	/** True for DHCPv4 options, false for DHCPv6 options. */
+	private final boolean v4;
+	
+	/** The options which have been decoded, or put into the map. */
+	private final Map<Integer, DhcpOption> decoded = new HashMap<Integer, DhcpOption>();
+	
+	/** The codes of the options which are not yet decoded. */
+	private int[] codes = new int[8];
+	
+	/** The offsets in the packet of the length field of each option. */
+	private int[] offsets = new int[8];
+	
+	/** The number of options which are not yet decoded. */
+	private int count;
+	
+	/**
+	 * Instantiates a new lazy option map.
+	 * 
+	 * @param buf the packet holding the options
+	 * @param v4 true for DHCPv4 options, false for DHCPv6 options
+	 */
+	public LazyOptionMap(ByteBuffer buf, boolean v4)
+	{
+		this.buf = buf;
+		this.v4 = v4;
+	}
+	
+	/**
+	 * Checks if decoded messages use a LazyOptionMap.
+	 * 
+	 * @return true, if enabled
+	 */
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+	
+	/**
+	 * Sets whether decoded messages use a LazyOptionMap, or decode
+	 * all options into a HashMap as soon as the message is decoded.
+	 * 
+	 * @param enabled true to decode options lazily
+	 */
+	public static void setEnabled(boolean enabled)
+	{
+		LazyOptionMap.enabled = enabled;
+	}
+	
+	/**
+	 * Index the option at the position of the buffer, and skip past it.
+	 * The code of the option has already been read, and the buffer is
+	 * positioned at the length field.  An option which appears more than
+	 * once replaces the earlier one, as it would in a HashMap.
+	 * 
+	 * @param code the option code
+	 * @param buf the packet, which must be the packet given to this map
+	 * 
+	 * @return true if the option was indexed, false if it is malformed
+	 */
+	public synchronized boolean index(int code, ByteBuffer buf)
+	{
+		int offset = buf.position();
+		int len = 0;
+		if (v4) {
+			if (buf.remaining() < 1) {
+				return false;
+			}
+			len = buf.get(offset) & 0xff;
+			offset += 1;
+		}
+		else {
+			if (buf.remaining() < 2) {
+				return false;
+			}
+			len = buf.getShort(offset) & 0xffff;
+			offset += 2;
+		}
+		if (len > buf.limit() - offset) {
+			return false;
+		}
+		decoded.remove(code);
+		int i = find(code);
+		if (i < 0) {
+			if (count == codes.length) {
+				int[] c = new int[count * 2];
+				System.arraycopy(codes, 0, c, 0, count);
+				codes = c;
+				int[] o = new int[count * 2];
+				System.arraycopy(offsets, 0, o, 0, count);
+				offsets = o;
+			}
+			i = count++;
+			codes[i] = code;
+		}
+		offsets[i] = buf.position();
+		buf.position(offset + len);
+		return true;
+	}
+	
+	/**
+	 * Find the index entry for an option which is not yet decoded.
+	 * 
+	 * @param code the option code
+	 * 
+	 * @return the index of the entry, or -1 if none
+	 */
+	private int find(int code)
+	{
+		// a message has only a handful of options,
+		// so a linear search is faster than hashing
+		for (int i=0; i<count; i++) {
+			if (codes[i] == code) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Decode an option and move it from the index to the decoded options.
+	 * 
+	 * @param i the index of the entry
+	 * 
+	 * @return the decoded option, or null if the option code is unknown
+	 * @throws IllegalStateException if the option is malformed
+	 */
+	private DhcpOption decode(int i)
+	{
+		int code = codes[i];
+		int offset = offsets[i];
+		drop(i);
+		
+		DhcpOption option = v4 ? 
+				DhcpV4OptionFactory.getDhcpOption(code) : DhcpV6OptionFactory.getDhcpOption(code);
+		if (option == null) {
+			return null;
+		}
+		// decode from a duplicate, so that the packet is
+		// not changed by the decoding of any one option
+		ByteBuffer optionBuf = buf.duplicate();
+		optionBuf.position(offset);
+		try {
+			option.decode(optionBuf);
+		}
+		catch (IOException ex) {
+			// the option was well formed when indexed,
+			// so its contents must be invalid
+			throw new IllegalStateException("Malformed option code=" + code, ex);
+		}
+		decoded.put(code, option);
+		return option;
+	}
+	
+	/**
+	 * Remove an entry from the index, by moving the last entry into its place.
+	 * 
+	 * @param i the index of the entry
+	 */
+	private void drop(int i)
+	{
+		count--;
+		codes[i] = codes[count];
+		offsets[i] = offsets[count];
+	}
+	
+	/**
+	 * Decode all the options which are not yet decoded.
+	 */
+	private void decodeAll()
+	{
+		while (count > 0) {
+			decode(count - 1);
+		}
+	}
+	
+	/**
+	 * Gets the number of options which are not yet decoded.
+	 * 
+	 * @return the number of undecoded options
+	 */
+	public synchronized int getUndecodedCount()
+	{
+		return count;
+	}
+
+	@Override
+	public synchronized DhcpOption get(Object key)
+	{
+		DhcpOption option = decoded.get(key);
+		if ((option == null) && (count > 0) && (key instanceof Integer)) {
+			int i = find((Integer)key);
+			if (i >= 0) {
+				option = decode(i);
+			}
+		}
+		return option;
+	}
+
+	@Override
+	public synchronized boolean containsKey(Object key)
+	{
+		if (decoded.containsKey(key)) {
+			return true;
+		}
+		return (key instanceof Integer) && (find((Integer)key) >= 0);
+	}
+
+	@Override
+	public synchronized DhcpOption put(Integer key, DhcpOption value)
+	{
+		// the replaced option is not decoded just to be returned
+		int i = find(key);
+		if (i >= 0) {
+			drop(i);
+		}
+		return decoded.put(key, value);
+	}
+
+	@Override
+	public synchronized DhcpOption remove(Object key)
+	{
+		DhcpOption old = get(key);
+		decoded.remove(key);
+		return old;
+	}
+
+	@Override
+	public synchronized int size()
+	{
+		return decoded.size() + count;
+	}
+
+	@Override
+	public synchronized boolean isEmpty()
+	{
+		return (count == 0) && decoded.isEmpty();
+	}
+
+	@Override
+	public synchronized void clear()
+	{
+		count = 0;
+		decoded.clear();
+	}
+
+	@Override
+	public synchronized Set<Map.Entry<Integer, DhcpOption>> entrySet()
+	{
+		decodeAll();
+		return decoded.entrySet();
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file DhcpOptionRegistry.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.option;
+
+import java.lang.reflect.Constructor;
+
+import com.jagornet.dhcp.option.base.BaseDhcpOption;
+import com.jagornet.dhcp.option.base.DhcpOption;
+
+/**
+ * Title: DhcpOptionRegistry
+ * Description: The registry of option codes which are decoded by custom
+ * option classes, such as vendor options, rather than by the options built
+ * into the DhcpV4OptionFactory and DhcpV6OptionFactory.  The factories
+ * check the registry before their own switch, so that a custom option can
+ * be registered at startup without editing the factories, either in code
+ * or with the dhcp.customOptions policy.
+ * <p>
+ * The creators are kept in an array indexed by the option code, split into
+ * pages of 256 codes so that the sparse DHCPv6 code space costs nothing for
+ * the unused pages.  The lookup is two array loads, and when no option is
+ * registered, just one.  Registration is copy-on-write, so the lookup needs
+ * no lock.
+ * 
+ * @author A. Gregory Rabil
+ */
+public class DhcpOptionRegistry
+{
+	/** The registry for DHCPv4 options. */
+	private static final DhcpOptionRegistry V4_REGISTRY = new DhcpOptionRegistry(true);
+	
+	/** The registry for DHCPv6 options. */
+	private static final DhcpOptionRegistry V6_REGISTRY = new DhcpOptionRegistry(false);
+	
+	/**
+	 * The Interface Creator.  Creates a new, empty option
+	 * to be decoded for a registered option code.
+	 */
+	public interface Creator
+	{
+		/**
+		 * Create a new option.
+		 * 
+		 * @param code the option code
+		 * 
+		 * @return the new option
+		 */
+		public DhcpOption newOption(int code);
+	}
+	
+	/** True for DHCPv4 options, false for DHCPv6 options. */
+	private final boolean v4;
+	
+	/** The creators, in pages of 256 codes, or null if none are in the page. */
+	private volatile Creator[][] pages;
+	
+	/**
+	 * Instantiates a new dhcp option registry.
+	 * 
+	 * @param v4 true for DHCPv4 options, false for DHCPv6 options
+	 */
+	protected DhcpOptionRegistry(boolean v4)
+	{
+		this.v4 = v4;
+		pages = new Creator[v4 ? 1 : 256][];
+	}
+	
+	/**
+	 * Gets the registry for DHCPv4 options.
+	 * 
+	 * @return the v4 registry
+	 */
+	public static DhcpOptionRegistry getV4Registry()
+	{
+		return V4_REGISTRY;
+	}
+	
+	/**
+	 * Gets the registry for DHCPv6 options.
+	 * 
+	 * @return the v6 registry
+	 */
+	public static DhcpOptionRegistry getV6Registry()
+	{
+		return V6_REGISTRY;
+	}
+	
+	/**
+	 * Gets the creator registered for an option code.
+	 * 
+	 * @param code the option code
+	 * 
+	 * @return the creator, or null if none is registered
+	 */
+	public Creator get(int code)
+	{
+		Creator[][] p = pages;
+		int ndx = code >>> 8;
+		if (ndx < p.length) {
+			Creator[] page = p[ndx];
+			if (page != null) {
+				return page[code & 0xff];
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Register a creator for an option code, replacing any creator
+	 * already registered for the code.
+	 * 
+	 * @param code the option code
+	 * @param creator the creator, or null to remove the registration
+	 */
+	public synchronized void register(int code, Creator creator)
+	{
+		int max = v4 ? 254 : 65535;
+		if ((code < 1) || (code > max)) {
+			// the pad and end options of DHCPv4 can't be replaced
+			throw new IllegalArgumentException("Invalid option code: " + code);
+		}
+		Creator[][] p = pages.clone();
+		int ndx = code >>> 8;
+		Creator[] page = (p[ndx] != null) ? p[ndx].clone() : new Creator[256];
+		page[code & 0xff] = creator;
+		p[ndx] = page;
+		pages = p;
+	}
+	
+	/**
+	 * Register an option class for an option code.  The class must have
+	 * a public no-argument constructor.
+	 * 
+	 * @param code the option code
+	 * @param optionClass the option class
+	 */
+	public void register(int code, Class<? extends DhcpOption> optionClass)
+	{
+		register(code, new ClassCreator(optionClass, v4));
+	}
+	
+	/**
+	 * Remove all registrations.
+	 */
+	public synchronized void clear()
+	{
+		pages = new Creator[pages.length][];
+	}
+	
+	/**
+	 * Register the custom options listed in a policy value.  The value is
+	 * a comma separated list of entries of the form
+	 * <code>v4:code=className</code> or <code>v6:code=className</code>.
+	 * 
+	 * @param customOptions the list of custom options
+	 * 
+	 * @throws IllegalArgumentException if an entry is invalid
+	 */
+	@SuppressWarnings("unchecked")
+	public static void registerAll(String customOptions)
+	{
+		if ((customOptions == null) || (customOptions.trim().length() == 0)) {
+			return;
+		}
+		for (String entry : customOptions.split(",")) {
+			entry = entry.trim();
+			int colon = entry.indexOf(':');
+			int equals = entry.indexOf('=');
+			if ((colon < 0) || (equals < colon)) {
+				throw new IllegalArgumentException("Invalid custom option: " + entry);
+			}
+			String version = entry.substring(0, colon).trim();
+			DhcpOptionRegistry registry = null;
+			if (version.equalsIgnoreCase("v4")) {
+				registry = V4_REGISTRY;
+			}
+			else if (version.equalsIgnoreCase("v6")) {
+				registry = V6_REGISTRY;
+			}
+			else {
+				throw new IllegalArgumentException("Invalid custom option version: " + entry);
+			}
+			try {
+				int code = Integer.parseInt(entry.substring(colon + 1, equals).trim());
+				Class<?> optionClass = Class.forName(entry.substring(equals + 1).trim());
+				if (!DhcpOption.class.isAssignableFrom(optionClass)) {
+					throw new IllegalArgumentException("Not a DhcpOption class: " + entry);
+				}
+				registry.register(code, (Class<? extends DhcpOption>) optionClass);
+			}
+			catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Invalid custom option code: " + entry);
+			}
+			catch (ClassNotFoundException ex) {
+				throw new IllegalArgumentException("Custom option class not found: " + entry);
+			}
+		}
+	}
+	
+	/**
+	 * The Class ClassCreator.  Creates options of a class, by its
+	 * no-argument constructor, and sets the code of the option if
+	 * the class is used for more than one option code.
+	 */
+	public static class ClassCreator implements Creator
+	{
+		private final Constructor<? extends DhcpOption> constructor;
+		private final boolean v4;
+		
+		/**
+		 * Instantiates a new class creator.
+		 * 
+		 * @param optionClass the option class
+		 * @param v4 true for DHCPv4 options, false for DHCPv6 options
+		 */
+		public ClassCreator(Class<? extends DhcpOption> optionClass, boolean v4)
+		{
+			try {
+				constructor = optionClass.getConstructor();
+			}
+			catch (NoSuchMethodException ex) {
+				throw new IllegalArgumentException("No public no-argument constructor: " +
+						optionClass.getName());
+			}
+			this.v4 = v4;
+		}
+		
+		public DhcpOption newOption(int code)
+		{
+			DhcpOption option = null;
+			try {
+				option = constructor.newInstance();
+			}
+			catch (Exception ex) {
+				throw new IllegalStateException("Failed to create option code=" + code, ex);
+			}
+			if (option instanceof BaseDhcpOption) {
+				BaseDhcpOption baseOption = (BaseDhcpOption) option;
+				baseOption.setCode(code);
+				baseOption.setV4(v4);
+			}
+			return option;
+		}
+	}
+}
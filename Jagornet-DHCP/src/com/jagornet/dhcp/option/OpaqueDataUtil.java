@@ -76,99 +76,118 @@ public class OpaqueDataUtil
     public static boolean matches(BaseOpaqueData myOpaque, OpaqueData that, Operator.Enum op)
     {
         if (that != null) {
-            String expAscii = that.getAsciiValue();
-            String myAscii = myOpaque.getAscii();
-            if ( (expAscii != null) && (myAscii != null) ) {
+        	String expAscii = that.getAsciiValue();
+        	return matches(myOpaque, expAscii, 
+        			(expAscii == null) ? that.getHexValue() : null, op);
+        }
+        return false;
+    }
+
+    /**
+     * Matches, for an expression value which has already been read from
+     * the OpaqueData of the configuration, so that the XML need not be
+     * read for every comparison.
+     * 
+     * @param myOpaque the my opaque
+     * @param expAscii the ascii value of the expression, or null if hex
+     * @param expHex the hex value of the expression
+     * @param op the operator
+     * 
+     * @return true, if successful
+     */
+    public static boolean matches(BaseOpaqueData myOpaque, String expAscii, byte[] expHex,
+    		Operator.Enum op)
+    {
+        String myAscii = myOpaque.getAscii();
+        if ( (expAscii != null) && (myAscii != null) ) {
+            if (op.equals(Operator.EQUALS)) {
+                return myAscii.equalsIgnoreCase(expAscii);
+            }
+            else if (op.equals(Operator.STARTS_WITH)) {
+                return myAscii.startsWith(expAscii);
+            }
+            else if (op.equals(Operator.CONTAINS)) {
+                return myAscii.contains(expAscii);
+            }
+            else if (op.equals(Operator.ENDS_WITH)) {
+                return myAscii.endsWith(expAscii);
+            }
+            else if (op.equals(Operator.REG_EXP)) {
+                return myAscii.matches(expAscii);
+            }
+            else {
+                log.error("Unsupported expression operator: " + op);
+                return false;
+            }
+        }
+        else if ( (expAscii == null) && (myAscii == null) ) {
+            byte[] myHex = myOpaque.getHex();
+            if ( (expHex != null) && (myHex != null) ) {
                 if (op.equals(Operator.EQUALS)) {
-                    return myAscii.equalsIgnoreCase(expAscii);
+                	return Arrays.equals(myHex, expHex);
                 }
                 else if (op.equals(Operator.STARTS_WITH)) {
-                    return myAscii.startsWith(expAscii);
-                }
-                else if (op.equals(Operator.CONTAINS)) {
-                    return myAscii.contains(expAscii);
-                }
-                else if (op.equals(Operator.ENDS_WITH)) {
-                    return myAscii.endsWith(expAscii);
-                }
-                else if (op.equals(Operator.REG_EXP)) {
-                    return myAscii.matches(expAscii);
-                }
-                else {
-                    log.error("Unsupported expression operator: " + op);
-                    return false;
-                }
-            }
-            else if ( (expAscii == null) && (myAscii == null) ) {
-                byte[] expHex = that.getHexValue();
-                byte[] myHex = myOpaque.getHex();
-                if ( (expHex != null) && (myHex != null) ) {
-                    if (op.equals(Operator.EQUALS)) {
-                    	return Arrays.equals(myHex, expHex);
-                    }
-                    else if (op.equals(Operator.STARTS_WITH)) {
-                        if (myHex.length >= expHex.length) {
-                            for (int i=0; i<expHex.length; i++) {
-                                if (myHex[i] != expHex[i]) {
-                                    return false;
-                                }
+                    if (myHex.length >= expHex.length) {
+                        for (int i=0; i<expHex.length; i++) {
+                            if (myHex[i] != expHex[i]) {
+                                return false;
                             }
-                            return true;    // if we get here, it matches
-                        }
-                        else {
-                            return false;   // exp length too long
                         }
+                        return true;    // if we get here, it matches
                     }
-                    else if (op.equals(Operator.CONTAINS)) {
-                        if (myHex.length >= expHex.length) {
-                            int j=0;
-                            for (int i=0; i<myHex.length; i++) {
-                                if (myHex[i] == expHex[j]) {
-                                    // found a potential match
-                                    j++;
-                                    boolean matches = true;
-                                    for (int ii=i+1; ii<myHex.length; ii++) {
-                                        if (myHex[ii] != expHex[j++]) {
-                                            matches = false;
-                                            break;
-                                        }
-                                    }
-                                    if (matches) {
-                                        return true;
+                    else {
+                        return false;   // exp length too long
+                    }
+                }
+                else if (op.equals(Operator.CONTAINS)) {
+                    if (myHex.length >= expHex.length) {
+                        int j=0;
+                        for (int i=0; i<myHex.length; i++) {
+                            if (myHex[i] == expHex[j]) {
+                                // found a potential match
+                                j++;
+                                boolean matches = true;
+                                for (int ii=i+1; ii<myHex.length; ii++) {
+                                    if (myHex[ii] != expHex[j++]) {
+                                        matches = false;
+                                        break;
                                     }
-                                    j=0;    // reset to start of exp
                                 }
+                                if (matches) {
+                                    return true;
+                                }
+                                j=0;    // reset to start of exp
                             }
-                            return false;    // if we get here, it didn't match
-                        }
-                        else {
-                            return false;   // exp length too long
                         }
+                        return false;    // if we get here, it didn't match
                     }
-                    else if (op.equals(Operator.ENDS_WITH)) {
-                        if (myHex.length >= expHex.length) {
-                            for (int i=myHex.length-1; 
-                                 i>=myHex.length-expHex.length; 
-                                 i--) {
-                                if (myHex[i] != expHex[i]) {
-                                    return false;
-                                }
+                    else {
+                        return false;   // exp length too long
+                    }
+                }
+                else if (op.equals(Operator.ENDS_WITH)) {
+                    if (myHex.length >= expHex.length) {
+                        for (int i=myHex.length-1; 
+                             i>=myHex.length-expHex.length; 
+                             i--) {
+                            if (myHex[i] != expHex[i]) {
+                                return false;
                             }
-                            return true;    // if we get here, it matches
                         }
-                        else {
-                            return false;   // exp length too long
-                        }
-                    }
-                    else if (op.equals(Operator.REG_EXP)) {
-                        log.error("Regular expression operator not valid for hex opaque opaqueData");
-                        return false;
+                        return true;    // if we get here, it matches
                     }
                     else {
-                        log.error("Unsupported expression operator: " + op);
-                        return false;
+                        return false;   // exp length too long
                     }
                 }
+                else if (op.equals(Operator.REG_EXP)) {
+                    log.error("Regular expression operator not valid for hex opaque opaqueData");
+                    return false;
+                }
+                else {
+                    log.error("Unsupported expression operator: " + op);
+                    return false;
+                }
             }
         }
         return false;
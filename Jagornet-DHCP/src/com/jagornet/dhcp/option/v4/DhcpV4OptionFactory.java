@@ -25,12 +25,14 @@
  */
 package com.jagornet.dhcp.option.v4;
 
+import com.jagornet.dhcp.option.DhcpOptionRegistry;
 import com.jagornet.dhcp.option.DhcpUnknownOption;
 import com.jagornet.dhcp.option.base.DhcpOption;
 import com.jagornet.dhcp.util.DhcpConstants;
 
 /**
- * A factory for creating DhcpOption objects.
+ * A factory for creating DhcpOption objects.  Custom options registered
+ * in the DhcpOptionRegistry take the place of the built-in options.
  * 
  * @author A. Gregory Rabil
  */
@@ -45,6 +47,10 @@ public class DhcpV4OptionFactory
      */
     public static DhcpOption getDhcpOption(int code)
     {
+    	DhcpOptionRegistry.Creator creator = DhcpOptionRegistry.getV4Registry().get(code);
+    	if (creator != null) {
+    		return creator.newOption(code);
+    	}
         DhcpOption option = null;
         switch(code) {
         	case DhcpConstants.V4OPTION_SUBNET_MASK:	// 1
@@ -79,7 +79,7 @@ public class DhcpV6RelayOption extends BaseDhcpOption
     public ByteBuffer encode() throws IOException
     {
         ByteBuffer buf = super.encodeCodeAndLength();
-        buf.put(dhcpMessage.encode());
+        dhcpMessage.encode(buf);
         return (ByteBuffer) buf.flip();
     }
 
@@ -103,10 +103,16 @@ public class DhcpV6RelayOption extends BaseDhcpOption
         InetSocketAddress relayMsgRemoteAddr =
         	new InetSocketAddress(relayMessage.getPeerAddress(), 0);
         
-        // create a new buffer that will hold just this RelayOption
-        byte[] b = new byte[len];
-        buf.get(b);
-        ByteBuffer _buf = ByteBuffer.wrap(b);
+        if (len > buf.remaining()) {
+        	throw new IOException("Relay message option length=" + len +
+        			" exceeds bytes remaining in buffer=" + buf.remaining());
+        }
+        // create a view of the buffer that holds just this RelayOption,
+        // without copying it, because the options of the relayed message
+        // may be decoded lazily, straight from the received packet
+        ByteBuffer _buf = buf.slice();
+        _buf.limit(len);
+        buf.position(buf.position() + len);
         // use the wrapped buffer which represents the contents of the message
         // contained within this relay option, but not any more, i.e. not beyond
         // what _this_ relay option reports its length to be
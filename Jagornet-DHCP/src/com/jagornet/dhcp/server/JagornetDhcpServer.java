@@ -64,13 +64,17 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.context.support.ClassPathXmlApplicationContext;
 
 import com.jagornet.dhcp.Version;
+import com.jagornet.dhcp.db.BindingCacheManager;
 import com.jagornet.dhcp.db.DbSchemaManager;
 import com.jagornet.dhcp.db.IaManager;
+import com.jagornet.dhcp.db.LeaseJournalManager;
+import com.jagornet.dhcp.db.LeaseManager;
 import com.jagornet.dhcp.server.config.DhcpServerConfigException;
 import com.jagornet.dhcp.server.config.DhcpServerConfiguration;
 import com.jagornet.dhcp.server.config.DhcpServerPolicies;
 import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
 import com.jagornet.dhcp.server.netty.NettyDhcpServer;
+import com.jagornet.dhcp.server.request.binding.BaseBindingManager;
 import com.jagornet.dhcp.server.request.binding.V4AddrBindingManager;
 import com.jagornet.dhcp.server.request.binding.V6NaAddrBindingManager;
 import com.jagornet.dhcp.server.request.binding.V6PrefixBindingManager;
@@ -101,6 +105,12 @@ public class JagornetDhcpServer
 	
     /** The configuration filename. */
     protected String configFilename = DEFAULT_CONFIG_FILENAME;
+    
+    /** The lease journal, if configured. */
+    protected LeaseJournalManager leaseJournalMgr;
+    
+    /** The binding cache, if configured. */
+    protected BindingCacheManager bindingCacheMgr;
 
     /** The application context filename. */
     public static String APP_CONTEXT_FILENAME = "com/jagornet/dhcp/context.xml";
@@ -113,6 +123,8 @@ public class JagornetDhcpServer
     public static String APP_CONTEXT_JDBC_V2SCHEMA_FILENAME = "com/jagornet/dhcp/context_jdbc_v2schema.xml";    
     public static String APP_CONTEXT_SQLITE_V2SCHEMA_FILENAME = "com/jagornet/dhcp/context_sqlite_v2schema.xml";    
     public static String APP_CONTEXT_MONGO_V2SCHEMA_FILENAME = "com/jagornet/dhcp/context_mongo_v2schema.xml";    
+    public static String APP_CONTEXT_MEMORY_V2SCHEMA_FILENAME = "com/jagornet/dhcp/context_memory_v2schema.xml";    
+    public static String APP_CONTEXT_MAPPED_V2SCHEMA_FILENAME = "com/jagornet/dhcp/context_mapped_v2schema.xml";    
     
     /** DHCPv6 Multicast interfaces */
     protected List<NetworkInterface> v6McastNetIfs = null;
@@ -177,6 +189,12 @@ public class JagornetDhcpServer
             public void run() {
             	  log.info("Stopping Jagornet DHCPv6 Server");
                   System.out.println("Stopping Jagornet DHCPv6 Server: " + new Date());
+                  if (leaseJournalMgr != null) {
+                	  leaseJournalMgr.stop();
+                  }
+                  if (bindingCacheMgr != null) {
+                	  log.info(bindingCacheMgr.toString());
+                  }
                 }
             });
     	
@@ -328,6 +346,16 @@ public class JagornetDhcpServer
         	appContexts.add(APP_CONTEXT_MONGO_V2SCHEMA_FILENAME);
         	appContexts.add(APP_CONTEXT_FILENAME);
         }
+        else if (schemaType.equalsIgnoreCase(DbSchemaManager.SCHEMATYPE_MEMORY)) {
+    		FileUtils.forceMkdir(new File(dbDir + "memory"));
+        	appContexts.add(APP_CONTEXT_MEMORY_V2SCHEMA_FILENAME);
+        	appContexts.add(APP_CONTEXT_FILENAME);
+        }
+        else if (schemaType.equalsIgnoreCase(DbSchemaManager.SCHEMATYPE_MAPPED)) {
+    		FileUtils.forceMkdir(new File(dbDir + "mapped"));
+        	appContexts.add(APP_CONTEXT_MAPPED_V2SCHEMA_FILENAME);
+        	appContexts.add(APP_CONTEXT_FILENAME);
+        }
         else {
         	throw new DhcpServerConfigException("Unsupported schema type: " + schemaType);
         }
@@ -339,11 +367,22 @@ public class JagornetDhcpServer
     private void loadManagers() throws Exception {
 		
 		log.info("Loading managers from context...");
+        
+		IaManager iaMgr = (IaManager) context.getBean("iaManager");		
+		if (iaMgr != null) {
+			iaMgr = loadLeaseJournal(iaMgr);
+			iaMgr = loadBindingCache(iaMgr);
+			serverConfig.setIaMgr(iaMgr);
+		}
+		else {
+			log.warn("No IA Manager available");
+		}
 		
 		V6NaAddrBindingManager v6NaAddrBindingMgr = 
 			(V6NaAddrBindingManager) context.getBean("v6NaAddrBindingManager");
 		if (v6NaAddrBindingMgr != null) {
 			try {
+				setIaMgr(v6NaAddrBindingMgr, iaMgr);
 				log.info("Initializing V6 NA Address Binding Manager");
 				v6NaAddrBindingMgr.init();
 				serverConfig.setNaAddrBindingMgr(v6NaAddrBindingMgr);
@@ -361,6 +400,7 @@ public class JagornetDhcpServer
 			(V6TaAddrBindingManager) context.getBean("v6TaAddrBindingManager");
 		if (v6TaAddrBindingMgr != null) {
 			try {
+				setIaMgr(v6TaAddrBindingMgr, iaMgr);
 				log.info("Initializing V6 TA Address Binding Manager");
 				v6TaAddrBindingMgr.init();
 				serverConfig.setTaAddrBindingMgr(v6TaAddrBindingMgr);
@@ -378,6 +418,7 @@ public class JagornetDhcpServer
 			(V6PrefixBindingManager) context.getBean("v6PrefixBindingManager");
 		if (v6PrefixBindingMgr != null) {
 			try {
+				setIaMgr(v6PrefixBindingMgr, iaMgr);
 				log.info("Initializing V6 Prefix Binding Manager");
 				v6PrefixBindingMgr.init();
 				serverConfig.setPrefixBindingMgr(v6PrefixBindingMgr);
@@ -395,6 +436,7 @@ public class JagornetDhcpServer
 			(V4AddrBindingManager) context.getBean("v4AddrBindingManager");
 		if (v4AddrBindingMgr != null) {
 			try {
+				setIaMgr(v4AddrBindingMgr, iaMgr);
 				log.info("Initializing V4 Address Binding Manager");
 				v4AddrBindingMgr.init();
 				serverConfig.setV4AddrBindingMgr(v4AddrBindingMgr);
@@ -407,18 +449,65 @@ public class JagornetDhcpServer
 		else {
 			log.warn("No V4 Address Binding Manager available");
 		}
-        
-		IaManager iaMgr = (IaManager) context.getBean("iaManager");		
-		if (iaMgr != null) {
-			serverConfig.setIaMgr(iaMgr);
-		}
-		else {
-			log.warn("No IA Manager available");
-		}
 		
 		log.info("Managers loaded.");
     }
     
+    /**
+     * Put the lease journal in front of the IA manager, if configured.
+     * 
+     * @param iaMgr the IA manager from the context
+     * @return the lease journal, or the given IA manager
+     */
+    private IaManager loadLeaseJournal(IaManager iaMgr) throws Exception {
+    	String journalFile = DhcpServerPolicies.globalPolicy(Property.DATABASE_LEASE_JOURNAL_FILE);
+    	if ((journalFile == null) || (journalFile.trim().length() == 0)) {
+    		return iaMgr;
+    	}
+    	if (!(iaMgr instanceof LeaseManager)) {
+    		log.warn("Lease journal requires schema version 2, ignoring " +
+    				Property.DATABASE_LEASE_JOURNAL_FILE.key());
+    		return iaMgr;
+    	}
+    	int maxBatch = DhcpServerPolicies.globalPolicyAsInt(Property.DATABASE_LEASE_JOURNAL_MAX_BATCH);
+    	long maxSize = DhcpServerPolicies.globalPolicyAsLong(Property.DATABASE_LEASE_JOURNAL_MAX_SIZE);
+		log.info("Initializing Lease Journal");
+    	leaseJournalMgr = new LeaseJournalManager((LeaseManager) iaMgr,
+    			new File(journalFile.trim()), maxBatch, maxSize);
+    	leaseJournalMgr.init();
+    	return leaseJournalMgr;
+    }
+    
+    /**
+     * Put the binding cache in front of the IA manager, if configured.
+     * 
+     * @param iaMgr the IA manager, or the lease journal in front of it
+     * @return the binding cache, or the given IA manager
+     */
+    private IaManager loadBindingCache(IaManager iaMgr) throws Exception {
+    	long maxSize = DhcpServerPolicies.globalPolicyAsLong(Property.DATABASE_BINDING_CACHE_MAX_SIZE);
+    	if (maxSize <= 0) {
+    		return iaMgr;
+    	}
+		log.info("Initializing Binding Cache");
+    	bindingCacheMgr = new BindingCacheManager(iaMgr, maxSize);
+    	bindingCacheMgr.init();
+    	return bindingCacheMgr;
+    }
+    
+    /**
+     * Set the IA manager of a binding manager, which was wired by the context.
+     * 
+     * @param bindingMgr the binding manager
+     * @param iaMgr the IA manager
+     */
+    private void setIaMgr(Object bindingMgr, IaManager iaMgr) {
+    	if (((leaseJournalMgr != null) || (bindingCacheMgr != null)) &&
+    			(bindingMgr instanceof BaseBindingManager)) {
+    		((BaseBindingManager) bindingMgr).setIaMgr(iaMgr);
+    	}
+    }
+    
 	/**
 	 * Setup command line options.
 	 */
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file CompiledFilter.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.config;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jagornet.dhcp.message.DhcpMessage;
+import com.jagornet.dhcp.option.DhcpComparableOption;
+import com.jagornet.dhcp.option.OpaqueDataUtil;
+import com.jagornet.dhcp.option.base.BaseOpaqueData;
+import com.jagornet.dhcp.option.base.BaseOpaqueDataOption;
+import com.jagornet.dhcp.option.base.DhcpOption;
+import com.jagornet.dhcp.option.v4.DhcpV4VendorClassOption;
+import com.jagornet.dhcp.option.v6.DhcpV6RemoteIdOption;
+import com.jagornet.dhcp.option.v6.DhcpV6UserClassOption;
+import com.jagornet.dhcp.option.v6.DhcpV6VendorClassOption;
+import com.jagornet.dhcp.xml.ClientClassExpression;
+import com.jagornet.dhcp.xml.Filter;
+import com.jagornet.dhcp.xml.FilterExpression;
+import com.jagornet.dhcp.xml.FilterExpressionsType;
+import com.jagornet.dhcp.xml.OpaqueData;
+import com.jagornet.dhcp.xml.Operator;
+import com.jagornet.dhcp.xml.OptionExpression;
+import com.jagornet.dhcp.xml.V4VendorClassOption;
+
+/**
+ * The Class CompiledFilter.  A configured filter, compiled from its XML
+ * filter expressions into a list of matchers, so that evaluating the filter
+ * for a request message does not read the XML objects of the configuration.
+ * The values of the expressions are read and decoded once, when compiled,
+ * and each matcher implements only the comparison for its expression type.
+ * 
+ * @author A. Gregory Rabil
+ */
+public class CompiledFilter
+{
+	private static Logger log = LoggerFactory.getLogger(CompiledFilter.class);
+	
+	/** The configured filter. */
+	protected final Filter filter;
+	
+	/** The matchers for the filter expressions, which are ANDed. */
+	protected final ExpressionMatcher[] matchers;
+	
+	/**
+	 * Instantiates a new compiled filter.
+	 * 
+	 * @param filter the configured filter
+	 * @param matchers the expression matchers
+	 */
+	protected CompiledFilter(Filter filter, ExpressionMatcher[] matchers)
+	{
+		this.filter = filter;
+		this.matchers = matchers;
+	}
+	
+	/**
+	 * Compile a configured filter.
+	 * 
+	 * @param filter the filter
+	 * 
+	 * @return the compiled filter
+	 */
+	public static CompiledFilter compile(Filter filter)
+	{
+		List<ExpressionMatcher> matchers = new ArrayList<ExpressionMatcher>();
+    	FilterExpressionsType filterExprs = filter.getFilterExpressions();
+    	if (filterExprs != null) {
+        	List<FilterExpression> expressions = filterExprs.getFilterExpressionList();
+            if (expressions != null) {
+		        for (FilterExpression expression : expressions) {
+		        	ExpressionMatcher matcher = null;
+		        	if (expression.getClientClassExpression() != null) {
+		        		matcher = compileClientClass(expression.getClientClassExpression());
+		        	}
+		        	else if (expression.getOptionExpression() != null) {
+		        		matcher = compileOptionExpression(expression.getOptionExpression());
+		        	}
+		        	else {
+		        		log.warn("Unsupported filter expression: " + expression);
+		        	}
+		        	if (matcher != null) {
+		        		matchers.add(matcher);
+		        	}
+		        }
+            }
+    	}
+		return new CompiledFilter(filter, 
+				matchers.toArray(new ExpressionMatcher[matchers.size()]));
+	}
+	
+	/**
+	 * Check if a message matches the filter.  The message must match
+	 * all of the filter expressions.
+	 * 
+	 * @param requestMsg the request message
+	 * 
+	 * @return true, if successful
+	 */
+	public boolean matches(DhcpMessage requestMsg)
+	{
+		for (ExpressionMatcher matcher : matchers) {
+			if (!matcher.matches(requestMsg)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Gets the configured filter.
+	 * 
+	 * @return the filter
+	 */
+	public Filter getFilter()
+	{
+		return filter;
+	}
+	
+	protected static ExpressionMatcher compileClientClass(final ClientClassExpression ccexpr)
+	{
+		final Operator.Enum op = ccexpr.getOperator();
+		if (ccexpr.getV6UserClassOption() != null) {
+			final int code = ccexpr.getV6UserClassOption().getCode();
+			final DhcpV6UserClassOption exprOption = 
+				new DhcpV6UserClassOption(ccexpr.getV6UserClassOption());
+			return new ExpressionMatcher() {
+				public boolean matches(DhcpMessage requestMsg) {
+					DhcpV6UserClassOption ucOption = (DhcpV6UserClassOption) 
+							requestMsg.getDhcpOption(code);
+					return (ucOption != null) && ucOption.matches(exprOption, op);
+				}
+			};
+		}
+		else if (ccexpr.getV6VendorClassOption() != null) {
+			final int code = ccexpr.getV6VendorClassOption().getCode();
+			final DhcpV6VendorClassOption exprOption = 
+				new DhcpV6VendorClassOption(ccexpr.getV6VendorClassOption());
+			return new ExpressionMatcher() {
+				public boolean matches(DhcpMessage requestMsg) {
+					DhcpV6VendorClassOption vcOption = (DhcpV6VendorClassOption) 
+							requestMsg.getDhcpOption(code);
+					return (vcOption != null) && vcOption.matches(exprOption, op);
+				}
+			};
+		}
+		else if (ccexpr.getV4VendorClassOption() != null) {
+			V4VendorClassOption v4VendorClass = ccexpr.getV4VendorClassOption();
+			final int code = v4VendorClass.getCode();
+			final OpaqueMatcher opaqueMatcher = new OpaqueMatcher(v4VendorClass.getOpaqueData(), op);
+			return new ExpressionMatcher() {
+				public boolean matches(DhcpMessage requestMsg) {
+					DhcpV4VendorClassOption vcOption = (DhcpV4VendorClassOption) 
+							requestMsg.getDhcpOption(code);
+					return (vcOption != null) && (vcOption.getCode() == code) &&
+							opaqueMatcher.matches(vcOption.getOpaqueData());
+				}
+			};
+		}
+		else {
+			log.warn("Unsupported client class expression: " + ccexpr);
+		}
+		return null;
+	}
+	
+	protected static ExpressionMatcher compileOptionExpression(final OptionExpression optexpr)
+	{
+		final int code = optexpr.getCode();
+		final boolean v4 = optexpr.getV4();
+		final OpaqueMatcher opaqueMatcher = (optexpr.getOpaqueDataOption() != null) ?
+				new OpaqueMatcher(optexpr.getOpaqueDataOption().getOpaqueData(),
+						optexpr.getOperator()) : null;
+		return new ExpressionMatcher() {
+			public boolean matches(DhcpMessage requestMsg) {
+				// if the expression option isn't in the request, it can't match
+	            DhcpOption option = requestMsg.getDhcpOption(code);
+	            if (option == null) {
+	            	return false;
+	            }
+	            if (!(option instanceof DhcpComparableOption)) {
+		            log.error("Configured option expression is not comparable:" +
+		                      " code=" + code);
+		            return false;
+	            }
+	            if (option.isV4() != v4) {
+	            	return false;
+	            }
+	            if ((opaqueMatcher != null) && (option instanceof BaseOpaqueDataOption) &&
+	            		!(option instanceof DhcpV6RemoteIdOption)) {
+	            	// the remote-id option has its own matches implementation
+	            	return opaqueMatcher.matches(((BaseOpaqueDataOption)option).getOpaqueData());
+	            }
+	            return ((DhcpComparableOption)option).matches(optexpr);
+			}
+		};
+	}
+	
+	/**
+	 * The Interface ExpressionMatcher.  A compiled filter expression.
+	 */
+	protected interface ExpressionMatcher
+	{
+		public boolean matches(DhcpMessage requestMsg);
+	}
+	
+	/**
+	 * The Class OpaqueMatcher.  Matches opaque data against the value of an
+	 * expression, which is decoded from the XML once, along with the regular
+	 * expression pattern for the REG_EXP operator.
+	 */
+	protected static class OpaqueMatcher
+	{
+		protected final boolean hasData;
+		protected final String expAscii;
+		protected final byte[] expHex;
+		protected final Operator.Enum op;
+		protected Pattern pattern;
+		
+		protected OpaqueMatcher(OpaqueData opaque, Operator.Enum op)
+		{
+			this.op = op;
+			hasData = (opaque != null);
+			expAscii = hasData ? opaque.getAsciiValue() : null;
+			expHex = (hasData && (expAscii == null)) ? opaque.getHexValue() : null;
+			if ((expAscii != null) && Operator.REG_EXP.equals(op)) {
+				try {
+					pattern = Pattern.compile(expAscii);
+				}
+				catch (PatternSyntaxException ex) {
+					log.error("Invalid regular expression: " + expAscii + ": " + ex);
+				}
+			}
+		}
+		
+		protected boolean matches(BaseOpaqueData myOpaque)
+		{
+			if (!hasData || (myOpaque == null)) {
+				return false;
+			}
+			if (pattern != null) {
+				String myAscii = myOpaque.getAscii();
+				return (myAscii != null) && pattern.matcher(myAscii).matches();
+			}
+			return OpaqueDataUtil.matches(myOpaque, expAscii, expHex, op);
+		}
+	}
+}
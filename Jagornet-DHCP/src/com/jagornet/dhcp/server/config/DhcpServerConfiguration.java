@@ -35,14 +35,19 @@ import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.xmlbeans.XmlCursor;
 import org.apache.xmlbeans.XmlException;
+import org.apache.xmlbeans.XmlObject;
 import org.apache.xmlbeans.XmlOptions;
 import org.apache.xmlbeans.XmlValidationError;
 import org.slf4j.Logger;
@@ -52,16 +57,13 @@ import com.jagornet.dhcp.db.IaManager;
 import com.jagornet.dhcp.message.DhcpMessage;
 import com.jagornet.dhcp.message.DhcpV4Message;
 import com.jagornet.dhcp.message.DhcpV6Message;
-import com.jagornet.dhcp.option.DhcpComparableOption;
 import com.jagornet.dhcp.option.OpaqueDataUtil;
 import com.jagornet.dhcp.option.base.DhcpOption;
 import com.jagornet.dhcp.option.v4.DhcpV4ConfigOptions;
-import com.jagornet.dhcp.option.v4.DhcpV4VendorClassOption;
 import com.jagornet.dhcp.option.v6.DhcpV6ConfigOptions;
-import com.jagornet.dhcp.option.v6.DhcpV6UserClassOption;
-import com.jagornet.dhcp.option.v6.DhcpV6VendorClassOption;
 import com.jagornet.dhcp.server.JagornetDhcpServer;
 import com.jagornet.dhcp.server.request.binding.Range;
+import com.jagornet.dhcp.server.request.binding.RangeIndex;
 import com.jagornet.dhcp.server.request.binding.V4AddrBindingManager;
 import com.jagornet.dhcp.server.request.binding.V6NaAddrBindingManager;
 import com.jagornet.dhcp.server.request.binding.V6PrefixBindingManager;
@@ -69,19 +71,16 @@ import com.jagornet.dhcp.server.request.binding.V6TaAddrBindingManager;
 import com.jagornet.dhcp.util.DhcpConstants;
 import com.jagornet.dhcp.util.Subnet;
 import com.jagornet.dhcp.util.Util;
-import com.jagornet.dhcp.xml.ClientClassExpression;
 import com.jagornet.dhcp.xml.DhcpServerConfigDocument;
 import com.jagornet.dhcp.xml.DhcpServerConfigDocument.DhcpServerConfig;
 import com.jagornet.dhcp.xml.Filter;
-import com.jagornet.dhcp.xml.FilterExpression;
-import com.jagornet.dhcp.xml.FilterExpressionsType;
 import com.jagornet.dhcp.xml.FiltersType;
 import com.jagornet.dhcp.xml.Link;
 import com.jagornet.dhcp.xml.LinkFilter;
 import com.jagornet.dhcp.xml.LinkFiltersType;
 import com.jagornet.dhcp.xml.LinksType;
 import com.jagornet.dhcp.xml.OpaqueData;
-import com.jagornet.dhcp.xml.OptionExpression;
+import com.jagornet.dhcp.xml.PoliciesType;
 import com.jagornet.dhcp.xml.V4AddressPool;
 import com.jagornet.dhcp.xml.V4AddressPoolsType;
 import com.jagornet.dhcp.xml.V4ServerIdOption;
@@ -121,9 +120,32 @@ public class DhcpServerConfiguration
     private DhcpV6ConfigOptions globalPrefixConfigOptions;
     private DhcpV4ConfigOptions globalV4ConfigOptions;
     
+    /** The compiled filters of the loaded configuration, keyed by identity. */
+    private static volatile Map<Filter, CompiledFilter> compiledFilters = 
+    	Collections.<Filter, CompiledFilter>emptyMap();
+    
+    /** The compiled policies of the loaded configuration, keyed by identity. */
+    private static volatile Map<PoliciesType, PolicyTable> policyTables = 
+    	Collections.<PoliciesType, PolicyTable>emptyMap();
+    
+    /** The compiled policies of the filter lists, keyed by identity. */
+    private static volatile Map<XmlObject, FilterPolicyTable> filterPolicyTables = 
+    	Collections.<XmlObject, FilterPolicyTable>emptyMap();
+    
     /** The link map. */
     private SortedMap<Subnet, DhcpLink> linkMap;
     
+    /** The index of the links by the address ranges of their pools. */
+    private RangeIndex<DhcpLink> linkIndex;
+    
+    /** 
+     * The cache of effective options, which are read only maps.  The cache
+     * belongs to the loaded configuration, so a new configuration starts
+     * with an empty cache.
+     */
+    private ConcurrentHashMap<EffectiveOptionsKey, Map<Integer, DhcpOption>> effectiveOptionsCache =
+    	new ConcurrentHashMap<EffectiveOptionsKey, Map<Integer, DhcpOption>>();
+    
     private V6NaAddrBindingManager naAddrBindingMgr;
     private V6TaAddrBindingManager taAddrBindingMgr;
     private V6PrefixBindingManager prefixBindingMgr;
@@ -167,6 +189,7 @@ public class DhcpServerConfiguration
 	    	globalPrefixConfigOptions = new DhcpV6ConfigOptions(xmlServerConfig.getV6PrefixConfigOptions());
 	    	globalV4ConfigOptions = new DhcpV4ConfigOptions(xmlServerConfig.getV4ConfigOptions());
 	    	initLinkMap();
+	    	initFiltersAndPolicies();
     	}
     	else {
     		throw new IllegalStateException("Failed to load configuration file: " + configFilename);
@@ -210,6 +233,50 @@ public class DhcpServerConfiguration
 		}
     }
     
+    /**
+     * Initialize the compiled filters and policies.  Walk the whole configuration
+     * document for the filters, which may be global, link filters, or pool filters,
+     * and for the policies at every level, and compile each once.  XMLBeans returns
+     * the same object for an element each time it is read, so the compiled filters
+     * and policies are keyed by identity.
+     */
+    protected void initFiltersAndPolicies()
+    {
+    	Map<Filter, CompiledFilter> filters = new IdentityHashMap<Filter, CompiledFilter>();
+    	Map<PoliciesType, PolicyTable> policies = new IdentityHashMap<PoliciesType, PolicyTable>();
+    	Map<XmlObject, FilterPolicyTable> filterPolicies = new IdentityHashMap<XmlObject, FilterPolicyTable>();
+    	XmlCursor cursor = xmlServerConfig.newCursor();
+    	try {
+    		while (cursor.toNextToken() != XmlCursor.TokenType.NONE) {
+    			if (cursor.isStart()) {
+    				XmlObject xmlObj = cursor.getObject();
+    				if (xmlObj instanceof Filter) {
+    					filters.put((Filter)xmlObj, CompiledFilter.compile((Filter)xmlObj));
+    				}
+    				else if (xmlObj instanceof PoliciesType) {
+    					policies.put((PoliciesType)xmlObj, PolicyTable.compile((PoliciesType)xmlObj));
+    				}
+    				else if (xmlObj instanceof FiltersType) {
+    					filterPolicies.put(xmlObj, 
+    							FilterPolicyTable.compile(((FiltersType)xmlObj).getFilterList()));
+    				}
+    				else if (xmlObj instanceof LinkFiltersType) {
+    					filterPolicies.put(xmlObj, 
+    							FilterPolicyTable.compile(((LinkFiltersType)xmlObj).getLinkFilterList()));
+    				}
+    			}
+    		}
+    	}
+    	finally {
+    		cursor.dispose();
+    	}
+    	log.info("Compiled " + filters.size() + " configured filters and " +
+    			policies.size() + " configured policy sets");
+    	compiledFilters = filters;
+    	policyTables = policies;
+    	filterPolicyTables = filterPolicies;
+    }
+    
     /**
      * Initialize the link map.
      * 
@@ -295,10 +362,64 @@ public class DhcpServerConfiguration
                     			"Link must specify an interface or address element");
                     }
                 }
+                initLinkIndex();
         	}
     	}
     }
     
+    /**
+     * Initialize the link index from the link map.  The index maps the
+     * range of each of the NA, TA and V4 address pools defined directly
+     * within a link to that link, so that findLinkForAddress is a binary
+     * search rather than a walk of every pool of every link.
+     */
+    protected void initLinkIndex()
+    {
+    	RangeIndex.Builder<DhcpLink> builder = new RangeIndex.Builder<DhcpLink>();
+    	for (DhcpLink link : linkMap.values()) {
+    		V6AddressPoolsType addrPoolType = link.getLink().getV6NaAddrPools();
+    		if (addrPoolType != null) {
+    			addPoolRanges(builder, link, addrPoolType.getPoolList());
+    		}
+    		addrPoolType = link.getLink().getV6TaAddrPools();
+    		if (addrPoolType != null) {
+    			addPoolRanges(builder, link, addrPoolType.getPoolList());
+    		}
+    		V4AddressPoolsType v4AddrPoolType = link.getLink().getV4AddrPools();
+    		if (v4AddrPoolType != null) {
+    			List<V4AddressPool> addrPools = v4AddrPoolType.getPoolList();
+    			if (addrPools != null) {
+    				for (V4AddressPool addrPool : addrPools) {
+    					addPoolRange(builder, link, addrPool.getRange());
+    				}
+    			}
+    		}
+    	}
+    	linkIndex = builder.build();
+    }
+    
+    private void addPoolRanges(RangeIndex.Builder<DhcpLink> builder, DhcpLink link,
+    		List<V6AddressPool> addrPools)
+    {
+		if (addrPools != null) {
+			for (V6AddressPool addrPool : addrPools) {
+				addPoolRange(builder, link, addrPool.getRange());
+			}
+		}
+    }
+    
+    private void addPoolRange(RangeIndex.Builder<DhcpLink> builder, DhcpLink link,
+    		String poolRange)
+    {
+		try {
+			Range range = new Range(poolRange);
+			builder.add(range.getStartAddress(), range.getEndAddress(), link);
+		}
+		catch (Exception ex) {
+			log.error("Invalid AddressPool range: " + poolRange + ": " + ex);
+		}
+    }
+    
     /**
      * Gets the server configuration.
      * 
@@ -369,71 +490,8 @@ public class DhcpServerConfiguration
      */
     public DhcpLink findLinkForAddress(InetAddress inetAddr)
     {
-    	if (inetAddr instanceof Inet6Address) {
-            if ((linkMap != null) && !linkMap.isEmpty()) {
-            	for (DhcpLink link : linkMap.values()) {
-            		V6AddressPoolsType addrPoolType = link.getLink().getV6NaAddrPools();
-            		if (addrPoolType != null) {
-            			List<V6AddressPool> addrPools = addrPoolType.getPoolList();
-            			if (addrPools != null) {
-            				for (V6AddressPool addrPool : addrPools) {
-            					try {
-    	        					Range range = new Range(addrPool.getRange());
-    	        					if (range.contains(inetAddr)) {
-    	        						return link;
-    	        					}
-            					}
-            					catch (Exception ex) {
-            						log.error("Invalid AddressPool range: " + addrPool.getRange() +
-            								": " + ex);
-            					}
-            				}
-            			}
-            		}
-            		addrPoolType = link.getLink().getV6TaAddrPools();
-            		if (addrPoolType != null) {
-            			List<V6AddressPool> addrPools = addrPoolType.getPoolList();
-            			if (addrPools != null) {
-            				for (V6AddressPool addrPool : addrPools) {
-            					try {
-    	        					Range range = new Range(addrPool.getRange());
-    	        					if (range.contains(inetAddr)) {
-    	        						return link;
-    	        					}
-            					}
-            					catch (Exception ex) {
-            						log.error("Invalid AddressPool range: " + addrPool.getRange() +
-            								": " + ex);
-            					}
-            				}
-            			}
-            		}
-            	}
-            }
-    	}
-    	else {
-            if ((linkMap != null) && !linkMap.isEmpty()) {
-            	for (DhcpLink link : linkMap.values()) {
-            		V4AddressPoolsType addrPoolType = link.getLink().getV4AddrPools();
-            		if (addrPoolType != null) {
-            			List<V4AddressPool> addrPools = addrPoolType.getPoolList();
-            			if (addrPools != null) {
-            				for (V4AddressPool addrPool : addrPools) {
-            					try {
-    	        					Range range = new Range(addrPool.getRange());
-    	        					if (range.contains(inetAddr)) {
-    	        						return link;
-    	        					}
-            					}
-            					catch (Exception ex) {
-            						log.error("Invalid V4AddressPool range: " + addrPool.getRange() +
-            								": " + ex);
-            					}
-            				}
-            			}
-            		}
-            	}
-            }
+    	if (linkIndex != null) {
+    		return linkIndex.find(inetAddr);
     	}
         return null;
     }
@@ -768,6 +826,12 @@ public class DhcpServerConfiguration
      */
     public Map<Integer, DhcpOption> effectiveMsgOptions(DhcpV6Message requestMsg)
     {
+    	EffectiveOptionsKey key = effectiveOptionsKey(EffectiveOptionsKey.Scope.MSG, 
+    			requestMsg, null, null);
+    	Map<Integer, DhcpOption> cachedOptions = effectiveOptionsCache.get(key);
+    	if (cachedOptions != null) {
+    		return cachedOptions;
+    	}
     	Map<Integer, DhcpOption> optionMap = new HashMap<Integer, DhcpOption>();
     	if (globalMsgConfigOptions != null) {
     		optionMap.putAll(globalMsgConfigOptions.getDhcpOptionMap());
@@ -777,7 +841,7 @@ public class DhcpServerConfiguration
     	if (filteredOptions != null) {
     		optionMap.putAll(filteredOptions);
     	}
-    	return optionMap;
+    	return cacheEffectiveOptions(key, optionMap);
     }
 
     /**
@@ -790,7 +854,14 @@ public class DhcpServerConfiguration
      */
     public Map<Integer, DhcpOption> effectiveMsgOptions(DhcpV6Message requestMsg, DhcpLink dhcpLink)
     {
-    	Map<Integer, DhcpOption> optionMap = effectiveMsgOptions(requestMsg);
+    	EffectiveOptionsKey key = effectiveOptionsKey(EffectiveOptionsKey.Scope.MSG, 
+    			requestMsg, dhcpLink, null);
+    	Map<Integer, DhcpOption> cachedOptions = effectiveOptionsCache.get(key);
+    	if (cachedOptions != null) {
+    		return cachedOptions;
+    	}
+    	Map<Integer, DhcpOption> optionMap = 
+    		new HashMap<Integer, DhcpOption>(effectiveMsgOptions(requestMsg));
     	if ((dhcpLink != null) && (dhcpLink.getLink() != null)) {
 	    	DhcpV6ConfigOptions configOptions = dhcpLink.getMsgConfigOptions();
 	    	if (configOptions != null) {
@@ -803,7 +874,7 @@ public class DhcpServerConfiguration
 	    		optionMap.putAll(filteredOptions);
 	    	}
     	}
-    	return optionMap;
+    	return cacheEffectiveOptions(key, optionMap);
     }
     
     /**
@@ -815,6 +886,12 @@ public class DhcpServerConfiguration
      */
     public Map<Integer, DhcpOption> effectiveIaNaOptions(DhcpV6Message requestMsg)
     {
+    	EffectiveOptionsKey key = effectiveOptionsKey(EffectiveOptionsKey.Scope.IA_NA, 
+    			requestMsg, null, null);
+    	Map<Integer, DhcpOption> cachedOptions = effectiveOptionsCache.get(key);
+    	if (cachedOptions != null) {
+    		return cachedOptions;
+    	}
     	Map<Integer, DhcpOption> optionMap = new HashMap<Integer, DhcpOption>();
     	if (globalIaNaConfigOptions != null) {
     		optionMap.putAll(globalIaNaConfigOptions.getDhcpOptionMap());
@@ -825,7 +902,7 @@ public class DhcpServerConfiguration
     	if (filteredOptions != null) {
     		optionMap.putAll(filteredOptions);
     	}
-    	return optionMap;
+    	return cacheEffectiveOptions(key, optionMap);
     }
 
     /**
@@ -838,7 +915,14 @@ public class DhcpServerConfiguration
      */
     public Map<Integer, DhcpOption> effectiveIaNaOptions(DhcpV6Message requestMsg, DhcpLink dhcpLink)
     {
-    	Map<Integer, DhcpOption> optionMap = effectiveIaNaOptions(requestMsg);
+    	EffectiveOptionsKey key = effectiveOptionsKey(EffectiveOptionsKey.Scope.IA_NA, 
+    			requestMsg, dhcpLink, null);
+    	Map<Integer, DhcpOption> cachedOptions = effectiveOptionsCache.get(key);
+    	if (cachedOptions != null) {
+    		return cachedOptions;
+    	}
+    	Map<Integer, DhcpOption> optionMap = 
+    		new HashMap<Integer, DhcpOption>(effectiveIaNaOptions(requestMsg));
     	if ((dhcpLink != null) && (dhcpLink.getLink() != null)) {
 	    	DhcpV6ConfigOptions configOptions = dhcpLink.getIaNaConfigOptions();
 	    	if (configOptions != null) {
@@ -851,7 +935,7 @@ public class DhcpServerConfiguration
 	    		optionMap.putAll(filteredOptions);
 	    	}
     	}
-    	return optionMap;
+    	return cacheEffectiveOptions(key, optionMap);
     }
     
     /**
@@ -863,6 +947,12 @@ public class DhcpServerConfiguration
      */
     public Map<Integer, DhcpOption> effectiveNaAddrOptions(DhcpV6Message requestMsg)
     {
+    	EffectiveOptionsKey key = effectiveOptionsKey(EffectiveOptionsKey.Scope.NA_ADDR, 
+    			requestMsg, null, null);
+    	Map<Integer, DhcpOption> cachedOptions = effectiveOptionsCache.get(key);
+    	if (cachedOptions != null) {
+    		return cachedOptions;
+    	}
     	Map<Integer, DhcpOption> optionMap = new HashMap<Integer, DhcpOption>();
     	if (globalNaAddrConfigOptions != null) {
     		optionMap.putAll(globalNaAddrConfigOptions.getDhcpOptionMap());
@@ -873,7 +963,7 @@ public class DhcpServerConfiguration
     	if (filteredOptions != null) {
     		optionMap.putAll(filteredOptions);
     	}
-    	return optionMap;
+    	return cacheEffectiveOptions(key, optionMap);
     }
 
     /**
@@ -886,7 +976,14 @@ public class DhcpServerConfiguration
      */
     public Map<Integer, DhcpOption> effectiveNaAddrOptions(DhcpV6Message requestMsg, DhcpLink dhcpLink)
     {
-    	Map<Integer, DhcpOption> optionMap = effectiveNaAddrOptions(requestMsg);
+    	EffectiveOptionsKey key = effectiveOptionsKey(EffectiveOptionsKey.Scope.NA_ADDR, 
+    			requestMsg, dhcpLink, null);
+    	Map<Integer, DhcpOption> cachedOptions = effectiveOptionsCache.get(key);
+    	if (cachedOptions != null) {
+    		return cachedOptions;
+    	}
+    	Map<Integer, DhcpOption> optionMap = 
+    		new HashMap<Integer, DhcpOption>(effectiveNaAddrOptions(requestMsg));
     	if ((dhcpLink != null) && (dhcpLink.getLink() != null)) {
 	    	DhcpV6ConfigOptions configOptions = dhcpLink.getNaAddrConfigOptions();
 	    	if (configOptions != null) {
@@ -899,7 +996,7 @@ public class DhcpServerConfiguration
 	    		optionMap.putAll(filteredOptions);
 	    	}
     	}
-    	return optionMap;
+    	return cacheEffectiveOptions(key, optionMap);
     }
 
     /**
@@ -914,7 +1011,14 @@ public class DhcpServerConfiguration
     public Map<Integer, DhcpOption> effectiveNaAddrOptions(DhcpV6Message requestMsg, DhcpLink dhcpLink, 
     		DhcpV6OptionConfigObject configObj)
     {
-    	Map<Integer, DhcpOption> optionMap = effectiveNaAddrOptions(requestMsg, dhcpLink);
+    	EffectiveOptionsKey key = effectiveOptionsKey(EffectiveOptionsKey.Scope.NA_ADDR, 
+    			requestMsg, dhcpLink, configObj);
+    	Map<Integer, DhcpOption> cachedOptions = effectiveOptionsCache.get(key);
+    	if (cachedOptions != null) {
+    		return cachedOptions;
+    	}
+    	Map<Integer, DhcpOption> optionMap = 
+    		new HashMap<Integer, DhcpOption>(effectiveNaAddrOptions(requestMsg, dhcpLink));
     	if (configObj != null) {
 	    	DhcpV6ConfigOptions configOptions = configObj.getDhcpConfigOptions();
 	    	if (configOptions != null) {
@@ -927,7 +1031,7 @@ public class DhcpServerConfiguration
 	    		optionMap.putAll(filteredOptions);
 	    	}
     	}
-    	return optionMap;
+    	return cacheEffectiveOptions(key, optionMap);
     }
     
     /**
@@ -939,6 +1043,12 @@ public class DhcpServerConfiguration
      */
     public Map<Integer, DhcpOption> effectiveIaTaOptions(DhcpV6Message requestMsg)
     {
+    	EffectiveOptionsKey key = effectiveOptionsKey(EffectiveOptionsKey.Scope.IA_TA, 
+    			requestMsg, null, null);
+    	Map<Integer, DhcpOption> cachedOptions = effectiveOptionsCache.get(key);
+    	if (cachedOptions != null) {
+    		return cachedOptions;
+    	}
     	Map<Integer, DhcpOption> optionMap = new HashMap<Integer, DhcpOption>();
     	if (globalIaTaConfigOptions != null) {
     		optionMap.putAll(globalIaTaConfigOptions.getDhcpOptionMap());
@@ -949,7 +1059,7 @@ public class DhcpServerConfiguration
     	if (filteredOptions != null) {
     		optionMap.putAll(filteredOptions);
     	}
-    	return optionMap;
+    	return cacheEffectiveOptions(key, optionMap);
     }
 
     /**
@@ -962,7 +1072,14 @@ public class DhcpServerConfiguration
      */
     public Map<Integer, DhcpOption> effectiveIaTaOptions(DhcpV6Message requestMsg, DhcpLink dhcpLink)
     {
-    	Map<Integer, DhcpOption> optionMap = effectiveIaTaOptions(requestMsg);
+    	EffectiveOptionsKey key = effectiveOptionsKey(EffectiveOptionsKey.Scope.IA_TA, 
+    			requestMsg, dhcpLink, null);
+    	Map<Integer, DhcpOption> cachedOptions = effectiveOptionsCache.get(key);
+    	if (cachedOptions != null) {
+    		return cachedOptions;
+    	}
+    	Map<Integer, DhcpOption> optionMap = 
+    		new HashMap<Integer, DhcpOption>(effectiveIaTaOptions(requestMsg));
     	if ((dhcpLink != null) && (dhcpLink.getLink() != null)) {
 	    	DhcpV6ConfigOptions configOptions = dhcpLink.getIaTaConfigOptions();
 	    	if (configOptions != null) {
@@ -975,7 +1092,7 @@ public class DhcpServerConfiguration
 	    		optionMap.putAll(filteredOptions);
 	    	}
     	}
-    	return optionMap;
+    	return cacheEffectiveOptions(key, optionMap);
     }
     
     /**
@@ -987,6 +1104,12 @@ public class DhcpServerConfiguration
      */
     public Map<Integer, DhcpOption> effectiveTaAddrOptions(DhcpV6Message requestMsg)
     {
+    	EffectiveOptionsKey key = effectiveOptionsKey(EffectiveOptionsKey.Scope.TA_ADDR, 
+    			requestMsg, null, null);
+    	Map<Integer, DhcpOption> cachedOptions = effectiveOptionsCache.get(key);
+    	if (cachedOptions != null) {
+    		return cachedOptions;
+    	}
     	Map<Integer, DhcpOption> optionMap = new HashMap<Integer, DhcpOption>();
     	if (globalTaAddrConfigOptions != null) {
     		optionMap.putAll(globalTaAddrConfigOptions.getDhcpOptionMap());
@@ -997,7 +1120,7 @@ public class DhcpServerConfiguration
     	if (filteredOptions != null) {
     		optionMap.putAll(filteredOptions);
     	}
-    	return optionMap;
+    	return cacheEffectiveOptions(key, optionMap);
     }
 
     /**
@@ -1010,7 +1133,14 @@ public class DhcpServerConfiguration
      */
     public Map<Integer, DhcpOption> effectiveTaAddrOptions(DhcpV6Message requestMsg, DhcpLink dhcpLink)
     {
-    	Map<Integer, DhcpOption> optionMap = effectiveTaAddrOptions(requestMsg);
+    	EffectiveOptionsKey key = effectiveOptionsKey(EffectiveOptionsKey.Scope.TA_ADDR, 
+    			requestMsg, dhcpLink, null);
+    	Map<Integer, DhcpOption> cachedOptions = effectiveOptionsCache.get(key);
+    	if (cachedOptions != null) {
+    		return cachedOptions;
+    	}
+    	Map<Integer, DhcpOption> optionMap = 
+    		new HashMap<Integer, DhcpOption>(effectiveTaAddrOptions(requestMsg));
     	if ((dhcpLink != null) && (dhcpLink != null)) {
 	    	DhcpV6ConfigOptions configOptions = dhcpLink.getTaAddrConfigOptions();
 	    	if (configOptions != null) {
@@ -1023,7 +1153,7 @@ public class DhcpServerConfiguration
 	    		optionMap.putAll(filteredOptions);
 	    	}
     	}
-    	return optionMap;
+    	return cacheEffectiveOptions(key, optionMap);
     }
 
     /**
@@ -1038,7 +1168,14 @@ public class DhcpServerConfiguration
     public Map<Integer, DhcpOption> effectiveTaAddrOptions(DhcpV6Message requestMsg, DhcpLink dhcpLink, 
     		DhcpV6OptionConfigObject configObj)
     {
-    	Map<Integer, DhcpOption> optionMap = effectiveNaAddrOptions(requestMsg, dhcpLink);
+    	EffectiveOptionsKey key = effectiveOptionsKey(EffectiveOptionsKey.Scope.TA_ADDR, 
+    			requestMsg, dhcpLink, configObj);
+    	Map<Integer, DhcpOption> cachedOptions = effectiveOptionsCache.get(key);
+    	if (cachedOptions != null) {
+    		return cachedOptions;
+    	}
+    	Map<Integer, DhcpOption> optionMap = 
+    		new HashMap<Integer, DhcpOption>(effectiveNaAddrOptions(requestMsg, dhcpLink));
     	if (configObj != null)  {
 	    	DhcpV6ConfigOptions configOptions = configObj.getDhcpConfigOptions();
 	    	if (configOptions != null) {
@@ -1051,7 +1188,7 @@ public class DhcpServerConfiguration
 	    		optionMap.putAll(filteredOptions);
 	    	}
     	}
-    	return optionMap;
+    	return cacheEffectiveOptions(key, optionMap);
     }
     
     /**
@@ -1063,6 +1200,12 @@ public class DhcpServerConfiguration
      */
     public Map<Integer, DhcpOption> effectiveIaPdOptions(DhcpV6Message requestMsg)
     {
+    	EffectiveOptionsKey key = effectiveOptionsKey(EffectiveOptionsKey.Scope.IA_PD, 
+    			requestMsg, null, null);
+    	Map<Integer, DhcpOption> cachedOptions = effectiveOptionsCache.get(key);
+    	if (cachedOptions != null) {
+    		return cachedOptions;
+    	}
     	Map<Integer, DhcpOption> optionMap = new HashMap<Integer, DhcpOption>();
     	if (globalIaPdConfigOptions != null) {
     		optionMap.putAll(globalIaPdConfigOptions.getDhcpOptionMap());
@@ -1073,7 +1216,7 @@ public class DhcpServerConfiguration
     	if (filteredOptions != null) {
     		optionMap.putAll(filteredOptions);
     	}
-    	return optionMap;
+    	return cacheEffectiveOptions(key, optionMap);
     }
 
     /**
@@ -1086,7 +1229,14 @@ public class DhcpServerConfiguration
      */
     public Map<Integer, DhcpOption> effectiveIaPdOptions(DhcpV6Message requestMsg, DhcpLink dhcpLink)
     {
-    	Map<Integer, DhcpOption> optionMap = effectiveIaPdOptions(requestMsg);
+    	EffectiveOptionsKey key = effectiveOptionsKey(EffectiveOptionsKey.Scope.IA_PD, 
+    			requestMsg, dhcpLink, null);
+    	Map<Integer, DhcpOption> cachedOptions = effectiveOptionsCache.get(key);
+    	if (cachedOptions != null) {
+    		return cachedOptions;
+    	}
+    	Map<Integer, DhcpOption> optionMap = 
+    		new HashMap<Integer, DhcpOption>(effectiveIaPdOptions(requestMsg));
     	if ((dhcpLink != null) && (dhcpLink.getLink() != null)) {
 	    	DhcpV6ConfigOptions configOptions = dhcpLink.getIaPdConfigOptions();
 	    	if (configOptions != null) {
@@ -1099,7 +1249,7 @@ public class DhcpServerConfiguration
 	    		optionMap.putAll(filteredOptions);
 	    	}
     	}
-    	return optionMap;
+    	return cacheEffectiveOptions(key, optionMap);
     }
     
     /**
@@ -1111,6 +1261,12 @@ public class DhcpServerConfiguration
      */
     public Map<Integer, DhcpOption> effectivePrefixOptions(DhcpV6Message requestMsg)
     {
+    	EffectiveOptionsKey key = effectiveOptionsKey(EffectiveOptionsKey.Scope.PREFIX, 
+    			requestMsg, null, null);
+    	Map<Integer, DhcpOption> cachedOptions = effectiveOptionsCache.get(key);
+    	if (cachedOptions != null) {
+    		return cachedOptions;
+    	}
     	Map<Integer, DhcpOption> optionMap = new HashMap<Integer, DhcpOption>();
     	if (globalPrefixConfigOptions != null) {
     		optionMap.putAll(globalPrefixConfigOptions.getDhcpOptionMap());
@@ -1121,7 +1277,7 @@ public class DhcpServerConfiguration
     	if (filteredOptions != null) {
     		optionMap.putAll(filteredOptions);
     	}
-    	return optionMap;
+    	return cacheEffectiveOptions(key, optionMap);
     }
 
     /**
@@ -1134,7 +1290,14 @@ public class DhcpServerConfiguration
      */
     public Map<Integer, DhcpOption> effectivePrefixOptions(DhcpV6Message requestMsg, DhcpLink dhcpLink)
     {
-    	Map<Integer, DhcpOption> optionMap = effectivePrefixOptions(requestMsg);
+    	EffectiveOptionsKey key = effectiveOptionsKey(EffectiveOptionsKey.Scope.PREFIX, 
+    			requestMsg, dhcpLink, null);
+    	Map<Integer, DhcpOption> cachedOptions = effectiveOptionsCache.get(key);
+    	if (cachedOptions != null) {
+    		return cachedOptions;
+    	}
+    	Map<Integer, DhcpOption> optionMap = 
+    		new HashMap<Integer, DhcpOption>(effectivePrefixOptions(requestMsg));
     	if ((dhcpLink != null) && (dhcpLink != null)) {
 	    	DhcpV6ConfigOptions configOptions = dhcpLink.getPrefixConfigOptions();
 	    	if (configOptions != null) {
@@ -1147,7 +1310,7 @@ public class DhcpServerConfiguration
 	    		optionMap.putAll(filteredOptions);
 	    	}
     	}
-    	return optionMap;
+    	return cacheEffectiveOptions(key, optionMap);
     }
 
     /**
@@ -1162,7 +1325,14 @@ public class DhcpServerConfiguration
     public Map<Integer, DhcpOption> effectivePrefixOptions(DhcpV6Message requestMsg, DhcpLink dhcpLink, 
     		DhcpV6OptionConfigObject configObj)
     {
-    	Map<Integer, DhcpOption> optionMap = effectivePrefixOptions(requestMsg, dhcpLink);
+    	EffectiveOptionsKey key = effectiveOptionsKey(EffectiveOptionsKey.Scope.PREFIX, 
+    			requestMsg, dhcpLink, configObj);
+    	Map<Integer, DhcpOption> cachedOptions = effectiveOptionsCache.get(key);
+    	if (cachedOptions != null) {
+    		return cachedOptions;
+    	}
+    	Map<Integer, DhcpOption> optionMap = 
+    		new HashMap<Integer, DhcpOption>(effectivePrefixOptions(requestMsg, dhcpLink));
     	if (configObj != null) {
 	    	DhcpV6ConfigOptions configOptions = configObj.getDhcpConfigOptions();
 	    	if (configOptions != null) {
@@ -1175,7 +1345,7 @@ public class DhcpServerConfiguration
 	    		optionMap.putAll(filteredOptions);
 	    	}
     	}
-    	return optionMap;
+    	return cacheEffectiveOptions(key, optionMap);
     }
     
     /**
@@ -1187,6 +1357,12 @@ public class DhcpServerConfiguration
      */
     public Map<Integer, DhcpOption> effectiveV4AddrOptions(DhcpV4Message requestMsg)
     {
+    	EffectiveOptionsKey key = effectiveOptionsKey(EffectiveOptionsKey.Scope.V4_ADDR, 
+    			requestMsg, null, null);
+    	Map<Integer, DhcpOption> cachedOptions = effectiveOptionsCache.get(key);
+    	if (cachedOptions != null) {
+    		return cachedOptions;
+    	}
     	Map<Integer, DhcpOption> optionMap = new HashMap<Integer, DhcpOption>();
     	if (globalV4ConfigOptions != null) {
     		optionMap.putAll(globalV4ConfigOptions.getDhcpOptionMap());
@@ -1197,7 +1373,7 @@ public class DhcpServerConfiguration
     	if (filteredOptions != null) {
     		optionMap.putAll(filteredOptions);
     	}
-    	return optionMap;
+    	return cacheEffectiveOptions(key, optionMap);
     }
 
     /**
@@ -1210,7 +1386,14 @@ public class DhcpServerConfiguration
      */
     public Map<Integer, DhcpOption> effectiveV4AddrOptions(DhcpV4Message requestMsg, DhcpLink dhcpLink)
     {
-    	Map<Integer, DhcpOption> optionMap = effectiveV4AddrOptions(requestMsg);
+    	EffectiveOptionsKey key = effectiveOptionsKey(EffectiveOptionsKey.Scope.V4_ADDR, 
+    			requestMsg, dhcpLink, null);
+    	Map<Integer, DhcpOption> cachedOptions = effectiveOptionsCache.get(key);
+    	if (cachedOptions != null) {
+    		return cachedOptions;
+    	}
+    	Map<Integer, DhcpOption> optionMap = 
+    		new HashMap<Integer, DhcpOption>(effectiveV4AddrOptions(requestMsg));
     	if ((dhcpLink != null) && (dhcpLink.getLink() != null)) {
 	    	DhcpV4ConfigOptions configOptions = dhcpLink.getV4ConfigOptions();
 	    	if (configOptions != null) {
@@ -1223,7 +1406,7 @@ public class DhcpServerConfiguration
 	    		optionMap.putAll(filteredOptions);
 	    	}
     	}
-    	return optionMap;
+    	return cacheEffectiveOptions(key, optionMap);
     }
 
     /**
@@ -1238,7 +1421,14 @@ public class DhcpServerConfiguration
     public Map<Integer, DhcpOption> effectiveV4AddrOptions(DhcpV4Message requestMsg, DhcpLink dhcpLink, 
     		DhcpV4OptionConfigObject configObj)
     {
-    	Map<Integer, DhcpOption> optionMap = effectiveV4AddrOptions(requestMsg, dhcpLink);
+    	EffectiveOptionsKey key = effectiveOptionsKey(EffectiveOptionsKey.Scope.V4_ADDR, 
+    			requestMsg, dhcpLink, configObj);
+    	Map<Integer, DhcpOption> cachedOptions = effectiveOptionsCache.get(key);
+    	if (cachedOptions != null) {
+    		return cachedOptions;
+    	}
+    	Map<Integer, DhcpOption> optionMap = 
+    		new HashMap<Integer, DhcpOption>(effectiveV4AddrOptions(requestMsg, dhcpLink));
     	if (configObj != null) {
 	    	DhcpV4ConfigOptions configOptions = configObj.getV4ConfigOptions();
 	    	if (configOptions != null) {
@@ -1251,7 +1441,80 @@ public class DhcpServerConfiguration
 	    		optionMap.putAll(filteredOptions);
 	    	}
     	}
-    	return optionMap;
+    	return cacheEffectiveOptions(key, optionMap);
+    }
+
+    /**
+     * Build the key of the effective options for a request.
+     * 
+     * @param scope the scope of the options
+     * @param requestMsg the request msg
+     * @param dhcpLink the link, or null for the global options
+     * @param configObj the pool or binding, or null for the link or global options
+     * 
+     * @return the effective options key
+     */
+    protected EffectiveOptionsKey effectiveOptionsKey(EffectiveOptionsKey.Scope scope,
+    		DhcpMessage requestMsg, DhcpLink dhcpLink, DhcpConfigObject configObj)
+    {
+    	Filter globalFilter = null;
+    	FiltersType filtersType = xmlServerConfig.getFilters();
+    	if (filtersType != null) {
+    		globalFilter = firstMatchingFilter(requestMsg, filtersType.getFilterList());
+    	}
+    	Filter linkFilter = null;
+    	if ((dhcpLink != null) && (dhcpLink.getLink() != null)) {
+    		LinkFiltersType linkFiltersType = dhcpLink.getLink().getLinkFilters();
+    		if (linkFiltersType != null) {
+    			linkFilter = firstMatchingFilter(requestMsg, linkFiltersType.getLinkFilterList());
+    		}
+    	}
+    	else {
+    		dhcpLink = null;
+    	}
+    	Filter configObjFilter = null;
+    	if ((configObj != null) && (configObj.getFilters() != null)) {
+    		configObjFilter = firstMatchingFilter(requestMsg, configObj.getFilters().getFilterList());
+    	}
+    	return new EffectiveOptionsKey(scope, dhcpLink, configObj,
+    			globalFilter, linkFilter, configObjFilter);
+    }
+    
+    /**
+     * Find the first filter matching a request, which is the filter whose
+     * options are used by the filtered options methods.
+     * 
+     * @param requestMsg the request msg
+     * @param filters the filters
+     * 
+     * @return the first matching filter, or null if none
+     */
+    private Filter firstMatchingFilter(DhcpMessage requestMsg, List<? extends Filter> filters)
+    {
+		if ((filters != null) && !filters.isEmpty()) {
+            for (Filter filter : filters) {
+            	if (msgMatchesFilter(requestMsg, filter)) {
+            		return filter;
+            	}
+            }
+		}
+		return null;
+    }
+    
+    /**
+     * Cache the effective options.
+     * 
+     * @param key the effective options key
+     * @param optionMap the effective options
+     * 
+     * @return the cached read only map of the effective options
+     */
+    private Map<Integer, DhcpOption> cacheEffectiveOptions(EffectiveOptionsKey key,
+    		Map<Integer, DhcpOption> optionMap)
+    {
+    	Map<Integer, DhcpOption> cachedOptions = Collections.unmodifiableMap(optionMap);
+    	Map<Integer, DhcpOption> prevOptions = effectiveOptionsCache.putIfAbsent(key, cachedOptions);
+    	return (prevOptions != null) ? prevOptions : cachedOptions;
     }
 
     /**
@@ -1751,123 +2014,85 @@ public class DhcpServerConfiguration
     }
     
     /**
-     * Msg matches filter.
+     * Gets the compiled policies.  Policies which were not in the configuration
+     * when it was loaded, i.e. set after the fact, are compiled on demand.
      * 
-     * @param requestMsg the request msg
-     * @param filter the filter
+     * @param policies the policies, may be null
      * 
-     * @return true, if successful
+     * @return the policy table, or null if the policies are null
      */
-    public static boolean msgMatchesFilter(DhcpMessage requestMsg, Filter filter)
+    public static PolicyTable getPolicyTable(PoliciesType policies)
     {
-        boolean matches = true;     // assume match
-    	FilterExpressionsType filterExprs = filter.getFilterExpressions();
-    	if (filterExprs != null) {
-        	List<FilterExpression> expressions = filterExprs.getFilterExpressionList();
-            if (expressions != null) {
-		        for (FilterExpression expression : expressions) {
-		        	if (expression.getClientClassExpression() != null) {
-		        		matches = msgMatchesClientClass(requestMsg, expression.getClientClassExpression());
-		        		if (!matches)
-		        			break;
-		        	}
-		        	else if (expression.getOptionExpression() != null) {
-		        		OptionExpression optexpr = expression.getOptionExpression();
-			            DhcpOption option = requestMsg.getDhcpOption(optexpr.getCode());
-			            if (option != null) {
-			                // found the filter option in the request,
-			                // so check if the expression matches
-			                if (!evaluateExpression(optexpr, option)) {
-			                    // it must match all expressions for the filter
-			                    // group (i.e. expressions are ANDed), so if
-			                    // just one doesn't match, then we're done
-			                    matches = false;
-			                    break;
-			                }
-			            }
-			            else {
-			                // if the expression option wasn't found in the
-			                // request message, then it can't match
-			                matches = false;
-			                break;
-			            }
-		        	}
-		        	else {
-		        		log.warn("Unsupported filter expression: " + expression);
-		        	}
-		        }
-            }
+    	if (policies == null) {
+    		return null;
     	}
-        return matches;
+    	PolicyTable table = policyTables.get(policies);
+    	if (table == null) {
+    		table = PolicyTable.compile(policies);
+    	}
+    	return table;
     }
     
     /**
-     * Evaluate expression.  Determine if an option matches based on an expression.
+     * Gets the compiled policies of a list of filters.
      * 
-     * @param expression the option expression
-     * @param option the option to compare
+     * @param filtersType the filters type, may be null
      * 
-     * @return true, if successful
+     * @return the filter policy table, or null if the filters are null
      */
-    protected static boolean evaluateExpression(OptionExpression expression, DhcpOption option)
+    public static FilterPolicyTable getFilterPolicyTable(FiltersType filtersType)
     {
-        boolean matches = false;
-        if (option instanceof DhcpComparableOption) {
-        	if (option.isV4() == expression.getV4()) {
-        		matches = ((DhcpComparableOption)option).matches(expression);
-        	}
-        }
-        else {
-            log.error("Configured option expression is not comparable:" +
-                      " code=" + expression.getCode());
-        }
-        return matches;
+    	if (filtersType == null) {
+    		return null;
+    	}
+    	FilterPolicyTable table = filterPolicyTables.get(filtersType);
+    	if (table == null) {
+    		table = FilterPolicyTable.compile(filtersType.getFilterList());
+    	}
+    	return table;
     }
     
-    protected static boolean msgMatchesClientClass(DhcpMessage requestMsg, 
-    		ClientClassExpression ccexpr)
-    {
-		if (ccexpr.getV6UserClassOption() != null) {
-			DhcpV6UserClassOption ucOption = (DhcpV6UserClassOption) 
-					requestMsg.getDhcpOption(ccexpr.getV6UserClassOption().getCode());
-			if (ucOption != null) {
-				DhcpV6UserClassOption exprOption = new DhcpV6UserClassOption(ccexpr.getV6UserClassOption());
-				if (!ucOption.matches(exprOption, ccexpr.getOperator())) {
-					return false;
-				}
-			}
-			else {
-				return false;
-			}
-		}
-		else if (ccexpr.getV6VendorClassOption() != null) {
-			DhcpV6VendorClassOption vcOption = (DhcpV6VendorClassOption) 
-					requestMsg.getDhcpOption(ccexpr.getV6VendorClassOption().getCode());
-			if (vcOption != null) {
-				DhcpV6VendorClassOption exprOption = new DhcpV6VendorClassOption(ccexpr.getV6VendorClassOption());
-				if (!vcOption.matches(exprOption, ccexpr.getOperator())) {
-					return false;
-				}
-			}
-			else {
-				return false;
-			}
-		}
-		else if (ccexpr.getV4VendorClassOption() != null) {
-			DhcpV4VendorClassOption vcOption = (DhcpV4VendorClassOption) 
-					requestMsg.getDhcpOption(ccexpr.getV4VendorClassOption().getCode());
-			if (vcOption != null) {
-				if (!vcOption.matches(ccexpr.getV4VendorClassOption(), ccexpr.getOperator())) {
-					return false;
-				}
-			}
-			else {
-				return false;
-			}
-		}
-		else {
-			log.warn("Unsupported client class expression: " + ccexpr);
-		}
-		return true;
+    /**
+     * Gets the compiled policies of a list of link filters.
+     * 
+     * @param linkFiltersType the link filters type, may be null
+     * 
+     * @return the filter policy table, or null if the link filters are null
+     */
+    public static FilterPolicyTable getFilterPolicyTable(LinkFiltersType linkFiltersType)
+    {
+    	if (linkFiltersType == null) {
+    		return null;
+    	}
+    	FilterPolicyTable table = filterPolicyTables.get(linkFiltersType);
+    	if (table == null) {
+    		table = FilterPolicyTable.compile(linkFiltersType.getLinkFilterList());
+    	}
+    	return table;
+    }
+    
+    /**
+     * Msg matches filter.  The result is remembered for the message, so that
+     * the filter is evaluated only once for each request message.
+     * 
+     * @param requestMsg the request msg
+     * @param filter the filter
+     * 
+     * @return true, if successful
+     */
+    public static boolean msgMatchesFilter(DhcpMessage requestMsg, Filter filter)
+    {
+    	Boolean memo = requestMsg.getFilterMatch(filter);
+    	if (memo != null) {
+    		return memo;
+    	}
+    	CompiledFilter compiledFilter = compiledFilters.get(filter);
+    	if (compiledFilter == null) {
+    		// a filter which was not in the configuration when it was loaded
+    		compiledFilter = CompiledFilter.compile(filter);
+    	}
+    	boolean matches = compiledFilter.matches(requestMsg);
+    	requestMsg.setFilterMatch(filter, matches);
+        return matches;
     }
 }
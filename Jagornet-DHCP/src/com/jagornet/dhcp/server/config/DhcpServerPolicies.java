@@ -28,17 +28,12 @@ package com.jagornet.dhcp.server.config;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.Reader;
-import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.jagornet.dhcp.message.DhcpMessage;
-import com.jagornet.dhcp.xml.Filter;
-import com.jagornet.dhcp.xml.FiltersType;
 import com.jagornet.dhcp.xml.Link;
-import com.jagornet.dhcp.xml.LinkFilter;
-import com.jagornet.dhcp.xml.LinkFiltersType;
-import com.jagornet.dhcp.xml.PoliciesType;
-import com.jagornet.dhcp.xml.Policy;
 
 /**
  * The Class DhcpServerPolicies.
@@ -49,6 +44,8 @@ import com.jagornet.dhcp.xml.Policy;
  * name.  Some policies are supported only globally, e.g. queueSize, whereas others may be
  * defined at various "levels" of the DHCP server's XML configuration, e.g. preferredLifetime,
  * which will allow for lower-level overrides of global or other hierarchical policy values.
+ * The policies are looked up in the compiled policy tables of each level, which hold the
+ * values already parsed, indexed by the ordinal of the Property.
  * 
  * @author A. Gregory Rabil
  */
@@ -63,16 +60,41 @@ public class DhcpServerPolicies
 		CHANNEL_MAX_TOTAL_MEMORY("channel.maxTotalMemory", "1048576"),		// 1024 x 1024
 		CHANNEL_READ_BUFFER_SIZE("channel.readBufferSize", "307200"),		// 300 bytes x 1K clients
 		CHANNEL_WRITE_BUFFER_SIZE("channel.writeBufferSize", "307200"),		// 300 bytes x 1K clients
+		CHANNEL_SOCKET_COUNT("channel.socketCount", "1"),	// per unicast address, >1 needs SO_REUSEPORT
+		CHANNEL_DIRECT_BUFFERS("channel.directBuffers", "false"),	// encode replies into pooled direct buffers
+		CHANNEL_CLIENT_LANES("channel.clientLanes", "16"),		// 0 to order messages per channel instead
+		CHANNEL_LANE_QUEUE_SIZE("channel.laneQueueSize", "1000"),	// messages waiting per client lane
+		CHANNEL_VIRTUAL_THREADS("channel.virtualThreads", "false"),	// client lanes on virtual threads, needs Java 21
+		CHANNEL_MAX_IN_FLIGHT_REQUESTS("channel.maxInFlightRequests", "1024"),	// with virtual threads, when less than clientLanes
+		CHANNEL_NORMAL_PRIORITY_QUEUE_PERCENT("channel.normalPriorityQueuePercent", "80"),	// of laneQueueSize, for SOLICIT/DISCOVER
+		CHANNEL_LOW_PRIORITY_QUEUE_PERCENT("channel.lowPriorityQueuePercent", "50"),	// of laneQueueSize, for INFO-REQUEST/INFORM
+		CHANNEL_MAX_QUEUE_TIME("channel.maxQueueTime", "4000"),	// millis before a waiting message is stale, 0=never
 		DATABASE_SCHEMA_TYTPE("database.schemaType", "jdbc-derby"),
 		DATABASE_SCHEMA_VERSION("database.schemaVersion", "2"),
+		DATABASE_MEMORY_SYNC_WRITES("database.memory.syncWrites", "true"),	// fsync the log after every change
+		DATABASE_MEMORY_SNAPSHOT_SIZE("database.memory.snapshotSize", "67108864"),	// log bytes before a new snapshot
+		DATABASE_MAPPED_FORCE_INTERVAL("database.mapped.forceInterval", "1000"),	// millis between forcing the lease file to disk, 0=every change
+		DATABASE_LEASE_JOURNAL_FILE("database.leaseJournal.file", ""),	// empty = write leases straight to the database
+		DATABASE_LEASE_JOURNAL_MAX_BATCH("database.leaseJournal.maxBatch", "1000"),	// lease changes per fsync
+		DATABASE_LEASE_JOURNAL_MAX_SIZE("database.leaseJournal.maxSize", "16777216"),	// bytes before truncating once applied
+		DATABASE_BINDING_CACHE_MAX_SIZE("database.bindingCache.maxSize", "0"),	// estimated bytes of cached IAs, 0=no cache
 		DHCP_PROCESSOR_RECENT_MESSAGE_TIMER("dhcp.processor.recentMessageTimer", "5000"),
+		DHCP_PROCESSOR_RECENT_MESSAGE_CACHE_SIZE("dhcp.processor.recentMessageCacheSize", "10000"),
 		DHCP_IGNORE_LOOPBACK("dhcp.ignoreLoopback", "true"),
 		DHCP_IGNORE_LINKLOCAL("dhcp.ignoreLinkLocal", "true"),
 		DHCP_IGNORE_SELF_PACKETS("dhcp.ignoreSelfPackets", "true"),
+		DHCP_CUSTOM_OPTIONS("dhcp.customOptions", ""),	// v4:code=className, v6:code=className, ...
+		DHCP_LAZY_OPTION_DECODING("dhcp.lazyOptionDecoding", "true"),
+		DHCP_RATE_LIMIT_CLIENT_RATE("dhcp.rateLimit.clientRate", "0"),	// packets per second, 0=unlimited
+		DHCP_RATE_LIMIT_CLIENT_BURST("dhcp.rateLimit.clientBurst", "10"),
+		DHCP_RATE_LIMIT_RELAY_RATE("dhcp.rateLimit.relayRate", "0"),	// packets per second, 0=unlimited
+		DHCP_RATE_LIMIT_RELAY_BURST("dhcp.rateLimit.relayBurst", "1000"),
+		DHCP_RATE_LIMIT_TABLE_SIZE("dhcp.rateLimit.tableSize", "100000"),	// client and relay buckets kept
 		BINDING_MANAGER_REAPER_STARTUP_DELAY("binding.manager.reaper.startupDelay", "10000"),
 		BINDING_MANAGER_REAPER_RUN_PERIOD("binding.manager.reaper.runPeriod", "60000"),
 		BINDING_MANAGER_OFFER_EXPIRATION("binding.manager.offerExpiration", "12000"),
 		BINDING_MANAGER_DELETE_OLD_BINDINGS("binding.manager.deleteOldBindings", "false"),
+		BINDING_MANAGER_EXPECTED_UTILIZATION("binding.manager.expectedUtilization", "0"),	// 0 = pack low
 		SEND_REQUESTED_OPTIONS_ONLY("sendRequestedOptionsOnly", "false"),
 		SUPPORT_RAPID_COMMIT("supportRapidCommit", "false"),
 		VERIFY_UNKNOWN_REBIND("verifyUnknownRebind", "false"),
@@ -108,6 +130,9 @@ public class DhcpServerPolicies
 		V4_IGNORED_MACS("v4.ignoredMacAddrs", "000000000000, FFFFFFFFFFFF"),
 		V4_DEFAULT_LEASETIME("v4.defaultLeasetime", "3600"),
 		V4_PINGCHECK_TIMEOUT("v4.pingCheckTimeout", "0"),
+		V4_PINGCHECK_DEPTH("v4.pingCheckDepth", "4"),
+		V4_PINGCHECK_CONFLICT_TIME("v4.pingCheckConflictTime", "3600000"),
+		V4_PINGCHECK_VERIFIED_TIME("v4.pingCheckVerifiedTime", "60000"),
 		;
 		
 	    /** The key. */
@@ -152,7 +177,61 @@ public class DhcpServerPolicies
 	}
 	
 	/** The SERVER properties. */
-	protected static Properties SERVER_PROPERTIES = new Properties(DEFAULT_PROPERTIES);
+	protected static Properties SERVER_PROPERTIES = new ServerProperties(DEFAULT_PROPERTIES);
+	
+	/** The version of the server properties, incremented on each change. */
+	private static final AtomicInteger serverPropertiesVersion = new AtomicInteger();
+	
+	/** The compiled server properties. */
+	private static volatile ServerPolicyTable serverPolicyTable;
+	
+	/**
+	 * The Class ServerProperties.  Server properties which keep track of
+	 * changes, so that the compiled server properties can be rebuilt.
+	 */
+	@SuppressWarnings("serial")
+	private static class ServerProperties extends Properties
+	{
+		ServerProperties(Properties defaults) {
+			super(defaults);
+		}
+		@Override
+		public synchronized Object put(Object key, Object value) {
+			Object old = super.put(key, value);
+			serverPropertiesVersion.incrementAndGet();
+			return old;
+		}
+		@Override
+		public synchronized void putAll(Map<? extends Object, ? extends Object> map) {
+			super.putAll(map);
+			serverPropertiesVersion.incrementAndGet();
+		}
+		@Override
+		public synchronized Object remove(Object key) {
+			Object old = super.remove(key);
+			serverPropertiesVersion.incrementAndGet();
+			return old;
+		}
+		@Override
+		public synchronized void clear() {
+			super.clear();
+			serverPropertiesVersion.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * The Class ServerPolicyTable.  The compiled server properties, and
+	 * the version of the properties from which they were compiled.
+	 */
+	private static class ServerPolicyTable
+	{
+		final int version;
+		final PolicyTable table;
+		ServerPolicyTable(int version, PolicyTable table) {
+			this.version = version;
+			this.table = table;
+		}
+	}
 	
 	/**
 	 * Load properties file.
@@ -207,13 +286,7 @@ public class DhcpServerPolicies
      */
     public static String globalPolicy(Property prop)
     {
-    	String policy = 
-    		getPolicy(DhcpServerConfiguration.getInstance().getDhcpServerConfig().getPolicies(),
-    				prop.key());
-    	if (policy != null) {
-    		return policy;
-    	}
-    	return SERVER_PROPERTIES.getProperty(prop.key());
+    	return globalPolicyValue(prop).asString();
     }
 
     /**
@@ -225,7 +298,7 @@ public class DhcpServerPolicies
 	 */
 	public static boolean globalPolicyAsBoolean(Property prop)
     {
-    	return Boolean.parseBoolean(globalPolicy(prop));
+    	return globalPolicyValue(prop).asBoolean();
     }
     
     /**
@@ -237,7 +310,7 @@ public class DhcpServerPolicies
 	 */
 	public static int globalPolicyAsInt(Property prop)
     {
-    	return Integer.parseInt(globalPolicy(prop));
+    	return globalPolicyValue(prop).asInt();
     }
     
     /**
@@ -249,7 +322,7 @@ public class DhcpServerPolicies
 	 */
 	public static long globalPolicyAsLong(Property prop)
     {
-    	return Long.parseLong(globalPolicy(prop));
+    	return globalPolicyValue(prop).asLong();
     }
     
     
@@ -262,7 +335,7 @@ public class DhcpServerPolicies
 	 */
 	public static float globalPolicyAsFloat(Property prop)
     {
-    	return Float.parseFloat(globalPolicy(prop));
+    	return globalPolicyValue(prop).asFloat();
     }
 	
 	/**
@@ -274,33 +347,7 @@ public class DhcpServerPolicies
 	 */
     public static String globalPolicy(DhcpMessage requestMsg, Property prop)
     {
-    	DhcpServerConfiguration config = DhcpServerConfiguration.getInstance();
-    	String policy = null;
-    	if (requestMsg != null) {
-    		FiltersType filtersType = config.getDhcpServerConfig().getFilters();
-    		if (filtersType != null) {
-    			List<Filter> filters = filtersType.getFilterList();
-    			for (Filter filter : filters) {
-					if (DhcpServerConfiguration.msgMatchesFilter(requestMsg, filter)) {
-						policy = getPolicy(filter.getPolicies(), prop.key());
-					}
-				}
-				// if the client request matches at least one global filter,
-				// and that filter has configured a value for the policy, then 
-				// return that value from the last filter that the client matches
-    			if (policy != null) {
-    				return policy;
-    			}
-    		}
-    	}
-		// client does not match a global filter 
-		// get the value of the global policy, if any
-    	policy = getPolicy(config.getDhcpServerConfig().getPolicies(), prop.key());
-    	if (policy != null) {
-    		return policy;
-    	}
-    	// fall back to the configured default value
-    	return SERVER_PROPERTIES.getProperty(prop.key());
+    	return globalPolicyValue(requestMsg, prop).asString();
     }
 
 
@@ -313,7 +360,7 @@ public class DhcpServerPolicies
      */
 	public static boolean globalPolicyAsBoolean(DhcpMessage requestMsg, Property prop)
     {
-    	return Boolean.parseBoolean(globalPolicy(requestMsg, prop));
+    	return globalPolicyValue(requestMsg, prop).asBoolean();
     }
     
     /**
@@ -325,7 +372,7 @@ public class DhcpServerPolicies
      */
 	public static int globalPolicyAsInt(DhcpMessage requestMsg, Property prop)
     {
-    	return Integer.parseInt(globalPolicy(requestMsg, prop));
+    	return globalPolicyValue(requestMsg, prop).asInt();
     }
     
     /**
@@ -337,7 +384,7 @@ public class DhcpServerPolicies
      */
 	public static long globalPolicyAsLong(DhcpMessage requestMsg, Property prop)
     {
-    	return Long.parseLong(globalPolicy(requestMsg, prop));
+    	return globalPolicyValue(requestMsg, prop).asLong();
     }
     
     
@@ -350,7 +397,7 @@ public class DhcpServerPolicies
      */
 	public static float globalPolicyAsFloat(DhcpMessage requestMsg, Property prop)
     {
-    	return Float.parseFloat(globalPolicy(requestMsg, prop));
+    	return globalPolicyValue(requestMsg, prop).asFloat();
     }
     
     /**
@@ -363,11 +410,7 @@ public class DhcpServerPolicies
      */
     public static String effectivePolicy(Link link, Property prop)
     {
-    	String policy = getPolicy(link.getPolicies(), prop.key());
-    	if (policy != null) {
-    		return policy;
-    	}
-    	return globalPolicy(prop);
+    	return effectivePolicyValue(link, prop).asString();
     }
     
     /**
@@ -380,7 +423,7 @@ public class DhcpServerPolicies
 	 */
 	public static boolean effectivePolicyAsBoolean(Link link, Property prop)
     {
-    	return Boolean.parseBoolean(effectivePolicy(link, prop));
+    	return effectivePolicyValue(link, prop).asBoolean();
     }
     
     /**
@@ -393,7 +436,7 @@ public class DhcpServerPolicies
 	 */
 	public static int effectivePolicyAsInt(Link link, Property prop)
     {
-    	return Integer.parseInt(effectivePolicy(link, prop));
+    	return effectivePolicyValue(link, prop).asInt();
     }
     
     /**
@@ -406,7 +449,7 @@ public class DhcpServerPolicies
 	 */
 	public static long effectivePolicyAsLong(Link link, Property prop)
     {
-    	return Long.parseLong(effectivePolicy(link, prop));
+    	return effectivePolicyValue(link, prop).asLong();
     }
     
     /**
@@ -419,7 +462,7 @@ public class DhcpServerPolicies
 	 */
 	public static float effectivePolicyAsFloat(Link link, Property prop)
     {
-    	return Float.parseFloat(effectivePolicy(link, prop));
+    	return effectivePolicyValue(link, prop).asFloat();
     }
 	
 	/**
@@ -433,35 +476,7 @@ public class DhcpServerPolicies
 	public static String effectivePolicy(DhcpMessage requestMsg, 
 			Link link, Property prop)
 	{
-		String policy = null;
-		if ((requestMsg != null) && (link != null)) {
-			LinkFiltersType linkFiltersType = link.getLinkFilters();
-			if (linkFiltersType != null) {
-				List<LinkFilter> linkFilters = linkFiltersType.getLinkFilterList();
-				if (linkFilters != null) {
-					for (LinkFilter linkFilter : linkFilters) {
-						if (DhcpServerConfiguration.msgMatchesFilter(requestMsg, linkFilter)) {
-							policy = getPolicy(linkFilter.getPolicies(), prop.key());
-						}
-					}
-					// if the client request matches at least one filter on the link,
-					// and that filter has configured a value for the policy, then return
-					// that value from the last filter that the client matches
-			    	if (policy != null) {
-			    		return policy;
-			    	}
-				}
-			}
-		}
-		if (link != null) {
-			// client does not match a link filter 
-			// get the value of the policy on the link, if any
-			policy = getPolicy(link.getPolicies(), prop.key());
-			if (policy != null) {
-				return policy;
-			}
-		}
-    	return globalPolicy(prop);
+		return effectivePolicyValue(requestMsg, link, prop).asString();
 	}
     
     /**
@@ -475,7 +490,7 @@ public class DhcpServerPolicies
 	public static boolean effectivePolicyAsBoolean(DhcpMessage requestMsg, 
 			Link link, Property prop)
     {
-    	return Boolean.parseBoolean(effectivePolicy(requestMsg, link, prop));
+    	return effectivePolicyValue(requestMsg, link, prop).asBoolean();
     }
     
     /**
@@ -489,7 +504,7 @@ public class DhcpServerPolicies
 	public static int effectivePolicyAsInt(DhcpMessage requestMsg, 
 			Link link, Property prop)
     {
-    	return Integer.parseInt(effectivePolicy(requestMsg, link, prop));
+    	return effectivePolicyValue(requestMsg, link, prop).asInt();
     }
     
     /**
@@ -503,7 +518,7 @@ public class DhcpServerPolicies
 	public static long effectivePolicyAsLong(DhcpMessage requestMsg, 
 			Link link, Property prop)
     {
-    	return Long.parseLong(effectivePolicy(requestMsg, link, prop));
+    	return effectivePolicyValue(requestMsg, link, prop).asLong();
     }
     
     /**
@@ -517,7 +532,7 @@ public class DhcpServerPolicies
 	public static float effectivePolicyAsFloat(DhcpMessage requestMsg, 
 			Link link, Property prop)
     {
-    	return Float.parseFloat(effectivePolicy(requestMsg, link, prop));
+    	return effectivePolicyValue(requestMsg, link, prop).asFloat();
     }
     
     /**
@@ -531,20 +546,7 @@ public class DhcpServerPolicies
      */
     public static String effectivePolicy(DhcpConfigObject configObj, Link link, Property prop)
     {
-    	String policy = null;
-    	if (configObj != null) {
-	    	policy = getPolicy(configObj.getPolicies(), prop.key());
-	    	if (policy != null) {
-	    		return policy;
-	    	}
-    	}
-    	if (link != null) {
-	    	policy = getPolicy(link.getPolicies(), prop.key());
-	    	if (policy != null) {
-	    		return policy;
-	    	}
-    	}
-    	return globalPolicy(prop);
+    	return effectivePolicyValue(configObj, link, prop).asString();
     }
     
     /**
@@ -559,7 +561,7 @@ public class DhcpServerPolicies
 	public static boolean effectivePolicyAsBoolean(DhcpConfigObject configObj, 
 			Link link, Property prop)
     {
-    	return Boolean.parseBoolean(effectivePolicy(configObj, link, prop));
+    	return effectivePolicyValue(configObj, link, prop).asBoolean();
     }
     
     /**
@@ -574,7 +576,7 @@ public class DhcpServerPolicies
 	public static int effectivePolicyAsInt(DhcpConfigObject configObj, 
 			Link link, Property prop)
     {
-    	return Integer.parseInt(effectivePolicy(configObj, link, prop));
+    	return effectivePolicyValue(configObj, link, prop).asInt();
     }
     
     /**
@@ -589,7 +591,7 @@ public class DhcpServerPolicies
 	public static long effectivePolicyAsLong(DhcpConfigObject configObj, 
 			Link link, Property prop)
     {
-    	return Long.parseLong(effectivePolicy(configObj, link, prop));
+    	return effectivePolicyValue(configObj, link, prop).asLong();
     }
     
     /**
@@ -604,7 +606,7 @@ public class DhcpServerPolicies
 	public static float effectivePolicyAsFloat(DhcpConfigObject configObj, 
 			Link link, Property prop)
     {
-    	return Float.parseFloat(effectivePolicy(configObj, link, prop));
+    	return effectivePolicyValue(configObj, link, prop).asFloat();
     }
 	
     /**
@@ -620,34 +622,7 @@ public class DhcpServerPolicies
     public static String effectivePolicy(DhcpMessage requestMsg, 
     		DhcpConfigObject configObj, Link link, Property prop)
     {
-		String policy = null;
-		if ((requestMsg != null) && (configObj != null)) {
-			if (configObj.getFilters() != null) {
-				List<Filter> filters = configObj.getFilters().getFilterList();
-				if (filters != null) {
-					for (Filter filter : filters) {
-						if (DhcpServerConfiguration.msgMatchesFilter(requestMsg, filter)) {
-							policy = getPolicy(filter.getPolicies(), prop.key());
-						}
-					}
-					// if the client request matches at least one filter on the pool,
-					// and that filter has configured a value for the policy, then return
-					// that value from the last filter that the client matches
-			    	if (policy != null) {
-			    		return policy;
-			    	}
-				}
-			}
-		}
-		if (configObj != null) {
-			// client does not match a pool filter 
-			// get the value of the policy on the pool, if any
-			policy = getPolicy(configObj.getPolicies(), prop.key());
-			if (policy != null) {
-				return policy;
-			}
-		}
-    	return effectivePolicy(requestMsg, link, prop);
+    	return effectivePolicyValue(requestMsg, configObj, link, prop).asString();
     }
     
     /**
@@ -662,7 +637,7 @@ public class DhcpServerPolicies
 	public static boolean effectivePolicyAsBoolean(DhcpMessage requestMsg, 
 			DhcpConfigObject configObj, Link link, Property prop)
     {
-    	return Boolean.parseBoolean(effectivePolicy(requestMsg, configObj, link, prop));
+    	return effectivePolicyValue(requestMsg, configObj, link, prop).asBoolean();
     }
     
     /**
@@ -677,7 +652,7 @@ public class DhcpServerPolicies
 	public static int effectivePolicyAsInt(DhcpMessage requestMsg, 
 			DhcpConfigObject configObj, Link link, Property prop)
     {
-    	return Integer.parseInt(effectivePolicy(requestMsg, configObj, link, prop));
+    	return effectivePolicyValue(requestMsg, configObj, link, prop).asInt();
     }
     
     /**
@@ -692,7 +667,7 @@ public class DhcpServerPolicies
 	public static long effectivePolicyAsLong(DhcpMessage requestMsg, 
 			DhcpConfigObject configObj, Link link, Property prop)
     {
-    	return Long.parseLong(effectivePolicy(requestMsg, configObj, link, prop));
+    	return effectivePolicyValue(requestMsg, configObj, link, prop).asLong();
     }
     
     /**
@@ -707,30 +682,195 @@ public class DhcpServerPolicies
 	public static float effectivePolicyAsFloat(DhcpMessage requestMsg, 
 			DhcpConfigObject configObj, Link link, Property prop)
     {
-    	return Float.parseFloat(effectivePolicy(requestMsg, configObj, link, prop));
+    	return effectivePolicyValue(requestMsg, configObj, link, prop).asFloat();
     }    
 
     /**
-     * Gets the policy.
+     * Global policy value.
      * 
-     * @param policies the policies
-     * @param name the name
+     * @param prop the prop
      * 
-     * @return the policy
+     * @return the value
      */
-    protected static String getPolicy(PoliciesType policies, String name)
-    {
-		if (policies != null) {
-			List<Policy> policyList = policies.getPolicyList();
-			if (policyList != null) {
-				for (Policy policy : policyList) {
-					if (policy.getName().equalsIgnoreCase(name)) {
-						return policy.getValue();
-					}
+    protected static PolicyTable.Value globalPolicyValue(Property prop)
+    {
+    	PolicyTable policies = DhcpServerConfiguration.getPolicyTable(
+    			DhcpServerConfiguration.getInstance().getDhcpServerConfig().getPolicies());
+    	if (policies != null) {
+    		PolicyTable.Value value = policies.get(prop);
+    		if (value != null) {
+    			return value;
+    		}
+    	}
+    	return serverPolicyValue(prop);
+    }
+    
+    /**
+     * Global policy value.
+     * 
+     * @param requestMsg the request msg
+     * @param prop the prop
+     * 
+     * @return the value
+     */
+    protected static PolicyTable.Value globalPolicyValue(DhcpMessage requestMsg, Property prop)
+    {
+    	if (requestMsg != null) {
+    		FilterPolicyTable filters = DhcpServerConfiguration.getFilterPolicyTable(
+    				DhcpServerConfiguration.getInstance().getDhcpServerConfig().getFilters());
+    		if (filters != null) {
+				// if the client request matches at least one global filter,
+				// and the last filter that the client matches has configured
+    			// a value for the policy, then return that value
+    			PolicyTable.Value value = filters.get(requestMsg, prop);
+    			if (value != null) {
+    				return value;
+    			}
+    		}
+    	}
+		// client does not match a global filter 
+		// get the value of the global policy, if any,
+    	// or fall back to the configured default value
+    	return globalPolicyValue(prop);
+    }
+    
+    /**
+     * Effective policy value.
+     * 
+     * @param link the link
+     * @param prop the prop
+     * 
+     * @return the value
+     */
+    protected static PolicyTable.Value effectivePolicyValue(Link link, Property prop)
+    {
+    	PolicyTable policies = DhcpServerConfiguration.getPolicyTable(link.getPolicies());
+    	if (policies != null) {
+    		PolicyTable.Value value = policies.get(prop);
+    		if (value != null) {
+    			return value;
+    		}
+    	}
+    	return globalPolicyValue(prop);
+    }
+    
+    /**
+     * Effective policy value.
+     * 
+     * @param requestMsg the request msg
+     * @param link the link
+     * @param prop the prop
+     * 
+     * @return the value
+     */
+    protected static PolicyTable.Value effectivePolicyValue(DhcpMessage requestMsg, 
+    		Link link, Property prop)
+    {
+		if ((requestMsg != null) && (link != null)) {
+			FilterPolicyTable linkFilters = 
+				DhcpServerConfiguration.getFilterPolicyTable(link.getLinkFilters());
+			if (linkFilters != null) {
+				// if the client request matches at least one filter on the link,
+				// and the last filter that the client matches has configured
+				// a value for the policy, then return that value
+				PolicyTable.Value value = linkFilters.get(requestMsg, prop);
+		    	if (value != null) {
+		    		return value;
+		    	}
+			}
+		}
+		if (link != null) {
+			// client does not match a link filter 
+			// get the value of the policy on the link, if any
+			return effectivePolicyValue(link, prop);
+		}
+    	return globalPolicyValue(prop);
+    }
+    
+    /**
+     * Effective policy value.
+     * 
+     * @param configObj the pool or binding
+     * @param link the link
+     * @param prop the prop
+     * 
+     * @return the value
+     */
+    protected static PolicyTable.Value effectivePolicyValue(DhcpConfigObject configObj, 
+    		Link link, Property prop)
+    {
+    	if (configObj != null) {
+    		PolicyTable policies = DhcpServerConfiguration.getPolicyTable(configObj.getPolicies());
+	    	if (policies != null) {
+	    		PolicyTable.Value value = policies.get(prop);
+	    		if (value != null) {
+	    			return value;
+	    		}
+	    	}
+    	}
+    	if (link != null) {
+    		return effectivePolicyValue(link, prop);
+    	}
+    	return globalPolicyValue(prop);
+    }
+    
+    /**
+     * Effective policy value.
+     * 
+     * @param requestMsg the request msg
+     * @param configObj the pool or binding
+     * @param link the link
+     * @param prop the prop
+     * 
+     * @return the value
+     */
+    protected static PolicyTable.Value effectivePolicyValue(DhcpMessage requestMsg, 
+    		DhcpConfigObject configObj, Link link, Property prop)
+    {
+		if ((requestMsg != null) && (configObj != null)) {
+			FilterPolicyTable filters = 
+				DhcpServerConfiguration.getFilterPolicyTable(configObj.getFilters());
+			if (filters != null) {
+				// if the client request matches at least one filter on the pool,
+				// and the last filter that the client matches has configured
+				// a value for the policy, then return that value
+				PolicyTable.Value value = filters.get(requestMsg, prop);
+		    	if (value != null) {
+		    		return value;
+		    	}
+			}
+		}
+		if (configObj != null) {
+			// client does not match a pool filter 
+			// get the value of the policy on the pool, if any
+			PolicyTable policies = DhcpServerConfiguration.getPolicyTable(configObj.getPolicies());
+			if (policies != null) {
+				PolicyTable.Value value = policies.get(prop);
+				if (value != null) {
+					return value;
 				}
 			}
 		}
-    	return null;
+    	return effectivePolicyValue(requestMsg, link, prop);
+    }
+    
+    /**
+     * Server policy value.  The server properties are compiled again
+     * whenever they have been changed since they were last compiled.
+     * 
+     * @param prop the prop
+     * 
+     * @return the value
+     */
+    protected static PolicyTable.Value serverPolicyValue(Property prop)
+    {
+    	ServerPolicyTable serverTable = serverPolicyTable;
+    	int version = serverPropertiesVersion.get();
+    	if ((serverTable == null) || (serverTable.version != version)) {
+    		serverTable = new ServerPolicyTable(version, PolicyTable.compile(SERVER_PROPERTIES));
+    		serverPolicyTable = serverTable;
+    	}
+    	return serverTable.table.get(prop);
     }
 
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file EffectiveOptionsKey.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.config;
+
+import com.jagornet.dhcp.xml.Filter;
+
+/**
+ * The Class EffectiveOptionsKey.  The key of a cached set of effective
+ * options.  The effective options for a request depend only on the scope
+ * of the options, the client's link, the pool or binding, and the first
+ * filter matched by the request at each of the global, link and pool or
+ * binding levels.  The configuration objects are compared by identity.
+ * 
+ * @author A. Gregory Rabil
+ */
+public class EffectiveOptionsKey
+{
+	/**
+	 * The scope of the options, i.e. the configuration element which
+	 * contains the options.
+	 */
+	public enum Scope { MSG, IA_NA, NA_ADDR, IA_TA, TA_ADDR, IA_PD, PREFIX, V4_ADDR }
+	
+	protected final Scope scope;
+	protected final DhcpLink dhcpLink;
+	protected final DhcpConfigObject configObj;
+	protected final Filter globalFilter;
+	protected final Filter linkFilter;
+	protected final Filter configObjFilter;
+	protected final int hash;
+	
+	/**
+	 * Instantiates a new effective options key.
+	 * 
+	 * @param scope the scope of the options
+	 * @param dhcpLink the link, or null for the global options
+	 * @param configObj the pool or binding, or null for the link or global options
+	 * @param globalFilter the matching global filter, or null if none
+	 * @param linkFilter the matching link filter, or null if none
+	 * @param configObjFilter the matching pool or binding filter, or null if none
+	 */
+	public EffectiveOptionsKey(Scope scope, DhcpLink dhcpLink, DhcpConfigObject configObj,
+			Filter globalFilter, Filter linkFilter, Filter configObjFilter)
+	{
+		this.scope = scope;
+		this.dhcpLink = dhcpLink;
+		this.configObj = configObj;
+		this.globalFilter = globalFilter;
+		this.linkFilter = linkFilter;
+		this.configObjFilter = configObjFilter;
+		int h = scope.hashCode();
+		h = 31 * h + System.identityHashCode(dhcpLink);
+		h = 31 * h + System.identityHashCode(configObj);
+		h = 31 * h + System.identityHashCode(globalFilter);
+		h = 31 * h + System.identityHashCode(linkFilter);
+		h = 31 * h + System.identityHashCode(configObjFilter);
+		hash = h;
+	}
+	
+	@Override
+	public int hashCode()
+	{
+		return hash;
+	}
+	
+	@Override
+	public boolean equals(Object obj)
+	{
+		if (this == obj)
+			return true;
+		if (!(obj instanceof EffectiveOptionsKey))
+			return false;
+		EffectiveOptionsKey other = (EffectiveOptionsKey) obj;
+		return (scope == other.scope) && (dhcpLink == other.dhcpLink) &&
+				(configObj == other.configObj) && (globalFilter == other.globalFilter) &&
+				(linkFilter == other.linkFilter) && (configObjFilter == other.configObjFilter);
+	}
+}
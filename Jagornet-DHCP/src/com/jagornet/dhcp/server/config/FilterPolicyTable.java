@@ -0,0 +1,103 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file FilterPolicyTable.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.config;
+
+import java.util.List;
+
+import com.jagornet.dhcp.message.DhcpMessage;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
+import com.jagornet.dhcp.xml.Filter;
+
+/**
+ * The Class FilterPolicyTable.  The compiled policies of a list of filters,
+ * i.e. the global filters, the link filters of a link, or the filters of
+ * a pool or binding.  The policy value for a request message is taken from
+ * the last filter in the list which the message matches.
+ * 
+ * @author A. Gregory Rabil
+ */
+public class FilterPolicyTable
+{
+	/** The filters. */
+	protected final Filter[] filters;
+	
+	/** The compiled policies of each filter. */
+	protected final PolicyTable[] tables;
+	
+	/**
+	 * Compile the policies of the filters.
+	 * 
+	 * @param filterList the filter list, may be null
+	 * 
+	 * @return the filter policy table
+	 */
+	public static FilterPolicyTable compile(List<? extends Filter> filterList)
+	{
+		if (filterList == null) {
+			return new FilterPolicyTable(new Filter[0], new PolicyTable[0]);
+		}
+		Filter[] filters = filterList.toArray(new Filter[filterList.size()]);
+		PolicyTable[] tables = new PolicyTable[filters.length];
+		for (int i=0; i<filters.length; i++) {
+			tables[i] = PolicyTable.compile(filters[i].getPolicies());
+		}
+		return new FilterPolicyTable(filters, tables);
+	}
+	
+	/**
+	 * Instantiates a new filter policy table.
+	 * 
+	 * @param filters the filters
+	 * @param tables the compiled policies of each filter
+	 */
+	protected FilterPolicyTable(Filter[] filters, PolicyTable[] tables)
+	{
+		this.filters = filters;
+		this.tables = tables;
+	}
+	
+	/**
+	 * Gets the value of a policy for a request message.  Only the last
+	 * filter matched by the message is used, even if it does not set the
+	 * policy, so the filters are checked from the end of the list and any
+	 * filters before the last match are not evaluated.
+	 * 
+	 * @param requestMsg the request msg
+	 * @param prop the prop
+	 * 
+	 * @return the value, or null if no filter matches or the last
+	 * 		   matching filter does not set the policy
+	 */
+	public PolicyTable.Value get(DhcpMessage requestMsg, Property prop)
+	{
+		for (int i=filters.length-1; i>=0; i--) {
+			if (DhcpServerConfiguration.msgMatchesFilter(requestMsg, filters[i])) {
+				return tables[i].get(prop);
+			}
+		}
+		return null;
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file PolicyTable.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.config;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
+import com.jagornet.dhcp.xml.PoliciesType;
+import com.jagornet.dhcp.xml.Policy;
+
+/**
+ * The Class PolicyTable.  The policies of one level of the configuration,
+ * compiled into an array indexed by the ordinal of the policy Property.
+ * Each value is parsed once when the table is compiled, so that looking
+ * up a policy is an array read, without scanning the policy elements or
+ * parsing the value string.
+ * 
+ * @author A. Gregory Rabil
+ */
+public class PolicyTable
+{
+	/** The table for a level of the configuration without any policies. */
+	public static final PolicyTable EMPTY = new PolicyTable();
+	
+	/** The properties, keyed by the lower case name of the policy. */
+	private static final Map<String, Property> PROPERTY_NAMES = new HashMap<String, Property>();
+	static {
+		for (Property prop : Property.values()) {
+			PROPERTY_NAMES.put(prop.key().toLowerCase(Locale.ENGLISH), prop);
+		}
+	}
+	
+	/** The values, indexed by property ordinal. */
+	protected final Value[] values = new Value[Property.values().length];
+	
+	/**
+	 * Compile the configured policies.  As for the policy lookup by name,
+	 * the names are not case sensitive and the first policy with a name wins.
+	 * Policies with names which are not a known Property are ignored.
+	 * 
+	 * @param policies the policies, may be null
+	 * 
+	 * @return the policy table
+	 */
+	public static PolicyTable compile(PoliciesType policies)
+	{
+		if (policies == null) {
+			return EMPTY;
+		}
+		PolicyTable table = new PolicyTable();
+		List<Policy> policyList = policies.getPolicyList();
+		if (policyList != null) {
+			for (Policy policy : policyList) {
+				String name = policy.getName();
+				if (name != null) {
+					Property prop = PROPERTY_NAMES.get(name.toLowerCase(Locale.ENGLISH));
+					if ((prop != null) && (table.values[prop.ordinal()] == null)) {
+						table.values[prop.ordinal()] = new Value(policy.getValue());
+					}
+				}
+			}
+		}
+		return table;
+	}
+	
+	/**
+	 * Compile the server properties, including the defaults.  Every
+	 * policy has a value in the table of the server properties.
+	 * 
+	 * @param props the properties
+	 * 
+	 * @return the policy table
+	 */
+	public static PolicyTable compile(Properties props)
+	{
+		PolicyTable table = new PolicyTable();
+		for (Property prop : Property.values()) {
+			table.values[prop.ordinal()] = new Value(props.getProperty(prop.key()));
+		}
+		return table;
+	}
+	
+	/**
+	 * Gets the value of a policy.
+	 * 
+	 * @param prop the prop
+	 * 
+	 * @return the value, or null if the policy is not set in this table
+	 */
+	public Value get(Property prop)
+	{
+		return values[prop.ordinal()];
+	}
+	
+	/**
+	 * The Class Value.  A policy value with its parsed forms.  When the
+	 * value cannot be parsed as a number, the accessor parses it again
+	 * so that the caller sees the same NumberFormatException as before.
+	 */
+	public static class Value
+	{
+		private final String value;
+		private final boolean booleanValue;
+		private final boolean isInt;
+		private final int intValue;
+		private final boolean isLong;
+		private final long longValue;
+		private final boolean isFloat;
+		private final float floatValue;
+		
+		/**
+		 * Instantiates a new value.
+		 * 
+		 * @param value the value string
+		 */
+		public Value(String value)
+		{
+			this.value = value;
+			booleanValue = Boolean.parseBoolean(value);
+			int i = 0;
+			boolean ok = false;
+			try {
+				i = Integer.parseInt(value);
+				ok = true;
+			}
+			catch (NumberFormatException ex) { }
+			isInt = ok;
+			intValue = i;
+			long l = 0;
+			ok = false;
+			try {
+				l = Long.parseLong(value);
+				ok = true;
+			}
+			catch (NumberFormatException ex) { }
+			isLong = ok;
+			longValue = l;
+			float f = 0;
+			ok = false;
+			try {
+				if (value != null) {
+					f = Float.parseFloat(value);
+					ok = true;
+				}
+			}
+			catch (NumberFormatException ex) { }
+			isFloat = ok;
+			floatValue = f;
+		}
+		
+		/**
+		 * Gets the value as a string.
+		 * 
+		 * @return the value string
+		 */
+		public String asString()
+		{
+			return value;
+		}
+		
+		/**
+		 * Gets the value as a boolean.
+		 * 
+		 * @return the boolean value
+		 */
+		public boolean asBoolean()
+		{
+			return booleanValue;
+		}
+		
+		/**
+		 * Gets the value as a int.
+		 * 
+		 * @return the int value
+		 */
+		public int asInt()
+		{
+			return isInt ? intValue : Integer.parseInt(value);
+		}
+		
+		/**
+		 * Gets the value as a long.
+		 * 
+		 * @return the long value
+		 */
+		public long asLong()
+		{
+			return isLong ? longValue : Long.parseLong(value);
+		}
+		
+		/**
+		 * Gets the value as a float.
+		 * 
+		 * @return the float value
+		 */
+		public float asFloat()
+		{
+			return isFloat ? floatValue : Float.parseFloat(value);
+		}
+		
+		public String toString()
+		{
+			return value;
+		}
+	}
+}
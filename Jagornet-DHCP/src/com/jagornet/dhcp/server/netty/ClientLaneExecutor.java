@@ -0,0 +1,727 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file ClientLaneExecutor.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.netty;
+
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.jboss.netty.channel.ChannelEvent;
+import org.jboss.netty.channel.MessageEvent;
+import org.jboss.netty.handler.execution.ChannelEventRunnable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jagornet.dhcp.message.DhcpV4Message;
+import com.jagornet.dhcp.message.DhcpV6Message;
+import com.jagornet.dhcp.message.DhcpV6RelayMessage;
+import com.jagornet.dhcp.option.v6.DhcpV6ClientIdOption;
+import com.jagornet.dhcp.option.v6.DhcpV6RelayOption;
+import com.jagornet.dhcp.util.DhcpConstants;
+
+/**
+ * Title: ClientLaneExecutor
+ * Description: The executor used by the ExecutionHandler of the NETTY-based
+ * DHCP server channels.  Each decoded message is hashed by the identity of
+ * the client - the DUID for DHCPv6 or the chaddr for DHCPv4, plus the relay
+ * link address - onto one of a fixed set of single threaded lanes.  So the
+ * messages from any one client are processed in order, but messages from
+ * different clients are processed in parallel, even when they are all
+ * received on the same multicast or broadcast channel.
+ * <p>
+ * The lane threads may be virtual threads, when the JVM supports them, so
+ * that many more lanes than processors can wait cheaply on blocking lease
+ * store I/O.  In that case the number of requests being processed at once
+ * is bounded by a semaphore rather than by the number of lanes.
+ * <p>
+ * Each lane also acts as an admission stage.  Waiting messages are taken
+ * in order of their priority - see {@link #priorityOf(Object)} - and lower
+ * priority messages are dropped while the lane is only partly full, so that
+ * during a request storm the clients with bindings are served first.
+ * Messages that wait longer than the maximum queue time are dropped when
+ * they reach the front of the lane, because the client will already have
+ * retransmitted them.
+ * 
+ * @author A. Gregory Rabil
+ */
+public class ClientLaneExecutor extends AbstractExecutorService
+{
+	private static Logger log = LoggerFactory.getLogger(ClientLaneExecutor.class);
+
+	/** The lanes. */
+	protected final Lane[] lanes;
+	
+	/** The maximum number of messages waiting in a lane. */
+	protected final int laneQueueSize;
+	
+	/** The permits for the tasks running at once, or null if not bounded. */
+	protected final Semaphore inFlight;
+	
+	/** The percentage of the lane queue size available to NORMAL priority messages. */
+	protected volatile int normalQueuePercent = 100;
+	
+	/** The percentage of the lane queue size available to LOW priority messages. */
+	protected volatile int lowQueuePercent = 100;
+	
+	/**
+	 * The priority of a message waiting in a lane.
+	 */
+	public enum Priority
+	{
+		/** Requests that complete, extend, or give up a binding. */
+		HIGH,
+		/** Requests from clients looking for a new binding. */
+		NORMAL,
+		/** Information requests. */
+		LOW
+	}
+
+	/**
+	 * Instantiates a new client lane executor, with a platform
+	 * thread for each lane.
+	 * 
+	 * @param laneCount the number of lanes, each with its own thread
+	 * @param laneQueueSize the maximum number of messages waiting in a lane,
+	 * 			beyond which new messages for that lane are dropped
+	 */
+	public ClientLaneExecutor(int laneCount, int laneQueueSize)
+	{
+		this(laneCount, laneQueueSize, null, 0);
+	}
+
+	/**
+	 * Instantiates a new client lane executor.
+	 * 
+	 * @param laneCount the number of lanes, each with its own thread
+	 * @param laneQueueSize the maximum number of messages waiting in a lane,
+	 * 			beyond which new messages for that lane are dropped
+	 * @param threadFactory the factory for the lane threads, which are
+	 * 			started when needed and stop when idle, or null for a
+	 * 			platform thread for each lane
+	 * @param maxInFlight the maximum number of tasks running at once,
+	 * 			or zero for no bound other than the number of lanes
+	 */
+	public ClientLaneExecutor(int laneCount, int laneQueueSize,
+			ThreadFactory threadFactory, int maxInFlight)
+	{
+		inFlight = (maxInFlight > 0) ? new Semaphore(maxInFlight) : null;
+		lanes = new Lane[Math.max(laneCount, 1)];
+		for (int i=0; i<lanes.length; i++) {
+			lanes[i] = new Lane(i, threadFactory, inFlight);
+		}
+		this.laneQueueSize = laneQueueSize;
+	}
+
+	/**
+	 * Create a factory for virtual threads, if the JVM supports them.
+	 * 
+	 * @param name the name of the threads
+	 * 
+	 * @return the thread factory, or null if virtual threads are not supported
+	 */
+	public static ThreadFactory newVirtualThreadFactory(String name)
+	{
+		try {
+			// Thread.ofVirtual().name(name).factory(), which is Java 21 and later
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class).invoke(builder, name);
+			Method factory = builderClass.getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		}
+		catch (Exception ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Gets the number of tasks that may still start before the maximum
+	 * number of tasks running at once is reached.
+	 * 
+	 * @return the available permits, or -1 if not bounded
+	 */
+	public int getAvailableInFlight()
+	{
+		return (inFlight != null) ? inFlight.availablePermits() : -1;
+	}
+
+	/**
+	 * Sets the share of each lane's queue available to lower priority
+	 * messages.  HIGH priority messages may always fill the whole queue.
+	 * 
+	 * @param normalPercent the percentage of the lane queue size
+	 * 			available to NORMAL priority messages
+	 * @param lowPercent the percentage of the lane queue size
+	 * 			available to LOW priority messages
+	 */
+	public void setPriorityQueuePercents(int normalPercent, int lowPercent)
+	{
+		this.normalQueuePercent = normalPercent;
+		this.lowQueuePercent = lowPercent;
+	}
+	
+	/**
+	 * Sets the maximum time that a message may wait in a lane before it is
+	 * dropped as stale.
+	 * 
+	 * @param millis the maximum queue time in milliseconds, or zero for none
+	 */
+	public void setMaxQueueTime(long millis)
+	{
+		long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+		for (Lane lane : lanes) {
+			lane.maxQueueNanos = nanos;
+		}
+	}
+	
+	/**
+	 * Gets the number of messages of the given priority that may wait in a lane.
+	 * 
+	 * @param priority the priority
+	 * 
+	 * @return the queue limit
+	 */
+	public int getQueueLimit(Priority priority)
+	{
+		switch (priority) {
+			case NORMAL:
+				return (int) ((long) laneQueueSize * normalQueuePercent / 100);
+			case LOW:
+				return (int) ((long) laneQueueSize * lowQueuePercent / 100);
+			default:
+				return laneQueueSize;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.util.concurrent.Executor#execute(java.lang.Runnable)
+	 */
+	@Override
+	public void execute(Runnable task)
+	{
+		if (task instanceof ChannelEventRunnable) {
+			ChannelEvent e = ((ChannelEventRunnable)task).getEvent();
+			if (e instanceof MessageEvent) {
+				execute(task, ((MessageEvent)e).getMessage(), 
+						((MessageEvent)e).getRemoteAddress());
+			}
+			else {
+				// channel state events are kept in order per channel
+				laneFor(e.getChannel().getId()).execute(task);
+			}
+		}
+		else {
+			laneFor(task.hashCode()).execute(task);
+		}
+	}
+	
+	/**
+	 * Execute the task for a received message on the client's lane,
+	 * unless the lane is too full for a message of its priority.
+	 * 
+	 * @param task the task
+	 * @param msg the decoded message
+	 * @param remoteAddr the address the message was received from
+	 * 
+	 * @return true if the message was admitted, false if it was dropped
+	 */
+	protected boolean execute(Runnable task, Object msg, SocketAddress remoteAddr)
+	{
+		Lane lane = laneFor(msg, remoteAddr);
+		Priority priority = priorityOf(msg);
+		if (lane.getQueueDepth() >= getQueueLimit(priority)) {
+			// the client will retransmit, hopefully when we are less busy
+			long dropped = lane.dropped.incrementAndGet(priority.ordinal());
+			if ((dropped == 1) || (dropped % 1000 == 0)) {
+				log.warn("Lane " + lane.index + " is overloaded, dropped " + dropped +
+						" " + priority + " priority messages");
+			}
+			return false;
+		}
+		lane.execute(task, priority, true);
+		return true;
+	}
+	
+	/**
+	 * Gets the priority of a message.  Requests that complete, extend or
+	 * give up a binding are HIGH priority, a SOLICIT or DISCOVER from a
+	 * client looking for a new binding is NORMAL priority, and an
+	 * INFO-REQUEST or INFORM is LOW priority.
+	 * 
+	 * @param msg the decoded message
+	 * 
+	 * @return the priority
+	 */
+	public static Priority priorityOf(Object msg)
+	{
+		if (msg instanceof DhcpV6Message) {
+			DhcpV6Message v6Msg = (DhcpV6Message) msg;
+			while (v6Msg instanceof DhcpV6RelayMessage) {
+				DhcpV6RelayOption relayOption = ((DhcpV6RelayMessage) v6Msg).getRelayOption();
+				v6Msg = (relayOption != null) ? relayOption.getDhcpMessage() : null;
+			}
+			if (v6Msg != null) {
+				switch (v6Msg.getMessageType()) {
+					case DhcpConstants.V6MESSAGE_TYPE_SOLICIT:
+						return Priority.NORMAL;
+					case DhcpConstants.V6MESSAGE_TYPE_INFO_REQUEST:
+						return Priority.LOW;
+				}
+			}
+		}
+		else if (msg instanceof DhcpV4Message) {
+			switch (((DhcpV4Message) msg).getMessageType()) {
+				case DhcpConstants.V4MESSAGE_TYPE_DISCOVER:
+					return Priority.NORMAL;
+				case DhcpConstants.V4MESSAGE_TYPE_INFORM:
+					return Priority.LOW;
+			}
+		}
+		return Priority.HIGH;
+	}
+	
+	/**
+	 * Gets the lane for the given message.
+	 * 
+	 * @param msg the decoded message
+	 * @param remoteAddr the address the message was received from, used
+	 * 			if the message does not identify the client
+	 * 
+	 * @return the lane
+	 */
+	public Lane laneFor(Object msg, SocketAddress remoteAddr)
+	{
+		int hash = 0;
+		InetAddress linkAddr = null;
+		if (msg instanceof DhcpV6Message) {
+			DhcpV6Message v6Msg = (DhcpV6Message) msg;
+			while (v6Msg instanceof DhcpV6RelayMessage) {
+				DhcpV6RelayMessage relayMsg = (DhcpV6RelayMessage) v6Msg;
+				if (linkAddr == null) {
+					linkAddr = relayMsg.getLinkAddress();
+				}
+				DhcpV6RelayOption relayOption = relayMsg.getRelayOption();
+				v6Msg = (relayOption != null) ? relayOption.getDhcpMessage() : null;
+			}
+			if (v6Msg != null) {
+				DhcpV6ClientIdOption clientIdOption = v6Msg.getDhcpClientIdOption();
+				if (clientIdOption != null) {
+					hash = Arrays.hashCode(clientIdOption.getDuid());
+				}
+			}
+		}
+		else if (msg instanceof DhcpV4Message) {
+			DhcpV4Message v4Msg = (DhcpV4Message) msg;
+			hash = Arrays.hashCode(v4Msg.getChAddr());
+			linkAddr = v4Msg.getGiAddr();
+		}
+		if ((hash == 0) && (remoteAddr != null)) {
+			hash = remoteAddr.hashCode();
+		}
+		if (linkAddr != null) {
+			hash = 31 * hash + linkAddr.hashCode();
+		}
+		return laneFor(hash);
+	}
+	
+	/**
+	 * Gets the lane for the given hash.
+	 * 
+	 * @param hash the hash
+	 * 
+	 * @return the lane
+	 */
+	protected Lane laneFor(int hash)
+	{
+		// spread the high bits, which the modulus would otherwise ignore
+		hash ^= (hash >>> 16);
+		return lanes[(hash & 0x7fffffff) % lanes.length];
+	}
+	
+	/**
+	 * Gets the number of lanes.
+	 * 
+	 * @return the lane count
+	 */
+	public int getLaneCount()
+	{
+		return lanes.length;
+	}
+	
+	/**
+	 * Gets a lane.
+	 * 
+	 * @param index the lane index
+	 * 
+	 * @return the lane
+	 */
+	public Lane getLane(int index)
+	{
+		return lanes[index];
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.util.concurrent.ExecutorService#shutdown()
+	 */
+	@Override
+	public void shutdown()
+	{
+		for (Lane lane : lanes) {
+			lane.executor.shutdown();
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.util.concurrent.ExecutorService#shutdownNow()
+	 */
+	@Override
+	public List<Runnable> shutdownNow()
+	{
+		List<Runnable> tasks = new ArrayList<Runnable>();
+		for (Lane lane : lanes) {
+			tasks.addAll(lane.executor.shutdownNow());
+		}
+		return tasks;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.util.concurrent.ExecutorService#isShutdown()
+	 */
+	@Override
+	public boolean isShutdown()
+	{
+		for (Lane lane : lanes) {
+			if (!lane.executor.isShutdown()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.util.concurrent.ExecutorService#isTerminated()
+	 */
+	@Override
+	public boolean isTerminated()
+	{
+		for (Lane lane : lanes) {
+			if (!lane.executor.isTerminated()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see java.util.concurrent.ExecutorService#awaitTermination(long, java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException
+	{
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		for (Lane lane : lanes) {
+			long remaining = deadline - System.nanoTime();
+			if (!lane.executor.awaitTermination(remaining, TimeUnit.NANOSECONDS)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Gets the number of messages of the given priority dropped
+	 * because their lanes were too full.
+	 * 
+	 * @param priority the priority
+	 * 
+	 * @return the dropped count
+	 */
+	public long getDroppedCount(Priority priority)
+	{
+		long count = 0;
+		for (Lane lane : lanes) {
+			count += lane.getDroppedCount(priority);
+		}
+		return count;
+	}
+	
+	/**
+	 * Gets the number of messages dropped because they waited too long.
+	 * 
+	 * @return the stale count
+	 */
+	public long getStaleCount()
+	{
+		long count = 0;
+		for (Lane lane : lanes) {
+			count += lane.getStaleCount();
+		}
+		return count;
+	}
+	
+	@Override
+	public String toString()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("ClientLaneExecutor:");
+		for (Lane lane : lanes) {
+			// there may be very many lanes, so skip those never used
+			if ((lane.getProcessedCount() > 0) || (lane.getDroppedCount() > 0) ||
+					(lane.getStaleCount() > 0)) {
+				sb.append(' ');
+				sb.append(lane.toString());
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * A single threaded lane, and its metrics.
+	 */
+	public static class Lane
+	{
+		protected final int index;
+		protected final ThreadPoolExecutor executor;
+		protected final AtomicLong processed = new AtomicLong();
+		protected final AtomicLongArray dropped = new AtomicLongArray(Priority.values().length);
+		protected final AtomicLong stale = new AtomicLong();
+		protected final AtomicLong totalWaitNanos = new AtomicLong();
+		protected final AtomicLong maxWaitNanos = new AtomicLong();
+		protected final AtomicLong sequence = new AtomicLong();
+		protected volatile long maxQueueNanos = 0;
+		
+		protected final Semaphore inFlight;
+
+		protected Lane(final int index, ThreadFactory threadFactory, Semaphore inFlight)
+		{
+			this.index = index;
+			this.inFlight = inFlight;
+			if (threadFactory != null) {
+				executor = new ThreadPoolExecutor(1, 1, 60L, TimeUnit.SECONDS,
+						new PriorityBlockingQueue<Runnable>(), threadFactory);
+				// don't keep a thread for every idle lane
+				executor.allowCoreThreadTimeOut(true);
+			}
+			else {
+				executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+						new PriorityBlockingQueue<Runnable>(),
+						new ThreadFactory() {
+							public Thread newThread(Runnable r) {
+								return new Thread(r, "DhcpClientLane-" + index);
+							}
+						});
+			}
+		}
+
+		protected void execute(Runnable task)
+		{
+			execute(task, Priority.HIGH, false);
+		}
+		
+		protected void execute(Runnable task, Priority priority, boolean expires)
+		{
+			executor.execute(new LaneTask(task, priority, expires));
+		}
+		
+		/**
+		 * A task waiting in a lane, ordered by priority, then by arrival.
+		 */
+		protected class LaneTask implements Runnable, Comparable<LaneTask>
+		{
+			private final Runnable task;
+			private final Priority priority;
+			private final boolean expires;
+			private final long seq = sequence.getAndIncrement();
+			private final long queued = System.nanoTime();
+			
+			protected LaneTask(Runnable task, Priority priority, boolean expires)
+			{
+				this.task = task;
+				this.priority = priority;
+				this.expires = expires;
+			}
+			
+			public int compareTo(LaneTask other)
+			{
+				int cmp = priority.compareTo(other.priority);
+				if (cmp == 0) {
+					cmp = (seq < other.seq) ? -1 : ((seq == other.seq) ? 0 : 1);
+				}
+				return cmp;
+			}
+			
+			public void run()
+			{
+				if (inFlight != null) {
+					try {
+						inFlight.acquire();
+					}
+					catch (InterruptedException ex) {
+						// the executor is shutting down
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+				try {
+					long wait = System.nanoTime() - queued;
+					long maxQueue = maxQueueNanos;
+					if (expires && (maxQueue > 0) && (wait > maxQueue)) {
+						stale.incrementAndGet();
+						return;
+					}
+					totalWaitNanos.addAndGet(wait);
+					long max = maxWaitNanos.get();
+					while ((wait > max) && !maxWaitNanos.compareAndSet(max, wait)) {
+						max = maxWaitNanos.get();
+					}
+					processed.incrementAndGet();
+					task.run();
+				}
+				finally {
+					if (inFlight != null) {
+						inFlight.release();
+					}
+				}
+			}
+		}
+
+		/**
+		 * Gets the index of the lane.
+		 * 
+		 * @return the index
+		 */
+		public int getIndex()
+		{
+			return index;
+		}
+		
+		/**
+		 * Gets the number of tasks waiting in the lane.
+		 * 
+		 * @return the queue depth
+		 */
+		public int getQueueDepth()
+		{
+			return executor.getQueue().size();
+		}
+		
+		/**
+		 * Gets the number of tasks started by the lane.
+		 * 
+		 * @return the processed count
+		 */
+		public long getProcessedCount()
+		{
+			return processed.get();
+		}
+		
+		/**
+		 * Gets the number of messages dropped because the lane was full.
+		 * 
+		 * @return the dropped count
+		 */
+		public long getDroppedCount()
+		{
+			long count = 0;
+			for (int i=0; i<dropped.length(); i++) {
+				count += dropped.get(i);
+			}
+			return count;
+		}
+		
+		/**
+		 * Gets the number of messages of the given priority
+		 * dropped because the lane was too full.
+		 * 
+		 * @param priority the priority
+		 * 
+		 * @return the dropped count
+		 */
+		public long getDroppedCount(Priority priority)
+		{
+			return dropped.get(priority.ordinal());
+		}
+		
+		/**
+		 * Gets the number of messages dropped because they waited too long.
+		 * 
+		 * @return the stale count
+		 */
+		public long getStaleCount()
+		{
+			return stale.get();
+		}
+		
+		/**
+		 * Gets the average time that tasks waited in the lane.
+		 * 
+		 * @return the average wait time in microseconds
+		 */
+		public long getAverageWaitMicros()
+		{
+			long count = processed.get();
+			return (count > 0) ? (totalWaitNanos.get() / count / 1000) : 0;
+		}
+		
+		/**
+		 * Gets the longest time that a task waited in the lane.
+		 * 
+		 * @return the maximum wait time in microseconds
+		 */
+		public long getMaxWaitMicros()
+		{
+			return maxWaitNanos.get() / 1000;
+		}
+		
+		@Override
+		public String toString()
+		{
+			return "lane" + index + "[depth=" + getQueueDepth() +
+					" processed=" + getProcessedCount() +
+					" dropped=" + getDroppedCount() +
+					" stale=" + getStaleCount() +
+					" avgWaitUs=" + getAverageWaitMicros() +
+					" maxWaitUs=" + getMaxWaitMicros() + "]";
+		}
+	}
+}
@@ -63,10 +63,20 @@ public class DhcpV4ChannelDecoder extends OneToOneDecoder
     
     protected boolean ignoreSelfPackets;
     
+    /** The rate limiter, or null if packets are not rate limited. */
+    protected RateLimiter rateLimiter;
+    
     public DhcpV4ChannelDecoder(InetSocketAddress localSocketAddress, boolean ignoreSelfPackets)
+    {
+    	this(localSocketAddress, ignoreSelfPackets, null);
+    }
+    
+    public DhcpV4ChannelDecoder(InetSocketAddress localSocketAddress, boolean ignoreSelfPackets,
+    		RateLimiter rateLimiter)
     {
     	this.localSocketAddress = localSocketAddress;
     	this.ignoreSelfPackets = ignoreSelfPackets;
+    	this.rateLimiter = rateLimiter;
     }
     
     /*
@@ -100,6 +110,15 @@ public class DhcpV4ChannelDecoder extends OneToOneDecoder
     	
         if (msg instanceof ChannelBuffer) {
         	ChannelBuffer buf = (ChannelBuffer) msg;
+        	if ((rateLimiter != null) &&
+        		!rateLimiter.checkV4(buf, localSocketAddress, remoteSocketAddress)) {
+        		if (log.isDebugEnabled()) {
+        			log.debug("Dropping packet from " +
+        						remoteSocketAddress.getAddress().getHostAddress() +
+        						": rate limit exceeded");
+        		}
+        		return null;
+        	}
             DhcpV4Message dhcpMessage =  
             	DhcpV4Message.decode(buf.toByteBuffer(), localSocketAddress, remoteSocketAddress);
             return dhcpMessage;
@@ -27,7 +27,7 @@ package com.jagornet.dhcp.server.netty;
 
 import java.nio.ByteBuffer;
 
-import org.jboss.netty.buffer.ByteBufferBackedChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelHandlerContext;
@@ -61,10 +61,18 @@ public class DhcpV4ChannelEncoder extends OneToOneEncoder
     {
         if (msg instanceof DhcpV4Message) {
             DhcpV4Message dhcpMessage = (DhcpV4Message) msg;
-            ByteBuffer buf = dhcpMessage.encode();
+            // encode straight into a buffer of the exact length, which
+            // comes from the channel's buffer factory, so that it may be
+            // a direct buffer sliced from a preallocated pool
+            int len = dhcpMessage.getLength();
+            ChannelBuffer cbuf = channel.getConfig().getBufferFactory().getBuffer(len);
+            ByteBuffer buf = cbuf.toByteBuffer(0, len);
+            int start = buf.position();
+            dhcpMessage.encode(buf);
+            cbuf.writerIndex(buf.position() - start);
             if (log.isDebugEnabled())
-            	log.debug("Encoded message buffer limit=" + buf.limit());
-            return new ByteBufferBackedChannelBuffer(buf);
+            	log.debug("Encoded message buffer length=" + cbuf.readableBytes());
+            return cbuf;
         }
         else {
             String errmsg = "Unknown message object class: " + msg.getClass();
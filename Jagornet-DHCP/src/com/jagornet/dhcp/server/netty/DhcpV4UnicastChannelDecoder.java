@@ -48,10 +48,13 @@ public class DhcpV4UnicastChannelDecoder extends DhcpV4ChannelDecoder
 	 * Instantiates a new dhcp unicast channel decoder.
 	 *
 	 * @param localSocketAddress the local socket address
+	 * @param ignoreSelfPackets true to ignore packets from the server's addresses
+	 * @param rateLimiter the rate limiter, or null if packets are not rate limited
 	 */
-	public DhcpV4UnicastChannelDecoder(InetSocketAddress localSocketAddress, boolean ignoreSelfPackets)
+	public DhcpV4UnicastChannelDecoder(InetSocketAddress localSocketAddress, boolean ignoreSelfPackets,
+			RateLimiter rateLimiter)
 	{
-		super(localSocketAddress, ignoreSelfPackets);
+		super(localSocketAddress, ignoreSelfPackets, rateLimiter);
 	}
 
 	/* (non-Javadoc)
@@ -60,10 +60,20 @@ public class DhcpV6ChannelDecoder extends OneToOneDecoder
     
     protected boolean ignoreSelfPackets;
     
+    /** The rate limiter, or null if packets are not rate limited. */
+    protected RateLimiter rateLimiter;
+    
     public DhcpV6ChannelDecoder(InetSocketAddress localSocketAddress, boolean ignoreSelfPackets)
+    {
+    	this(localSocketAddress, ignoreSelfPackets, null);
+    }
+    
+    public DhcpV6ChannelDecoder(InetSocketAddress localSocketAddress, boolean ignoreSelfPackets,
+    		RateLimiter rateLimiter)
     {
     	this.localSocketAddress = localSocketAddress;
     	this.ignoreSelfPackets = ignoreSelfPackets;
+    	this.rateLimiter = rateLimiter;
     }
     
     /*
@@ -83,6 +93,15 @@ public class DhcpV6ChannelDecoder extends OneToOneDecoder
     	}
     	if (msg instanceof ChannelBuffer) {
             ChannelBuffer buf = (ChannelBuffer) msg;
+            if ((rateLimiter != null) &&
+            	!rateLimiter.checkV6(buf, localSocketAddress, remoteSocketAddress)) {
+            	if (log.isDebugEnabled()) {
+            		log.debug("Dropping packet from " +
+            					remoteSocketAddress.getAddress().getHostAddress() +
+            					": rate limit exceeded");
+            	}
+            	return null;
+            }
             DhcpV6Message dhcpMessage = 
             	DhcpV6Message.decode(buf.toByteBuffer(), localSocketAddress, remoteSocketAddress);
             return dhcpMessage;
@@ -27,7 +27,7 @@ package com.jagornet.dhcp.server.netty;
 
 import java.nio.ByteBuffer;
 
-import org.jboss.netty.buffer.ByteBufferBackedChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelHandler;
 import org.jboss.netty.channel.ChannelHandlerContext;
@@ -59,8 +59,18 @@ public class DhcpV6ChannelEncoder extends OneToOneEncoder
     {
         if (msg instanceof DhcpV6Message) {
             DhcpV6Message dhcpMessage = (DhcpV6Message) msg;
-            ByteBuffer buf = dhcpMessage.encode();
-            return new ByteBufferBackedChannelBuffer(buf);
+            // encode straight into a buffer of the exact length, which
+            // comes from the channel's buffer factory, so that it may be
+            // a direct buffer sliced from a preallocated pool
+            int len = dhcpMessage.getLength();
+            ChannelBuffer cbuf = channel.getConfig().getBufferFactory().getBuffer(len);
+            ByteBuffer buf = cbuf.toByteBuffer(0, len);
+            int start = buf.position();
+            dhcpMessage.encode(buf);
+            cbuf.writerIndex(buf.position() - start);
+            if (log.isDebugEnabled())
+            	log.debug("Encoded message buffer length=" + cbuf.readableBytes());
+            return cbuf;
         }
         else {
             String errmsg = "Unknown message object class: " + msg.getClass();
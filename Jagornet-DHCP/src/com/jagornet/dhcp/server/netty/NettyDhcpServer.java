@@ -26,6 +26,7 @@
 package com.jagornet.dhcp.server.netty;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.DatagramSocket;
 import java.net.Inet4Address;
 import java.net.InetAddress;
@@ -40,7 +41,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
+import org.jboss.netty.buffer.DirectChannelBufferFactory;
 import org.jboss.netty.channel.Channel;
 import org.jboss.netty.channel.ChannelFuture;
 import org.jboss.netty.channel.ChannelPipeline;
@@ -57,6 +60,8 @@ import org.jboss.netty.logging.Log4JLoggerFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.jagornet.dhcp.message.LazyOptionMap;
+import com.jagornet.dhcp.option.DhcpOptionRegistry;
 import com.jagornet.dhcp.server.config.DhcpServerConfigException;
 import com.jagornet.dhcp.server.config.DhcpServerPolicies;
 import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
@@ -68,7 +73,10 @@ import com.jagornet.dhcp.util.Util;
  * Java NIO DatagramChannels for receiving unicast messages.
  * It uses OIO (java.net) DatagramSockets for receiving
  * multicast messages.  Java 7 is required to support
- * MulticastChannels.
+ * MulticastChannels.  When the JVM and the OS support
+ * SO_REUSEPORT, several NIO DatagramChannels may be bound
+ * to each unicast address, each read by its own I/O worker,
+ * so that the kernel spreads the client flows across them.
  * 
  * @author A. Gregory Rabil
  */
@@ -100,6 +108,15 @@ public class NettyDhcpServer
     /** The executor service thread pool for processing requests. */
     protected ExecutorService executorService = Executors.newCachedThreadPool();
     
+    /** The executor shared by all channels to process requests in order per client. */
+    protected ClientLaneExecutor laneExecutor;
+    
+    /** The rate limiter shared by all channel decoders, or null if not rate limiting. */
+    protected RateLimiter rateLimiter;
+    
+    /** The SO_REUSEPORT socket option, or null if not supported by the JVM. */
+    private static final Object REUSEPORT_OPTION = findReusePortOption();
+    
     /**
      * Create a NettyDhcpServer.
      * 
@@ -143,13 +160,99 @@ public class NettyDhcpServer
         			DhcpServerPolicies.globalPolicyAsInt(Property.CHANNEL_READ_BUFFER_SIZE);
         	int sendBufSize = 
         			DhcpServerPolicies.globalPolicyAsInt(Property.CHANNEL_WRITE_BUFFER_SIZE);
+        	int socketCount = 
+        			DhcpServerPolicies.globalPolicyAsInt(Property.CHANNEL_SOCKET_COUNT);
+        	int clientLanes = 
+        			DhcpServerPolicies.globalPolicyAsInt(Property.CHANNEL_CLIENT_LANES);
+        	int laneQueueSize = 
+        			DhcpServerPolicies.globalPolicyAsInt(Property.CHANNEL_LANE_QUEUE_SIZE);
+        	boolean virtualThreads = 
+        			DhcpServerPolicies.globalPolicyAsBoolean(Property.CHANNEL_VIRTUAL_THREADS);
+        	int maxInFlightRequests = 
+        			DhcpServerPolicies.globalPolicyAsInt(Property.CHANNEL_MAX_IN_FLIGHT_REQUESTS);
+        	int normalQueuePercent = 
+        			DhcpServerPolicies.globalPolicyAsInt(Property.CHANNEL_NORMAL_PRIORITY_QUEUE_PERCENT);
+        	int lowQueuePercent = 
+        			DhcpServerPolicies.globalPolicyAsInt(Property.CHANNEL_LOW_PRIORITY_QUEUE_PERCENT);
+        	long maxQueueTime = 
+        			DhcpServerPolicies.globalPolicyAsLong(Property.CHANNEL_MAX_QUEUE_TIME);
+        	boolean directBuffers = 
+        			DhcpServerPolicies.globalPolicyAsBoolean(Property.CHANNEL_DIRECT_BUFFERS);
+        	int rateLimitTableSize = 
+        			DhcpServerPolicies.globalPolicyAsInt(Property.DHCP_RATE_LIMIT_TABLE_SIZE);
+        	boolean lazyOptionDecoding = 
+        			DhcpServerPolicies.globalPolicyAsBoolean(Property.DHCP_LAZY_OPTION_DECODING);
+        	String customOptions = 
+        			DhcpServerPolicies.globalPolicy(Property.DHCP_CUSTOM_OPTIONS);
+        	if (socketCount < 1) {
+        		socketCount = 1;
+        	}
+        	else if ((socketCount > 1) && (Util.IS_WINDOWS || (REUSEPORT_OPTION == null))) {
+        		log.warn("SO_REUSEPORT is not supported, using one socket per unicast address");
+        		socketCount = 1;
+        	}
         	
         	log.info("Initializing channels:" + 
         			" corePoolSize=" + corePoolSize +
         			" maxChannelMemorySize=" + maxChannelMemorySize +
         			" maxTotalMemorySize=" + maxTotalMemorySize + 
         			" receiveBufferSize=" + receiveBufSize +
-        			" sendBufferSize=" + sendBufSize);
+        			" sendBufferSize=" + sendBufSize +
+        			" socketCount=" + socketCount +
+        			" directBuffers=" + directBuffers +
+        			" clientLanes=" + clientLanes +
+        			" laneQueueSize=" + laneQueueSize +
+        			" normalPriorityQueuePercent=" + normalQueuePercent +
+        			" lowPriorityQueuePercent=" + lowQueuePercent +
+        			" maxQueueTime=" + maxQueueTime +
+        			" lazyOptionDecoding=" + lazyOptionDecoding);
+        	
+        	LazyOptionMap.setEnabled(lazyOptionDecoding);
+        	if ((customOptions != null) && (customOptions.trim().length() > 0)) {
+        		log.info("Registering custom options: " + customOptions);
+        		DhcpOptionRegistry.registerAll(customOptions);
+        	}
+        	
+        	ExecutionHandler laneExecutionHandler = null;
+        	if (clientLanes > 0) {
+        		ThreadFactory threadFactory = null;
+        		int maxInFlight = 0;
+        		if (virtualThreads) {
+        			threadFactory = ClientLaneExecutor.newVirtualThreadFactory("DhcpClientLane");
+        			if (threadFactory != null) {
+        				// threads are cheap, so there may be more lanes than
+        				// requests in flight, and then the semaphore is the bound
+        				maxInFlight = maxInFlightRequests;
+        				log.info("Using virtual threads for " + clientLanes + 
+        						" client lanes, maxInFlightRequests=" + maxInFlight);
+        				if ((maxInFlight > 0) && (clientLanes <= maxInFlight)) {
+        					log.warn("Each client lane runs one request at a time," +
+        							" so maxInFlightRequests=" + maxInFlight + 
+        							" has no effect unless clientLanes is greater");
+        				}
+        			}
+        			else {
+        				log.warn("Virtual threads are not supported by this JVM," +
+        						" using a platform thread for each client lane");
+        			}
+        		}
+        		// one set of lanes, shared by the handlers of all channels
+        		laneExecutor = new ClientLaneExecutor(clientLanes, laneQueueSize,
+        											threadFactory, maxInFlight);
+        		laneExecutor.setPriorityQueuePercents(normalQueuePercent, lowQueuePercent);
+        		laneExecutor.setMaxQueueTime(maxQueueTime);
+        		laneExecutionHandler = new ExecutionHandler(laneExecutor);
+        	}
+        	else if (virtualThreads) {
+        		log.warn("Virtual threads are only used for client lanes," +
+        				" but channel.clientLanes=" + clientLanes);
+        	}
+        	
+        	if ((rateLimitTableSize > 0) && RateLimiter.isConfigured()) {
+        		// one table of buckets, shared by the decoders of all channels
+        		rateLimiter = new RateLimiter(corePoolSize, rateLimitTableSize);
+        		log.info("Rate limiting clients and relays: tableSize=" + rateLimitTableSize);
+        	}
         	
         	boolean v6SocketChecked = false;
         	if (v6Addrs != null) {
@@ -160,15 +263,13 @@ public class NettyDhcpServer
 	        	for (InetAddress addr : v6Addrs) {
 	        		// local address for packets received on this channel
 		            InetSocketAddress sockAddr = new InetSocketAddress(addr, v6Port); 
-	        		ChannelPipeline pipeline = Channels.pipeline();
-		            pipeline.addLast("logger", new LoggingHandler());
-		            pipeline.addLast("decoder", new DhcpV6UnicastChannelDecoder(sockAddr, ignoreSelfPackets));
-		            pipeline.addLast("encoder", new DhcpV6ChannelEncoder());
-		            pipeline.addLast("executor", new ExecutionHandler(
-		            		new OrderedMemoryAwareThreadPoolExecutor(corePoolSize, 
-		            												maxChannelMemorySize,
-		            												maxTotalMemorySize)));
-		            pipeline.addLast("handler", new DhcpV6ChannelHandler());
+		            // the channels bound to the same address share the executor
+		            ExecutionHandler executionHandler = (laneExecutionHandler != null) ?
+		            		laneExecutionHandler :
+		            		new ExecutionHandler(
+		            			new OrderedMemoryAwareThreadPoolExecutor(corePoolSize, 
+		            													maxChannelMemorySize,
+		            													maxTotalMemorySize));
 	        		
 		            String io = null;
 		            DatagramChannelFactory factory = null;
@@ -178,25 +279,49 @@ public class NettyDhcpServer
 		            	io = "Old I/O";
 		            }
 		            else {
-		            	// Use NioDatagramChannels for IPv6 unicast addresses on real OSes
-		                factory = new NioDatagramChannelFactory(executorService);
+		            	// Use NioDatagramChannels for IPv6 unicast addresses on real OSes,
+		            	// with one I/O worker for each of the channels bound to the address
+		                factory = new NioDatagramChannelFactory(executorService, socketCount);
 		                io = "New I/O";
 		            }
 	
-		            // create an unbound channel
-		            DatagramChannel channel = factory.newChannel(pipeline);
-		            channel.getConfig().setReuseAddress(true);
-		            channel.getConfig().setReceiveBufferSize(receiveBufSize);
-		            channel.getConfig().setSendBufferSize(sendBufSize);
-		            
-		            log.info("Binding " + io + " datagram channel on IPv6 socket address: " + sockAddr);
-		            ChannelFuture future = channel.bind(sockAddr);
-		            future.await();
-		            if (!future.isSuccess()) {
-		            	log.error("Failed to bind to IPv6 unicast channel: " + future.getCause());
-		            	throw new IOException(future.getCause());
+		            int addrSocketCount = socketCount;
+		            for (int i=0; i<addrSocketCount; i++) {
+		        		ChannelPipeline pipeline = Channels.pipeline();
+			            pipeline.addLast("logger", new LoggingHandler());
+			            pipeline.addLast("decoder", new DhcpV6UnicastChannelDecoder(sockAddr, ignoreSelfPackets, rateLimiter));
+			            pipeline.addLast("encoder", new DhcpV6ChannelEncoder());
+			            pipeline.addLast("executor", executionHandler);
+			            pipeline.addLast("handler", new DhcpV6ChannelHandler());
+			            
+			            // create an unbound channel
+			            DatagramChannel channel = factory.newChannel(pipeline);
+			            channel.getConfig().setReuseAddress(true);
+			            channel.getConfig().setReceiveBufferSize(receiveBufSize);
+			            channel.getConfig().setSendBufferSize(sendBufSize);
+			            if (directBuffers) {
+			            	channel.getConfig().setBufferFactory(DirectChannelBufferFactory.getInstance());
+			            }
+			            if ((addrSocketCount > 1) && !setReusePort(channel)) {
+			            	if (i > 0) {
+			            		// the channels already bound have SO_REUSEPORT set,
+			            		// so this channel cannot be bound to the same address
+			            		log.warn("Binding only " + i + " datagram channels on IPv6 socket address: " + sockAddr);
+			            		channel.close();
+			            		break;
+			            	}
+			            	addrSocketCount = 1;
+			            }
+			            
+			            log.info("Binding " + io + " datagram channel on IPv6 socket address: " + sockAddr);
+			            ChannelFuture future = channel.bind(sockAddr);
+			            future.await();
+			            if (!future.isSuccess()) {
+			            	log.error("Failed to bind to IPv6 unicast channel: " + future.getCause());
+			            	throw new IOException(future.getCause());
+			            }
+			            channels.add(channel);
 		            }
-		            channels.add(channel);
 	        	}
         	}
         	
@@ -217,12 +342,14 @@ public class NettyDhcpServer
 		            InetSocketAddress sockAddr = new InetSocketAddress(addr, v6Port); 
 		            ChannelPipeline pipeline = Channels.pipeline();
 		            pipeline.addLast("logger", new LoggingHandler());
-		            pipeline.addLast("decoder", new DhcpV6ChannelDecoder(sockAddr, ignoreSelfPackets));
+		            pipeline.addLast("decoder", new DhcpV6ChannelDecoder(sockAddr, ignoreSelfPackets, rateLimiter));
 		            pipeline.addLast("encoder", new DhcpV6ChannelEncoder());
-		            pipeline.addLast("executor", new ExecutionHandler(
-		            		new OrderedMemoryAwareThreadPoolExecutor(corePoolSize, 
-																	maxChannelMemorySize,
-																	maxTotalMemorySize)));
+		            pipeline.addLast("executor", (laneExecutionHandler != null) ?
+		            		laneExecutionHandler :
+		            		new ExecutionHandler(
+		            			new OrderedMemoryAwareThreadPoolExecutor(corePoolSize, 
+		            													maxChannelMemorySize,
+		            													maxTotalMemorySize)));
 		            pipeline.addLast("handler", new DhcpV6ChannelHandler());
 	
 		        	// Use OioDatagramChannels for IPv6 multicast interfaces
@@ -234,6 +361,9 @@ public class NettyDhcpServer
 	            	channel.getConfig().setReuseAddress(true);
 		            channel.getConfig().setReceiveBufferSize(receiveBufSize);
 		            channel.getConfig().setSendBufferSize(sendBufSize);
+		            if (directBuffers) {
+		            	channel.getConfig().setBufferFactory(DirectChannelBufferFactory.getInstance());
+		            }
 		            
 		            // must be bound in order to join multicast group
 		            InetSocketAddress wildAddr = new InetSocketAddress(DhcpConstants.ZEROADDR_V6, v6Port);
@@ -266,15 +396,13 @@ public class NettyDhcpServer
 	        	for (InetAddress addr : v4Addrs) {
 	        		// local address for packets received on this channel
 		            InetSocketAddress sockAddr = new InetSocketAddress(addr, v4Port); 
-	        		ChannelPipeline pipeline = Channels.pipeline();
-		            pipeline.addLast("logger", new LoggingHandler());
-		            pipeline.addLast("decoder", new DhcpV4UnicastChannelDecoder(sockAddr, ignoreSelfPackets));
-		            pipeline.addLast("encoder", new DhcpV4ChannelEncoder());
-		            pipeline.addLast("executor", new ExecutionHandler(
-		            		new OrderedMemoryAwareThreadPoolExecutor(corePoolSize, 
-																	maxChannelMemorySize,
-																	maxTotalMemorySize)));
-		            pipeline.addLast("handler", new DhcpV4ChannelHandler(null));
+		            // the channels bound to the same address share the executor
+		            ExecutionHandler executionHandler = (laneExecutionHandler != null) ?
+		            		laneExecutionHandler :
+		            		new ExecutionHandler(
+		            			new OrderedMemoryAwareThreadPoolExecutor(corePoolSize, 
+		            													maxChannelMemorySize,
+		            													maxTotalMemorySize));
 	        		
 		            String io = null;
 		            DatagramChannelFactory factory = null;
@@ -284,28 +412,55 @@ public class NettyDhcpServer
 		            	io = "Old I/O";
 		            }
 		            else {
-		            	// Use NioDatagramChannels for IPv4 unicast addresses on real OSes
-		                factory = new NioDatagramChannelFactory(executorService);
+		            	// Use NioDatagramChannels for IPv4 unicast addresses on real OSes,
+		            	// with one I/O worker for each of the channels bound to the address
+		                factory = new NioDatagramChannelFactory(executorService, socketCount);
 		                io = "New I/O";
 		            }
 	
-		            // create an unbound channel
-		            DatagramChannel channel = factory.newChannel(pipeline);
-		            channel.getConfig().setReuseAddress(true);
-		            channel.getConfig().setBroadcast(true);
-		            channel.getConfig().setReceiveBufferSize(receiveBufSize);
-		            channel.getConfig().setSendBufferSize(sendBufSize);
-
-		            v4UcastChannels.put(addr, channel);
-		            
-		            log.info("Binding " + io + " datagram channel on IPv4 socket address: " + sockAddr);
-		            ChannelFuture future = channel.bind(sockAddr);
-		            future.await();
-		            if (!future.isSuccess()) {
-		            	log.error("Failed to bind to IPv4 unicast channel: " + future.getCause());
-		            	throw new IOException(future.getCause());
+		            int addrSocketCount = socketCount;
+		            for (int i=0; i<addrSocketCount; i++) {
+		        		ChannelPipeline pipeline = Channels.pipeline();
+			            pipeline.addLast("logger", new LoggingHandler());
+			            pipeline.addLast("decoder", new DhcpV4UnicastChannelDecoder(sockAddr, ignoreSelfPackets, rateLimiter));
+			            pipeline.addLast("encoder", new DhcpV4ChannelEncoder());
+			            pipeline.addLast("executor", executionHandler);
+			            pipeline.addLast("handler", new DhcpV4ChannelHandler(null));
+			            
+			            // create an unbound channel
+			            DatagramChannel channel = factory.newChannel(pipeline);
+			            channel.getConfig().setReuseAddress(true);
+			            channel.getConfig().setBroadcast(true);
+			            channel.getConfig().setReceiveBufferSize(receiveBufSize);
+			            channel.getConfig().setSendBufferSize(sendBufSize);
+			            if (directBuffers) {
+			            	channel.getConfig().setBufferFactory(DirectChannelBufferFactory.getInstance());
+			            }
+			            if ((addrSocketCount > 1) && !setReusePort(channel)) {
+			            	if (i > 0) {
+			            		// the channels already bound have SO_REUSEPORT set,
+			            		// so this channel cannot be bound to the same address
+			            		log.warn("Binding only " + i + " datagram channels on IPv4 socket address: " + sockAddr);
+			            		channel.close();
+			            		break;
+			            	}
+			            	addrSocketCount = 1;
+			            }
+	
+			            if (i == 0) {
+			            	// the first channel sends the replies for the broadcast channel
+			            	v4UcastChannels.put(addr, channel);
+			            }
+			            
+			            log.info("Binding " + io + " datagram channel on IPv4 socket address: " + sockAddr);
+			            ChannelFuture future = channel.bind(sockAddr);
+			            future.await();
+			            if (!future.isSuccess()) {
+			            	log.error("Failed to bind to IPv4 unicast channel: " + future.getCause());
+			            	throw new IOException(future.getCause());
+			            }
+			            channels.add(channel);
 		            }
-		            channels.add(channel);
 	        	}
         	}
         	
@@ -332,12 +487,14 @@ public class NettyDhcpServer
 			            InetSocketAddress sockAddr = new InetSocketAddress(addr, v4Port); 
         				ChannelPipeline pipeline = Channels.pipeline();
 			            pipeline.addLast("logger", new LoggingHandler());
-			            pipeline.addLast("decoder", new DhcpV4ChannelDecoder(sockAddr, ignoreSelfPackets));
+			            pipeline.addLast("decoder", new DhcpV4ChannelDecoder(sockAddr, ignoreSelfPackets, rateLimiter));
 			            pipeline.addLast("encoder", new DhcpV4ChannelEncoder());
-			            pipeline.addLast("executor", new ExecutionHandler(
-			            		new OrderedMemoryAwareThreadPoolExecutor(corePoolSize, 
-																		maxChannelMemorySize,
-																		maxTotalMemorySize)));
+			            pipeline.addLast("executor", (laneExecutionHandler != null) ?
+			            		laneExecutionHandler :
+			            		new ExecutionHandler(
+			            			new OrderedMemoryAwareThreadPoolExecutor(corePoolSize, 
+			            													maxChannelMemorySize,
+			            													maxTotalMemorySize)));
 			            pipeline.addLast("handler", new DhcpV4ChannelHandler(bcastChannel));
 		        		
 			            DatagramChannelFactory factory = new NioDatagramChannelFactory(executorService);
@@ -348,6 +505,9 @@ public class NettyDhcpServer
 			            channel.getConfig().setBroadcast(true);
 			            channel.getConfig().setReceiveBufferSize(receiveBufSize);
 			            channel.getConfig().setSendBufferSize(sendBufSize);
+			            if (directBuffers) {
+			            	channel.getConfig().setBufferFactory(DirectChannelBufferFactory.getInstance());
+			            }
 			            
 			            InetSocketAddress wildAddr = new InetSocketAddress(DhcpConstants.ZEROADDR_V4, v4Port);
 			            log.info("Binding New I/O datagram channel on IPv4 wildcard address: " + wildAddr);
@@ -380,6 +540,52 @@ public class NettyDhcpServer
             });
     }
     
+    /**
+     * Find the SO_REUSEPORT socket option, which is available in Java 9 and later.
+     * 
+     * @return the socket option, or null if not supported
+     */
+    private static Object findReusePortOption()
+    {
+    	try {
+    		Class<?> options = Class.forName("java.net.StandardSocketOptions");
+    		return options.getField("SO_REUSEPORT").get(null);
+    	}
+    	catch (Exception ex) {
+    		return null;
+    	}
+    }
+    
+    /**
+     * Set the SO_REUSEPORT option on the socket of an unbound NIO channel,
+     * so that several channels may be bound to the same socket address.
+     * Netty does not expose the socket options, so use reflection to set
+     * the option on the underlying java.nio DatagramChannel.
+     * 
+     * @param channel the channel
+     * 
+     * @return true, if the option was set
+     */
+    protected static boolean setReusePort(DatagramChannel channel)
+    {
+    	if (REUSEPORT_OPTION == null) {
+    		return false;
+    	}
+    	try {
+    		Method getDatagramChannel = channel.getClass().getDeclaredMethod("getDatagramChannel");
+    		getDatagramChannel.setAccessible(true);
+    		Object nioChannel = getDatagramChannel.invoke(channel);
+    		Method setOption = Class.forName("java.nio.channels.NetworkChannel")
+    				.getMethod("setOption", Class.forName("java.net.SocketOption"), Object.class);
+    		setOption.invoke(nioChannel, REUSEPORT_OPTION, Boolean.TRUE);
+    		return true;
+    	}
+    	catch (Exception ex) {
+    		log.warn("Failed to set SO_REUSEPORT: " + ex);
+    		return false;
+    	}
+    }
+    
     private void checkSocket(int port) throws SocketException {
     	DatagramSocket ds = null;
     	try {
@@ -404,5 +610,12 @@ public class NettyDhcpServer
 		}
 		log.info("Executor shutdown");
         executorService.shutdown();     
+        if (laneExecutor != null) {
+        	log.info(laneExecutor.toString());
+        	laneExecutor.shutdown();
+        }
+        if (rateLimiter != null) {
+        	log.info(rateLimiter.toString());
+        }
     }
 }
@@ -0,0 +1,525 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file RateLimiter.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.netty;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.jagornet.dhcp.server.config.DhcpLink;
+import com.jagornet.dhcp.server.config.DhcpServerConfiguration;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
+import com.jagornet.dhcp.server.config.PolicyTable;
+import com.jagornet.dhcp.util.DhcpConstants;
+import com.jagornet.dhcp.xml.Link;
+
+/**
+ * Title: RateLimiter
+ * Description: Limits the rate of packets accepted from each client, and
+ * from each relay, before the packets are decoded.  The channel decoders
+ * peek at the raw packet for the client identity - the chaddr for DHCPv4
+ * or the DUID for DHCPv6 - and for the client link address set by the
+ * relay - the giaddr for DHCPv4 or the innermost non-zero link-address
+ * for DHCPv6.  A packet is dropped unless a token can be taken from the
+ * bucket of the client and, if the packet was relayed, from the bucket
+ * of the relay, so that a flood of packets costs no more than this check.
+ * The client's bucket is checked first, and its token is given back if the
+ * relay's bucket is empty, so that a noisy client is dropped before it can
+ * drain the bucket shared by every other client behind the same relay.
+ * <p>
+ * Each bucket refills at the rate, in packets per second, and holds at
+ * most the burst, of the client's link, or the global policies if there
+ * is no link for the packet.  The limits are looked up when the bucket is
+ * created, so a bucket keeps its limits until it is evicted.  The buckets
+ * are kept in segments, each with its own lock, and each segment holds a
+ * bounded number of buckets, evicting the least recently used first.
+ * 
+ * @author A. Gregory Rabil
+ */
+public class RateLimiter
+{
+	private static Logger log = LoggerFactory.getLogger(RateLimiter.class);
+	
+	/**
+	 * The Enum Kind.  The kind of sender a bucket is kept for.
+	 */
+	public enum Kind { CLIENT, RELAY }
+	
+	/** The innermost relay to look for, as per RFC 3315 HOP_COUNT_LIMIT. */
+	private static final int MAX_RELAY_DEPTH = 32;
+	
+	/** The segments. */
+	private final Segment[] segments;
+	
+	/** The dropped counts, indexed by Kind ordinal. */
+	private final AtomicLongArray dropped = new AtomicLongArray(Kind.values().length);
+	
+	/**
+	 * Instantiates a new rate limiter.
+	 * 
+	 * @param numSegments the number of segments, which is rounded up to a power of two
+	 * @param maxEntries the maximum number of buckets
+	 */
+	public RateLimiter(int numSegments, int maxEntries)
+	{
+		int n = 1;
+		while (n < numSegments) {
+			n <<= 1;
+		}
+		segments = new Segment[n];
+		int maxPerSegment = Math.max(1, (maxEntries + n - 1) / n);
+		for (int i=0; i<n; i++) {
+			segments[i] = new Segment(maxPerSegment);
+		}
+	}
+	
+	/**
+	 * Checks if any rate limit is configured, either globally or for a link.
+	 * 
+	 * @return true, if rate limiting is needed
+	 */
+	public static boolean isConfigured()
+	{
+		if ((DhcpServerPolicies.globalPolicyAsFloat(Property.DHCP_RATE_LIMIT_CLIENT_RATE) > 0) ||
+				(DhcpServerPolicies.globalPolicyAsFloat(Property.DHCP_RATE_LIMIT_RELAY_RATE) > 0)) {
+			return true;
+		}
+		Map<?, DhcpLink> linkMap = DhcpServerConfiguration.getInstance().getLinkMap();
+		if (linkMap != null) {
+			for (DhcpLink dhcpLink : linkMap.values()) {
+				PolicyTable policies = 
+					DhcpServerConfiguration.getPolicyTable(dhcpLink.getLink().getPolicies());
+				if (policies != null) {
+					PolicyTable.Value client = policies.get(Property.DHCP_RATE_LIMIT_CLIENT_RATE);
+					PolicyTable.Value relay = policies.get(Property.DHCP_RATE_LIMIT_RELAY_RATE);
+					if (((client != null) && (client.asFloat() > 0)) ||
+							((relay != null) && (relay.asFloat() > 0))) {
+						return true;
+					}
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Check a raw DHCPv4 packet against the client and relay buckets.
+	 * 
+	 * @param buf the received packet
+	 * @param local the local socket address
+	 * @param remote the remote socket address
+	 * 
+	 * @return true if the packet is accepted, false if it should be dropped
+	 */
+	public boolean checkV4(ChannelBuffer buf, InetSocketAddress local, InetSocketAddress remote)
+	{
+		int r = buf.readerIndex();
+		if (buf.readableBytes() < 44) {
+			// too short to hold a chaddr, leave it to the decoder
+			return true;
+		}
+		byte[] chAddr = null;
+		int hlen = Math.min(buf.getUnsignedByte(r + 2), 16);
+		if (hlen > 0) {
+			chAddr = new byte[hlen];
+			buf.getBytes(r + 28, chAddr);
+		}
+		int giAddrBits = buf.getInt(r + 24);
+		byte[] giAddr = null;
+		InetAddress linkAddr = local.getAddress();
+		if (giAddrBits != 0) {
+			giAddr = new byte[4];
+			buf.getBytes(r + 24, giAddr);
+			linkAddr = toInetAddress(giAddr);
+		}
+		return check(chAddr, giAddr, local.getAddress(), linkAddr);
+	}
+	
+	/**
+	 * Check a raw DHCPv6 packet against the client and relay buckets.
+	 * 
+	 * @param buf the received packet
+	 * @param local the local socket address
+	 * @param remote the remote socket address
+	 * 
+	 * @return true if the packet is accepted, false if it should be dropped
+	 */
+	public boolean checkV6(ChannelBuffer buf, InetSocketAddress local, InetSocketAddress remote)
+	{
+		int pos = buf.readerIndex();
+		int end = buf.writerIndex();
+		byte[] relayAddr = null;
+		int depth = 0;
+		while ((pos < end) && 
+				(buf.getUnsignedByte(pos) == DhcpConstants.V6MESSAGE_TYPE_RELAY_FORW)) {
+			if ((++depth > MAX_RELAY_DEPTH) || (pos + 34 > end)) {
+				return true;
+			}
+			if ((buf.getLong(pos + 2) != 0) || (buf.getLong(pos + 10) != 0)) {
+				// a lightweight relay agent leaves the link-address unspecified,
+				// so keep the link-address of the relay it forwarded to
+				relayAddr = new byte[16];
+				buf.getBytes(pos + 2, relayAddr);
+			}
+			int off = findOption(buf, pos + 34, end, DhcpConstants.V6OPTION_RELAY_MSG);
+			if (off < 0) {
+				return true;
+			}
+			pos = off;
+			end = off + buf.getUnsignedShort(off - 2);
+		}
+		if (pos + 4 > end) {
+			return true;
+		}
+		byte[] duid = null;
+		int off = findOption(buf, pos + 4, end, DhcpConstants.V6OPTION_CLIENTID);
+		if (off >= 0) {
+			duid = new byte[buf.getUnsignedShort(off - 2)];
+			buf.getBytes(off, duid);
+		}
+		InetAddress linkAddr = (relayAddr != null) ? 
+				toInetAddress(relayAddr) : local.getAddress();
+		return check(duid, relayAddr, local.getAddress(), linkAddr);
+	}
+	
+	/**
+	 * Take a token from the bucket of the client and then, if relayed, the relay.
+	 * 
+	 * @param clientId the client identity, or null if none
+	 * @param relayId the relay identity, or null if not relayed
+	 * @param local the local address which received the packet
+	 * @param linkAddr the address of the client's link
+	 * 
+	 * @return true if the packet is accepted, false if it should be dropped
+	 */
+	protected boolean check(byte[] clientId, byte[] relayId, 
+			InetAddress local, InetAddress linkAddr)
+	{
+		long now = System.nanoTime();
+		Bucket client = null;
+		if (clientId != null) {
+			client = tryAcquire(Kind.CLIENT, clientId, local, linkAddr, now);
+			if (client == null) {
+				return false;
+			}
+		}
+		if ((relayId != null) && (tryAcquire(Kind.RELAY, relayId, local, linkAddr, now) == null)) {
+			if (client != null) {
+				// the packet is dropped, so the client did not use its token
+				client.release();
+			}
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Take a token from a bucket, creating the bucket if needed.
+	 * 
+	 * @param kind the kind of sender
+	 * @param id the identity of the sender
+	 * @param local the local address which received the packet
+	 * @param linkAddr the address of the client's link
+	 * @param now the current time, in nanoseconds
+	 * 
+	 * @return the bucket the token was taken from, or null if it was empty
+	 */
+	protected Bucket tryAcquire(Kind kind, byte[] id, 
+			InetAddress local, InetAddress linkAddr, long now)
+	{
+		Key key = new Key(kind, id);
+		Segment segment = segmentFor(key);
+		Bucket bucket = segment.get(key);
+		if (bucket == null) {
+			// look up the limits outside the segment lock
+			bucket = newBucket(kind, local, linkAddr, now);
+			bucket = segment.putIfAbsent(key, bucket);
+		}
+		if (bucket.tryAcquire(now)) {
+			return bucket;
+		}
+		long count = dropped.incrementAndGet(kind.ordinal());
+		if ((count == 1) || (count % 1000 == 0)) {
+			log.warn("Rate limit exceeded for " + kind + ", dropped " + count +
+					" packets so far");
+		}
+		return null;
+	}
+	
+	/**
+	 * Create a bucket with the limits of the client's link.
+	 * 
+	 * @param kind the kind of sender
+	 * @param local the local address which received the packet
+	 * @param linkAddr the address of the client's link
+	 * @param now the current time, in nanoseconds
+	 * 
+	 * @return the new bucket
+	 */
+	protected Bucket newBucket(Kind kind, InetAddress local, InetAddress linkAddr, long now)
+	{
+		Property rateProp = (kind == Kind.CLIENT) ?
+				Property.DHCP_RATE_LIMIT_CLIENT_RATE : Property.DHCP_RATE_LIMIT_RELAY_RATE;
+		Property burstProp = (kind == Kind.CLIENT) ?
+				Property.DHCP_RATE_LIMIT_CLIENT_BURST : Property.DHCP_RATE_LIMIT_RELAY_BURST;
+		Link link = null;
+		DhcpServerConfiguration serverConfig = DhcpServerConfiguration.getInstance();
+		DhcpLink dhcpLink = null;
+		if ((local instanceof Inet4Address) && (linkAddr instanceof Inet4Address)) {
+			dhcpLink = serverConfig.findDhcpLink((Inet4Address)local, (Inet4Address)linkAddr);
+		}
+		else if ((local instanceof Inet6Address) && (linkAddr instanceof Inet6Address)) {
+			dhcpLink = serverConfig.findDhcpLink((Inet6Address)local, (Inet6Address)linkAddr);
+		}
+		if (dhcpLink != null) {
+			link = dhcpLink.getLink();
+		}
+		if (link != null) {
+			return new Bucket(DhcpServerPolicies.effectivePolicyAsFloat(link, rateProp),
+							DhcpServerPolicies.effectivePolicyAsInt(link, burstProp), now);
+		}
+		return new Bucket(DhcpServerPolicies.globalPolicyAsFloat(rateProp),
+						DhcpServerPolicies.globalPolicyAsInt(burstProp), now);
+	}
+	
+	/**
+	 * Gets the number of packets dropped for the given kind of sender.
+	 * 
+	 * @param kind the kind of sender
+	 * 
+	 * @return the dropped count
+	 */
+	public long getDroppedCount(Kind kind)
+	{
+		return dropped.get(kind.ordinal());
+	}
+	
+	/**
+	 * Get the number of buckets.
+	 * 
+	 * @return the size
+	 */
+	public int size()
+	{
+		int size = 0;
+		for (Segment segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+	
+	private Segment segmentFor(Key key)
+	{
+		int h = key.hash;
+		h ^= (h >>> 16);
+		return segments[h & (segments.length - 1)];
+	}
+	
+	/**
+	 * Find an option in a range of DHCPv6 options.
+	 * 
+	 * @param buf the packet
+	 * @param from the index of the first option
+	 * @param to the index past the last option
+	 * @param code the option code
+	 * 
+	 * @return the index of the option data, or -1 if not found
+	 */
+	private static int findOption(ChannelBuffer buf, int from, int to, int code)
+	{
+		int pos = from;
+		while (pos + 4 <= to) {
+			int len = buf.getUnsignedShort(pos + 2);
+			if (pos + 4 + len > to) {
+				break;
+			}
+			if (buf.getUnsignedShort(pos) == code) {
+				return pos + 4;
+			}
+			pos += 4 + len;
+		}
+		return -1;
+	}
+	
+	private static InetAddress toInetAddress(byte[] addr)
+	{
+		try {
+			return InetAddress.getByAddress(addr);
+		}
+		catch (UnknownHostException ex) {
+			// only thrown for an illegal length, which can't happen here
+			throw new IllegalStateException(ex);
+		}
+	}
+	
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("RateLimiter:");
+		sb.append(" buckets=" + size());
+		for (Kind kind : Kind.values()) {
+			sb.append(" dropped" + kind + "=" + getDroppedCount(kind));
+		}
+		return sb.toString();
+	}
+	
+	/**
+	 * The Class Key.  The identity of a client or relay.
+	 */
+	protected static class Key
+	{
+		private final Kind kind;
+		private final byte[] id;
+		private final int hash;
+		
+		Key(Kind kind, byte[] id)
+		{
+			this.kind = kind;
+			this.id = id;
+			hash = 31 * Arrays.hashCode(id) + kind.ordinal();
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key that = (Key) obj;
+			return (this.hash == that.hash) && (this.kind == that.kind) &&
+					Arrays.equals(this.id, that.id);
+		}
+	}
+	
+	/**
+	 * The Class Bucket.  A token bucket, kept as the time at which the bucket
+	 * will be full again, so that taking a token is a single comparison and
+	 * the refill needs no timer.
+	 */
+	protected static class Bucket
+	{
+		/** The nanoseconds to refill one token, zero if unlimited. */
+		private final long interval;
+		
+		/** The nanoseconds to refill all but one token of the burst. */
+		private final long tolerance;
+		
+		/** The time at which the next token would be taken if the bucket were empty. */
+		private long nextTime;
+		
+		/**
+		 * Instantiates a new bucket, which starts full.
+		 * 
+		 * @param rate the packets per second, or zero if unlimited
+		 * @param burst the maximum number of tokens
+		 * @param now the current time, in nanoseconds
+		 */
+		protected Bucket(float rate, int burst, long now)
+		{
+			interval = (rate > 0) ? Math.max(1, (long)(1000000000L / rate)) : 0;
+			tolerance = interval * (Math.max(1, burst) - 1);
+			nextTime = now;
+		}
+		
+		synchronized boolean tryAcquire(long now)
+		{
+			if (interval == 0) {
+				return true;
+			}
+			long t = (nextTime - now > 0) ? nextTime : now;
+			if (t - now > tolerance) {
+				return false;
+			}
+			nextTime = t + interval;
+			return true;
+		}
+		
+		synchronized void release()
+		{
+			nextTime -= interval;
+		}
+	}
+	
+	/**
+	 * The Class Segment.  A part of the table, with its own lock.
+	 * The buckets are kept in access order, so that the least
+	 * recently used bucket is evicted when the segment is full.
+	 */
+	private static class Segment
+	{
+		private final LinkedHashMap<Key, Bucket> buckets;
+		
+		@SuppressWarnings("serial")
+		Segment(final int maxEntries)
+		{
+			this.buckets = new LinkedHashMap<Key, Bucket>(16, 0.75f, true) {
+				@Override
+				protected boolean removeEldestEntry(Map.Entry<Key, Bucket> eldest) {
+					return size() > maxEntries;
+				}
+			};
+		}
+		
+		synchronized Bucket get(Key key)
+		{
+			return buckets.get(key);
+		}
+		
+		synchronized Bucket putIfAbsent(Key key, Bucket bucket)
+		{
+			Bucket existing = buckets.get(key);
+			if (existing != null) {
+				return existing;
+			}
+			buckets.put(key, bucket);
+			return bucket;
+		}
+		
+		synchronized int size()
+		{
+			return buckets.size();
+		}
+	}
+}
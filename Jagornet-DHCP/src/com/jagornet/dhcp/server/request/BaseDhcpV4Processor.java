@@ -31,14 +31,9 @@ import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -88,9 +83,12 @@ public abstract class BaseDhcpV4Processor implements DhcpV4MessageProcessor
     protected final InetAddress clientLinkAddress;
     protected DhcpLink clientLink;
     protected List<Binding> bindings = new ArrayList<Binding>();
-    protected static Set<DhcpV4Message> recentMsgs = 
-    	Collections.synchronizedSet(new HashSet<DhcpV4Message>());
-    protected static Timer recentMsgPruner = new Timer("RecentMsgPruner");
+    protected static RecentMessageCache<DhcpV4Message> recentMsgs = 
+    	new RecentMessageCache<DhcpV4Message>(16, DhcpServerPolicies.globalPolicyAsInt(
+    			Property.DHCP_PROCESSOR_RECENT_MESSAGE_CACHE_SIZE));
+    protected RecentMessageCache.Key recentMsgKey;
+    protected long recentMsgTimer;
+    protected DhcpV4Message recentReplyMsg;
     
     /**
      * Construct an BaseDhcpRequest processor.  Since this class is
@@ -168,11 +166,18 @@ public abstract class BaseDhcpV4Processor implements DhcpV4MessageProcessor
      */
     public DhcpV4Message processMessage()
     {
+    	boolean processed = false;
     	try {
         	if (!preProcess()) {
         		log.warn("Message dropped by preProcess");
         		return null;
         	}
+        	
+        	if (recentReplyMsg != null) {
+        		log.info("Resending reply to retransmitted request: " + requestMsg.toString());
+        		replyMsg = recentReplyMsg;
+        		return replyMsg;
+        	}
             
     		if (log.isDebugEnabled()) {
     			log.debug("Processing: " + requestMsg.toStringWithOptions());
@@ -207,13 +212,17 @@ public abstract class BaseDhcpV4Processor implements DhcpV4MessageProcessor
 	        else if (log.isInfoEnabled()) {
 	        	log.info("Returning: " + replyMsg.toString());
 	        }
-	        
+	        processed = true;
     	}
     	finally {
 	        if (!postProcess()) {
 	    		log.warn("Message dropped by postProcess");
 	        	replyMsg = null;
 	        }
+	        if (recentMsgKey != null) {
+	        	// remember the reply for any retransmission of the request
+	        	recentMsgs.complete(recentMsgKey, (processed ? replyMsg : null), recentMsgTimer);
+	        }
     	}
         
         return replyMsg;
@@ -245,27 +254,40 @@ public abstract class BaseDhcpV4Processor implements DhcpV4MessageProcessor
         	return false;	// must configure link for server to reply
         }
 
-/* TODO: check if this DOS mitigation is useful
- * 
-		boolean isNew = recentMsgs.add(requestMsg);
-		if (!isNew) {
-			if (log.isDebugEnabled())
-				log.debug("Dropping recent message");
-			return false;	// don't process
-		}
-
-		if (log.isDebugEnabled())
-			log.debug("Processing new message");
-		
-		long timer = DhcpServerPolicies.effectivePolicyAsLong(clientLink.getLink(),
-				Property.DHCP_PROCESSOR_RECENT_MESSAGE_TIMER);
-		if (timer > 0) {
-			recentMsgPruner.schedule(new RecentMsgTimerTask(requestMsg), timer);
-		}
-*/    	
+        recentMsgTimer = DhcpServerPolicies.effectivePolicyAsLong(clientLink.getLink(),
+        		Property.DHCP_PROCESSOR_RECENT_MESSAGE_TIMER);
+        if ((recentMsgTimer > 0) &&
+        		!checkRecentMessage(new RecentMessageCache.Key(requestMsg.getChAddr(),
+        				requestMsg.getTransactionId(), requestMsg.getMessageType()))) {
+        	return false;	// don't process
+        }
     	return true;	// ok to process
     }
     
+    /**
+     * Check if the request is a retransmission of a recent request.  If the
+     * recent request has been processed, then its reply will be sent again,
+     * otherwise the request is remembered as in progress.
+     * 
+     * @param key the key of the request
+     * 
+     * @return false if the request is a duplicate of a request in progress
+     */
+    protected boolean checkRecentMessage(RecentMessageCache.Key key)
+    {
+    	RecentMessageCache.Entry<DhcpV4Message> recent = recentMsgs.checkRecent(key, recentMsgTimer);
+    	if (recent == null) {
+    		recentMsgKey = key;
+    		return true;
+    	}
+    	recentReplyMsg = recent.getReply();
+    	if (recentReplyMsg == null) {
+    		log.info("Dropping duplicate of request in progress: " + requestMsg.toString());
+    		return false;
+    	}
+    	return true;
+    }
+    
     /**
      * Process.
      * 
@@ -280,14 +302,6 @@ public abstract class BaseDhcpV4Processor implements DhcpV4MessageProcessor
      */
     public boolean postProcess()
     {
-		//TODO consider the implications of always removing the
-		//     recently processed message b/c we could just keep
-		//     getting blasted by an attempted DOS attack?
-// Exactly!?... the comment above says it all
-//    		if (recentMsgs.remove(requestMsg)) {
-//    			if (log.isDebugEnabled())
-//    				log.debug("Removed recent message: " + requestMsg.toString());
-//    		}
     	return true;
     }
 
@@ -514,36 +528,4 @@ public abstract class BaseDhcpV4Processor implements DhcpV4MessageProcessor
     	}
     	return false;
     }
-		
-    /**
-     * The Class RecentMsgTimerTask.
-     */
-    class RecentMsgTimerTask extends TimerTask
-    {
-    	
-	    /** The dhcp msg. */
-	    private DhcpV4Message dhcpMsg;
-    	
-    	/**
-	     * Instantiates a new recent msg timer task.
-	     * 
-	     * @param dhcpMsg the dhcp msg
-	     */
-	    public RecentMsgTimerTask(DhcpV4Message dhcpMsg)
-    	{
-    		this.dhcpMsg = dhcpMsg;
-    	}
-    	
-    	/* (non-Javadoc)
-	     * @see java.util.TimerTask#run()
-	     */
-	    @Override
-    	public void run() {
-			if (recentMsgs.remove(dhcpMsg)) {
-    			if (log.isDebugEnabled())
-    				log.debug("Pruned recent message: " + dhcpMsg.toString());
-			}
-    	}
-
-    } 
 }
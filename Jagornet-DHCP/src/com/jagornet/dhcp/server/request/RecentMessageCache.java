@@ -0,0 +1,287 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file RecentMessageCache.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The Class RecentMessageCache.  Remembers the recently processed client
+ * requests, keyed by the client's identity, the transaction id and the
+ * message type, so that a retransmitted request is answered with the reply
+ * to the original request, and a duplicate of a request which is still
+ * being processed is dropped, rather than running the request through
+ * the binding managers and the database again.
+ * <p>
+ * The cache is split into segments, each with its own lock, and each
+ * segment holds a bounded number of entries.  An entry expires after
+ * the recent message timer of the client's link.
+ * 
+ * @param <T> the type of the reply message
+ * 
+ * @author A. Gregory Rabil
+ */
+public class RecentMessageCache<T>
+{
+	/** The segments. */
+	private final Segment<T>[] segments;
+	
+	/**
+	 * Instantiates a new recent message cache.
+	 * 
+	 * @param numSegments the number of segments, which is rounded up to a power of two
+	 * @param maxEntries the maximum number of entries in the cache
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public RecentMessageCache(int numSegments, int maxEntries)
+	{
+		int n = 1;
+		while (n < numSegments) {
+			n <<= 1;
+		}
+		segments = new Segment[n];
+		int maxPerSegment = Math.max(1, (maxEntries + n - 1) / n);
+		for (int i=0; i<n; i++) {
+			segments[i] = new Segment<T>(maxPerSegment);
+		}
+	}
+	
+	/**
+	 * Check for a recent request with the same key.  If there is none, then
+	 * the request is recorded as in progress, and must be completed by
+	 * calling the complete method once it has been processed.
+	 * 
+	 * @param key the key of the request
+	 * @param timeout the time, in milliseconds, to remember the request
+	 * 
+	 * @return the entry for the recent request, or null if the request is new
+	 */
+	public Entry<T> checkRecent(Key key, long timeout)
+	{
+		return segmentFor(key).checkRecent(key, timeout);
+	}
+	
+	/**
+	 * Complete a request which was recorded as in progress.  If the request
+	 * did not produce a reply, then the request is forgotten, so that a
+	 * retransmission will be processed again.
+	 * 
+	 * @param key the key of the request
+	 * @param reply the reply message, or null if no reply is sent
+	 * @param timeout the time, in milliseconds, to remember the reply
+	 */
+	public void complete(Key key, T reply, long timeout)
+	{
+		segmentFor(key).complete(key, reply, timeout);
+	}
+	
+	/**
+	 * Remove all entries.
+	 */
+	public void clear()
+	{
+		for (Segment<T> segment : segments) {
+			segment.clear();
+		}
+	}
+	
+	/**
+	 * Get the number of entries.
+	 * 
+	 * @return the size
+	 */
+	public int size()
+	{
+		int size = 0;
+		for (Segment<T> segment : segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+	
+	private Segment<T> segmentFor(Key key)
+	{
+		int h = key.hash;
+		h ^= (h >>> 16);
+		return segments[h & (segments.length - 1)];
+	}
+	
+	/**
+	 * The Class Key.  The identity of a client request.
+	 */
+	public static class Key
+	{
+		private final byte[] clientId;
+		private final long xid;
+		private final int msgType;
+		private final int hash;
+		
+		/**
+		 * Instantiates a new key.
+		 * 
+		 * @param clientId the client DUID or hardware address
+		 * @param xid the transaction id
+		 * @param msgType the message type
+		 */
+		public Key(byte[] clientId, long xid, int msgType)
+		{
+			this.clientId = clientId;
+			this.xid = xid;
+			this.msgType = msgType;
+			int h = Arrays.hashCode(clientId);
+			h = 31 * h + (int)(xid ^ (xid >>> 32));
+			h = 31 * h + msgType;
+			hash = h;
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+			Key that = (Key) obj;
+			return (this.hash == that.hash) && (this.xid == that.xid) &&
+					(this.msgType == that.msgType) &&
+					Arrays.equals(this.clientId, that.clientId);
+		}
+	}
+	
+	/**
+	 * The Class Entry.  A recent request, and its reply, if the request
+	 * has been processed.
+	 * 
+	 * @param <T> the type of the reply message
+	 */
+	public static class Entry<T>
+	{
+		private volatile long expires;
+		private volatile T reply;
+		
+		Entry(long expires)
+		{
+			this.expires = expires;
+		}
+		
+		/**
+		 * Gets the reply.
+		 * 
+		 * @return the reply, or null if the request is still in progress
+		 */
+		public T getReply()
+		{
+			return reply;
+		}
+	}
+	
+	/**
+	 * The Class Segment.  A part of the cache, with its own lock.
+	 * The entries are kept in the order in which they were added.
+	 */
+	private static class Segment<T>
+	{
+		private final int maxEntries;
+		private final LinkedHashMap<Key, Entry<T>> entries;
+		
+		Segment(final int maxEntries)
+		{
+			this.maxEntries = maxEntries;
+			this.entries = new LinkedHashMap<Key, Entry<T>>();
+		}
+		
+		synchronized Entry<T> checkRecent(Key key, long timeout)
+		{
+			long now = System.currentTimeMillis();
+			Entry<T> entry = entries.get(key);
+			if ((entry != null) && (entry.expires > now)) {
+				return entry;
+			}
+			if (entry != null) {
+				entries.remove(key);
+			}
+			expire(now);
+			if (entries.size() >= maxEntries) {
+				// drop the oldest entry to make room
+				Iterator<Entry<T>> iter = entries.values().iterator();
+				iter.next();
+				iter.remove();
+			}
+			entries.put(key, new Entry<T>(now + timeout));
+			return null;
+		}
+		
+		synchronized void complete(Key key, T reply, long timeout)
+		{
+			Entry<T> entry = entries.get(key);
+			if (entry != null) {
+				if (reply == null) {
+					entries.remove(key);
+				}
+				else {
+					entry.reply = reply;
+					entry.expires = System.currentTimeMillis() + timeout;
+				}
+			}
+		}
+		
+		synchronized void clear()
+		{
+			entries.clear();
+		}
+		
+		synchronized int size()
+		{
+			return entries.size();
+		}
+		
+		/**
+		 * Remove the expired entries from the front of the segment.
+		 * 
+		 * @param now the current time
+		 */
+		private void expire(long now)
+		{
+			Iterator<Map.Entry<Key, Entry<T>>> iter = entries.entrySet().iterator();
+			while (iter.hasNext()) {
+				if (iter.next().getValue().expires > now) {
+					break;
+				}
+				iter.remove();
+			}
+		}
+	}
+}
@@ -25,10 +25,12 @@
  */
 package com.jagornet.dhcp.server.request.binding;
 
+import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,7 +39,6 @@ import com.jagornet.dhcp.db.IaAddress;
 import com.jagornet.dhcp.db.IdentityAssoc;
 import com.jagornet.dhcp.server.config.DhcpServerPolicies;
 import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
-import com.jagornet.dhcp.util.Util;
 
 /**
  * The Class BaseAddressBindingManager.
@@ -60,11 +61,8 @@ public abstract class BaseAddrBindingManager extends BaseBindingManager
 		//TODO: separate properties for address/prefix binding managers?
 		long reaperStartupDelay = 
 			DhcpServerPolicies.globalPolicyAsLong(Property.BINDING_MANAGER_REAPER_STARTUP_DELAY);
-		long reaperRunPeriod =
-			DhcpServerPolicies.globalPolicyAsLong(Property.BINDING_MANAGER_REAPER_RUN_PERIOD);
 
-		reaper = new Timer("BindingReaper");
-		reaper.schedule(new ReaperTimerTask(), reaperStartupDelay, reaperRunPeriod);
+		reaper.start(reaperStartupDelay);
 	}
     
     /**
@@ -93,6 +91,7 @@ public abstract class BaseAddrBindingManager extends BaseBindingManager
 	{
 		try {
 			log.info("Releasing address: " + iaAddr.getIpAddress().getHostAddress());
+			cancelExpiration(iaAddr.getIpAddress());
 			ddnsDelete(ia, iaAddr);
 			if (DhcpServerPolicies.globalPolicyAsBoolean(
 					Property.BINDING_MANAGER_DELETE_OLD_BINDINGS)) {
@@ -108,6 +107,7 @@ public abstract class BaseAddrBindingManager extends BaseBindingManager
 				iaAddr.setValidEndTime(null);
 				iaAddr.setState(IaAddress.RELEASED);
 				iaMgr.updateIaAddr(iaAddr);
+				addReusableAddress(iaAddr.getIpAddress(), System.currentTimeMillis());
 				log.info("Address released: " + iaAddr.toString());
 			}
 		}
@@ -127,12 +127,14 @@ public abstract class BaseAddrBindingManager extends BaseBindingManager
 	{
 		try {
 			log.info("Declining address: " + iaAddr.getIpAddress().getHostAddress());
+			cancelExpiration(iaAddr.getIpAddress());
 			ddnsDelete(ia, iaAddr);
 			iaAddr.setStartTime(null);
 			iaAddr.setPreferredEndTime(null);
 			iaAddr.setValidEndTime(null);
 			iaAddr.setState(IaAddress.DECLINED);
 			iaMgr.updateIaAddr(iaAddr);
+			removeReusableAddress(iaAddr.getIpAddress());
 			log.info("Address declined: " + iaAddr.toString());
 		}
 		catch (Exception ex) {
@@ -141,15 +143,16 @@ public abstract class BaseAddrBindingManager extends BaseBindingManager
 	}
 	
 	/**
-	 * Callback from the ExpireTimerTask started when the lease was granted.
+	 * Expire a single address, once its DDNS entries have been deleted.
+	 * This is the fallback when a batch of addresses fails to expire, so
+	 * that one bad lease does not keep the others from expiring.  If the
+	 * lease still cannot be expired, it is retried on the next reaper tick.
 	 * 
 	 * @param iaAddr the ia addr
 	 */
-	public void expireIaAddress(IdentityAssoc ia, IaAddress iaAddr)
+	protected void expireIaAddress(IaAddress iaAddr)
 	{
 		try {
-			log.info("Expiring: " + iaAddr.toString());
-			ddnsDelete(ia, iaAddr);
 			if (DhcpServerPolicies.globalPolicyAsBoolean(
 					Property.BINDING_MANAGER_DELETE_OLD_BINDINGS)) {
 				log.debug("Deleting expired address: " + iaAddr.getIpAddress());
@@ -166,50 +169,108 @@ public abstract class BaseAddrBindingManager extends BaseBindingManager
 				iaAddr.setState(IaAddress.EXPIRED);
 				log.debug("Updating expired address: " + iaAddr.getIpAddress());
 				iaMgr.updateIaAddr(iaAddr);
+				addReusableAddress(iaAddr.getIpAddress(), System.currentTimeMillis());
 			}
 		}
 		catch (Exception ex) {
-			log.error("Failed to expire address", ex);
+			log.error("Failed to expire address: " + iaAddr.getIpAddress(), ex);
+			retryExpiration(iaAddr.getIpAddress());
 		}
 	}
 	
 	/**
-	 * Callback from the ReaperTimerTask started when the BindingManager initialized.
-	 * Find any expired addresses as of now, and expire them already.
+	 * Expire a batch of addresses, with a single batched update, or delete,
+	 * of their leases.
+	 * 
+	 * @param ias the IAs of the addresses
+	 * @param iaAddrs the addresses to expire, in the same order as their IAs
 	 */
-	public void expireAddresses()
+	protected void expireIaAddresses(List<IdentityAssoc> ias, List<IaAddress> iaAddrs)
 	{
-		List<IdentityAssoc> expiredIAs = iaMgr.findExpiredIAs(getIaType());
-		if ((expiredIAs != null) && !expiredIAs.isEmpty()) {
-			log.info("Found " + expiredIAs.size() + " expired bindings of type: " + 
-					IdentityAssoc.iaTypeToString(getIaType()));
-			for (IdentityAssoc ia : expiredIAs) {
-				Collection<? extends IaAddress> expiredAddrs = ia.getIaAddresses();
-				if ((expiredAddrs != null) && !expiredAddrs.isEmpty()) {
-					// due to the implementation of findExpiredIAs, each IdentityAssoc
-					// SHOULD have only one IaAddress within it to be expired
-					log.info("Found " + expiredAddrs.size() + " expired bindings for IA: " + 
-							"duid=" + Util.toHexString(ia.getDuid()) + " iaid=" + ia.getIaid());
-					for (IaAddress iaAddress : expiredAddrs) {
-						expireIaAddress(ia, iaAddress);
-					}
+		for (int i=0; i<iaAddrs.size(); i++) {
+			IaAddress iaAddr = iaAddrs.get(i);
+			log.info("Expiring: " + iaAddr.toString());
+			try {
+				ddnsDelete(ias.get(i), iaAddr);
+			}
+			catch (Exception ex) {
+				log.error("Failed DDNS delete for expired address", ex);
+			}
+		}
+		try {
+			if (DhcpServerPolicies.globalPolicyAsBoolean(
+					Property.BINDING_MANAGER_DELETE_OLD_BINDINGS)) {
+				log.debug("Deleting " + iaAddrs.size() + " expired addresses");
+				iaMgr.deleteIaAddrs(iaAddrs);
+				// free the addresses only if they are deleted from the db,
+				// otherwise, we will get a unique constraint violation
+				// if another client obtains one of these released IP addresses
+				for (IaAddress iaAddr : iaAddrs) {
+					freeAddress(iaAddr.getIpAddress());
+				}
+			}
+			else {
+				for (IaAddress iaAddr : iaAddrs) {
+					iaAddr.setStartTime(null);
+					iaAddr.setPreferredEndTime(null);
+					iaAddr.setValidEndTime(null);
+					iaAddr.setState(IaAddress.EXPIRED);
+				}
+				log.debug("Updating " + iaAddrs.size() + " expired addresses");
+				iaMgr.updateIaAddrs(iaAddrs);
+				long now = System.currentTimeMillis();
+				for (IaAddress iaAddr : iaAddrs) {
+					addReusableAddress(iaAddr.getIpAddress(), now);
 				}
 			}
 		}
+		catch (Exception ex) {
+			log.error("Failed to expire " + iaAddrs.size() + 
+					" addresses as a batch, expiring each address", ex);
+			for (IaAddress iaAddr : iaAddrs) {
+				expireIaAddress(iaAddr);
+			}
+		}
 	}
 	
 	/**
-	 * The Class ReaperTimerTask.
+	 * Callback from the reaper timer wheel for the addresses which have expired.
+	 * Each address is expired only if its lease is still offered or committed,
+	 * because it may have been released or declined in the meantime.  The
+	 * leases are found together, and the addresses are then expired
+	 * together, as one batch.
+	 * 
+	 * @param inetAddrs the addresses of the expired leases
 	 */
-	class ReaperTimerTask extends TimerTask
-	{		
-		/* (non-Javadoc)
-		 * @see java.util.TimerTask#run()
-		 */
-		@Override
-		public void run() {
-//			log.debug("Expiring addresses...");
-			expireAddresses();
+	protected void expireBindings(List<InetAddress> inetAddrs)
+	{
+		log.info("Expiring " + inetAddrs.size() + " bindings of type: " + 
+				IdentityAssoc.iaTypeToString(getIaType()));
+		List<IdentityAssoc> ias = new ArrayList<IdentityAssoc>();
+		List<IaAddress> iaAddrs = new ArrayList<IaAddress>();
+		Set<InetAddress> expired = new HashSet<InetAddress>(inetAddrs);
+		for (IdentityAssoc ia : iaMgr.findIAs(inetAddrs)) {
+			Collection<? extends IaAddress> addrs = ia.getIaAddresses();
+			if (addrs != null) {
+				for (IaAddress iaAddr : addrs) {
+					// an IA may be found for more than one of its addresses
+					if (expired.remove(iaAddr.getIpAddress()) &&
+							((iaAddr.getState() == IaAddress.ADVERTISED) ||
+							 (iaAddr.getState() == IaAddress.COMMITTED))) {
+						ias.add(ia);
+						iaAddrs.add(iaAddr);
+					}
+				}
+			}
+		}
+		if (log.isDebugEnabled()) {
+			for (InetAddress inetAddr : expired) {
+				log.debug("No binding found for expired address: " + 
+						inetAddr.getHostAddress());
+			}
+		}
+		if (!iaAddrs.isEmpty()) {
+			expireIaAddresses(ias, iaAddrs);
 		}
 	}
 }
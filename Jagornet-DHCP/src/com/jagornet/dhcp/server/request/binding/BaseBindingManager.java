@@ -29,6 +29,7 @@ import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -36,8 +37,6 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
-import java.util.Timer;
-import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -50,6 +49,8 @@ import com.jagornet.dhcp.server.config.DhcpConfigObject;
 import com.jagornet.dhcp.server.config.DhcpLink;
 import com.jagornet.dhcp.server.config.DhcpServerConfigException;
 import com.jagornet.dhcp.server.config.DhcpServerConfiguration;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
 import com.jagornet.dhcp.util.DhcpConstants;
 import com.jagornet.dhcp.util.Subnet;
 import com.jagornet.dhcp.xml.Link;
@@ -75,18 +76,20 @@ public abstract class BaseBindingManager
      */
     protected Map<String, List<? extends BindingPool>> bindingPoolMap;
     
+    /**
+     * The index of all the binding pools in the pool map by address range,
+     * for finding the binding pool of an address on any link.
+     */
+    protected RangeIndex<BindingPool> bindingPoolIndex;
+    
     /**
      * The map of static bindings for this manager.  The key is the link address
-     * and the value is the list of configured StaticBindings for the link. 
+     * and the value is the index of the configured StaticBindings for the link. 
      */
-    protected Map<String, List<? extends StaticBinding>> staticBindingMap;
+    protected Map<String, StaticBindingIndex> staticBindingMap;
 
-	/** The reaper thread for cleaning expired bindings. */
-	protected Timer reaper;
-	
-	/** The lock for access to the reuseAvailableAddress method */
-	// the ReentrantLock class is better than synchronized
-	private final ReentrantLock lock = new ReentrantLock();
+	/** The reaper timer wheel for expiring bindings. */
+	protected LeaseTimerWheel reaper;
 	
 	/**
 	 * Initialize the manager.  Read the configuration and build
@@ -95,11 +98,32 @@ public abstract class BaseBindingManager
 	 */
 	public void init() throws DhcpServerConfigException
 	{
+		initReaper();
 		initPoolMap();
+		initPoolLeases();
 		initStaticBindings();
 		startReaper();
 	}
 	
+	/**
+	 * Initialize the reaper timer wheel.  The wheel is created before
+	 * the pools are built, so that the expiration of existing leases can
+	 * be scheduled, but the reaper thread is not started until the
+	 * manager is initialized.
+	 */
+	protected void initReaper()
+	{
+		long reaperRunPeriod =
+			DhcpServerPolicies.globalPolicyAsLong(Property.BINDING_MANAGER_REAPER_RUN_PERIOD);
+		reaper = new LeaseTimerWheel("BindingReaper", reaperRunPeriod,
+				new LeaseTimerWheel.ExpiryHandler() {
+					@Override
+					public void expire(List<InetAddress> inetAddrs) {
+						expireBindings(inetAddrs);
+					}
+				});
+	}
+	
     /**
      * Initialize the pool map.  Read through the link map from the server's
      * configuration and build the pool map keyed by link address with a
@@ -118,12 +142,70 @@ public abstract class BaseBindingManager
 					bindingPoolMap.put(dhcpLink.getLinkAddress(), bindingPools);
 				}
 			}
+			initPoolIndex();
 		}
 		else {
 			log.error("LinkMap is null for DhcpServerConfiguration");
 		}
     }
 
+    /**
+     * Initialize the binding pool index from the pool map.
+     */
+    protected void initPoolIndex()
+    {
+    	RangeIndex.Builder<BindingPool> builder = new RangeIndex.Builder<BindingPool>();
+		for (List<? extends BindingPool> bps : bindingPoolMap.values()) {
+			for (BindingPool bindingPool : bps) {
+				builder.add(bindingPool.getStartAddress(), bindingPool.getEndAddress(),
+						bindingPool);
+			}
+		}
+		bindingPoolIndex = builder.build();
+    }
+
+
+    /**
+     * Initialize the reuse queue and the lease expirations of each binding
+     * pool from the leases in the pool's range that existed before the server
+     * was started.  After this, the reuse queues and the reaper timer wheel
+     * are maintained in memory as leases are granted, released and expired.
+     */
+    protected void initPoolLeases()
+    {
+    	if ((bindingPoolMap == null) || (iaMgr == null)) {
+    		return;
+    	}
+		for (List<? extends BindingPool> bps : bindingPoolMap.values()) {
+			for (BindingPool bp : bps) {
+				List<IaAddress> iaAddrs = 
+					iaMgr.findIaAddresses(bp.getStartAddress(), bp.getEndAddress());
+				if (iaAddrs != null) {
+					for (IaAddress iaAddr : iaAddrs) {
+						byte state = iaAddr.getState();
+						if ((state == IaAddress.RELEASED) || (state == IaAddress.EXPIRED)) {
+							Date validEnd = iaAddr.getValidEndTime();
+							bp.getReuseQueue().add(iaAddr.getIpAddress(),
+									(validEnd != null) ? validEnd.getTime() : 0);
+						}
+						else if ((state == IaAddress.ADVERTISED) || 
+								(state == IaAddress.COMMITTED)) {
+							// offered addresses are scheduled to expire at the
+							// end of their lifetime here, because the address
+							// state is not updated when the offer is committed
+							scheduleExpiration(iaAddr);
+						}
+					}
+				}
+				if (log.isDebugEnabled())
+					log.debug("Initialized leases for pool: " + bp.toString() +
+							" " + bp.getReuseQueue().toString());
+			}
+		}
+		if (reaper != null) {
+			log.info("Scheduled lease expirations: " + reaper.toString());
+		}
+    }
 
     /**
      * Build the list of BindingPools for the given DhcpLink.  The BindingPools
@@ -141,7 +223,7 @@ public abstract class BaseBindingManager
     /**
      * Initialize the static bindings.  Read through the link map from the server's
      * configuration and build the binding map keyed by link address with a
-     * value of the list of (na/ta/v4 address or prefix) bindings for the link.
+     * value of the index of (na/ta/v4 address or prefix) bindings for the link.
      * 
      * 
      * @throws DhcpServerConfigException the exception
@@ -150,11 +232,12 @@ public abstract class BaseBindingManager
     {
 		SortedMap<Subnet, DhcpLink> linkMap = serverConfig.getLinkMap();
 		if (linkMap != null) {
-    		staticBindingMap = new HashMap<String, List<? extends StaticBinding>>();
+    		staticBindingMap = new HashMap<String, StaticBindingIndex>();
 			for (DhcpLink dhcpLink : linkMap.values()) {
 				List<? extends StaticBinding> staticBindings = buildStaticBindings(dhcpLink.getLink());
 				if ((staticBindings != null) && !staticBindings.isEmpty()) {
-					staticBindingMap.put(dhcpLink.getLinkAddress(), staticBindings);
+					staticBindingMap.put(dhcpLink.getLinkAddress(), 
+							new StaticBindingIndex(staticBindings));
 				}
 			}
 		}
@@ -177,6 +260,68 @@ public abstract class BaseBindingManager
 	 * Start a reaper thread to check for expired bindings.
 	 */
 	protected abstract void startReaper();
+	
+	/**
+	 * Callback from the reaper timer wheel for the leases which have expired.
+	 * 
+	 * @param inetAddrs the addresses of the expired leases
+	 */
+	protected abstract void expireBindings(List<InetAddress> inetAddrs);
+	
+	/**
+	 * Schedule the expiration of an address at the end of its valid lifetime.
+	 * 
+	 * @param iaAddr the IaAddress
+	 */
+	protected void scheduleExpiration(IaAddress iaAddr)
+	{
+		Date validEnd = iaAddr.getValidEndTime();
+		if ((reaper != null) && (validEnd != null)) {
+			reaper.schedule(iaAddr.getIpAddress(), validEnd.getTime());
+		}
+	}
+	
+	/**
+	 * Schedule the expiration of an offered address.  An offered address
+	 * expires, and may be reused, if the client does not request it before
+	 * the offer expires.
+	 * 
+	 * @param inetAddr the IP address
+	 */
+	protected void scheduleOfferExpiration(InetAddress inetAddr)
+	{
+		long reuseTime = System.currentTimeMillis() + 
+			DhcpServerPolicies.globalPolicyAsLong(Property.BINDING_MANAGER_OFFER_EXPIRATION);
+		addReusableAddress(inetAddr, reuseTime);
+		if (reaper != null) {
+			reaper.schedule(inetAddr, reuseTime);
+		}
+	}
+	
+	/**
+	 * Reschedule the expiration of an address which could not be expired,
+	 * so that it is retried on the next tick of the reaper.
+	 * 
+	 * @param inetAddr the IP address
+	 */
+	protected void retryExpiration(InetAddress inetAddr)
+	{
+		if (reaper != null) {
+			reaper.schedule(inetAddr, System.currentTimeMillis());
+		}
+	}
+	
+	/**
+	 * Cancel the scheduled expiration of an address.
+	 * 
+	 * @param inetAddr the IP address
+	 */
+	protected void cancelExpiration(InetAddress inetAddr)
+	{
+		if (reaper != null) {
+			reaper.cancel(inetAddr);
+		}
+	}
 
 	/**
 	 * Find binding pool for address in a message received on the given link.
@@ -219,8 +364,8 @@ public abstract class BaseBindingManager
 	}
     
 	/**
-	 * Find binding pool for the given IP address.  Search through all
-	 * the pools on all links to find the IP's binding pool.
+	 * Find binding pool for the given IP address.  Search the index
+	 * of the pools on all links to find the IP's binding pool.
 	 * 
 	 * @param inetAddr the IP address
 	 * 
@@ -228,18 +373,14 @@ public abstract class BaseBindingManager
 	 */
 	protected BindingPool findBindingPool(InetAddress inetAddr)
 	{
-		Collection<List<? extends BindingPool>> allPools = bindingPoolMap.values();
-		if ((allPools != null) && !allPools.isEmpty()) {
-			for (List<? extends BindingPool> bps : allPools) {
-				for (BindingPool bindingPool : bps) {
-					if (bindingPool.contains(inetAddr)) {
-						log.info("Found binding pool for address=" + 
-								inetAddr.getHostAddress() +
-								": " + bindingPool);
-						return bindingPool;
-					}
-				}
+		if (bindingPoolIndex != null) {
+			BindingPool bindingPool = bindingPoolIndex.find(inetAddr);
+			if ((bindingPool != null) && log.isDebugEnabled()) {
+				log.debug("Found binding pool for address=" + 
+						inetAddr.getHostAddress() +
+						": " + bindingPool);
 			}
+			return bindingPool;
 		}
 		return null;
 	}
@@ -271,6 +412,8 @@ public abstract class BaseBindingManager
 	{
 		BindingPool bp = findBindingPool(inetAddr);
 		if (bp != null) {
+			bp.getReuseQueue().remove(inetAddr);
+			cancelExpiration(inetAddr);
 			bp.setFree(inetAddr);
 		}
 		else {
@@ -278,6 +421,37 @@ public abstract class BaseBindingManager
 					inetAddr.getHostAddress());
 		}
 	}
+	
+	/**
+	 * Add an IP address to the reuse queue of it's binding pool.
+	 * 
+	 * @param inetAddr the IP address which may be reused
+	 * @param reuseTime the time after which the address may be reused
+	 */
+	protected void addReusableAddress(InetAddress inetAddr, long reuseTime)
+	{
+		BindingPool bp = findBindingPool(inetAddr);
+		if (bp != null) {
+			bp.getReuseQueue().add(inetAddr, reuseTime);
+		}
+		else {
+			log.warn("Unable to queue address for reuse: No BindingPool found for IP=" + 
+					inetAddr.getHostAddress());
+		}
+	}
+	
+	/**
+	 * Remove an IP address from the reuse queue of it's binding pool.
+	 * 
+	 * @param inetAddr the IP address which may no longer be reused
+	 */
+	protected void removeReusableAddress(InetAddress inetAddr)
+	{
+		BindingPool bp = findBindingPool(inetAddr);
+		if (bp != null) {
+			bp.getReuseQueue().remove(inetAddr);
+		}
+	}
     
 	/**
 	 * Find the current binding, if any, for the given client identity association (IA).
@@ -332,14 +506,14 @@ public abstract class BaseBindingManager
 			DhcpMessage requestMsg)
 	{
 		try {
-			List<? extends StaticBinding> staticBindings = 
+			StaticBindingIndex staticBindings = 
 				staticBindingMap.get(clientLink.getAddress());
-			if ((staticBindings != null) && !staticBindings.isEmpty()) {
-				for (StaticBinding staticBinding : staticBindings) {
-					if (staticBinding.matches(duid, iatype, iaid, requestMsg)) {
-						log.info("Found static binding: " + staticBinding);
-						return staticBinding;
-					}
+			if (staticBindings != null) {
+				StaticBinding staticBinding = 
+					staticBindings.find(duid, iatype, iaid, requestMsg);
+				if (staticBinding != null) {
+					log.info("Found static binding: " + staticBinding);
+					return staticBinding;
 				}
 			}
 		}
@@ -384,6 +558,16 @@ public abstract class BaseBindingManager
 					log.error("Failed to create persistent binding", ex);
 					return null;
 				}
+				if (state == IaAddress.ADVERTISED) {
+					for (InetAddress inetAddr : inetAddrs) {
+						scheduleOfferExpiration(inetAddr);
+					}
+				}
+				else {
+					for (IaAddress iaAddr : binding.getIaAddresses()) {
+						scheduleExpiration(iaAddr);
+					}
+				}
 			}
 			else {
 				log.error("Failed to build binding object(s)");
@@ -459,7 +643,6 @@ public abstract class BaseBindingManager
 		return binding;		
 	}
 	
-	
 	/**
 	 * Update an existing client binding.  Addresses in the current binding that are appropriate
 	 * for the client's link are simply updated with new lifetimes.  If no current bindings are
@@ -510,6 +693,20 @@ public abstract class BaseBindingManager
 		try {
 			log.info("Updating binding");
 			iaMgr.updateIA(binding, addIaAddresses, updateIaAddresses, delIaAddresses);
+			Collection<? extends IaAddress> iaAddrs = binding.getIaAddresses();
+			if (iaAddrs != null) {
+				for (IaAddress iaAddr : iaAddrs) {
+					if (state == IaAddress.ADVERTISED) {
+						scheduleOfferExpiration(iaAddr.getIpAddress());
+					}
+					else {
+						// the client has requested the address,
+						// so it can no longer be reused
+						removeReusableAddress(iaAddr.getIpAddress());
+						scheduleExpiration(iaAddr);
+					}
+				}
+			}
 			log.info("Binding updated: " + binding.toString());
 			return binding;	// if we get here, it worked
 		}
@@ -751,42 +948,93 @@ public abstract class BaseBindingManager
 	/**
 	 * Find an address that can be reused.  This method is invoked only
 	 * when no "virgin" leases can be found for a new client request.
+	 * The address is taken from the pool's in-memory reuse queue, so
+	 * no database query is needed to find it, but the lease of the
+	 * address is read to check that it is still reusable.
 	 * 
 	 * @param bp the binding pool
 	 * @return the oldest available address, if any
 	 */
 	protected InetAddress reuseAvailableAddress(BindingPool bp)
 	{
-		lock.lock();
-		try {
-			if (log.isDebugEnabled())
-				log.debug("Finding available addresses in pool: " +
-						bp.toString());
-			List<IaAddress> iaAddrs = 
-				iaMgr.findUnusedIaAddresses(bp.getStartAddress(), bp.getEndAddress());
-			if ((iaAddrs != null) && !iaAddrs.isEmpty()) {
-				if (log.isDebugEnabled()) {
-					for (IaAddress iaAddr : iaAddrs) {
-						log.debug("Found available address: " + iaAddr.toString());
-					}
+		if (log.isDebugEnabled())
+			log.debug("Finding available addresses in pool: " +
+					bp.toString() + " " + bp.getReuseQueue().toString());
+		long now = System.currentTimeMillis();
+		// the queue is ordered by the time each address became
+		// reusable, so the head of the queue is the oldest one
+		InetAddress inetAddr = bp.getReuseQueue().poll(now);
+		while (inetAddr != null) {
+			// load the stored address, because the IaManager
+			// may delete it by its id rather than by its IP
+			IaAddress iaAddr = findIaAddress(inetAddr);
+			if (iaAddr == null) {
+				log.info("Reusing available address: " + inetAddr.getHostAddress());
+				return inetAddr;
+			}
+			byte state = iaAddr.getState();
+			if (state == IaAddress.ADVERTISED) {
+				long offerExpiration = getOfferExpiration(iaAddr);
+				if (offerExpiration > now) {
+					// the client may still request the address, so queue
+					// it again for when the offer expires
+					log.debug("Available address is still offered: " + 
+							inetAddr.getHostAddress());
+					bp.getReuseQueue().add(inetAddr, offerExpiration);
+					inetAddr = bp.getReuseQueue().poll(now);
+					continue;
 				}
-				// list is ordered by validendtime
-				// so the first one is the oldest one
-				IaAddress iaAddr = iaAddrs.get(0);
-				log.info("Deleting oldest available address: " + iaAddr.toString());
-				// delete the oldest one and return the IP
-				// allowing that IP to be used again
-				iaMgr.deleteIaAddr(iaAddr);
-				return iaAddr.getIpAddress();
-// TODO: should we clear the rest of unused IPs
-// now, or wait for them to expire or be needed
-//				for (int i=1; i<iaAddrs.size(); i++) {
-//					
-//				}
 			}
+			else if (state == IaAddress.COMMITTED) {
+				// the address is queued again by the reaper when it expires
+				log.debug("Available address is in use: " + inetAddr.getHostAddress());
+				inetAddr = bp.getReuseQueue().poll(now);
+				continue;
+			}
+			log.info("Deleting oldest available address: " + iaAddr.toString());
+			// delete the oldest one and return the IP
+			// allowing that IP to be used again
+			iaMgr.deleteIaAddr(iaAddr);
+			return inetAddr;
+		}
+		return null;
+	}
+	
+	/**
+	 * Gets the time that the offer of an address expires, if the
+	 * client does not request it.
+	 * 
+	 * @param iaAddr the offered address
+	 * @return the offer expiration time, or zero if not known
+	 */
+	protected long getOfferExpiration(IaAddress iaAddr)
+	{
+		Date start = iaAddr.getStartTime();
+		if (start == null) {
+			return 0;
 		}
-		finally {
-			lock.unlock();
+		return start.getTime() + 
+			DhcpServerPolicies.globalPolicyAsLong(Property.BINDING_MANAGER_OFFER_EXPIRATION);
+	}
+	
+	/**
+	 * Find the stored IaAddress for an IP address.
+	 * 
+	 * @param inetAddr the IP address
+	 * @return the IaAddress, or null if not found
+	 */
+	protected IaAddress findIaAddress(InetAddress inetAddr)
+	{
+		// only the lease of the address is needed, not all those of its IA
+		List<IdentityAssoc> ias = iaMgr.findIAs(Collections.singletonList(inetAddr));
+		for (IdentityAssoc ia : ias) {
+			if (ia.getIaAddresses() != null) {
+				for (IaAddress iaAddr : ia.getIaAddresses()) {
+					if (inetAddr.equals(iaAddr.getIpAddress())) {
+						return iaAddr;
+					}
+				}
+			}
 		}
 		return null;
 	}
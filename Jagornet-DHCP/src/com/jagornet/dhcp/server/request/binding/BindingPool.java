@@ -47,4 +47,5 @@ public interface BindingPool extends DhcpConfigObject
 	public boolean contains(InetAddress addr);
 	public LinkFilter getLinkFilter();
 	public BigInteger getSize();
+	public ReuseQueue getReuseQueue();
 }
@@ -26,15 +26,25 @@
 package com.jagornet.dhcp.server.request.binding;
 
 import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.BitSet;
-import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.jagornet.dhcp.server.config.DhcpServerConfigException;
 
 /**
- * The Class FreeList.
+ * The Class FreeList.  A hierarchical bitmap of the used offsets within
+ * a range of BigInteger values, used for the (possibly huge) IPv6 address
+ * and prefix pools.  The leaf level is made of 64-bit words, one bit per
+ * offset, and each level above summarizes 64 children of the level below
+ * with a bitmap of the children which have no free offsets.  Nodes are only
+ * allocated for the parts of the range that have been used, and are pruned
+ * again when everything below them has been freed, so memory grows with the
+ * number of addresses in use, not with the size of the range.  Finding the
+ * next free offset, setting an offset used or free, and getting the free
+ * count are all logarithmic (base 64) in the size of the range.
+ * <p>
+ * Offsets are held as unsigned longs, so a range larger than 2^64 values,
+ * i.e. a pool larger than a /64, only hands out the first 2^64 values of
+ * the range, which is far more than could ever be leased.
  * 
  * @author A. Gregory Rabil
  */
@@ -42,22 +52,57 @@ public class FreeList
 {	
 	protected BigInteger start;
 	protected BigInteger end;
-
+	
+	/** The last usable offset (unsigned), i.e. the range size, capped at 2^64, less one */
+	protected long maxOffset;
+	
+	/** The level of the root node, where level one nodes hold the leaf words */
+	protected int rootLevel;
+	
+	protected Node root;
+	
+	protected long usedCount;
+	
 	/** 
-	 * The map of ranges, which are keyed by an index into a list of ranges, 
-	 * each offset by the maximum size of an integer. For example: 
-	 * index=0, for range of values from start to start+2147483647 
-	 * index=1, for range of values from start+2147483648 to 4294967295 
-	 * index=2, for range of values from start+4294967296 to 6442450943 
-	 * ... 
+	 * The distance between successive allocations when spreading addresses over 
+	 * the range according to the expected utilization, or zero to always hand out
+	 * the lowest free offset.
 	 */
-	protected List<BitSet> bitsetRanges;
+	protected long stride;
+	
+	/** The offset where the search for the next free offset begins when spreading */
+	protected long cursor;
 	
-	protected int nextFreeIndex;
+	/** The offset found by the last successful call to findFree */
+	private long foundOffset;
 	
 	// the ReentrantLock class is better than synchronized
 	private final ReentrantLock lock = new ReentrantLock();
 	
+	/**
+	 * A node of the bitmap tree.  A level one node holds 64 leaf words which
+	 * cover 4096 offsets, a node at any higher level holds up to 64 children.
+	 */
+	protected static class Node
+	{
+		/** Bit i is set if child (or word) i has no free offsets */
+		long fullMask;
+		/** Bit i is set if child i is allocated (or if word i is non-zero) */
+		long presentMask;
+		Node[] children;
+		long[] words;
+		
+		Node(int level)
+		{
+			if (level == 1) {
+				words = new long[64];
+			}
+			else {
+				children = new Node[64];
+			}
+		}
+	}
+	
 	/**
 	 * Instantiates a new free list.
 	 * 
@@ -69,14 +114,51 @@ public class FreeList
 		this.start = start;
 		this.end = end;
 		if (end.compareTo(start) >= 0) {
-			bitsetRanges = new ArrayList<BitSet>();
-			bitsetRanges.add(new BitSet());	// create one to start
+			BigInteger last = end.subtract(start);
+			if (last.bitLength() <= 64) {
+				maxOffset = last.longValue();
+			}
+			else {
+				maxOffset = -1L;	// 2^64 - 1
+			}
+			// each level covers six more bits of the offset
+			int bits = 64 - Long.numberOfLeadingZeros(maxOffset);
+			rootLevel = 1;
+			while (6 * (rootLevel + 1) < bits) {
+				rootLevel++;
+			}
+			root = new Node(rootLevel);
 		}
 		else {
 			throw new DhcpServerConfigException("Failed to create FreeList: end < start");
 		}
 	}
 	
+	/**
+	 * Sets the expected utilization of the range.  When set, consecutive
+	 * allocations are spread evenly across the range, instead of always
+	 * handing out the lowest free value.
+	 * 
+	 * @param utilization the expected fraction of the range that will be in use,
+	 * or zero (or one) to always pack allocations at the low end of the range
+	 */
+	public void setExpectedUtilization(float utilization)
+	{
+		lock.lock();
+		try {
+			if ((utilization > 0) && (utilization < 1)) {
+				stride = (long) Math.max(1, Math.min(maxOffset >>> 1, 1 / (double)utilization));
+			}
+			else {
+				stride = 0;
+			}
+			cursor = 0;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
 	public boolean isInList(BigInteger bi)
 	{
 		if ((bi.compareTo(start) >= 0) && (bi.compareTo(end) <= 0)) {
@@ -85,29 +167,43 @@ public class FreeList
 		return false;
 	}
 	
-	
 	/**
-	 * Gets the index into the list for the given BigInteger
+	 * Gets the offset of the given BigInteger from the start of the range.
 	 * 
 	 * @param bi the bi
 	 * 
-	 * @return the index position in the list
+	 * @return the unsigned offset
 	 */
-	protected int getIndex(BigInteger bi)
+	protected long getOffset(BigInteger bi)
 	{
-		return bi.subtract(start).divide(BigInteger.valueOf(Integer.MAX_VALUE)).intValue();
+		return bi.subtract(start).longValue();
 	}
 	
 	/**
-	 * Gets the offset into the BitSet for the given BigInteger
-	 * 
-	 * @param bi the bi
+	 * Checks if the given BigInteger is within the usable offsets of the range.
+	 */
+	protected boolean isUsable(BigInteger bi)
+	{
+		return isInList(bi) && (bi.subtract(start).bitLength() <= 64);
+	}
+	
+	/**
+	 * Compare two offsets as unsigned values.
 	 * 
-	 * @return the offset
+	 * @return true if a is greater than b
+	 */
+	private static boolean isAfter(long a, long b)
+	{
+		return (a ^ Long.MIN_VALUE) > (b ^ Long.MIN_VALUE);
+	}
+	
+	/**
+	 * Gets the index of the child (or word, at level one) of a node
+	 * at the given level which covers the given offset.
 	 */
-	protected int getOffset(BigInteger bi)
+	private static int index(long offset, int level)
 	{
-		return bi.subtract(start).mod(BigInteger.valueOf(Integer.MAX_VALUE)).intValue();		
+		return (int) ((offset >>> (6 * level)) & 63);
 	}
 	
 	/**
@@ -118,35 +214,149 @@ public class FreeList
 	 */
 	protected void set(BigInteger bi, boolean used)
 	{
-		lock.lock();
-		try {
-			if (isInList(bi)) {
-				int offset = getOffset(bi);
-				BitSet bitset = null;
-				int ndx = getIndex(bi);
-				if (ndx < bitsetRanges.size()) {
-					bitset = bitsetRanges.get(ndx);
+		if (isUsable(bi)) {
+			long offset = getOffset(bi);
+			lock.lock();
+			try {
+				if (used) {
+					setUsed(root, rootLevel, offset);
 				}
 				else {
-					while (ndx >= bitsetRanges.size()) {
-						bitset = new BitSet();
-						bitsetRanges.add(bitset);
-					}
+					setFree(root, rootLevel, offset);
 				}
-				if (used) {
-					bitset.set(offset);
+			}
+			finally {
+				lock.unlock();
+			}
+		}
+	}
+	
+	/**
+	 * Mark the offset used in the subtree of the given node.
+	 * 
+	 * @return true if the node has no more free offsets
+	 */
+	private boolean setUsed(Node node, int level, long offset)
+	{
+		int i = index(offset, level);
+		long ibit = 1L << i;
+		if (level == 1) {
+			long bit = 1L << offset;
+			long word = node.words[i];
+			if ((word & bit) == 0) {
+				word |= bit;
+				node.words[i] = word;
+				node.presentMask |= ibit;
+				if (word == -1L) {
+					node.fullMask |= ibit;
 				}
-				else {
-					bitset.clear(offset);
-					if (ndx < nextFreeIndex) {
-						nextFreeIndex = ndx;	// reset next free search index
-					}
+				usedCount++;
+			}
+		}
+		else {
+			Node child = node.children[i];
+			if (child == null) {
+				child = new Node(level - 1);
+				node.children[i] = child;
+				node.presentMask |= ibit;
+			}
+			if (setUsed(child, level - 1, offset)) {
+				node.fullMask |= ibit;
+			}
+		}
+		return (node.fullMask == -1L);
+	}
+	
+	/**
+	 * Mark the offset free in the subtree of the given node.
+	 * 
+	 * @return true if the node no longer has any used offsets
+	 */
+	private boolean setFree(Node node, int level, long offset)
+	{
+		int i = index(offset, level);
+		long ibit = 1L << i;
+		if (level == 1) {
+			long bit = 1L << offset;
+			long word = node.words[i];
+			if ((word & bit) != 0) {
+				word &= ~bit;
+				node.words[i] = word;
+				node.fullMask &= ~ibit;
+				if (word == 0) {
+					node.presentMask &= ~ibit;
 				}
+				usedCount--;
 			}
 		}
-		finally {
-			lock.unlock();
+		else {
+			Node child = node.children[i];
+			if (child != null) {
+				if (setFree(child, level - 1, offset)) {
+					// prune the empty subtree
+					node.children[i] = null;
+					node.presentMask &= ~ibit;
+				}
+				node.fullMask &= ~ibit;
+			}
 		}
+		return (node.presentMask == 0);
+	}
+	
+	/**
+	 * Find the lowest free offset, not less than the given offset, 
+	 * in the subtree of the given node.
+	 * 
+	 * @param node the node
+	 * @param level the level of the node
+	 * @param from the offset to start from, which is within the node
+	 * 
+	 * @return true if a free offset was found, and stored in foundOffset
+	 */
+	private boolean findFree(Node node, int level, long from)
+	{
+		int shift = 6 * level;
+		int i0 = index(from, level);
+		// offset of the first value covered by this node
+		long base = (shift + 6 < 64) ? (from & ~((1L << (shift + 6)) - 1)) : 0;
+		long candidates = ~node.fullMask & (-1L << i0);
+		while (candidates != 0) {
+			int i = Long.numberOfTrailingZeros(candidates);
+			candidates &= (candidates - 1);
+			if ((shift + 6 > 64) && (i > (maxOffset >>> shift))) {
+				break;	// beyond the end of the range at the root
+			}
+			long childFrom = (i == i0) ? from : base + ((long)i << shift);
+			if (isAfter(childFrom, maxOffset)) {
+				break;	// beyond the end of the range
+			}
+			if (level == 1) {
+				long word = node.words[i];
+				if (i == i0) {
+					// treat the bits before from as used
+					word |= (1L << (from & 63)) - 1;
+				}
+				if (word != -1L) {
+					long free = base + ((long)i << 6) + Long.numberOfTrailingZeros(~word);
+					if (isAfter(free, maxOffset)) {
+						break;
+					}
+					foundOffset = free;
+					return true;
+				}
+			}
+			else {
+				Node child = node.children[i];
+				if (child == null) {
+					foundOffset = childFrom;
+					return true;
+				}
+				if (findFree(child, level - 1, childFrom)) {
+					return true;
+				}
+			}
+		}
+		return false;
 	}
 	
 	/**
@@ -179,13 +389,21 @@ public class FreeList
 	 */
 	public boolean isUsed(BigInteger used)
 	{
-		if (isInList(used)) {
-			int ndx = getIndex(used);
-			if (ndx < bitsetRanges.size()) {
-				BitSet bitset = bitsetRanges.get(ndx);
-				if (bitset != null) {
-					return bitset.get(getOffset(used));
+		if (isUsable(used)) {
+			long offset = getOffset(used);
+			lock.lock();
+			try {
+				Node node = root;
+				for (int level = rootLevel; level > 1; level--) {
+					node = node.children[index(offset, level)];
+					if (node == null) {
+						return false;
+					}
 				}
+				return (node.words[index(offset, 1)] & (1L << offset)) != 0;
+			}
+			finally {
+				lock.unlock();
 			}
 		}
 		return false;
@@ -204,36 +422,33 @@ public class FreeList
 	}
 	
 	/**
-	 * Gets the next free.
+	 * Gets the next free, and marks it used.
 	 * 
-	 * @return the next free
+	 * @return the next free, or null if the range is full
 	 */
 	public BigInteger getNextFree()
 	{
 		lock.lock();
 		try {
-			BigInteger next = start.add(BigInteger.valueOf(nextFreeIndex).
-											multiply(BigInteger.valueOf(Integer.MAX_VALUE)));
-			int clearBit = -1;
-			BitSet bitset = bitsetRanges.get(nextFreeIndex);
-			clearBit = bitset.nextClearBit(0);
-			if (clearBit >= 0) {
-				next = next.add(BigInteger.valueOf(clearBit));
-				if (isInList(next)) {
-					bitset.set(clearBit);
-					return next;
-				}
+			long from = (stride > 0) ? cursor : 0;
+			boolean found = findFree(root, rootLevel, from);
+			if (!found && (from != 0)) {
+				// wrap around to the start of the range
+				found = findFree(root, rootLevel, 0);
 			}
-			else {
-				// no more available in the last BitSet, so the next available
-				// would be the first in the next BitSet, so add max offset
-				next = next.add(BigInteger.valueOf(Integer.MAX_VALUE));
-				if (isInList(next)) {
-					nextFreeIndex++;
-					bitset = new BitSet();
-					bitset.set(0);
-					bitsetRanges.add(nextFreeIndex, bitset);
+			if (found) {
+				long next = foundOffset;
+				setUsed(root, rootLevel, next);
+				if (stride > 0) {
+					cursor = next + stride;
+					if (isAfter(next, cursor)) {
+						cursor = 0;		// wrapped past 2^64
+					}
+					else if (isAfter(cursor, maxOffset)) {
+						cursor -= (maxOffset + 1);
+					}
 				}
+				return start.add(toBigInteger(next));
 			}
 		}
 		finally {
@@ -242,19 +457,54 @@ public class FreeList
 		return null;
 	}
 	
+	/**
+	 * Convert an unsigned offset to a BigInteger.
+	 */
+	private static BigInteger toBigInteger(long offset)
+	{
+		BigInteger bi = BigInteger.valueOf(offset & Long.MAX_VALUE);
+		if (offset < 0) {
+			bi = bi.setBit(63);
+		}
+		return bi;
+	}
+	
+	/**
+	 * Gets the number of used values in the range.
+	 * 
+	 * @return the used count
+	 */
+	public long getUsedCount()
+	{
+		lock.lock();
+		try {
+			return usedCount;
+		}
+		finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Gets the number of free values in the range.
+	 * 
+	 * @return the free count
+	 */
+	public BigInteger getFreeCount()
+	{
+		return end.subtract(start).add(BigInteger.ONE).
+				subtract(BigInteger.valueOf(getUsedCount()));
+	}
+	
 	public String toString() {
 		StringBuffer sb = new StringBuffer();
 		sb.append("FreeList:");
 		sb.append(" start=" + start);
 		sb.append(" end=" + end);
-		if ((bitsetRanges != null) && !bitsetRanges.isEmpty()) {
-			sb.append(" ranges:\n");
-			int i = 0;
-			for (BitSet bs : bitsetRanges) {
-				sb.append(" bitset[" + i + "].cardinality=" + bs.cardinality());
-				sb.append('\n');
-				i++;
-			}
+		sb.append(" levels=" + rootLevel);
+		sb.append(" used=" + getUsedCount());
+		if (stride > 0) {
+			sb.append(" stride=" + stride);
 		}
 		return sb.toString();
 	}
@@ -0,0 +1,48 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file IcmpPingProber.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * The Class IcmpPingProber.  The default PingProber, which uses
+ * InetAddress.isReachable, i.e. an ICMP echo request if the server
+ * has the privilege to send one, otherwise a TCP echo request.
+ * 
+ * @author A. Gregory Rabil
+ */
+public class IcmpPingProber implements PingProber
+{
+	/* (non-Javadoc)
+	 * @see com.jagornet.dhcp.server.request.binding.PingProber#isReachable(java.net.InetAddress, int)
+	 */
+	@Override
+	public boolean isReachable(InetAddress inetAddr, int timeout) throws IOException
+	{
+		return inetAddr.isReachable(timeout);
+	}
+}
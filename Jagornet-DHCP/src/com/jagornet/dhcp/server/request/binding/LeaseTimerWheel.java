@@ -0,0 +1,430 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file LeaseTimerWheel.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class LeaseTimerWheel.  A hierarchical hashed timing wheel which
+ * schedules the expiration of each lease when it is offered, granted or
+ * renewed.  Level zero of the wheel has one bucket per tick, and each
+ * higher level has buckets which span all of the buckets of the level
+ * below it.  Leases are moved down a level when the wheel reaches their
+ * bucket, so scheduling, canceling and expiring a lease are all constant
+ * time operations, and the work done on each tick is proportional to the
+ * number of leases actually expiring, not to the number of leases.
+ * 
+ * The expired leases are passed to the ExpiryHandler in one batch per tick
+ * on a dedicated thread.
+ * 
+ * @author A. Gregory Rabil
+ */
+public class LeaseTimerWheel
+{
+	private static Logger log = LoggerFactory.getLogger(LeaseTimerWheel.class);
+	
+	/** The default number of buckets in each level of the wheel. */
+	public static final int DEFAULT_WHEEL_SIZE = 64;
+	
+	/**
+	 * The callback interface for expired leases.
+	 */
+	public interface ExpiryHandler
+	{
+		/**
+		 * Expire the leases for the given addresses.
+		 * 
+		 * @param inetAddrs the addresses of the expired leases
+		 */
+		public void expire(List<InetAddress> inetAddrs);
+	}
+	
+	/**
+	 * A scheduled lease, linked into the list of its bucket.
+	 */
+	protected static class Entry
+	{
+		InetAddress inetAddr;
+		long expireTime;
+		Bucket bucket;
+		Entry prev;
+		Entry next;
+	}
+	
+	/**
+	 * A doubly linked list of entries.
+	 */
+	protected static class Bucket
+	{
+		Entry head;
+		
+		void add(Entry entry)
+		{
+			entry.bucket = this;
+			entry.prev = null;
+			entry.next = head;
+			if (head != null) {
+				head.prev = entry;
+			}
+			head = entry;
+		}
+		
+		void remove(Entry entry)
+		{
+			if (entry.prev != null) {
+				entry.prev.next = entry.next;
+			}
+			else {
+				head = entry.next;
+			}
+			if (entry.next != null) {
+				entry.next.prev = entry.prev;
+			}
+			entry.bucket = null;
+			entry.prev = null;
+			entry.next = null;
+		}
+		
+		Entry removeAll()
+		{
+			Entry entries = head;
+			head = null;
+			return entries;
+		}
+	}
+	
+	/**
+	 * One level of the wheel.
+	 */
+	protected static class Level
+	{
+		/** The time span of each bucket of this level. */
+		long tick;
+		/** The start time of the current bucket of this level. */
+		long currentTime;
+		Bucket[] buckets;
+	}
+	
+	protected final String name;
+	protected final long tickMs;
+	protected final int wheelSize;
+	protected final ExpiryHandler handler;
+	
+	/** The levels of the wheel, created as needed for later expirations. */
+	protected final List<Level> levels = new ArrayList<Level>();
+	
+	/** The bucket for entries which were already expired when scheduled. */
+	protected final Bucket overdue = new Bucket();
+	
+	/** The index of entries by address. */
+	protected final Map<InetAddress, Entry> index = new HashMap<InetAddress, Entry>();
+	
+	protected Thread thread;
+	protected volatile boolean running;
+
+	/**
+	 * Instantiates a new lease timer wheel with the default wheel size,
+	 * starting at the current time.
+	 * 
+	 * @param name the name of the expiry thread
+	 * @param tickMs the number of milliseconds per tick
+	 * @param handler the handler for expired leases
+	 */
+	public LeaseTimerWheel(String name, long tickMs, ExpiryHandler handler)
+	{
+		this(name, tickMs, DEFAULT_WHEEL_SIZE, System.currentTimeMillis(), handler);
+	}
+	
+	/**
+	 * Instantiates a new lease timer wheel.
+	 * 
+	 * @param name the name of the expiry thread
+	 * @param tickMs the number of milliseconds per tick
+	 * @param wheelSize the number of buckets in each level
+	 * @param startTime the start time of the wheel
+	 * @param handler the handler for expired leases
+	 */
+	public LeaseTimerWheel(String name, long tickMs, int wheelSize, long startTime,
+			ExpiryHandler handler)
+	{
+		if (tickMs <= 0) {
+			throw new IllegalArgumentException("Timer wheel tick must be greater than zero");
+		}
+		if (wheelSize < 2) {
+			throw new IllegalArgumentException("Timer wheel size must be at least two");
+		}
+		this.name = name;
+		this.tickMs = tickMs;
+		this.wheelSize = wheelSize;
+		this.handler = handler;
+		Level level = new Level();
+		level.tick = tickMs;
+		level.currentTime = startTime - (startTime % tickMs);
+		level.buckets = newBuckets();
+		levels.add(level);
+	}
+	
+	/**
+	 * Schedule the expiration of a lease.  Any expiration already
+	 * scheduled for the address is replaced.
+	 * 
+	 * @param inetAddr the address of the lease
+	 * @param expireTime the time at which the lease expires
+	 */
+	public synchronized void schedule(InetAddress inetAddr, long expireTime)
+	{
+		Entry entry = index.get(inetAddr);
+		if (entry != null) {
+			entry.bucket.remove(entry);
+		}
+		else {
+			entry = new Entry();
+			entry.inetAddr = inetAddr;
+			index.put(inetAddr, entry);
+		}
+		entry.expireTime = expireTime;
+		insert(entry);
+	}
+	
+	/**
+	 * Cancel the scheduled expiration of a lease.
+	 * 
+	 * @param inetAddr the address of the lease
+	 * 
+	 * @return true, if an expiration was scheduled for the address
+	 */
+	public synchronized boolean cancel(InetAddress inetAddr)
+	{
+		Entry entry = index.remove(inetAddr);
+		if (entry == null) {
+			return false;
+		}
+		entry.bucket.remove(entry);
+		return true;
+	}
+	
+	/**
+	 * Checks if an expiration is scheduled for the address.
+	 * 
+	 * @param inetAddr the address of the lease
+	 * 
+	 * @return true, if an expiration is scheduled
+	 */
+	public synchronized boolean isScheduled(InetAddress inetAddr)
+	{
+		return index.containsKey(inetAddr);
+	}
+	
+	/**
+	 * Gets the number of scheduled expirations.
+	 * 
+	 * @return the size
+	 */
+	public synchronized int size()
+	{
+		return index.size();
+	}
+	
+	/**
+	 * Advance the wheel to the given time, and return the addresses
+	 * of all the leases which expired by that time.  Leases are never
+	 * returned before their expire time, and at most one tick after it.
+	 * 
+	 * @param now the current time
+	 * 
+	 * @return the list of expired addresses, which may be empty
+	 */
+	public synchronized List<InetAddress> advance(long now)
+	{
+		List<InetAddress> expired = new ArrayList<InetAddress>();
+		drain(overdue.removeAll(), expired);
+		Level level0 = levels.get(0);
+		while (level0.currentTime + tickMs <= now) {
+			// the current bucket is now entirely in the past
+			drain(level0.buckets[slot(level0, level0.currentTime)].removeAll(), expired);
+			long time = level0.currentTime + tickMs;
+			level0.currentTime = time;
+			int top = 0;
+			for (int i=1; i<levels.size(); i++) {
+				Level level = levels.get(i);
+				if ((time % level.tick) != 0) {
+					break;
+				}
+				level.currentTime = time;
+				top = i;
+			}
+			// move the entries in the new current bucket of each higher
+			// level down to the lower levels, starting with the highest
+			for (int i=top; i>0; i--) {
+				Level level = levels.get(i);
+				Entry entry = level.buckets[slot(level, time)].removeAll();
+				while (entry != null) {
+					Entry next = entry.next;
+					entry.prev = null;
+					entry.next = null;
+					insert(entry);
+					entry = next;
+				}
+			}
+		}
+		return expired;
+	}
+	
+	/**
+	 * Start the expiry thread.
+	 * 
+	 * @param startupDelay the number of milliseconds to wait before the first tick
+	 */
+	public synchronized void start(final long startupDelay)
+	{
+		if (thread != null) {
+			return;
+		}
+		running = true;
+		thread = new Thread(name) {
+			@Override
+			public void run() {
+				try {
+					if (startupDelay > 0) {
+						Thread.sleep(startupDelay);
+					}
+					while (running) {
+						List<InetAddress> expired = advance(System.currentTimeMillis());
+						if (!expired.isEmpty()) {
+							try {
+								handler.expire(expired);
+							}
+							catch (Exception ex) {
+								log.error("Failed to expire leases", ex);
+							}
+						}
+						long sleep = nextTickTime() - System.currentTimeMillis();
+						if (sleep > 0) {
+							Thread.sleep(sleep);
+						}
+					}
+				}
+				catch (InterruptedException ex) {
+					// stopped
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	/**
+	 * Stop the expiry thread.
+	 */
+	public synchronized void stop()
+	{
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+	
+	protected synchronized long nextTickTime()
+	{
+		return levels.get(0).currentTime + tickMs;
+	}
+	
+	private void insert(Entry entry)
+	{
+		Level level0 = levels.get(0);
+		if (entry.expireTime < level0.currentTime) {
+			overdue.add(entry);
+			return;
+		}
+		for (int i=0; ; i++) {
+			Level level = (i < levels.size()) ? levels.get(i) : newLevel();
+			// the top level, if the next level's tick would overflow,
+			// takes everything, and simply reinserts entries which are
+			// not yet due when the wheel comes around to their bucket
+			boolean top = (level.tick > (Long.MAX_VALUE / wheelSize) / wheelSize);
+			if (top || (entry.expireTime - level.currentTime < level.tick * wheelSize)) {
+				level.buckets[slot(level, entry.expireTime)].add(entry);
+				return;
+			}
+		}
+	}
+	
+	private Level newLevel()
+	{
+		Level below = levels.get(levels.size() - 1);
+		Level level = new Level();
+		level.tick = below.tick * wheelSize;
+		long now = levels.get(0).currentTime;
+		level.currentTime = now - (now % level.tick);
+		level.buckets = newBuckets();
+		levels.add(level);
+		return level;
+	}
+	
+	private Bucket[] newBuckets()
+	{
+		Bucket[] buckets = new Bucket[wheelSize];
+		for (int i=0; i<wheelSize; i++) {
+			buckets[i] = new Bucket();
+		}
+		return buckets;
+	}
+	
+	private int slot(Level level, long time)
+	{
+		return (int) ((time / level.tick) % wheelSize);
+	}
+	
+	private void drain(Entry entry, List<InetAddress> expired)
+	{
+		while (entry != null) {
+			Entry next = entry.next;
+			index.remove(entry.inetAddr);
+			entry.bucket = null;
+			entry.prev = null;
+			entry.next = null;
+			expired.add(entry.inetAddr);
+			entry = next;
+		}
+	}
+	
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("LeaseTimerWheel:");
+		sb.append(" tickMs=" + tickMs);
+		sb.append(" levels=" + levels.size());
+		sb.append(" scheduled=" + size());
+		return sb.toString();
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file RangeIndex.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * The Class RangeIndex.  An immutable index of address ranges, for finding
+ * the object, i.e. the DhcpLink or BindingPool, for an address with a binary
+ * search instead of checking each range in turn.  The index is built once,
+ * from ranges which may overlap, by splitting the ranges into disjoint
+ * segments which each map to the first range, in the order added, which
+ * contains the segment.  So a lookup returns the same object as checking
+ * each range in the order added.  IPv4 and IPv6 ranges may be mixed in
+ * the same index.
+ * 
+ * @author A. Gregory Rabil
+ */
+public class RangeIndex<T>
+{
+	/** The start address of each segment, in ascending order. */
+	protected final byte[][] starts;
+	
+	/** The end address of each segment. */
+	protected final byte[][] ends;
+	
+	/** The object for each segment. */
+	protected final Object[] values;
+	
+	/**
+	 * The Class Builder.  Collects the ranges for a new RangeIndex.
+	 */
+	public static class Builder<T>
+	{
+		protected List<InetAddress> startAddrs = new ArrayList<InetAddress>();
+		protected List<InetAddress> endAddrs = new ArrayList<InetAddress>();
+		protected List<T> objs = new ArrayList<T>();
+		
+		/**
+		 * Add a range to the index.
+		 * 
+		 * @param startAddr the start address of the range
+		 * @param endAddr the end address of the range, inclusive
+		 * @param obj the object for addresses in the range
+		 * 
+		 * @return this builder
+		 */
+		public Builder<T> add(InetAddress startAddr, InetAddress endAddr, T obj)
+		{
+			if (startAddr.getAddress().length != endAddr.getAddress().length) {
+				throw new IllegalArgumentException("Range start and end address families differ");
+			}
+			startAddrs.add(startAddr);
+			endAddrs.add(endAddr);
+			objs.add(obj);
+			return this;
+		}
+		
+		/**
+		 * Build the index.
+		 * 
+		 * @return the range index
+		 */
+		public RangeIndex<T> build()
+		{
+			return new RangeIndex<T>(this);
+		}
+	}
+	
+	/**
+	 * Instantiates a new range index.
+	 * 
+	 * @param builder the builder with the ranges
+	 */
+	protected RangeIndex(Builder<T> builder)
+	{
+		int n = builder.objs.size();
+		BigInteger[] lo = new BigInteger[n];
+		BigInteger[] hi = new BigInteger[n];
+		// the segment boundaries: the start of each range, and the
+		// address after the end of each range; the address family
+		// is encoded above the address bits, so that all the IPv4
+		// segments sort before all the IPv6 segments
+		TreeSet<BigInteger> points = new TreeSet<BigInteger>();
+		for (int i=0; i<n; i++) {
+			lo[i] = toKey(builder.startAddrs.get(i).getAddress());
+			hi[i] = toKey(builder.endAddrs.get(i).getAddress());
+			points.add(lo[i]);
+			points.add(hi[i].add(BigInteger.ONE));
+		}
+		List<byte[]> segStarts = new ArrayList<byte[]>();
+		List<byte[]> segEnds = new ArrayList<byte[]>();
+		List<Object> segValues = new ArrayList<Object>();
+		BigInteger[] bounds = points.toArray(new BigInteger[points.size()]);
+		for (int s=0; s<bounds.length-1; s++) {
+			BigInteger segStart = bounds[s];
+			BigInteger segEnd = bounds[s+1].subtract(BigInteger.ONE);
+			T value = null;
+			for (int i=0; i<n; i++) {
+				if ((lo[i].compareTo(segStart) <= 0) && (hi[i].compareTo(segEnd) >= 0)) {
+					value = builder.objs.get(i);
+					break;
+				}
+			}
+			if (value == null) {
+				continue;	// a gap between ranges
+			}
+			int last = segValues.size() - 1;
+			if ((last >= 0) && (segValues.get(last) == value) &&
+					toKey(segEnds.get(last)).add(BigInteger.ONE).equals(segStart)) {
+				// merge with the adjacent segment for the same object
+				segEnds.set(last, fromKey(segEnd));
+			}
+			else {
+				segStarts.add(fromKey(segStart));
+				segEnds.add(fromKey(segEnd));
+				segValues.add(value);
+			}
+		}
+		starts = segStarts.toArray(new byte[segStarts.size()][]);
+		ends = segEnds.toArray(new byte[segEnds.size()][]);
+		values = segValues.toArray();
+	}
+	
+	/**
+	 * Find the object for an address.
+	 * 
+	 * @param inetAddr the address
+	 * 
+	 * @return the object for the first range containing the address, or null if none
+	 */
+	@SuppressWarnings("unchecked")
+	public T find(InetAddress inetAddr)
+	{
+		byte[] addr = inetAddr.getAddress();
+		// find the last segment which starts at or before the address
+		int low = 0;
+		int high = starts.length - 1;
+		int found = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (compare(starts[mid], addr) <= 0) {
+				found = mid;
+				low = mid + 1;
+			}
+			else {
+				high = mid - 1;
+			}
+		}
+		if ((found >= 0) && (compare(addr, ends[found]) <= 0)) {
+			return (T) values[found];
+		}
+		return null;
+	}
+	
+	/**
+	 * Gets the number of disjoint segments in the index.
+	 * 
+	 * @return the size
+	 */
+	public int size()
+	{
+		return values.length;
+	}
+	
+	/**
+	 * Compare two addresses, where all IPv4 addresses are less than all IPv6 addresses.
+	 */
+	private static int compare(byte[] a, byte[] b)
+	{
+		if (a.length != b.length) {
+			return a.length - b.length;
+		}
+		for (int i=0; i<a.length; i++) {
+			int diff = (a[i] & 0xff) - (b[i] & 0xff);
+			if (diff != 0) {
+				return diff;
+			}
+		}
+		return 0;
+	}
+	
+	private static BigInteger toKey(byte[] addr)
+	{
+		// prefix with the length, so the key is positive and family ordered
+		byte[] key = new byte[addr.length + 1];
+		key[0] = (byte) addr.length;
+		System.arraycopy(addr, 0, key, 1, addr.length);
+		return new BigInteger(key);
+	}
+	
+	private static byte[] fromKey(BigInteger key)
+	{
+		byte[] bytes = key.toByteArray();
+		// the first byte is always the length, which is never zero
+		int len = bytes[0];
+		byte[] addr = new byte[len];
+		System.arraycopy(bytes, bytes.length - len, addr, 0, len);
+		return addr;
+	}
+}
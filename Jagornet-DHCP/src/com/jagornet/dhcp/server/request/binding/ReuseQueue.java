@@ -0,0 +1,237 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file ReuseQueue.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The Class ReuseQueue.  An indexed min-heap of the addresses in a binding
+ * pool which have been released, expired or offered and never requested,
+ * ordered by the time at which each address may be reused.  When a pool has
+ * no more "virgin" addresses, the oldest reusable address is taken from the
+ * head of this queue, instead of querying the lease database for all of the
+ * unused leases in the pool's range.  The index allows an address to be
+ * removed from the queue when it is declined or bound again.
+ * 
+ * @author A. Gregory Rabil
+ */
+public class ReuseQueue
+{
+	/**
+	 * An address in the queue.
+	 */
+	protected static class Entry
+	{
+		InetAddress inetAddr;
+		long reuseTime;
+		long seq;
+		int pos;
+	}
+	
+	/** The heap of entries, ordered by reuse time, then insertion order. */
+	protected Entry[] heap = new Entry[16];
+	
+	/** The number of entries in the heap. */
+	protected int size;
+	
+	/** The index of entries by address. */
+	protected Map<InetAddress, Entry> index = new HashMap<InetAddress, Entry>();
+	
+	/** The insertion sequence, for FIFO order of entries with the same time. */
+	protected long nextSeq;
+
+	/**
+	 * Add an address to the queue, or update the reuse time of an address
+	 * which is already in the queue.
+	 * 
+	 * @param inetAddr the address
+	 * @param reuseTime the time, in milliseconds, after which the address may be reused
+	 */
+	public synchronized void add(InetAddress inetAddr, long reuseTime)
+	{
+		Entry entry = index.get(inetAddr);
+		if (entry != null) {
+			entry.reuseTime = reuseTime;
+			entry.seq = nextSeq++;
+			if (!siftUp(entry.pos)) {
+				siftDown(entry.pos);
+			}
+			return;
+		}
+		entry = new Entry();
+		entry.inetAddr = inetAddr;
+		entry.reuseTime = reuseTime;
+		entry.seq = nextSeq++;
+		if (size == heap.length) {
+			Entry[] bigger = new Entry[size * 2];
+			System.arraycopy(heap, 0, bigger, 0, size);
+			heap = bigger;
+		}
+		entry.pos = size;
+		heap[size++] = entry;
+		index.put(inetAddr, entry);
+		siftUp(entry.pos);
+	}
+	
+	/**
+	 * Remove an address from the queue.
+	 * 
+	 * @param inetAddr the address
+	 * 
+	 * @return true, if the address was in the queue
+	 */
+	public synchronized boolean remove(InetAddress inetAddr)
+	{
+		Entry entry = index.remove(inetAddr);
+		if (entry == null) {
+			return false;
+		}
+		removeAt(entry.pos);
+		return true;
+	}
+	
+	/**
+	 * Remove and return the oldest address which may be reused as of the given time.
+	 * 
+	 * @param now the current time in milliseconds
+	 * 
+	 * @return the address, or null if no address is reusable yet
+	 */
+	public synchronized InetAddress poll(long now)
+	{
+		if ((size == 0) || (heap[0].reuseTime > now)) {
+			return null;
+		}
+		Entry entry = heap[0];
+		index.remove(entry.inetAddr);
+		removeAt(0);
+		return entry.inetAddr;
+	}
+	
+	/**
+	 * Checks if the address is in the queue.
+	 * 
+	 * @param inetAddr the address
+	 * 
+	 * @return true, if the address is in the queue
+	 */
+	public synchronized boolean contains(InetAddress inetAddr)
+	{
+		return index.containsKey(inetAddr);
+	}
+	
+	/**
+	 * Gets the number of addresses in the queue.
+	 * 
+	 * @return the size
+	 */
+	public synchronized int size()
+	{
+		return size;
+	}
+	
+	/**
+	 * Remove all addresses from the queue.
+	 */
+	public synchronized void clear()
+	{
+		for (int i=0; i<size; i++) {
+			heap[i] = null;
+		}
+		size = 0;
+		index.clear();
+	}
+
+	private void removeAt(int pos)
+	{
+		size--;
+		Entry last = heap[size];
+		heap[size] = null;
+		if (pos < size) {
+			last.pos = pos;
+			heap[pos] = last;
+			if (!siftUp(pos)) {
+				siftDown(pos);
+			}
+		}
+	}
+	
+	private boolean before(Entry a, Entry b)
+	{
+		if (a.reuseTime != b.reuseTime) {
+			return a.reuseTime < b.reuseTime;
+		}
+		return a.seq < b.seq;
+	}
+	
+	private boolean siftUp(int pos)
+	{
+		Entry entry = heap[pos];
+		int start = pos;
+		while (pos > 0) {
+			int parent = (pos - 1) >>> 1;
+			if (!before(entry, heap[parent])) {
+				break;
+			}
+			heap[pos] = heap[parent];
+			heap[pos].pos = pos;
+			pos = parent;
+		}
+		heap[pos] = entry;
+		entry.pos = pos;
+		return pos != start;
+	}
+	
+	private void siftDown(int pos)
+	{
+		Entry entry = heap[pos];
+		int half = size >>> 1;
+		while (pos < half) {
+			int child = (pos << 1) + 1;
+			int right = child + 1;
+			if ((right < size) && before(heap[right], heap[child])) {
+				child = right;
+			}
+			if (!before(heap[child], entry)) {
+				break;
+			}
+			heap[pos] = heap[child];
+			heap[pos].pos = pos;
+			pos = child;
+		}
+		heap[pos] = entry;
+		entry.pos = pos;
+	}
+	
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("ReuseQueue:");
+		sb.append(" size=" + size());
+		return sb.toString();
+	}
+}
@@ -38,6 +38,18 @@ public abstract class StaticBinding implements DhcpConfigObject
 			DhcpMessage requestMsg);
 	
 	public abstract String getIpAddress();
+	
+	/**
+	 * Gets the key of the client identity for this binding, which must find
+	 * this binding in a StaticBindingIndex for exactly the requests which
+	 * this binding matches.  Bindings which match on anything other than
+	 * the client identity return null, and are searched with matches.
+	 * 
+	 * @return the key, or null if this binding cannot be keyed
+	 */
+	public StaticBindingIndex.Key getKey() {
+		return null;
+	}
 
 	public InetAddress getInetAddress() {
 		String ip = getIpAddress();
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file StaticBindingIndex.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.jagornet.dhcp.message.DhcpMessage;
+
+/**
+ * The Class StaticBindingIndex.  The static bindings configured for a link,
+ * hashed by the client identity of each binding, so that finding the static
+ * binding for a client does not scan every reservation on the link.  Static
+ * bindings which do not provide a key are kept in a list which is searched
+ * with StaticBinding.matches, as before.  When more than one binding matches
+ * a client, the binding configured first is found, as with a scan of the list.
+ * 
+ * @author A. Gregory Rabil
+ */
+public class StaticBindingIndex
+{
+	/** The keyed bindings, with the position of each in the configured list. */
+	protected Map<Key, Entry> keyedBindings = new HashMap<Key, Entry>();
+	
+	/** The bindings without a key, in configured order. */
+	protected List<Entry> unkeyedBindings = new ArrayList<Entry>();
+	
+	/** The total number of bindings. */
+	protected int size;
+	
+	/**
+	 * Instantiates a new static binding index.
+	 * 
+	 * @param staticBindings the static bindings, in configured order
+	 */
+	public StaticBindingIndex(List<? extends StaticBinding> staticBindings)
+	{
+		if (staticBindings != null) {
+			for (StaticBinding staticBinding : staticBindings) {
+				Entry entry = new Entry(size++, staticBinding);
+				Key key = staticBinding.getKey();
+				if (key != null) {
+					if (!keyedBindings.containsKey(key)) {
+						keyedBindings.put(key, entry);
+					}
+				}
+				else {
+					unkeyedBindings.add(entry);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Find the static binding for the client identity association.
+	 * 
+	 * @param duid the DUID of the client, or the chaddr for a v4 client
+	 * @param iatype the IA type of the client request
+	 * @param iaid the IAID of the client request
+	 * @param requestMsg the client request message
+	 * 
+	 * @return the static binding, or null if none matches
+	 */
+	public StaticBinding find(byte[] duid, byte iatype, long iaid, DhcpMessage requestMsg)
+	{
+		Entry found = null;
+		if (duid != null) {
+			// a binding for this specific IA, or for any IA of the client
+			found = first(keyedBindings.get(new Key(iatype, duid, iaid)),
+						keyedBindings.get(new Key(iatype, duid, Key.ANY_IAID)));
+		}
+		for (Entry entry : unkeyedBindings) {
+			if ((found != null) && (found.position < entry.position)) {
+				break;
+			}
+			if (entry.staticBinding.matches(duid, iatype, iaid, requestMsg)) {
+				found = entry;
+				break;
+			}
+		}
+		return (found != null) ? found.staticBinding : null;
+	}
+	
+	/**
+	 * Gets the number of static bindings.
+	 * 
+	 * @return the size
+	 */
+	public int size()
+	{
+		return size;
+	}
+	
+	private static Entry first(Entry e1, Entry e2)
+	{
+		if (e1 == null)
+			return e2;
+		if (e2 == null)
+			return e1;
+		return (e1.position < e2.position) ? e1 : e2;
+	}
+	
+	/**
+	 * The Class Entry.  A static binding with its position in the configured list.
+	 */
+	protected static class Entry
+	{
+		protected final int position;
+		protected final StaticBinding staticBinding;
+		
+		protected Entry(int position, StaticBinding staticBinding)
+		{
+			this.position = position;
+			this.staticBinding = staticBinding;
+		}
+	}
+	
+	/**
+	 * The Class Key.  The client identity of a static binding: the IA type,
+	 * the DUID or chaddr, and the IAID, or ANY_IAID if the binding is for
+	 * any IA of the client.  The hash code is computed once, when created.
+	 */
+	public static class Key
+	{
+		/** The IAID of a key which matches any IAID.  Real IAIDs are unsigned ints. */
+		public static final long ANY_IAID = -1;
+		
+		protected final byte iatype;
+		protected final byte[] duid;
+		protected final long iaid;
+		protected final int hash;
+		
+		/**
+		 * Instantiates a new key.
+		 * 
+		 * @param iatype the IA type
+		 * @param duid the DUID or chaddr
+		 * @param iaid the IAID, or ANY_IAID
+		 */
+		public Key(byte iatype, byte[] duid, long iaid)
+		{
+			this.iatype = iatype;
+			this.duid = duid;
+			this.iaid = iaid;
+			int h = Arrays.hashCode(duid);
+			h = 31 * h + iatype;
+			h = 31 * h + (int) (iaid ^ (iaid >>> 32));
+			hash = h;
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+		
+		@Override
+		public boolean equals(Object obj)
+		{
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return (hash == other.hash) && (iatype == other.iatype) &&
+					(iaid == other.iaid) && Arrays.equals(duid, other.duid);
+		}
+	}
+}
@@ -69,6 +69,9 @@ public class V4AddrBindingManagerImpl
 {
 	private static Logger log = LoggerFactory.getLogger(V4AddrBindingManagerImpl.class);
 	
+	/** The prober for the ping check of free addresses. */
+	protected PingProber pingProber = new IcmpPingProber();
+	
 	/**
 	 * Instantiates a new v4 addr binding manager impl.
 	 * 
@@ -206,6 +209,23 @@ public class V4AddrBindingManagerImpl
 				bp.setUsed(ip);
 			}
 		}
+		int pingCheckTimeout = 
+			DhcpServerPolicies.globalPolicyAsInt(Property.V4_PINGCHECK_TIMEOUT);
+		if (pingCheckTimeout > 0) {
+			int pingCheckDepth = 
+				DhcpServerPolicies.effectivePolicyAsInt(bp, link, Property.V4_PINGCHECK_DEPTH);
+			if (pingCheckDepth > 0) {
+				long conflictTime = DhcpServerPolicies.globalPolicyAsLong(
+						Property.V4_PINGCHECK_CONFLICT_TIME);
+				long verifiedTime = DhcpServerPolicies.globalPolicyAsLong(
+						Property.V4_PINGCHECK_VERIFIED_TIME);
+				V4PingChecker pingChecker = new V4PingChecker(bp, pingProber,
+						pingCheckTimeout, pingCheckDepth, conflictTime, verifiedTime);
+				bp.setPingChecker(pingChecker);
+				// start verifying the first free addresses now
+				pingChecker.fill();
+			}
+		}
 		log.info("Built v4 address binding pool: " + bp.getStartAddress().getHostAddress() + "-" + 
 				bp.getEndAddress().getHostAddress() + " size=" + bp.getSize());
     	return bp;
@@ -494,4 +514,22 @@ public class V4AddrBindingManagerImpl
 	protected byte getIaType() {
 		return IdentityAssoc.V4_TYPE;
 	}
+
+	/**
+	 * Gets the ping prober.
+	 * 
+	 * @return the ping prober
+	 */
+	public PingProber getPingProber() {
+		return pingProber;
+	}
+
+	/**
+	 * Sets the ping prober.
+	 * 
+	 * @param pingProber the new ping prober
+	 */
+	public void setPingProber(PingProber pingProber) {
+		this.pingProber = pingProber;
+	}
 }
@@ -27,14 +27,13 @@ package com.jagornet.dhcp.server.request.binding;
 
 import java.io.IOException;
 import java.math.BigInteger;
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Timer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.jagornet.dhcp.db.IaAddress;
 import com.jagornet.dhcp.option.v4.DhcpV4ConfigOptions;
 import com.jagornet.dhcp.server.config.DhcpServerConfigException;
 import com.jagornet.dhcp.server.config.DhcpServerPolicies;
@@ -57,12 +56,15 @@ public class V4AddressBindingPool implements BindingPool, DhcpV4OptionConfigObje
 	private static Logger log = LoggerFactory.getLogger(V4AddressBindingPool.class);
 
 	protected Range range;
-	protected FreeList freeList;
+	protected long startIp;
+	protected long endIp;
+	protected V4FreeList freeList;
+	protected V4PingChecker pingChecker;
+	protected ReuseQueue reuseQueue = new ReuseQueue();
 	protected long leasetime;
 	protected V4AddressPool pool;
 	protected DhcpV4ConfigOptions v4ConfigOptions;
 	protected LinkFilter linkFilter; 
-	protected Timer reaper;
 	
 	/**
 	 * Instantiates a new binding pool.
@@ -85,10 +87,9 @@ public class V4AddressBindingPool implements BindingPool, DhcpV4OptionConfigObje
 			log.error("Invalid AddressPool definition", ex);
 			throw new DhcpServerConfigException("Invalid AddressPool definition", ex);
 		}
-		freeList = 
-			new FreeList(new BigInteger(range.getStartAddress().getAddress()),
-					new BigInteger(range.getEndAddress().getAddress()));
-		reaper = new Timer(pool.getRange()+"_Reaper");
+		startIp = Util.v4AddrToLong(range.getStartAddress());
+		endIp = Util.v4AddrToLong(range.getEndAddress());
+		freeList = new V4FreeList(startIp, endIp);
 		v4ConfigOptions = new DhcpV4ConfigOptions(pool.getConfigOptions());
 	}
 	
@@ -109,36 +110,66 @@ public class V4AddressBindingPool implements BindingPool, DhcpV4OptionConfigObje
 	 */
 	public InetAddress getNextAvailableAddress()
 	{
+		if (pingChecker != null) {
+			InetAddress ip = pingChecker.poll();
+			if (ip != null) {
+				return ip;
+			}
+			// no address has been verified yet, so check one now
+		}
 		if (freeList != null) {
-			BigInteger next = freeList.getNextFree();
-			if (next != null) {
-				try {
-					InetAddress ip = InetAddress.getByAddress(next.toByteArray());
-					int pingCheckTimeout = 
-						DhcpServerPolicies.globalPolicyAsInt(Property.V4_PINGCHECK_TIMEOUT);
-					if (pingCheckTimeout > 0) {
-						try {
-							if (ip.isReachable(pingCheckTimeout)) {
-								log.warn("Next free address answered ping check: " + 
-										ip.getHostAddress());
-								setUsed(ip);
-								return getNextAvailableAddress();	// try again
-							}
-						}
-						catch (IOException ex) {
-							log.error("Failed to perform v4 ping check: " + ex);
+			int next = freeList.getNextFree();
+			if (next >= 0) {
+				InetAddress ip = Util.longToV4Addr(startIp + next);
+				int pingCheckTimeout = 
+					DhcpServerPolicies.globalPolicyAsInt(Property.V4_PINGCHECK_TIMEOUT);
+				if (pingCheckTimeout > 0) {
+					try {
+						if (ip.isReachable(pingCheckTimeout)) {
+							log.warn("Next free address answered ping check: " + 
+									ip.getHostAddress());
+							setUsed(ip);
+							return getNextAvailableAddress();	// try again
 						}
 					}
-					return ip;
-				}
-				catch (UnknownHostException ex) {
-					log.error("Unable to build IPv4 address from next free: " + ex);
+					catch (IOException ex) {
+						log.error("Failed to perform v4 ping check: " + ex);
+					}
 				}
+				return ip;
 			}
 		}		
 		return null;
 	}
 	
+	/**
+	 * Claim the next free address in this pool, without a ping check.
+	 * Used by the V4PingChecker to get the next candidate to probe.
+	 * 
+	 * @return the next free address, which is now set used
+	 */
+	protected InetAddress claimNextFree()
+	{
+		int next = freeList.getNextFree();
+		if (next >= 0) {
+			return Util.longToV4Addr(startIp + next);
+		}
+		return null;
+	}
+	
+	/**
+	 * Return an address claimed by the V4PingChecker to the free list.
+	 * 
+	 * @param addr the address to set free
+	 */
+	protected void freeClaimed(InetAddress addr)
+	{
+		int offset = getOffset(addr);
+		if (offset >= 0) {
+			freeList.setFree(offset);
+		}
+	}
+	
 	/**
 	 * Sets an IP address in this address pool as used.
 	 * 
@@ -146,8 +177,13 @@ public class V4AddressBindingPool implements BindingPool, DhcpV4OptionConfigObje
 	 */
 	public void setUsed(InetAddress addr)
 	{
-		if (contains(addr)) {
-			freeList.setUsed(new BigInteger(addr.getAddress()));
+		int offset = getOffset(addr);
+		if (offset >= 0) {
+			freeList.setUsed(offset);
+			if (pingChecker != null) {
+				// don't offer this address again if it was verified
+				pingChecker.remove(addr);
+			}
 		}
 	}
 	
@@ -158,37 +194,40 @@ public class V4AddressBindingPool implements BindingPool, DhcpV4OptionConfigObje
 	 */
 	public void setFree(InetAddress addr)
 	{
-		if (contains(addr)) {
-			freeList.setFree(new BigInteger(addr.getAddress()));
+		int offset = getOffset(addr);
+		if (offset >= 0) {
+			freeList.setFree(offset);
 		}
 	}
 	
 	/**
-	 * Start expire timer task.
+	 * Test if the given address is contained within this address pool.
 	 * 
-	 * @param iaAddr the ia addr
-	 * @param secsUntilExpiration the secs until expiration
+	 * @param addr the address to test for containment in this address pool
+	 * 
+	 * @return true, if successful
 	 */
-	public void startExpireTimerTask(IaAddress iaAddr, long secsUntilExpiration)
+	public boolean contains(InetAddress addr)
 	{
-		// convert delay from seconds (lifetime) --> milliseconds (delay)
-//		reaper.schedule(new ExpireTimerTask(iaAddr), secsUntilExpiration*1000);
+		return (getOffset(addr) >= 0);
 	}
 	
 	/**
-	 * Test if the given address is contained within this address pool.
+	 * Gets the offset of the given address from the start of this address pool.
 	 * 
-	 * @param addr the address to test for containment in this address pool
+	 * @param addr the address
 	 * 
-	 * @return true, if successful
+	 * @return the offset, or -1 if the address is not within this address pool
 	 */
-	public boolean contains(InetAddress addr)
+	protected int getOffset(InetAddress addr)
 	{
-		if ((Util.compareInetAddrs(addr, range.getStartAddress()) >= 0) &&
-				(Util.compareInetAddrs(addr, range.getEndAddress()) <= 0)) {
-			return true;
+		if (addr instanceof Inet4Address) {
+			long ip = Util.v4AddrToLong(addr);
+			if ((ip >= startIp) && (ip <= endIp)) {
+				return (int)(ip - startIp);
+			}
 		}
-		return false;
+		return -1;
 	}
 
 	/**
@@ -350,4 +389,31 @@ public class V4AddressBindingPool implements BindingPool, DhcpV4OptionConfigObje
 	public BigInteger getSize() {
 		return range.size();
 	}
+	
+	/**
+	 * Gets the ping checker.
+	 * 
+	 * @return the ping checker, or null if ping checks are not done ahead of time
+	 */
+	public V4PingChecker getPingChecker() {
+		return pingChecker;
+	}
+
+	/**
+	 * Sets the ping checker.
+	 * 
+	 * @param pingChecker the new ping checker
+	 */
+	public void setPingChecker(V4PingChecker pingChecker) {
+		this.pingChecker = pingChecker;
+	}
+	
+	/**
+	 * Gets the queue of reusable addresses in this pool.
+	 * 
+	 * @return the reuse queue
+	 */
+	public ReuseQueue getReuseQueue() {
+		return reuseQueue;
+	}
 }
@@ -0,0 +1,249 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file V4FreeList.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.jagornet.dhcp.server.config.DhcpServerConfigException;
+
+/**
+ * The Class V4FreeList.  A lock-free free list for IPv4 address pools.
+ * Unlike the BigInteger based FreeList, which is needed for the very large
+ * IPv6 ranges, an IPv4 pool is never larger than the 32-bit address space,
+ * so each address is tracked as an int offset from the start of the pool.
+ * The bits are stored in 64-bit words of an AtomicLongArray, and every
+ * update is a compare-and-set on a single word, so worker threads never
+ * block one another and no objects are allocated.
+ *
+ * @author A. Gregory Rabil
+ */
+public class V4FreeList
+{
+	/** The number of addresses in the list. */
+	protected final int size;
+
+	/** The used bits, one per offset, 64 per word. */
+	protected final AtomicLongArray words;
+
+	/** The word index where the search for the next free offset begins. */
+	protected final AtomicInteger nextFreeWord = new AtomicInteger(0);
+
+	/**
+	 * Instantiates a new v4 free list.
+	 *
+	 * @param start the unsigned 32-bit value of the range start address
+	 * @param end the unsigned 32-bit value of the range end address
+	 *
+	 * @throws DhcpServerConfigException if the range is invalid
+	 */
+	public V4FreeList(long start, long end) throws DhcpServerConfigException
+	{
+		if (end < start) {
+			throw new DhcpServerConfigException("Failed to create V4FreeList: end < start");
+		}
+		long len = end - start + 1;
+		if (len > Integer.MAX_VALUE) {
+			throw new DhcpServerConfigException("Failed to create V4FreeList: range too large");
+		}
+		size = (int) len;
+		words = new AtomicLongArray((size + 63) >>> 6);
+		int tail = size & 63;
+		if (tail != 0) {
+			// mark the bits past the end of the range as used,
+			// so that the search never has to check the bounds
+			words.set(words.length() - 1, -1L << tail);
+		}
+	}
+
+	/**
+	 * Gets the number of addresses in the list.
+	 *
+	 * @return the size
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Checks if the offset is within the list.
+	 *
+	 * @param offset the offset
+	 *
+	 * @return true, if is in list
+	 */
+	public boolean isInList(int offset)
+	{
+		return (offset >= 0) && (offset < size);
+	}
+
+	/**
+	 * Sets the offset as used.
+	 *
+	 * @param offset the offset
+	 */
+	public void setUsed(int offset)
+	{
+		if (isInList(offset)) {
+			int ndx = offset >>> 6;
+			long mask = 1L << offset;
+			long word;
+			do {
+				word = words.get(ndx);
+				if ((word & mask) != 0) {
+					return;
+				}
+			} while (!words.compareAndSet(ndx, word, word | mask));
+		}
+	}
+
+	/**
+	 * Sets the offset as free.
+	 *
+	 * @param offset the offset
+	 */
+	public void setFree(int offset)
+	{
+		if (isInList(offset)) {
+			int ndx = offset >>> 6;
+			long mask = 1L << offset;
+			long word;
+			do {
+				word = words.get(ndx);
+				if ((word & mask) == 0) {
+					return;
+				}
+			} while (!words.compareAndSet(ndx, word, word & ~mask));
+			// reset next free search index
+			int next;
+			do {
+				next = nextFreeWord.get();
+				if (ndx >= next) {
+					break;
+				}
+			} while (!nextFreeWord.compareAndSet(next, ndx));
+		}
+	}
+
+	/**
+	 * Checks if the offset is used.
+	 *
+	 * @param offset the offset
+	 *
+	 * @return true, if is used
+	 */
+	public boolean isUsed(int offset)
+	{
+		if (isInList(offset)) {
+			return (words.get(offset >>> 6) & (1L << offset)) != 0;
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if the offset is free.
+	 *
+	 * @param offset the offset
+	 *
+	 * @return true, if is free
+	 */
+	public boolean isFree(int offset)
+	{
+		return !this.isUsed(offset);
+	}
+
+	/**
+	 * Gets the next free offset and marks it as used.
+	 *
+	 * @return the next free offset, or -1 if the list is full
+	 */
+	public int getNextFree()
+	{
+		int from = nextFreeWord.get();
+		int next = claim(from, words.length());
+		if ((next < 0) && (from > 0)) {
+			// a concurrent setFree may have lowered the search index
+			// after we read it, so check the words we skipped over
+			next = claim(0, from);
+		}
+		return next;
+	}
+
+	/**
+	 * Find and claim the first clear bit in the given word range.
+	 *
+	 * @param fromWord the first word index to search
+	 * @param toWord the word index to stop at (exclusive)
+	 *
+	 * @return the claimed offset, or -1 if none were free
+	 */
+	private int claim(int fromWord, int toWord)
+	{
+		for (int ndx = fromWord; ndx < toWord; ndx++) {
+			long word = words.get(ndx);
+			while (word != -1L) {
+				long bit = Long.lowestOneBit(~word);
+				if (words.compareAndSet(ndx, word, word | bit)) {
+					return (ndx << 6) + Long.numberOfTrailingZeros(bit);
+				}
+				word = words.get(ndx);
+			}
+			// this word is full, so advance the search index past it,
+			// unless some other thread has already moved the index
+			nextFreeWord.compareAndSet(ndx, ndx + 1);
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets the number of used offsets.
+	 *
+	 * @return the used count
+	 */
+	public int getUsedCount()
+	{
+		int count = 0;
+		for (int i=0; i<words.length(); i++) {
+			count += Long.bitCount(words.get(i));
+		}
+		// don't count the padding bits past the end of the range
+		int tail = size & 63;
+		if (tail != 0) {
+			count -= (64 - tail);
+		}
+		return count;
+	}
+
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("V4FreeList:");
+		sb.append(" size=" + size);
+		sb.append(" used=" + getUsedCount());
+		sb.append(" nextFreeWord=" + nextFreeWord.get());
+		return sb.toString();
+	}
+}
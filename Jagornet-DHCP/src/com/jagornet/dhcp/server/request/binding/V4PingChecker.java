@@ -0,0 +1,335 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file V4PingChecker.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Class V4PingChecker.  Performs the ping check of the free addresses
+ * in a V4AddressBindingPool ahead of time, in the background.  The next few
+ * free addresses are claimed from the pool and probed concurrently, and
+ * those which do not answer are kept in a queue of verified addresses, so
+ * that a DISCOVER can be offered an address without waiting for a ping.
+ * Addresses which do answer are held as conflicts, and are returned to
+ * the pool's free list once the conflict time has passed.  A verified
+ * address which has waited longer than the verified time to be offered
+ * is probed again before it is offered, because a device may have taken
+ * the address since it was verified.
+ * 
+ * @author A. Gregory Rabil
+ */
+public class V4PingChecker
+{
+	private static Logger log = LoggerFactory.getLogger(V4PingChecker.class);
+
+	/** The number of probes run at once by the default executor. */
+	private static final int MAX_PROBE_THREADS = 16;
+	
+	private static Executor defaultExecutor = newDefaultExecutor();
+
+	protected V4AddressBindingPool pool;
+	protected PingProber prober;
+	protected int timeout;
+	protected int depth;
+	protected long conflictTime;
+	protected long verifiedTime;
+	protected Executor executor;
+	
+	/** The claimed candidate addresses, both being probed and verified. */
+	protected Set<InetAddress> candidates = 
+		Collections.newSetFromMap(new ConcurrentHashMap<InetAddress, Boolean>());
+	
+	/** The number of claimed candidates. */
+	protected AtomicInteger candidateCount = new AtomicInteger(0);
+	
+	/** The verified addresses, in the order they were verified. */
+	protected Queue<InetAddress> verified = new ConcurrentLinkedQueue<InetAddress>();
+	
+	/** The verified addresses, and the time each was verified. */
+	protected Map<InetAddress, Long> verifiedTimes = new ConcurrentHashMap<InetAddress, Long>();
+	
+	/** The addresses which answered a ping, and the time the conflict expires. */
+	protected Map<InetAddress, Long> conflicts = new ConcurrentHashMap<InetAddress, Long>();
+	
+	/**
+	 * Instantiates a new ping checker, which uses the default executor.
+	 * 
+	 * @param pool the pool
+	 * @param prober the ping prober
+	 * @param timeout the ping timeout in milliseconds
+	 * @param depth the number of addresses to verify ahead of time
+	 * @param conflictTime the number of milliseconds to hold an address which answered
+	 * @param verifiedTime the number of milliseconds after which a verified address
+	 * 			is probed again before it is offered, or zero to never probe again
+	 */
+	public V4PingChecker(V4AddressBindingPool pool, PingProber prober,
+			int timeout, int depth, long conflictTime, long verifiedTime)
+	{
+		this(pool, prober, timeout, depth, conflictTime, verifiedTime, defaultExecutor);
+	}
+	
+	/**
+	 * Instantiates a new ping checker.
+	 * 
+	 * @param pool the pool
+	 * @param prober the ping prober
+	 * @param timeout the ping timeout in milliseconds
+	 * @param depth the number of addresses to verify ahead of time
+	 * @param conflictTime the number of milliseconds to hold an address which answered
+	 * @param verifiedTime the number of milliseconds after which a verified address
+	 * 			is probed again before it is offered, or zero to never probe again
+	 * @param executor the executor for the probes
+	 */
+	public V4PingChecker(V4AddressBindingPool pool, PingProber prober,
+			int timeout, int depth, long conflictTime, long verifiedTime, 
+			Executor executor)
+	{
+		this.pool = pool;
+		this.prober = prober;
+		this.timeout = timeout;
+		this.depth = depth;
+		this.conflictTime = conflictTime;
+		this.verifiedTime = verifiedTime;
+		this.executor = executor;
+	}
+	
+	/**
+	 * Create the executor shared by the ping checkers of all pools.  There
+	 * are at most depth probes queued for each pool, and the threads are
+	 * daemon threads which stop when idle, so they never keep the server up.
+	 * 
+	 * @return the executor
+	 */
+	private static Executor newDefaultExecutor()
+	{
+		ThreadPoolExecutor executor = 
+			new ThreadPoolExecutor(MAX_PROBE_THREADS, MAX_PROBE_THREADS, 60L, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(),
+					new ThreadFactory() {
+						private final AtomicInteger count = new AtomicInteger(0);
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "V4PingChecker-" + count.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+	
+	/**
+	 * Take the next verified address, and start probing another candidate
+	 * to replace it.  Addresses which were verified longer ago than the
+	 * verified time are not taken, but are probed again.
+	 * 
+	 * @return the verified address, or null if none have been verified recently
+	 */
+	public InetAddress poll()
+	{
+		InetAddress inetAddr = null;
+		long now = System.currentTimeMillis();
+		InetAddress next = verified.poll();
+		while (next != null) {
+			Long time = verifiedTimes.remove(next);
+			// skip any address which was removed while queued
+			if (candidates.contains(next)) {
+				if ((verifiedTime > 0) && (time != null) && (now - time > verifiedTime)) {
+					// the address stays a candidate while it is probed again
+					executor.execute(new ProbeTask(next));
+				}
+				else if (candidates.remove(next)) {
+					candidateCount.decrementAndGet();
+					inetAddr = next;
+					break;
+				}
+			}
+			next = verified.poll();
+		}
+		fill();
+		return inetAddr;
+	}
+	
+	/**
+	 * Remove an address from the candidates.  This is done when the address
+	 * is bound by some other means, such as a client requesting it.
+	 * 
+	 * @param inetAddr the address
+	 */
+	public void remove(InetAddress inetAddr)
+	{
+		conflicts.remove(inetAddr);
+		if (candidates.remove(inetAddr)) {
+			candidateCount.decrementAndGet();
+			verified.remove(inetAddr);
+			verifiedTimes.remove(inetAddr);
+		}
+	}
+	
+	/**
+	 * Claim free addresses from the pool and start probing them,
+	 * until there are enough candidates.
+	 */
+	public void fill()
+	{
+		expireConflicts();
+		claimCandidates();
+	}
+	
+	/**
+	 * Claim free addresses from the pool and start probing them.
+	 * Unlike fill, this does not expire the conflicts, so that an
+	 * address which just answered is not probed again immediately.
+	 */
+	protected void claimCandidates()
+	{
+		while (true) {
+			int count = candidateCount.get();
+			if (count >= depth) {
+				break;
+			}
+			if (!candidateCount.compareAndSet(count, count + 1)) {
+				continue;
+			}
+			InetAddress inetAddr = pool.claimNextFree();
+			if (inetAddr == null) {
+				candidateCount.decrementAndGet();
+				break;
+			}
+			candidates.add(inetAddr);
+			executor.execute(new ProbeTask(inetAddr));
+		}
+	}
+	
+	/**
+	 * Checks if the address is being held as a conflict.
+	 * 
+	 * @param inetAddr the address
+	 * 
+	 * @return true, if the address answered a ping
+	 */
+	public boolean isConflict(InetAddress inetAddr)
+	{
+		return conflicts.containsKey(inetAddr);
+	}
+	
+	/**
+	 * Gets the number of verified addresses.
+	 * 
+	 * @return the verified count
+	 */
+	public int getVerifiedCount()
+	{
+		return verified.size();
+	}
+	
+	/**
+	 * Return the conflicts which have expired to the pool's free list,
+	 * so that they will be probed again.
+	 */
+	protected void expireConflicts()
+	{
+		if (conflicts.isEmpty()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<InetAddress, Long>> iter = conflicts.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<InetAddress, Long> conflict = iter.next();
+			if (conflict.getValue() <= now) {
+				iter.remove();
+				pool.freeClaimed(conflict.getKey());
+			}
+		}
+	}
+	
+	/**
+	 * The Class ProbeTask.
+	 */
+	class ProbeTask implements Runnable
+	{
+		InetAddress inetAddr;
+		
+		ProbeTask(InetAddress inetAddr)
+		{
+			this.inetAddr = inetAddr;
+		}
+		
+		/* (non-Javadoc)
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run()
+		{
+			boolean reachable = false;
+			try {
+				reachable = prober.isReachable(inetAddr, timeout);
+			}
+			catch (IOException ex) {
+				log.error("Failed to perform v4 ping check: " + ex);
+			}
+			if (reachable) {
+				log.warn("Free address answered ping check: " + inetAddr.getHostAddress());
+				if (candidates.remove(inetAddr)) {
+					candidateCount.decrementAndGet();
+					// the address stays used in the pool's free list
+					// until the conflict expires
+					conflicts.put(inetAddr, System.currentTimeMillis() + conflictTime);
+				}
+				claimCandidates();
+			}
+			else if (candidates.contains(inetAddr)) {
+				verifiedTimes.put(inetAddr, System.currentTimeMillis());
+				verified.offer(inetAddr);
+			}
+		}
+	}
+	
+	public String toString() {
+		StringBuffer sb = new StringBuffer();
+		sb.append("V4PingChecker:");
+		sb.append(" candidates=" + candidateCount.get());
+		sb.append(" verified=" + verified.size());
+		sb.append(" conflicts=" + conflicts.size());
+		return sb.toString();
+	}
+}
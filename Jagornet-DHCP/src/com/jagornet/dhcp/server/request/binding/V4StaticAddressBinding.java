@@ -65,6 +65,16 @@ public class V4StaticAddressBinding extends StaticBinding implements DhcpV4Optio
 		return rc;
 	}
 
+	@Override
+	public StaticBindingIndex.Key getKey() {
+		if ((addressBinding != null) && (addressBinding.getChaddr() != null)) {
+			// v4 bindings match any IAID
+			return new StaticBindingIndex.Key(IdentityAssoc.V4_TYPE,
+					addressBinding.getChaddr(), StaticBindingIndex.Key.ANY_IAID);
+		}
+		return null;
+	}
+
 	@Override
 	public String getIpAddress() {
 		return addressBinding.getIpAddress();
@@ -212,6 +212,9 @@ public abstract class V6AddrBindingManager extends BaseAddrBindingManager
 		long vLifetime = 
 			DhcpServerPolicies.effectivePolicyAsLong(bp, link, Property.VALID_LIFETIME);
 		bp.setValidLifetime(vLifetime);
+		float expectedUtil =
+			DhcpServerPolicies.effectivePolicyAsFloat(bp, link, Property.BINDING_MANAGER_EXPECTED_UTILIZATION);
+		bp.setExpectedUtilization(expectedUtil);
 		bp.setLinkFilter(linkFilter);
 		
 		List<InetAddress> usedIps = iaMgr.findExistingIPs(bp.getStartAddress(), bp.getEndAddress());
@@ -28,12 +28,10 @@ package com.jagornet.dhcp.server.request.binding;
 import java.math.BigInteger;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
-import java.util.Timer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.jagornet.dhcp.db.IaAddress;
 import com.jagornet.dhcp.option.v6.DhcpV6ConfigOptions;
 import com.jagornet.dhcp.server.config.DhcpServerConfigException;
 import com.jagornet.dhcp.server.config.DhcpV6OptionConfigObject;
@@ -55,12 +53,12 @@ public class V6AddressBindingPool implements BindingPool, DhcpV6OptionConfigObje
 
 	protected Range range;
 	protected FreeList freeList;
+	protected ReuseQueue reuseQueue = new ReuseQueue();
 	protected long preferredLifetime;
 	protected long validLifetime;
 	protected V6AddressPool pool;
 	protected DhcpV6ConfigOptions dhcpConfigOptions;
 	protected LinkFilter linkFilter; 
-	protected Timer reaper;
 	
 	/**
 	 * Instantiates a new binding pool.
@@ -86,7 +84,6 @@ public class V6AddressBindingPool implements BindingPool, DhcpV6OptionConfigObje
 		freeList = 
 			new FreeList(new BigInteger(range.getStartAddress().getAddress()),
 					new BigInteger(range.getEndAddress().getAddress()));
-		reaper = new Timer(pool.getRange()+"_Reaper");
 		dhcpConfigOptions = new DhcpV6ConfigOptions(pool.getAddrConfigOptions());
 	}
 	
@@ -146,15 +143,14 @@ public class V6AddressBindingPool implements BindingPool, DhcpV6OptionConfigObje
 	}
 	
 	/**
-	 * Start expire timer task.
+	 * Sets the expected utilization of this address pool, which spreads
+	 * allocations across the pool instead of packing them at the start.
 	 * 
-	 * @param iaAddr the ia addr
-	 * @param secsUntilExpiration the secs until expiration
+	 * @param utilization the expected fraction of the pool in use, or zero
 	 */
-	public void startExpireTimerTask(IaAddress iaAddr, long secsUntilExpiration)
+	public void setExpectedUtilization(float utilization)
 	{
-		// convert delay from seconds (lifetime) --> milliseconds (delay)
-//		reaper.schedule(new ExpireTimerTask(iaAddr), secsUntilExpiration*1000);
+		freeList.setExpectedUtilization(utilization);
 	}
 	
 	/**
@@ -335,4 +331,13 @@ public class V6AddressBindingPool implements BindingPool, DhcpV6OptionConfigObje
 	public BigInteger getSize() {
 		return range.size();
 	}
+	
+	/**
+	 * Gets the queue of reusable addresses in this pool.
+	 * 
+	 * @return the reuse queue
+	 */
+	public ReuseQueue getReuseQueue() {
+		return reuseQueue;
+	}
 }
@@ -29,9 +29,9 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Set;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -79,11 +79,8 @@ public class V6PrefixBindingManagerImpl
 		//TODO: separate properties for address/prefix binding managers?
 		long reaperStartupDelay = 
 			DhcpServerPolicies.globalPolicyAsLong(Property.BINDING_MANAGER_REAPER_STARTUP_DELAY);
-		long reaperRunPeriod =
-			DhcpServerPolicies.globalPolicyAsLong(Property.BINDING_MANAGER_REAPER_RUN_PERIOD);
 
-		reaper = new Timer("BindingReaper");
-		reaper.schedule(new ReaperTimerTask(), reaperStartupDelay, reaperRunPeriod);
+		reaper.start(reaperStartupDelay);
 	}
     
     
@@ -206,6 +203,9 @@ public class V6PrefixBindingManagerImpl
 		long vLifetime = 
 			DhcpServerPolicies.effectivePolicyAsLong(bp, link, Property.VALID_LIFETIME);
 		bp.setValidLifetime(vLifetime);
+		float expectedUtil =
+			DhcpServerPolicies.effectivePolicyAsFloat(bp, link, Property.BINDING_MANAGER_EXPECTED_UTILIZATION);
+		bp.setExpectedUtilization(expectedUtil);
 		bp.setLinkFilter(linkFilter);
 		
 		List<InetAddress> usedIps = iaMgr.findExistingIPs(bp.getStartAddress(), bp.getEndAddress());
@@ -308,6 +308,7 @@ public class V6PrefixBindingManagerImpl
 	public void releaseIaPrefix(IaPrefix iaPrefix)
 	{
 		try {
+			cancelExpiration(iaPrefix.getIpAddress());
 			if (DhcpServerPolicies.globalPolicyAsBoolean(
 					Property.BINDING_MANAGER_DELETE_OLD_BINDINGS)) {
 				iaMgr.deleteIaPrefix(iaPrefix);
@@ -322,6 +323,7 @@ public class V6PrefixBindingManagerImpl
 				iaPrefix.setValidEndTime(null);
 				iaPrefix.setState(IaPrefix.RELEASED);
 				iaMgr.updateIaPrefix(iaPrefix);
+				addReusableAddress(iaPrefix.getIpAddress(), System.currentTimeMillis());
 			}
 		}
 		catch (Exception ex) {
@@ -332,11 +334,13 @@ public class V6PrefixBindingManagerImpl
 	public void declineIaPrefix(IaPrefix iaPrefix)
 	{
 		try {
+			cancelExpiration(iaPrefix.getIpAddress());
 			iaPrefix.setStartTime(null);
 			iaPrefix.setPreferredEndTime(null);
 			iaPrefix.setValidEndTime(null);
 			iaPrefix.setState(IaPrefix.DECLINED);
 			iaMgr.updateIaPrefix(iaPrefix);
+			removeReusableAddress(iaPrefix.getIpAddress());
 		}
 		catch (Exception ex) {
 			log.error("Failed to decline address", ex);
@@ -344,12 +348,14 @@ public class V6PrefixBindingManagerImpl
 	}
 	
 	/**
-	 * Callback from the ExpireTimerTask started when the lease was granted.
-	 * NOT CURRENTLY USED
+	 * Expire a single prefix.  This is the fallback when a batch of prefixes
+	 * fails to expire, so that one bad lease does not keep the others from
+	 * expiring.  If the lease still cannot be expired, it is retried on the
+	 * next reaper tick.
 	 * 
 	 * @param iaPrefix the ia prefix
 	 */
-	public void expireIaPrefix(IaPrefix iaPrefix)
+	protected void expireIaPrefix(IaPrefix iaPrefix)
 	{
 		try {
 			if (DhcpServerPolicies.globalPolicyAsBoolean(
@@ -368,27 +374,97 @@ public class V6PrefixBindingManagerImpl
 				iaPrefix.setState(IaPrefix.EXPIRED);
 				log.debug("Updating expired prefix: " + iaPrefix.getIpAddress());
 				iaMgr.updateIaPrefix(iaPrefix);
+				addReusableAddress(iaPrefix.getIpAddress(), System.currentTimeMillis());
 			}
 		}
 		catch (Exception ex) {
-			log.error("Failed to expire address", ex);
+			log.error("Failed to expire prefix: " + iaPrefix.getIpAddress(), ex);
+			retryExpiration(iaPrefix.getIpAddress());
 		}
 	}
 	
 	/**
-	 * Callback from the RepearTimerTask started when the BindingManager initialized.
-	 * Find any expired prefixes as of now, and expire them already.
+	 * Expire a batch of prefixes, with a single batched update, or delete,
+	 * of their leases.
+	 * 
+	 * @param iaPrefixes the prefixes to expire
 	 */
-	public void expirePrefixes()
+	protected void expireIaPrefixes(List<IaPrefix> iaPrefixes)
 	{
-		List<IaPrefix> expiredPrefs = iaMgr.findExpiredIaPrefixes();
-		if ((expiredPrefs != null) && !expiredPrefs.isEmpty()) {
-			for (IaPrefix iaPrefix : expiredPrefs) {
+		try {
+			if (DhcpServerPolicies.globalPolicyAsBoolean(
+					Property.BINDING_MANAGER_DELETE_OLD_BINDINGS)) {
+				log.debug("Deleting " + iaPrefixes.size() + " expired prefixes");
+				iaMgr.deleteIaAddrs(iaPrefixes);
+				// free the prefixes only if they are deleted from the db,
+				// otherwise, we will get a unique constraint violation
+				// if another client obtains one of these released prefixes
+				for (IaPrefix iaPrefix : iaPrefixes) {
+					freeAddress(iaPrefix.getIpAddress());
+				}
+			}
+			else {
+				for (IaPrefix iaPrefix : iaPrefixes) {
+					iaPrefix.setStartTime(null);
+					iaPrefix.setPreferredEndTime(null);
+					iaPrefix.setValidEndTime(null);
+					iaPrefix.setState(IaPrefix.EXPIRED);
+				}
+				log.debug("Updating " + iaPrefixes.size() + " expired prefixes");
+				iaMgr.updateIaAddrs(iaPrefixes);
+				long now = System.currentTimeMillis();
+				for (IaPrefix iaPrefix : iaPrefixes) {
+					addReusableAddress(iaPrefix.getIpAddress(), now);
+				}
+			}
+		}
+		catch (Exception ex) {
+			log.error("Failed to expire " + iaPrefixes.size() + 
+					" prefixes as a batch, expiring each prefix", ex);
+			for (IaPrefix iaPrefix : iaPrefixes) {
 				expireIaPrefix(iaPrefix);
 			}
 		}
 	}
 	
+	/**
+	 * Callback from the reaper timer wheel for the prefixes which have expired.
+	 * Each prefix is expired only if its lease is still offered or committed,
+	 * because it may have been released or declined in the meantime.  The
+	 * leases are found together, and the prefixes are then expired
+	 * together, as one batch.
+	 * 
+	 * @param inetAddrs the addresses of the expired prefixes
+	 */
+	protected void expireBindings(List<InetAddress> inetAddrs)
+	{
+		List<IaPrefix> iaPrefixes = new ArrayList<IaPrefix>();
+		Set<InetAddress> expired = new HashSet<InetAddress>(inetAddrs);
+		for (IdentityAssoc ia : iaMgr.findIAs(inetAddrs)) {
+			Collection<? extends IaAddress> iaPrefs = ia.getIaAddresses();
+			if (iaPrefs != null) {
+				for (IaAddress iaAddr : iaPrefs) {
+					// an IA may be found for more than one of its prefixes
+					if ((iaAddr instanceof IaPrefix) && 
+							expired.remove(iaAddr.getIpAddress()) &&
+							((iaAddr.getState() == IaPrefix.ADVERTISED) ||
+							 (iaAddr.getState() == IaPrefix.COMMITTED))) {
+						iaPrefixes.add((IaPrefix)iaAddr);
+					}
+				}
+			}
+		}
+		if (log.isDebugEnabled()) {
+			for (InetAddress inetAddr : expired) {
+				log.debug("No binding found for expired prefix: " + 
+						inetAddr.getHostAddress());
+			}
+		}
+		if (!iaPrefixes.isEmpty()) {
+			expireIaPrefixes(iaPrefixes);
+		}
+	}
+	
 	/**
 	 * Extract the list of IP addresses from within the given IA_PD option.
 	 * 
@@ -532,19 +608,4 @@ public class V6PrefixBindingManagerImpl
 		// MUST have a BindingPool, otherwise something's broke
 		return null;
 	}
-	
-	/**
-	 * The Class ReaperTimerTask.
-	 */
-	class ReaperTimerTask extends TimerTask
-	{		
-		/* (non-Javadoc)
-		 * @see java.util.TimerTask#run()
-		 */
-		@Override
-		public void run() {
-//			log.debug("Expiring addresses...");
-			expirePrefixes();
-		}
-	}
 }
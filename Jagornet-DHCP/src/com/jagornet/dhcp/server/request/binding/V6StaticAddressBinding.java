@@ -73,6 +73,18 @@ public class V6StaticAddressBinding extends StaticBinding implements DhcpV6Optio
 		return rc;
 	}
 	
+	@Override
+	public StaticBindingIndex.Key getKey() {
+		if ((addressBinding != null) && (addressBinding.getDuid() != null) &&
+				(addressBinding.getDuid().getHexValue() != null)) {
+			return new StaticBindingIndex.Key(iaType, 
+					addressBinding.getDuid().getHexValue(),
+					addressBinding.isSetIaid() ? 
+							addressBinding.getIaid() : StaticBindingIndex.Key.ANY_IAID);
+		}
+		return null;
+	}
+	
 	@Override
 	public String getIpAddress() {
 		return addressBinding.getIpAddress();
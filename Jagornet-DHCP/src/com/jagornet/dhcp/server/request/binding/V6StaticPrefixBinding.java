@@ -72,6 +72,18 @@ public class V6StaticPrefixBinding extends StaticBinding implements DhcpV6Option
 		return rc;
 	}
 
+	@Override
+	public StaticBindingIndex.Key getKey() {
+		if ((prefixBinding != null) && (prefixBinding.getDuid() != null) &&
+				(prefixBinding.getDuid().getHexValue() != null)) {
+			return new StaticBindingIndex.Key(IdentityAssoc.PD_TYPE, 
+					prefixBinding.getDuid().getHexValue(),
+					prefixBinding.isSetIaid() ? 
+							prefixBinding.getIaid() : StaticBindingIndex.Key.ANY_IAID);
+		}
+		return null;
+	}
+
 	@Override
 	public String getIpAddress() {
 		return prefixBinding.getPrefix();
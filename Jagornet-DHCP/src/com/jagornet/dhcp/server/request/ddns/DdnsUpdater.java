@@ -169,10 +169,13 @@ public class DdnsUpdater implements Runnable
 	}
 	
 	/**
-	 * Process updates.
+	 * Process updates.  The policies are evaluated on the calling thread,
+	 * because evaluating them reads the options of the request message,
+	 * and the message is not safe for use by the executor's threads.
 	 */
 	public void processUpdates()
 	{
+		setupPolicies(configObj, lifetime);
 		if (sync) {
 			run();
 		}
@@ -186,7 +189,6 @@ public class DdnsUpdater implements Runnable
 	 */
 	public void run()
 	{
-		setupPolicies(configObj, lifetime);						
 		try {
 			if (doForwardUpdate) {
 				ForwardDdnsUpdate fwdUpdate = new ForwardDdnsUpdate(fqdn, addr, duid);
@@ -232,6 +232,7 @@ public class DhcpConstants
     public static final int V4OPTION_NETBIOS_NODE_TYPE = 46;
     public static final int V4OPTION_REQUESTED_IP = 50;
     public static final int V4OPTION_LEASE_TIME = 51;
+    public static final int V4OPTION_OVERLOAD = 52;
     public static final int V4OPTION_MESSAGE_TYPE = 53;
     public static final int V4OPTION_SERVERID = 54;
     public static final int V4OPTION_PARAM_REQUEST_LIST = 55;
@@ -30,6 +30,7 @@ import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.NetworkInterface;
+import java.net.UnknownHostException;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -210,7 +211,39 @@ public class Util
     	BigInteger bi2 = new BigInteger(ip2.getAddress());
     	return bi1.compareTo(bi2);
     }
-	
+
+    /**
+     * Convert an IPv4 address to its unsigned 32-bit value.
+     *
+     * @param ip the IPv4 address
+     * @return the address as an unsigned int value held in a long
+     */
+    public static long v4AddrToLong(InetAddress ip)
+    {
+    	byte[] b = ip.getAddress();
+    	return (((b[0] & 0xffL) << 24) | ((b[1] & 0xffL) << 16) |
+    			((b[2] & 0xffL) << 8) | (b[3] & 0xffL));
+    }
+
+    /**
+     * Convert an unsigned 32-bit value to an IPv4 address.
+     *
+     * @param ip the address as an unsigned int value held in a long
+     * @return the IPv4 address
+     */
+    public static InetAddress longToV4Addr(long ip)
+    {
+    	byte[] b = new byte[] { (byte)(ip >>> 24), (byte)(ip >>> 16),
+    							(byte)(ip >>> 8), (byte)ip };
+    	try {
+    		return InetAddress.getByAddress(b);
+    	}
+    	catch (UnknownHostException ex) {
+    		// only thrown for an illegal length, which can't happen here
+    		throw new IllegalStateException(ex);
+    	}
+    }
+
     /**
      * Use this instead of InetSocketAddress.toString() to avoid
      * DNS lookup - i.e. faster.
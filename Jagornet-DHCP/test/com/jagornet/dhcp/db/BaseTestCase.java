@@ -26,6 +26,11 @@
 package com.jagornet.dhcp.db;
 
 import java.io.File;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
 
 import junit.framework.TestCase;
 
@@ -73,6 +78,58 @@ public class BaseTestCase extends TestCase
 		config.getIaMgr().deleteAllIAs();
 	}
 	
+	/**
+	 * Build an IA with a committed lease, which is valid for an hour,
+	 * and one option for each of the given addresses.
+	 * 
+	 * @param iatype the iatype
+	 * @param iaid the iaid
+	 * @param ips the addresses
+	 * @return the identity assoc
+	 */
+	protected IdentityAssoc buildIA(byte iatype, long iaid, String... ips) throws Exception
+	{
+		return buildIA(iatype, iaid, System.currentTimeMillis() + 3600000, ips);
+	}
+	
+	/**
+	 * Build an IA with a committed lease, and one option, for each of the
+	 * given addresses.
+	 * 
+	 * @param iatype the iatype
+	 * @param iaid the iaid
+	 * @param validEnd the time that the leases expire
+	 * @param ips the addresses
+	 * @return the identity assoc
+	 */
+	protected IdentityAssoc buildIA(byte iatype, long iaid, long validEnd, String... ips) 
+			throws Exception
+	{
+		IdentityAssoc ia = new IdentityAssoc();
+		ia.setDuid(new byte[] { (byte)0xde, (byte)0xbb, (byte)0x1e, (byte)0xde });
+		ia.setIatype(iatype);
+		ia.setIaid(iaid);
+		ia.setState(IdentityAssoc.COMMITTED);
+		List<IaAddress> iaAddrs = new ArrayList<IaAddress>();
+		for (String ip : ips) {
+			IaAddress iaAddr = new IaAddress();
+			iaAddr.setIpAddress(InetAddress.getByName(ip));
+			iaAddr.setState(IaAddress.COMMITTED);
+			iaAddr.setStartTime(new Date());
+			iaAddr.setPreferredEndTime(new Date(validEnd));
+			iaAddr.setValidEndTime(new Date(validEnd));
+			Collection<DhcpOption> opts = new ArrayList<DhcpOption>();
+			DhcpOption opt = new DhcpOption();
+			opt.setCode(11);
+			opt.setValue(new byte[] { (byte)0x11 });
+			opts.add(opt);
+			iaAddr.setDhcpOptions(opts);
+			iaAddrs.add(iaAddr);
+		}
+		ia.setIaAddresses(iaAddrs);
+		return ia;
+	}
+	
 	public BaseTestCase(String schemaType, int schemaVersion) {
 				
 		DhcpServerConfiguration.configFilename = configFilename;
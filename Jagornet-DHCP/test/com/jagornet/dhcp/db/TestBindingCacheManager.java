@@ -0,0 +1,145 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestBindingCacheManager.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.db;
+
+import java.net.InetAddress;
+
+/**
+ * The Class TestBindingCacheManager.
+ */
+public class TestBindingCacheManager extends BaseTestCase
+{
+	protected IaManager leaseMgr;
+	
+	public TestBindingCacheManager()
+	{
+		super("jdbc-derby", 2);
+		leaseMgr = (IaManager) ctx.getBean("iaManager");
+	}
+	
+	public void testReadThrough() throws Exception
+	{
+		BindingCacheManager cacheMgr = new BindingCacheManager(leaseMgr, 1048576);
+		cacheMgr.init();
+		IdentityAssoc ia1 = buildIA(IdentityAssoc.NA_TYPE, 1, "2001:db8::1");
+		cacheMgr.createIA(ia1);
+		
+		IdentityAssoc ia = cacheMgr.findIA(ia1.getDuid(), ia1.getIatype(), ia1.getIaid());
+		assertNotNull(ia);
+		assertEquals(0, cacheMgr.getHitCount());
+		assertEquals(1, cacheMgr.getMissCount());
+		
+		// changing a returned IA does not change the cached IA
+		IaAddress iaAddr = ia.getIaAddresses().iterator().next();
+		iaAddr.getDhcpOptions().clear();
+		iaAddr.setState(IaAddress.RELEASED);
+		ia = cacheMgr.findIA(ia1.getDuid(), ia1.getIatype(), ia1.getIaid());
+		assertEquals(1, cacheMgr.getHitCount());
+		assertEquals(IaAddress.COMMITTED, ia.getIaAddresses().iterator().next().getState());
+		assertEquals(1, ia.getIaAddresses().iterator().next().getDhcpOptions().size());
+		
+		// and the cached IA is found by address
+		ia = cacheMgr.findIA(iaAddr.getIpAddress());
+		assertNotNull(ia);
+		assertEquals(2, cacheMgr.getHitCount());
+		
+		// a change removes the IA from the cache
+		cacheMgr.updateIaAddr(iaAddr);
+		ia = cacheMgr.findIA(ia1.getDuid(), ia1.getIatype(), ia1.getIaid());
+		assertEquals(2, cacheMgr.getMissCount());
+		assertEquals(IaAddress.RELEASED, ia.getIaAddresses().iterator().next().getState());
+		
+		cacheMgr.deleteIA(ia1);
+		assertNull(cacheMgr.findIA(ia1.getDuid(), ia1.getIatype(), ia1.getIaid()));
+		assertEquals(0, cacheMgr.size());
+	}
+	
+	public void testEviction() throws Exception
+	{
+		// room for only a few IAs
+		BindingCacheManager cacheMgr = new BindingCacheManager(leaseMgr, 2048);
+		cacheMgr.init();
+		IdentityAssoc hot = buildIA(IdentityAssoc.NA_TYPE, 1, "2001:db8::1");
+		cacheMgr.createIA(hot);
+		for (int i=0; i<5; i++) {
+			cacheMgr.findIA(hot.getDuid(), hot.getIatype(), hot.getIaid());
+		}
+		for (int i=2; i<40; i++) {
+			IdentityAssoc ia = buildIA(IdentityAssoc.NA_TYPE, i, "2001:db8::" + Integer.toHexString(i));
+			cacheMgr.createIA(ia);
+			cacheMgr.findIA(ia.getDuid(), ia.getIatype(), ia.getIaid());
+		}
+		assertTrue(cacheMgr.getEvictionCount() > 0);
+		assertTrue(cacheMgr.size() < 10);
+		
+		// the frequently used IA survives the burst of new IAs
+		long hits = cacheMgr.getHitCount();
+		assertNotNull(cacheMgr.findIA(hot.getDuid(), hot.getIatype(), hot.getIaid()));
+		assertEquals(hits + 1, cacheMgr.getHitCount());
+	}
+	
+	public void testPartialIA() throws Exception
+	{
+		BindingCacheManager cacheMgr = 
+			new BindingCacheManager(new IaOnlyLeaseManager(), 1048576);
+		cacheMgr.init();
+		IdentityAssoc ia1 = buildIA(IdentityAssoc.NA_TYPE, 50, "2001:db8::50");
+		cacheMgr.createIA(ia1);
+		InetAddress ip = ia1.getIaAddresses().iterator().next().getIpAddress();
+		
+		// the IA found by address without its addresses is not cached
+		IdentityAssoc ia = cacheMgr.findIA(ip);
+		assertNotNull(ia);
+		assertNull(ia.getIaAddresses());
+		assertEquals(0, cacheMgr.size());
+		
+		// so the lookup by key still loads the whole IA
+		ia = cacheMgr.findIA(ia1.getDuid(), ia1.getIatype(), ia1.getIaid());
+		assertEquals(1, ia.getIaAddresses().size());
+		cacheMgr.deleteIA(ia1);
+	}
+	
+	/**
+	 * A backend that finds only the IA itself by address, as the v1 schema does.
+	 */
+	protected class IaOnlyLeaseManager extends JdbcLeaseManager
+	{
+		public IaOnlyLeaseManager()
+		{
+			setDataSource(((JdbcLeaseManager)leaseMgr).getDataSource());
+		}
+		
+		@Override
+		public IdentityAssoc findIA(InetAddress inetAddr)
+		{
+			IdentityAssoc ia = super.findIA(inetAddr);
+			if (ia != null) {
+				ia.setIaAddresses(null);
+			}
+			return ia;
+		}
+	}
+}
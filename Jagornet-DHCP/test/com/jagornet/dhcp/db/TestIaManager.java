@@ -31,6 +31,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -327,6 +328,118 @@ public class TestIaManager extends BaseTestCase
 		iaMgr.deleteIA(ia2);
 	}
 
+	/**
+	 * Test update and delete of a batch of ia addrs.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testBatchIaAddrs() throws Exception
+	{
+		log.info("Creating IA");
+		iaMgr.createIA(ia);
+
+		// "expire" both addresses
+		List<IaAddress> iaAddrs = new ArrayList<IaAddress>(ia.getIaAddresses());
+		for (IaAddress iaAddr : iaAddrs) {
+			iaAddr.setStartTime(null);
+			iaAddr.setPreferredEndTime(null);
+			iaAddr.setValidEndTime(null);
+			iaAddr.setState(IaAddress.EXPIRED);
+		}
+		iaMgr.updateIaAddrs(iaAddrs);
+		
+		IdentityAssoc ia2 = iaMgr.findIA(duid, iatype, iaid);
+		assertNotNull(ia2);
+		assertEquals(2, ia2.getIaAddresses().size());
+		for (IaAddress iaAddr : ia2.getIaAddresses()) {
+			assertEquals(IaAddress.EXPIRED, iaAddr.getState());
+			assertNull(iaAddr.getValidEndTime());
+			assertEquals(2, iaAddr.getDhcpOptions().size());
+		}
+		
+		iaMgr.deleteIaAddrs(iaAddrs);
+		assertNull(iaMgr.findIA(duid, iatype, iaid));
+	}
+
+	/**
+	 * Test finding the ias for a batch of addresses.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testFindIAs() throws Exception
+	{
+		log.info("Creating IA");
+		iaMgr.createIA(ia);
+		
+		List<InetAddress> inetAddrs = new ArrayList<InetAddress>();
+		inetAddrs.add(ip1.getIpAddress());
+		inetAddrs.add(ip2.getIpAddress());
+		inetAddrs.add(InetAddress.getByName("3ffe::99"));
+		List<IdentityAssoc> ias = iaMgr.findIAs(inetAddrs);
+		assertNotNull(ias);
+		boolean found1 = false;
+		boolean found2 = false;
+		for (IdentityAssoc ia2 : ias) {
+			checkIA(ia2);
+			for (IaAddress iaAddr : ia2.getIaAddresses()) {
+				if (iaAddr.getIpAddress().equals(ip1.getIpAddress())) {
+					checkIaAddr1(iaAddr);
+					found1 = true;
+				}
+				else if (iaAddr.getIpAddress().equals(ip2.getIpAddress())) {
+					checkIaAddr2(iaAddr);
+					found2 = true;
+				}
+			}
+		}
+		assertTrue(found1);
+		assertTrue(found2);
+		
+		iaMgr.deleteIA(ia);
+		assertTrue(iaMgr.findIAs(inetAddrs).isEmpty());
+	}
+
+	/**
+	 * Test that a failed update ia leaves no partial changes.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testUpdateIaRollback() throws Exception
+	{
+		log.info("Creating IA");
+		iaMgr.createIA(ia);
+		
+		// adding an address which already exists must fail, and roll
+		// back the new address added before it in the same batch
+		IaAddress newAddr = new IaAddress();
+		newAddr.setIpAddress(InetAddress.getByName("3ffe::3"));
+		newAddr.setStartTime(now1);
+		newAddr.setPreferredEndTime(p1);
+		newAddr.setValidEndTime(v1);
+		newAddr.setState(IaAddress.ADVERTISED);
+		IaAddress dupAddr = new IaAddress();
+		dupAddr.setIpAddress(ip1.getIpAddress());
+		dupAddr.setStartTime(now1);
+		dupAddr.setPreferredEndTime(p1);
+		dupAddr.setValidEndTime(v1);
+		dupAddr.setState(IaAddress.ADVERTISED);
+		try {
+			iaMgr.updateIA(ia, Arrays.asList(newAddr, dupAddr), null, null);
+			fail("Expected a unique constraint violation");
+		}
+		catch (Exception ex) {
+			log.info("Update failed as expected: " + ex);
+		}
+		
+		IdentityAssoc ia2 = iaMgr.findIA(duid, iatype, iaid);
+		assertNotNull(ia2);
+		assertEquals(2, ia2.getIaAddresses().size());
+		assertNull(iaMgr.findIA(newAddr.getIpAddress()));
+		
+		log.info("Deleting IA");
+		iaMgr.deleteIA(ia2);
+	}
+
 	/**
 	 * Test update all ia addrs.
 	 * 
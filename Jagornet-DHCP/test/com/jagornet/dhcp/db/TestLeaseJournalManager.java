@@ -0,0 +1,264 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestLeaseJournalManager.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The Class TestLeaseJournalManager.
+ */
+public class TestLeaseJournalManager extends BaseTestCase
+{
+	protected LeaseManager leaseMgr;
+	
+	protected File journalFile;
+	
+	protected LeaseJournalManager journalMgr;
+	
+	public TestLeaseJournalManager()
+	{
+		super("jdbc-derby", 2);
+		leaseMgr = (LeaseManager) ctx.getBean("iaManager");
+	}
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		journalFile = new File("db/test-leases.journal");
+		journalFile.delete();
+		journalMgr = new LeaseJournalManager(leaseMgr, journalFile, 100, 1024);
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		journalMgr.stop();
+		journalFile.delete();
+		super.tearDown();
+	}
+	
+	public void testCreateUpdateDelete() throws Exception
+	{
+		journalMgr.init();
+		IdentityAssoc ia = buildIA(IdentityAssoc.NA_TYPE, 1, "3ffe::1", "3ffe::2");
+		journalMgr.createIA(ia);
+		
+		// the lookup waits for the applier
+		IdentityAssoc ia2 = journalMgr.findIA(ia.getDuid(), ia.getIatype(), ia.getIaid());
+		assertNotNull(ia2);
+		assertEquals(2, ia2.getIaAddresses().size());
+		ia2 = journalMgr.findIA(InetAddress.getByName("3ffe::2"));
+		assertNotNull(ia2);
+		assertEquals(1, ia2.getIaid());
+		
+		IaAddress iaAddr = ia.getIaAddresses().iterator().next();
+		iaAddr.setState(IaAddress.RELEASED);
+		List<IaAddress> updateAddrs = new ArrayList<IaAddress>();
+		updateAddrs.add(iaAddr);
+		journalMgr.updateIA(ia, null, updateAddrs, null);
+		ia2 = journalMgr.findIA(iaAddr.getIpAddress());
+		for (IaAddress addr : ia2.getIaAddresses()) {
+			if (addr.getIpAddress().equals(iaAddr.getIpAddress())) {
+				assertEquals(IaAddress.RELEASED, addr.getState());
+			}
+		}
+		
+		journalMgr.deleteIA(ia);
+		assertNull(journalMgr.findIA(ia.getDuid(), ia.getIatype(), ia.getIaid()));
+		assertNull(leaseMgr.findIA(InetAddress.getByName("3ffe::1")));
+	}
+	
+	public void testGroupCommit() throws Exception
+	{
+		journalMgr.init();
+		int nthreads = 8;
+		final int nleases = 50;
+		Thread[] threads = new Thread[nthreads];
+		for (int i=0; i<nthreads; i++) {
+			final int t = i;
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						for (int j=0; j<nleases; j++) {
+							journalMgr.createIA(buildIA(IdentityAssoc.NA_TYPE, t*1000 + j, "3ffe::" + t + ":" + j));
+						}
+					}
+					catch (Exception ex) {
+						throw new RuntimeException(ex);
+					}
+				}
+			};
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		journalMgr.sync();
+		// the writers queue up behind each fsync, so each fsync commits several entries
+		assertTrue(journalMgr.getCommitCount() < nthreads * nleases);
+		List<InetAddress> ips = journalMgr.findExistingIPs(InetAddress.getByName("3ffe::"),
+				InetAddress.getByName("3ffe::ffff:ffff"));
+		assertEquals(nthreads * nleases, ips.size());
+	}
+	
+	public void testReplay() throws Exception
+	{
+		// simulate a crash after the entries were made durable,
+		// but before they were applied, with a torn final record
+		IdentityAssoc ia = buildIA(IdentityAssoc.NA_TYPE, 7, "3ffe::7", "3ffe::8");
+		List<DhcpLease> leases = leaseMgr.toDhcpLeases(ia);
+		FileOutputStream out = new FileOutputStream(journalFile);
+		out.write(leaseMgr.encodeLeaseRecord(LeaseManager.LEASE_INSERT, leases.get(0)));
+		out.write(leaseMgr.encodeLeaseRecord(LeaseManager.LEASE_INSERT, leases.get(1)));
+		out.write(leaseMgr.encodeLeaseRecord(LeaseManager.LEASE_DELETE, leases.get(1)));
+		byte[] torn = leaseMgr.encodeLeaseRecord(LeaseManager.LEASE_INSERT, leases.get(1));
+		out.write(torn, 0, torn.length - 3);
+		out.close();
+		
+		// the first entry was already applied before the crash
+		leaseMgr.insertDhcpLease(leases.get(0));
+		
+		journalMgr.init();
+		assertEquals(0, journalFile.length());
+		IdentityAssoc ia2 = leaseMgr.findIA(ia.getDuid(), ia.getIatype(), ia.getIaid());
+		assertNotNull(ia2);
+		assertEquals(1, ia2.getIaAddresses().size());
+		IaAddress iaAddr = ia2.getIaAddresses().iterator().next();
+		assertEquals(IaAddress.COMMITTED, iaAddr.getState());
+		assertEquals(1, iaAddr.getDhcpOptions().size());
+		assertNull(leaseMgr.findIA(InetAddress.getByName("3ffe::8")));
+	}
+	
+	public void testRestartAfterDelete() throws Exception
+	{
+		journalMgr.init();
+		IdentityAssoc ia = buildIA(IdentityAssoc.NA_TYPE, 11, "3ffe::11", "3ffe::12");
+		journalMgr.createIA(ia);
+		IaAddress iaAddr = ia.getIaAddresses().iterator().next();
+		journalMgr.deleteIaAddr(iaAddr);
+		
+		// a crash now replays the delete after the insert
+		File crashed = new File("db/test-leases-crashed.journal");
+		copy(journalFile, crashed);
+		journalMgr.stop();
+		// and a clean stop leaves nothing to replay
+		assertEquals(0, journalFile.length());
+		
+		journalMgr = new LeaseJournalManager(leaseMgr, crashed, 100, 1024);
+		journalMgr.init();
+		crashed.delete();
+		assertNull(journalMgr.findIA(iaAddr.getIpAddress()));
+		IdentityAssoc ia2 = journalMgr.findIA(ia.getDuid(), ia.getIatype(), ia.getIaid());
+		assertNotNull(ia2);
+		assertEquals(1, ia2.getIaAddresses().size());
+	}
+	
+	private static void copy(File from, File to) throws Exception
+	{
+		FileInputStream in = new FileInputStream(from);
+		FileOutputStream out = new FileOutputStream(to);
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = in.read(buf)) > 0) {
+			out.write(buf, 0, n);
+		}
+		in.close();
+		out.close();
+	}
+	
+	public void testBackendFailure() throws Exception
+	{
+		FailingLeaseManager failingMgr = new FailingLeaseManager(3);
+		journalMgr = new LeaseJournalManager(failingMgr, journalFile, 100, 0);
+		journalMgr.init();
+		IdentityAssoc ia = buildIA(IdentityAssoc.NA_TYPE, 9, "3ffe::9");
+		journalMgr.createIA(ia);
+		
+		// the lookup waits while the applier retries the failed entry
+		IdentityAssoc ia2 = journalMgr.findIA(ia.getDuid(), ia.getIatype(), ia.getIaid());
+		assertNotNull(ia2);
+		assertEquals(1, ia2.getIaAddresses().size());
+		assertEquals(0, failingMgr.failures);
+		
+		// an insert of an existing lease is applied as an update
+		IaAddress iaAddr = ia.getIaAddresses().iterator().next();
+		iaAddr.setState(IaAddress.RELEASED);
+		journalMgr.createIA(ia);
+		ia2 = journalMgr.findIA(iaAddr.getIpAddress());
+		assertEquals(IaAddress.RELEASED, ia2.getIaAddresses().iterator().next().getState());
+	}
+	
+	public void testStopWithBackendFailure() throws Exception
+	{
+		FailingLeaseManager failingMgr = new FailingLeaseManager(Integer.MAX_VALUE);
+		journalMgr = new LeaseJournalManager(failingMgr, journalFile, 100, 0);
+		journalMgr.init();
+		IdentityAssoc ia = buildIA(IdentityAssoc.NA_TYPE, 10, "3ffe::10");
+		journalMgr.createIA(ia);
+		journalMgr.stop();
+		
+		// the entry that was never applied is kept in the journal
+		assertNull(leaseMgr.findIA(ia.getDuid(), ia.getIatype(), ia.getIaid()));
+		assertTrue(journalFile.length() > 0);
+		
+		// and replayed on the next start
+		journalMgr = new LeaseJournalManager(leaseMgr, journalFile, 100, 0);
+		journalMgr.init();
+		IdentityAssoc ia2 = leaseMgr.findIA(ia.getDuid(), ia.getIatype(), ia.getIaid());
+		assertNotNull(ia2);
+		assertEquals(1, ia2.getIaAddresses().size());
+	}
+	
+	/**
+	 * A backend that fails the first inserts.
+	 */
+	protected class FailingLeaseManager extends JdbcLeaseManager
+	{
+		protected volatile int failures;
+		
+		public FailingLeaseManager(int failures)
+		{
+			this.failures = failures;
+			setDataSource(((JdbcLeaseManager)leaseMgr).getDataSource());
+		}
+		
+		@Override
+		protected void insertDhcpLease(DhcpLease lease)
+		{
+			if (failures > 0) {
+				failures--;
+				throw new RuntimeException("Simulated backend failure");
+			}
+			super.insertDhcpLease(lease);
+		}
+	}
+}
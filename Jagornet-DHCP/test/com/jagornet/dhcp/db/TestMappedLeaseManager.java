@@ -0,0 +1,191 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestMappedLeaseManager.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.db;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.net.InetAddress;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The Class TestMappedLeaseManager.
+ */
+public class TestMappedLeaseManager extends BaseTestCase
+{
+	protected MappedLeaseManager leaseMgr;
+	
+	public TestMappedLeaseManager()
+	{
+		super(DbSchemaManager.SCHEMATYPE_MAPPED, 2);
+		leaseMgr = (MappedLeaseManager) ctx.getBean("iaManager");
+	}
+	
+	public void testSlots() throws Exception
+	{
+		long now = System.currentTimeMillis();
+		// the test config has a v4 pool of 192.168.0.100-192.168.0.199
+		assertEquals(100, leaseMgr.layout.slotCount);
+		IdentityAssoc ia1 = buildIA(IdentityAssoc.V4_TYPE, 1, now + 3600000, "192.168.0.150");
+		IdentityAssoc ia2 = buildIA(IdentityAssoc.V4_TYPE, 2, now - 1000, "192.168.0.120");
+		IdentityAssoc ia3 = buildIA(IdentityAssoc.V4_TYPE, 3, now - 2000, "10.0.0.1");
+		leaseMgr.createIA(ia1);
+		leaseMgr.createIA(ia2);
+		leaseMgr.createIA(ia3);
+		
+		IdentityAssoc ia = leaseMgr.findIA(ia1.getDuid(), ia1.getIatype(), ia1.getIaid());
+		assertNotNull(ia);
+		assertEquals(1, ia.getIaAddresses().size());
+		IaAddress iaAddr = ia.getIaAddresses().iterator().next();
+		assertEquals(InetAddress.getByName("192.168.0.150"), iaAddr.getIpAddress());
+		assertEquals(1, iaAddr.getDhcpOptions().size());
+		assertNotNull(leaseMgr.findIA(ia3.getDuid(), ia3.getIatype(), ia3.getIaid()));
+		
+		// pool and non-pool leases are merged in address order
+		List<InetAddress> ips = leaseMgr.findExistingIPs(InetAddress.getByName("10.0.0.0"),
+				InetAddress.getByName("192.168.0.255"));
+		assertEquals(3, ips.size());
+		assertEquals(InetAddress.getByName("10.0.0.1"), ips.get(0));
+		assertEquals(InetAddress.getByName("192.168.0.120"), ips.get(1));
+		assertEquals(InetAddress.getByName("192.168.0.150"), ips.get(2));
+		
+		// and expired leases in valid end time order
+		List<IaAddress> expired = leaseMgr.findExpiredIaAddresses(IdentityAssoc.V4_TYPE);
+		assertEquals(2, expired.size());
+		assertEquals(InetAddress.getByName("10.0.0.1"), expired.get(0).getIpAddress());
+		assertEquals(InetAddress.getByName("192.168.0.120"), expired.get(1).getIpAddress());
+		
+		// a renewal is written in place
+		iaAddr.setValidEndTime(new Date(now + 7200000));
+		leaseMgr.updateIaAddr(iaAddr);
+		ia = leaseMgr.findIA(iaAddr.getIpAddress(), false);
+		assertEquals(now + 7200000, ia.getIaAddresses().iterator().next().getValidEndTime().getTime());
+		assertEquals(1, ia.getIaAddresses().iterator().next().getDhcpOptions().size());
+		
+		leaseMgr.deleteIA(ia1);
+		assertNull(leaseMgr.findIA(ia1.getDuid(), ia1.getIatype(), ia1.getIaid()));
+		assertNull(leaseMgr.findIA(InetAddress.getByName("192.168.0.150")));
+		assertEquals(2, leaseMgr.findExistingIPs(InetAddress.getByName("10.0.0.0"),
+				InetAddress.getByName("192.168.0.255")).size());
+	}
+	
+	public void testIndexChurn() throws Exception
+	{
+		long now = System.currentTimeMillis();
+		// fill every slot of the pool, then replace the leases
+		// over and over, so that the index sees many removals
+		for (int round=0; round<10; round++) {
+			for (int i=0; i<100; i++) {
+				IdentityAssoc ia = buildIA(IdentityAssoc.V4_TYPE, round*100 + i, now + 3600000, "192.168.0." + (100 + i));
+				if (round > 0) {
+					leaseMgr.deleteIA(buildIA(IdentityAssoc.V4_TYPE, (round-1)*100 + i, now + 3600000, "192.168.0." + (100 + i)));
+				}
+				leaseMgr.createIA(ia);
+			}
+			for (int i=0; i<100; i++) {
+				IdentityAssoc ia = leaseMgr.findIA(new byte[] { (byte)0xde, (byte)0xbb, (byte)0x1e, (byte)0xde },
+						IdentityAssoc.V4_TYPE, round*100 + i);
+				assertNotNull(ia);
+				assertEquals(1, ia.getIaAddresses().size());
+				assertEquals(InetAddress.getByName("192.168.0." + (100 + i)),
+						ia.getIaAddresses().iterator().next().getIpAddress());
+				if (round > 0) {
+					assertNull(leaseMgr.findIA(new byte[] { (byte)0xde, (byte)0xbb, (byte)0x1e, (byte)0xde },
+							IdentityAssoc.V4_TYPE, (round-1)*100 + i));
+				}
+			}
+		}
+	}
+	
+	public void testRestart() throws Exception
+	{
+		long now = System.currentTimeMillis();
+		IdentityAssoc ia1 = buildIA(IdentityAssoc.V4_TYPE, 1, now + 3600000, "192.168.0.101", "192.168.0.199");
+		leaseMgr.createIA(ia1);
+		leaseMgr.deleteIaAddr(ia1.getIaAddresses().iterator().next());
+		leaseMgr.createIA(buildIA(IdentityAssoc.V4_TYPE, 2, now + 3600000, "10.0.0.2"));
+		
+		// remap the lease file
+		leaseMgr.init();
+		IdentityAssoc ia = leaseMgr.findIA(ia1.getDuid(), ia1.getIatype(), ia1.getIaid());
+		assertNotNull(ia);
+		assertEquals(1, ia.getIaAddresses().size());
+		assertEquals(InetAddress.getByName("192.168.0.199"), ia.getIaAddresses().iterator().next().getIpAddress());
+		assertNotNull(leaseMgr.findIA(InetAddress.getByName("10.0.0.2")));
+		assertEquals(2, leaseMgr.findExistingIPs(InetAddress.getByName("10.0.0.0"),
+				InetAddress.getByName("192.168.0.255")).size());
+	}
+	
+	public void testInterruptedRebuild() throws Exception
+	{
+		long now = System.currentTimeMillis();
+		IdentityAssoc ia1 = buildIA(IdentityAssoc.V4_TYPE, 1, now + 3600000, "192.168.0.101");
+		leaseMgr.createIA(ia1);
+		leaseMgr.close();
+		File slotFile = new File(leaseMgr.dbDir, MappedLeaseManager.SLOT_FILENAME);
+		File blobFile = new File(leaseMgr.dbDir, MappedLeaseManager.BLOB_FILENAME);
+		File slotTmp = new File(leaseMgr.dbDir, MappedLeaseManager.SLOT_FILENAME + ".tmp");
+		File blobTmp = new File(leaseMgr.dbDir, MappedLeaseManager.BLOB_FILENAME + ".tmp");
+		File slotNew = new File(leaseMgr.dbDir, MappedLeaseManager.SLOT_FILENAME + ".new");
+		
+		// a crash while the new files were being written leaves the old files
+		FileOutputStream out = new FileOutputStream(slotTmp);
+		out.write(new byte[100]);
+		out.close();
+		copy(blobFile, blobTmp);
+		leaseMgr.init();
+		assertFalse(slotTmp.exists());
+		assertFalse(blobTmp.exists());
+		assertNotNull(leaseMgr.findIA(ia1.getDuid(), ia1.getIatype(), ia1.getIaid()));
+		leaseMgr.close();
+		
+		// a crash after the new files were complete, but before
+		// the old slot file was replaced, finishes the rebuild
+		copy(slotFile, slotNew);
+		copy(blobFile, blobTmp);
+		out = new FileOutputStream(slotFile);
+		out.write(new byte[100]);
+		out.close();
+		leaseMgr.init();
+		assertFalse(slotNew.exists());
+		assertFalse(blobTmp.exists());
+		assertNotNull(leaseMgr.findIA(ia1.getDuid(), ia1.getIatype(), ia1.getIaid()));
+	}
+	
+	private static void copy(File from, File to) throws Exception
+	{
+		FileInputStream in = new FileInputStream(from);
+		FileOutputStream out = new FileOutputStream(to);
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = in.read(buf)) > 0) {
+			out.write(buf, 0, n);
+		}
+		in.close();
+		out.close();
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestMemoryLeaseManager.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.db;
+
+import java.net.InetAddress;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The Class TestMemoryLeaseManager.
+ */
+public class TestMemoryLeaseManager extends BaseTestCase
+{
+	protected MemoryLeaseManager leaseMgr;
+	
+	public TestMemoryLeaseManager()
+	{
+		super(DbSchemaManager.SCHEMATYPE_MEMORY, 2);
+		leaseMgr = (MemoryLeaseManager) ctx.getBean("iaManager");
+	}
+	
+	public void testIndexes() throws Exception
+	{
+		long now = System.currentTimeMillis();
+		IdentityAssoc ia1 = buildIA(IdentityAssoc.NA_TYPE, 1, now + 3600000, "192.168.0.10", "192.168.0.2");
+		IdentityAssoc ia2 = buildIA(IdentityAssoc.NA_TYPE, 2, now - 1000, "192.168.0.5");
+		leaseMgr.createIA(ia1);
+		leaseMgr.createIA(ia2);
+		
+		IdentityAssoc ia = leaseMgr.findIA(ia1.getDuid(), ia1.getIatype(), ia1.getIaid());
+		assertNotNull(ia);
+		assertEquals(2, ia.getIaAddresses().size());
+		ia = leaseMgr.findIA(InetAddress.getByName("192.168.0.5"), false);
+		assertEquals(2, ia.getIaid());
+		assertNull(leaseMgr.findIA(InetAddress.getByName("192.168.0.6")));
+		
+		// range queries are in address order
+		List<InetAddress> ips = leaseMgr.findExistingIPs(InetAddress.getByName("192.168.0.1"),
+				InetAddress.getByName("192.168.0.9"));
+		assertEquals(2, ips.size());
+		assertEquals(InetAddress.getByName("192.168.0.2"), ips.get(0));
+		assertEquals(InetAddress.getByName("192.168.0.5"), ips.get(1));
+		
+		List<IaAddress> expired = leaseMgr.findExpiredIaAddresses(IdentityAssoc.NA_TYPE);
+		assertEquals(1, expired.size());
+		assertEquals(InetAddress.getByName("192.168.0.5"), expired.get(0).getIpAddress());
+		
+		// changing a returned lease does not change the stored lease
+		IaAddress iaAddr = ia.getIaAddresses().iterator().next();
+		iaAddr.getDhcpOptions().clear();
+		iaAddr.setState(IaAddress.RELEASED);
+		ia = leaseMgr.findIA(iaAddr.getIpAddress(), false);
+		assertEquals(IaAddress.COMMITTED, ia.getIaAddresses().iterator().next().getState());
+		assertEquals(1, ia.getIaAddresses().iterator().next().getDhcpOptions().size());
+		
+		leaseMgr.updateIaAddr(iaAddr);
+		List<IaAddress> unused = leaseMgr.findUnusedIaAddresses(InetAddress.getByName("192.168.0.0"),
+				InetAddress.getByName("192.168.0.255"));
+		assertEquals(1, unused.size());
+		assertEquals(IaAddress.RELEASED, unused.get(0).getState());
+		
+		leaseMgr.deleteIA(ia1);
+		assertNull(leaseMgr.findIA(ia1.getDuid(), ia1.getIatype(), ia1.getIaid()));
+		assertEquals(1, leaseMgr.findExistingIPs(InetAddress.getByName("192.168.0.0"),
+				InetAddress.getByName("192.168.0.255")).size());
+	}
+	
+	public void testUpdateInPlace() throws Exception
+	{
+		long now = System.currentTimeMillis();
+		final InetAddress ip = InetAddress.getByName("192.168.0.7");
+		IdentityAssoc ia1 = buildIA(IdentityAssoc.NA_TYPE, 1, now + 3600000, "192.168.0.7");
+		leaseMgr.createIA(ia1);
+		
+		// a reader never sees the address without a lease while it is updated
+		final AtomicBoolean done = new AtomicBoolean();
+		final AtomicInteger misses = new AtomicInteger();
+		Thread reader = new Thread() {
+			public void run() {
+				while (!done.get()) {
+					if (leaseMgr.findIA(ip) == null) {
+						misses.incrementAndGet();
+					}
+				}
+			}
+		};
+		reader.start();
+		IaAddress iaAddr = ia1.getIaAddresses().iterator().next();
+		for (int i=0; i<1000; i++) {
+			iaAddr.setValidEndTime(new Date(now + 3600000 + i));
+			leaseMgr.updateIaAddr(iaAddr);
+		}
+		done.set(true);
+		reader.join();
+		assertEquals(0, misses.get());
+		
+		// the expiry index holds only the latest end time
+		iaAddr.setValidEndTime(new Date(now - 1000));
+		leaseMgr.updateIaAddr(iaAddr);
+		assertEquals(1, leaseMgr.findExpiredIaAddresses(IdentityAssoc.NA_TYPE).size());
+		
+		// and the IA index moves the address to its new IA
+		IdentityAssoc ia2 = buildIA(IdentityAssoc.NA_TYPE, 2, now + 3600000, "192.168.0.7");
+		leaseMgr.createIA(ia2);
+		assertNull(leaseMgr.findIA(ia1.getDuid(), ia1.getIatype(), ia1.getIaid()));
+		assertEquals(1, leaseMgr.findIA(ia2.getDuid(), ia2.getIatype(), ia2.getIaid())
+				.getIaAddresses().size());
+		assertEquals(0, leaseMgr.findExpiredIaAddresses(IdentityAssoc.NA_TYPE).size());
+	}
+	
+	public void testRestart() throws Exception
+	{
+		long now = System.currentTimeMillis();
+		IdentityAssoc ia1 = buildIA(IdentityAssoc.NA_TYPE, 1, now + 3600000, "3ffe::1", "3ffe::2");
+		leaseMgr.createIA(ia1);
+		leaseMgr.deleteIaAddr(ia1.getIaAddresses().iterator().next());
+		leaseMgr.createIA(buildIA(IdentityAssoc.NA_TYPE, 2, now + 3600000, "3ffe::3"));
+		
+		// reload from the snapshot and the log
+		MemoryLeaseManager leaseMgr2 = new MemoryLeaseManager();
+		leaseMgr2.setDbDir(leaseMgr.dbDir);
+		leaseMgr2.init();
+		IdentityAssoc ia = leaseMgr2.findIA(ia1.getDuid(), ia1.getIatype(), ia1.getIaid());
+		assertNotNull(ia);
+		assertEquals(1, ia.getIaAddresses().size());
+		assertEquals(InetAddress.getByName("3ffe::2"), ia.getIaAddresses().iterator().next().getIpAddress());
+		assertNotNull(leaseMgr2.findIA(InetAddress.getByName("3ffe::3")));
+		
+		// the reload wrote a new snapshot, so reload again
+		leaseMgr.init();
+		assertEquals(2, leaseMgr.findExistingIPs(InetAddress.getByName("3ffe::"),
+				InetAddress.getByName("3ffe::ffff")).size());
+	}
+}
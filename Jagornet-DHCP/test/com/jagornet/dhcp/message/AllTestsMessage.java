@@ -35,6 +35,7 @@ public class AllTestsMessage {
 		//$JUnit-BEGIN$
 		suite.addTestSuite(TestDhcpMessage.class);
 		suite.addTestSuite(TestDhcpRelayMessage.class);
+		suite.addTestSuite(TestDhcpV4Message.class);
 		//$JUnit-END$
 		return suite;
 	}
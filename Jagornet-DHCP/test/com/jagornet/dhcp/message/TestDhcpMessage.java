@@ -178,6 +178,23 @@ public class TestDhcpMessage extends TestCase
         checkMockClientRequest(dhcpMessage);
     }
     
+    public void testLazyDecode() throws Exception
+    {
+        DhcpV6Message dhcpMessage = 
+        	new DhcpV6Message(new InetSocketAddress(DhcpConstants.V6_SERVER_PORT),
+        					CLIENT_ADDR);
+        dhcpMessage.decode(buildMockClientRequest());
+        assertTrue(dhcpMessage.getDhcpOptionMap() instanceof LazyOptionMap);
+        LazyOptionMap options = (LazyOptionMap) dhcpMessage.getDhcpOptionMap();
+        // the options are only indexed until they are asked for
+        assertEquals(3, options.size());
+        assertEquals(3, options.getUndecodedCount());
+        assertNotNull(dhcpMessage.getDhcpClientIdOption());
+        assertEquals(2, options.getUndecodedCount());
+        checkMockClientRequest(dhcpMessage);
+        assertEquals(0, options.getUndecodedCount());
+    }
+    
     public  void testEquals() throws Exception
     {
     	DhcpV6Message msg1 = 
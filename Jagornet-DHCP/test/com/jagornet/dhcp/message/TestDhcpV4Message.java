@@ -0,0 +1,202 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestDhcpV4Message.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.message;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+import com.jagornet.dhcp.option.DhcpUnknownOption;
+import com.jagornet.dhcp.option.base.BaseOpaqueData;
+import com.jagornet.dhcp.option.v4.DhcpV4HostnameOption;
+import com.jagornet.dhcp.option.v4.DhcpV4MsgTypeOption;
+import com.jagornet.dhcp.util.DhcpConstants;
+
+public class TestDhcpV4Message extends TestCase
+{
+	public static InetSocketAddress SERVER_ADDR =
+		new InetSocketAddress(DhcpConstants.V4_SERVER_PORT);
+	public static InetSocketAddress RELAY_ADDR =
+		new InetSocketAddress("192.168.0.1", DhcpConstants.V4_SERVER_PORT);
+	
+	public static DhcpV4Message buildMockDhcpMessage() throws Exception
+	{
+		DhcpV4Message dhcpMessage = new DhcpV4Message(SERVER_ADDR, RELAY_ADDR);
+		dhcpMessage.setOp((short)DhcpConstants.V4_OP_REQUEST);
+		dhcpMessage.setHtype((short)1);
+		dhcpMessage.setHlen((short)6);
+		dhcpMessage.setTransactionId(90599);
+		dhcpMessage.setGiAddr(InetAddress.getByName("192.168.0.1"));
+		dhcpMessage.setChAddr(new byte[] { (byte)0xde, (byte)0xbb, (byte)0x1e,
+										   (byte)0xde, (byte)0xbb, (byte)0x1e });
+		dhcpMessage.setsName("jagornet");
+		DhcpV4MsgTypeOption msgTypeOption = new DhcpV4MsgTypeOption();
+		msgTypeOption.setUnsignedByte((short)DhcpConstants.V4MESSAGE_TYPE_DISCOVER);
+		dhcpMessage.putDhcpOption(msgTypeOption);
+		return dhcpMessage;
+	}
+	
+	public void testDecode() throws Exception
+	{
+		DhcpV4Message dhcpMessage = buildMockDhcpMessage();
+		ByteBuffer bb = dhcpMessage.encode();
+		DhcpV4Message decoded = DhcpV4Message.decode(bb, SERVER_ADDR, RELAY_ADDR);
+		assertNotNull(decoded);
+		assertEquals(90599, decoded.getTransactionId());
+		assertEquals(6, decoded.getChAddr().length);
+		assertEquals(0x1e, decoded.getChAddr()[5] & 0xff);
+		assertEquals("jagornet", decoded.getsName());
+		assertEquals("", decoded.getFile());
+		assertEquals(DhcpConstants.V4MESSAGE_TYPE_DISCOVER, decoded.getMessageType());
+		// zero addresses share the constant, others are only built when asked for
+		assertSame(DhcpConstants.ZEROADDR_V4, decoded.getCiAddr());
+		assertEquals(0xc0a80001, decoded.giAddrBits);
+		assertEquals(InetAddress.getByName("192.168.0.1"), decoded.getGiAddr());
+		assertSame(decoded.getGiAddr(), decoded.getGiAddr());
+	}
+	
+	public void testReencode() throws Exception
+	{
+		ByteBuffer bb = buildMockDhcpMessage().encode();
+		byte[] encoded = new byte[bb.remaining()];
+		bb.duplicate().get(encoded);
+		DhcpV4Message decoded = DhcpV4Message.decode(bb, SERVER_ADDR, RELAY_ADDR);
+		// the address was never materialized, but is encoded the same
+		ByteBuffer bb2 = decoded.encode();
+		assertEquals(0xc0a80001, bb2.getInt(24));
+		decoded.setGiAddr(null);
+		assertNull(decoded.getGiAddr());
+		assertEquals(0, decoded.encode().getInt(24));
+		assertEquals(encoded.length, bb2.remaining());
+	}
+	
+	public void testEncodeLength() throws Exception
+	{
+		DhcpV4Message dhcpMessage = buildMockDhcpMessage();
+		ByteBuffer bb = dhcpMessage.encode();
+		// padded to the Bootp minimum
+		assertEquals(300, bb.limit());
+		assertEquals(bb.limit(), dhcpMessage.getLength());
+		// encoding into a dirty buffer must write every byte
+		ByteBuffer dirty = ByteBuffer.allocate(dhcpMessage.getLength() + 10);
+		while (dirty.hasRemaining()) {
+			dirty.put((byte)0xff);
+		}
+		dirty.position(10);
+		dhcpMessage.encode(dirty);
+		assertEquals(dirty.capacity(), dirty.position());
+		dirty.position(10);
+		assertEquals(bb, dirty);
+		dhcpMessage.setFile(new String(new char[300]).replace('\0', 'x'));
+		assertEquals(300, dhcpMessage.encode().limit());
+	}
+	
+	public void testLazyOptions() throws Exception
+	{
+		DhcpV4Message dhcpMessage = buildMockDhcpMessage();
+		DhcpV4HostnameOption hostnameOption = new DhcpV4HostnameOption();
+		hostnameOption.setString("jagornet-client");
+		dhcpMessage.putDhcpOption(hostnameOption);
+		// a relay agent option, which the server never looks at
+		DhcpUnknownOption relayAgentOption = new DhcpUnknownOption();
+		relayAgentOption.setCode(82);
+		relayAgentOption.setV4(true);
+		relayAgentOption.setOpaqueData(new BaseOpaqueData(new byte[200]));
+		dhcpMessage.putDhcpOption(relayAgentOption);
+		ByteBuffer bb = dhcpMessage.encode();
+		
+		DhcpV4Message decoded = DhcpV4Message.decode(bb.duplicate(), SERVER_ADDR, RELAY_ADDR);
+		assertTrue(decoded.getDhcpOptionMap() instanceof LazyOptionMap);
+		LazyOptionMap lazyOptions = (LazyOptionMap) decoded.getDhcpOptionMap();
+		assertEquals(3, lazyOptions.size());
+		assertEquals(3, lazyOptions.getUndecodedCount());
+		assertTrue(decoded.hasOption(82));
+		assertEquals(DhcpConstants.V4MESSAGE_TYPE_DISCOVER, decoded.getMessageType());
+		assertEquals(2, lazyOptions.getUndecodedCount());
+		assertEquals("jagornet-client", 
+				((DhcpV4HostnameOption)decoded.getDhcpOption(DhcpConstants.V4OPTION_HOSTNAME)).getString());
+		assertEquals(1, lazyOptions.getUndecodedCount());
+		// iterating the options decodes the rest
+		assertEquals(3, decoded.getDhcpOptions().size());
+		for (Object option : decoded.getDhcpOptions()) {
+			assertNotNull(option);
+		}
+		assertEquals(0, lazyOptions.getUndecodedCount());
+		assertEquals(relayAgentOption, decoded.getDhcpOption(82));
+		
+		// and the message is the same as when decoded all at once
+		LazyOptionMap.setEnabled(false);
+		try {
+			DhcpV4Message eager = DhcpV4Message.decode(bb.duplicate(), SERVER_ADDR, RELAY_ADDR);
+			assertFalse(eager.getDhcpOptionMap() instanceof LazyOptionMap);
+			assertEquals(eager.getDhcpOptionMap().keySet(), decoded.getDhcpOptionMap().keySet());
+			assertEquals(eager.encode(), decoded.encode());
+		}
+		finally {
+			LazyOptionMap.setEnabled(true);
+		}
+	}
+	
+	public void testMalformedOptions() throws Exception
+	{
+		DhcpV4Message dhcpMessage = buildMockDhcpMessage();
+		DhcpV4HostnameOption hostnameOption = new DhcpV4HostnameOption();
+		hostnameOption.setString("jagornet-client");
+		dhcpMessage.putDhcpOption(hostnameOption);
+		ByteBuffer bb = dhcpMessage.encode();
+		// make the hostname option run past the end of the packet
+		for (int i=240; i<bb.limit()-1; i++) {
+			if ((bb.get(i) == DhcpConstants.V4OPTION_HOSTNAME) && (bb.get(i+1) == 15)) {
+				bb.put(i+1, (byte)250);
+				break;
+			}
+		}
+		try {
+			DhcpV4Message.decode(bb, SERVER_ADDR, RELAY_ADDR);
+			fail("Decoded a message with a malformed option");
+		}
+		catch (IOException ex) {
+			// expected
+		}
+		
+		// a routers option which is too short for an address
+		ByteBuffer buf = ByteBuffer.wrap(new byte[] { 3, 3, 10, 0, 0 });
+		LazyOptionMap options = new LazyOptionMap(buf, true);
+		buf.get();
+		assertTrue(options.index(DhcpConstants.V4OPTION_ROUTERS, buf));
+		assertTrue(options.containsKey(DhcpConstants.V4OPTION_ROUTERS));
+		try {
+			options.get(DhcpConstants.V4OPTION_ROUTERS);
+			fail("Decoded a malformed option");
+		}
+		catch (RuntimeException ex) {
+			// expected
+		}
+	}
+}
@@ -40,6 +40,7 @@ public class AllTestsOption {
 		suite.addTestSuite(TestDhcpDomainSearchListOption.class);
 		suite.addTestSuite(TestOpaqueDataUtil.class);
 		suite.addTestSuite(TestDhcpIaNaOption.class);
+		suite.addTestSuite(TestDhcpOptionRegistry.class);
 		//$JUnit-END$
 		return suite;
 	}
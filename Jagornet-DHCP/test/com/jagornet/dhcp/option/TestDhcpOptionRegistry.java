@@ -0,0 +1,120 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestDhcpOptionRegistry.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.option;
+
+import junit.framework.TestCase;
+
+import com.jagornet.dhcp.option.base.BaseOpaqueDataOption;
+import com.jagornet.dhcp.option.base.DhcpOption;
+import com.jagornet.dhcp.option.v4.DhcpV4HostnameOption;
+import com.jagornet.dhcp.option.v4.DhcpV4OptionFactory;
+import com.jagornet.dhcp.option.v6.DhcpV6ClientIdOption;
+import com.jagornet.dhcp.option.v6.DhcpV6OptionFactory;
+import com.jagornet.dhcp.util.DhcpConstants;
+
+public class TestDhcpOptionRegistry extends TestCase
+{
+	/**
+	 * A custom vendor option, used for any code it is registered for.
+	 */
+	public static class TestVendorOption extends BaseOpaqueDataOption
+	{
+	}
+	
+	@Override
+	protected void tearDown() throws Exception
+	{
+		DhcpOptionRegistry.getV4Registry().clear();
+		DhcpOptionRegistry.getV6Registry().clear();
+		super.tearDown();
+	}
+	
+	public void testV4Register() throws Exception
+	{
+		assertTrue(DhcpV4OptionFactory.getDhcpOption(224) instanceof DhcpUnknownOption);
+		DhcpOptionRegistry.getV4Registry().register(224, TestVendorOption.class);
+		DhcpOption option = DhcpV4OptionFactory.getDhcpOption(224);
+		assertTrue(option instanceof TestVendorOption);
+		assertEquals(224, option.getCode());
+		assertTrue(option.isV4());
+		// built-in options are replaced too
+		DhcpOptionRegistry.getV4Registry().register(DhcpConstants.V4OPTION_HOSTNAME, 
+													TestVendorOption.class);
+		assertTrue(DhcpV4OptionFactory.getDhcpOption(DhcpConstants.V4OPTION_HOSTNAME) 
+						instanceof TestVendorOption);
+		DhcpOptionRegistry.getV4Registry().register(DhcpConstants.V4OPTION_HOSTNAME, 
+													(DhcpOptionRegistry.Creator)null);
+		assertTrue(DhcpV4OptionFactory.getDhcpOption(DhcpConstants.V4OPTION_HOSTNAME) 
+						instanceof DhcpV4HostnameOption);
+		// the end option can't be replaced
+		try {
+			DhcpOptionRegistry.getV4Registry().register(DhcpConstants.V4OPTION_EOF, 
+														TestVendorOption.class);
+			fail("Registered the end option");
+		}
+		catch (IllegalArgumentException ex) {
+			// expected
+		}
+	}
+	
+	public void testV6Register() throws Exception
+	{
+		DhcpOptionRegistry registry = DhcpOptionRegistry.getV6Registry();
+		registry.register(60000, new DhcpOptionRegistry.Creator() {
+			public DhcpOption newOption(int code) {
+				TestVendorOption option = new TestVendorOption();
+				option.setCode(code);
+				return option;
+			}
+		});
+		assertNotNull(registry.get(60000));
+		assertNull(registry.get(60001));
+		assertNull(registry.get(1000));
+		DhcpOption option = DhcpV6OptionFactory.getDhcpOption(60000);
+		assertTrue(option instanceof TestVendorOption);
+		assertEquals(60000, option.getCode());
+		assertFalse(option.isV4());
+		assertTrue(DhcpV6OptionFactory.getDhcpOption(DhcpConstants.V6OPTION_CLIENTID) 
+						instanceof DhcpV6ClientIdOption);
+	}
+	
+	public void testRegisterAll() throws Exception
+	{
+		DhcpOptionRegistry.registerAll(
+				"v4:224=" + TestVendorOption.class.getName() + 
+				", v6:1000=" + TestVendorOption.class.getName());
+		assertTrue(DhcpV4OptionFactory.getDhcpOption(224) instanceof TestVendorOption);
+		assertTrue(DhcpV6OptionFactory.getDhcpOption(1000) instanceof TestVendorOption);
+		assertTrue(DhcpV6OptionFactory.getDhcpOption(224) instanceof DhcpUnknownOption);
+		try {
+			DhcpOptionRegistry.registerAll("v4:224=java.lang.String");
+			fail("Registered a class which is not an option");
+		}
+		catch (IllegalArgumentException ex) {
+			// expected
+		}
+	}
+}
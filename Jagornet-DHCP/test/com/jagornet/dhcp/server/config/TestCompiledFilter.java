@@ -0,0 +1,128 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestCompiledFilter.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.config;
+
+import java.net.InetSocketAddress;
+
+import junit.framework.TestCase;
+
+import com.jagornet.dhcp.message.DhcpV4Message;
+import com.jagornet.dhcp.option.base.BaseOpaqueData;
+import com.jagornet.dhcp.option.v4.DhcpV4VendorClassOption;
+import com.jagornet.dhcp.util.DhcpConstants;
+import com.jagornet.dhcp.xml.Filter;
+import com.jagornet.dhcp.xml.Operator;
+import com.jagornet.dhcp.xml.OptionExpression;
+
+/**
+ * The Class TestCompiledFilter.
+ */
+public class TestCompiledFilter extends TestCase
+{
+	/**
+	 * Test option expressions for each operator on ascii and hex opaque data.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testOpaqueOptionExpression() throws Exception
+	{
+		DhcpV4Message msg = buildMessage(new BaseOpaqueData("MSFT 5.0"));
+		assertTrue(buildFilter(Operator.EQUALS, "msft 5.0").matches(msg));
+		assertTrue(buildFilter(Operator.STARTS_WITH, "MSFT").matches(msg));
+		assertTrue(buildFilter(Operator.CONTAINS, "FT 5").matches(msg));
+		assertTrue(buildFilter(Operator.ENDS_WITH, "5.0").matches(msg));
+		assertTrue(buildFilter(Operator.REG_EXP, "MSFT [0-9]\\.[0-9]").matches(msg));
+		assertFalse(buildFilter(Operator.REG_EXP, "MSFT").matches(msg));
+		assertFalse(buildFilter(Operator.STARTS_WITH, "MSFT 6").matches(msg));
+		
+		msg = buildMessage(new BaseOpaqueData(new byte[] { 1, 2, 3, 4 }));
+		CompiledFilter hexFilter = buildFilter(Operator.STARTS_WITH, new byte[] { 1, 2 });
+		assertTrue(hexFilter.matches(msg));
+		hexFilter = buildFilter(Operator.EQUALS, new byte[] { 1, 2 });
+		assertFalse(hexFilter.matches(msg));
+		
+		// the option is not in the message
+		msg = new DhcpV4Message(new InetSocketAddress(67), new InetSocketAddress(68));
+		assertFalse(buildFilter(Operator.EQUALS, "MSFT 5.0").matches(msg));
+	}
+	
+	/**
+	 * Test that the result of a filter is remembered for the message,
+	 * until the options of the message are changed.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testMessageMemo() throws Exception
+	{
+		Filter filter = buildFilter(Operator.EQUALS, "MSFT 5.0").getFilter();
+		DhcpV4Message msg = buildMessage(new BaseOpaqueData("MSFT 5.0"));
+		assertNull(msg.getFilterMatch(filter));
+		assertTrue(DhcpServerConfiguration.msgMatchesFilter(msg, filter));
+		assertEquals(Boolean.TRUE, msg.getFilterMatch(filter));
+		
+		DhcpV4VendorClassOption vcOption = new DhcpV4VendorClassOption();
+		vcOption.setOpaqueData(new BaseOpaqueData("other"));
+		msg.putDhcpOption(vcOption);
+		assertNull(msg.getFilterMatch(filter));
+		assertFalse(DhcpServerConfiguration.msgMatchesFilter(msg, filter));
+		assertEquals(Boolean.FALSE, msg.getFilterMatch(filter));
+	}
+	
+	private DhcpV4Message buildMessage(BaseOpaqueData opaque)
+	{
+		DhcpV4Message msg = new DhcpV4Message(new InetSocketAddress(67), new InetSocketAddress(68));
+		DhcpV4VendorClassOption vcOption = new DhcpV4VendorClassOption();
+		vcOption.setOpaqueData(opaque);
+		msg.putDhcpOption(vcOption);
+		return msg;
+	}
+	
+	private CompiledFilter buildFilter(Operator.Enum op, String ascii)
+	{
+		Filter filter = Filter.Factory.newInstance();
+		buildExpression(filter, op).getOpaqueDataOption().addNewOpaqueData().setAsciiValue(ascii);
+		return CompiledFilter.compile(filter);
+	}
+	
+	private CompiledFilter buildFilter(Operator.Enum op, byte[] hex)
+	{
+		Filter filter = Filter.Factory.newInstance();
+		buildExpression(filter, op).getOpaqueDataOption().addNewOpaqueData().setHexValue(hex);
+		return CompiledFilter.compile(filter);
+	}
+	
+	private OptionExpression buildExpression(Filter filter, Operator.Enum op)
+	{
+		filter.setName("test");
+		OptionExpression expr = 
+			filter.addNewFilterExpressions().addNewFilterExpression().addNewOptionExpression();
+		expr.setCode(DhcpConstants.V4OPTION_VENDOR_CLASS);
+		expr.setV4(true);
+		expr.setOperator(op);
+		expr.addNewOpaqueDataOption();
+		return expr;
+	}
+}
@@ -26,11 +26,15 @@
 package com.jagornet.dhcp.server.config;
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
 import java.util.SortedMap;
 
 import junit.framework.TestCase;
 
+import com.jagornet.dhcp.message.DhcpV6Message;
 import com.jagornet.dhcp.option.OpaqueDataUtil;
+import com.jagornet.dhcp.option.base.DhcpOption;
 import com.jagornet.dhcp.server.config.DhcpLink;
 import com.jagornet.dhcp.server.config.DhcpServerConfiguration;
 import com.jagornet.dhcp.util.DhcpConstants;
@@ -132,4 +136,33 @@ public class TestDhcpServerConfiguration extends TestCase
         assertEquals(InetAddress.getByName("2001:DB8:3::"), 
                      subMap.lastKey().getSubnetAddress());
     }
+    
+    /**
+     * Test that effective options are cached and shared between requests.
+     * 
+     * @throws Exception the exception
+     */
+    public void testEffectiveOptionsCache() throws Exception
+    {
+    	String configFilename = "test/com/jagornet/dhcp/server/config/dhcpServerConfigLinkTest1.xml";
+    	DhcpServerConfiguration.configFilename = configFilename;
+        DhcpServerConfiguration serverConfig = DhcpServerConfiguration.getInstance();
+        
+        DhcpV6Message requestMsg1 = new DhcpV6Message(new InetSocketAddress(547), 
+        		new InetSocketAddress(546));
+        Map<Integer, DhcpOption> optionMap1 = serverConfig.effectiveMsgOptions(requestMsg1);
+        assertNotNull(optionMap1.get(DhcpConstants.V6OPTION_DNS_SERVERS));
+        
+        DhcpV6Message requestMsg2 = new DhcpV6Message(new InetSocketAddress(547), 
+        		new InetSocketAddress(546));
+        Map<Integer, DhcpOption> optionMap2 = serverConfig.effectiveMsgOptions(requestMsg2);
+        assertSame(optionMap1, optionMap2);
+        try {
+        	optionMap2.clear();
+        	fail("Cached effective options must be read only");
+        }
+        catch (UnsupportedOperationException ex) {
+        	// expected
+        }
+    }
 }
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestPolicyTable.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.config;
+
+import junit.framework.TestCase;
+
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
+import com.jagornet.dhcp.xml.PoliciesType;
+import com.jagornet.dhcp.xml.Policy;
+
+/**
+ * The Class TestPolicyTable.
+ */
+public class TestPolicyTable extends TestCase
+{
+	/**
+	 * Test compiling configured policies into typed values.
+	 */
+	public void testCompilePolicies()
+	{
+		PoliciesType policies = PoliciesType.Factory.newInstance();
+		addPolicy(policies, "PREFERREDLIFETIME", "1800");
+		addPolicy(policies, "preferredLifetime", "900");
+		addPolicy(policies, "iaNaT1", "0.4");
+		addPolicy(policies, "sendRequestedOptionsOnly", "true");
+		addPolicy(policies, "v4.defaultLeasetime", "forever");
+		addPolicy(policies, "no.such.policy", "1");
+		
+		PolicyTable table = PolicyTable.compile(policies);
+		// names are not case sensitive, and the first one wins
+		assertEquals("1800", table.get(Property.PREFERRED_LIFETIME).asString());
+		assertEquals(1800, table.get(Property.PREFERRED_LIFETIME).asInt());
+		assertEquals(1800L, table.get(Property.PREFERRED_LIFETIME).asLong());
+		assertEquals(0.4f, table.get(Property.IA_NA_T1).asFloat());
+		assertTrue(table.get(Property.SEND_REQUESTED_OPTIONS_ONLY).asBoolean());
+		assertNull(table.get(Property.VALID_LIFETIME));
+		try {
+			table.get(Property.V4_DEFAULT_LEASETIME).asLong();
+			fail("Expected NumberFormatException");
+		}
+		catch (NumberFormatException ex) {
+			// expected
+		}
+		
+		assertSame(PolicyTable.EMPTY, PolicyTable.compile((PoliciesType)null));
+		assertNull(PolicyTable.EMPTY.get(Property.PREFERRED_LIFETIME));
+	}
+	
+	/**
+	 * Test that changes to the server properties are seen by the compiled table.
+	 */
+	public void testServerProperties()
+	{
+		String value = DhcpServerPolicies.getProperties().getProperty(Property.DDNS_TTL.key());
+		try {
+			DhcpServerPolicies.setProperty(Property.DDNS_TTL, "0.25");
+			assertEquals(0.25f, DhcpServerPolicies.serverPolicyValue(Property.DDNS_TTL).asFloat());
+			DhcpServerPolicies.getProperties().put(Property.DDNS_TTL.key(), "0.75");
+			assertEquals(0.75f, DhcpServerPolicies.serverPolicyValue(Property.DDNS_TTL).asFloat());
+			// every policy has at least the default value
+			for (Property prop : Property.values()) {
+				assertNotNull(DhcpServerPolicies.serverPolicyValue(prop));
+			}
+		}
+		finally {
+			DhcpServerPolicies.setProperty(Property.DDNS_TTL, value);
+		}
+	}
+	
+	private void addPolicy(PoliciesType policies, String name, String value)
+	{
+		Policy policy = policies.addNewPolicy();
+		policy.setName(name);
+		policy.setValue(value);
+	}
+}
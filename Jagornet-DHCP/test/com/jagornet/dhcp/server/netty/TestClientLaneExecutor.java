@@ -0,0 +1,248 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestClientLaneExecutor.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.netty;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.jagornet.dhcp.message.DhcpV4Message;
+import com.jagornet.dhcp.util.DhcpConstants;
+
+public class TestClientLaneExecutor extends TestCase
+{
+	public static InetSocketAddress SERVER_ADDR =
+		new InetSocketAddress(DhcpConstants.V4_SERVER_PORT);
+	public static InetSocketAddress CLIENT_ADDR =
+		new InetSocketAddress(DhcpConstants.ZEROADDR_V4, DhcpConstants.V4_CLIENT_PORT);
+
+	private ClientLaneExecutor executor;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		executor = new ClientLaneExecutor(8, 100);
+	}
+	
+	@Override
+	protected void tearDown() throws Exception
+	{
+		executor.shutdownNow();
+		super.tearDown();
+	}
+	
+	private DhcpV4Message buildMessage(int client, InetAddress giAddr)
+	{
+		DhcpV4Message msg = new DhcpV4Message(SERVER_ADDR, CLIENT_ADDR);
+		msg.setChAddr(new byte[] { (byte)0xde, (byte)0xbb, (byte)0x1e, 
+									(byte)0, (byte)(client >> 8), (byte)client });
+		if (giAddr != null) {
+			msg.setGiAddr(giAddr);
+		}
+		return msg;
+	}
+	
+	public void testLaneForClient() throws Exception
+	{
+		InetAddress relay = InetAddress.getByName("10.0.0.1");
+		Set<Integer> lanes = new HashSet<Integer>();
+		for (int i=0; i<100; i++) {
+			ClientLaneExecutor.Lane lane = executor.laneFor(buildMessage(i, null), CLIENT_ADDR);
+			// the same client always maps to the same lane
+			assertSame(lane, executor.laneFor(buildMessage(i, null), CLIENT_ADDR));
+			assertSame(executor.laneFor(buildMessage(i, relay), CLIENT_ADDR),
+						executor.laneFor(buildMessage(i, relay), CLIENT_ADDR));
+			lanes.add(lane.getIndex());
+		}
+		// and the clients are spread over all of the lanes
+		assertEquals(executor.getLaneCount(), lanes.size());
+	}
+	
+	public void testLaneOrder() throws Exception
+	{
+		final List<Integer> results = Collections.synchronizedList(new ArrayList<Integer>());
+		ClientLaneExecutor.Lane lane = executor.getLane(3);
+		for (int i=0; i<1000; i++) {
+			final int n = i;
+			lane.execute(new Runnable() {
+				public void run() {
+					results.add(n);
+				}
+			});
+		}
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(1000, results.size());
+		for (int i=0; i<1000; i++) {
+			assertEquals(i, results.get(i).intValue());
+		}
+		assertEquals(1000, lane.getProcessedCount());
+		assertEquals(0, lane.getDroppedCount());
+		assertEquals(0, lane.getQueueDepth());
+		assertTrue(lane.getMaxWaitMicros() >= lane.getAverageWaitMicros());
+		assertEquals(0, executor.getLane(0).getProcessedCount());
+	}
+	
+	public void testMaxInFlight() throws Exception
+	{
+		ThreadFactory threadFactory = ClientLaneExecutor.newVirtualThreadFactory("TestLane");
+		if (threadFactory == null) {
+			// not supported by this JVM, but the lanes work the same way
+			threadFactory = Executors.defaultThreadFactory();
+		}
+		executor.shutdownNow();
+		executor = new ClientLaneExecutor(8, 100, threadFactory, 2);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger running = new AtomicInteger();
+		final AtomicInteger maxRunning = new AtomicInteger();
+		for (int i=0; i<8; i++) {
+			executor.getLane(i).execute(new Runnable() {
+				public void run() {
+					int n = running.incrementAndGet();
+					if (n > maxRunning.get()) {
+						maxRunning.set(n);
+					}
+					try {
+						release.await();
+					}
+					catch (InterruptedException ex) { }
+					running.decrementAndGet();
+				}
+			});
+		}
+		Thread.sleep(200);
+		assertEquals(2, running.get());
+		assertEquals(0, executor.getAvailableInFlight());
+		release.countDown();
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(2, maxRunning.get());
+		assertEquals(2, executor.getAvailableInFlight());
+	}
+	
+	/**
+	 * Block the lane until the returned latch is released.
+	 */
+	private CountDownLatch blockLane(ClientLaneExecutor.Lane lane) throws Exception
+	{
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		lane.execute(new Runnable() {
+			public void run() {
+				started.countDown();
+				try {
+					release.await();
+				}
+				catch (InterruptedException ex) { }
+			}
+		});
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		return release;
+	}
+	
+	private Runnable recorder(final List<Integer> results, final int n)
+	{
+		return new Runnable() {
+			public void run() {
+				results.add(n);
+			}
+		};
+	}
+	
+	public void testPriority() throws Exception
+	{
+		executor.shutdownNow();
+		executor = new ClientLaneExecutor(1, 10);
+		executor.setPriorityQueuePercents(50, 20);
+		assertEquals(10, executor.getQueueLimit(ClientLaneExecutor.Priority.HIGH));
+		assertEquals(5, executor.getQueueLimit(ClientLaneExecutor.Priority.NORMAL));
+		assertEquals(2, executor.getQueueLimit(ClientLaneExecutor.Priority.LOW));
+		
+		DhcpV4Message inform = buildMessage(1, null);
+		inform.setMessageType((short)DhcpConstants.V4MESSAGE_TYPE_INFORM);
+		DhcpV4Message discover = buildMessage(2, null);
+		discover.setMessageType((short)DhcpConstants.V4MESSAGE_TYPE_DISCOVER);
+		DhcpV4Message request = buildMessage(3, null);
+		request.setMessageType((short)DhcpConstants.V4MESSAGE_TYPE_REQUEST);
+		assertEquals(ClientLaneExecutor.Priority.LOW, ClientLaneExecutor.priorityOf(inform));
+		assertEquals(ClientLaneExecutor.Priority.NORMAL, ClientLaneExecutor.priorityOf(discover));
+		assertEquals(ClientLaneExecutor.Priority.HIGH, ClientLaneExecutor.priorityOf(request));
+		
+		List<Integer> results = Collections.synchronizedList(new ArrayList<Integer>());
+		CountDownLatch release = blockLane(executor.getLane(0));
+		// the low priority messages are only admitted to an almost empty lane
+		for (int i=0; i<3; i++) {
+			assertEquals(i < 2, executor.execute(recorder(results, 300+i), inform, CLIENT_ADDR));
+		}
+		for (int i=0; i<4; i++) {
+			assertEquals(i < 3, executor.execute(recorder(results, 200+i), discover, CLIENT_ADDR));
+		}
+		for (int i=0; i<6; i++) {
+			assertEquals(i < 5, executor.execute(recorder(results, 100+i), request, CLIENT_ADDR));
+		}
+		assertEquals(1, executor.getDroppedCount(ClientLaneExecutor.Priority.LOW));
+		assertEquals(1, executor.getDroppedCount(ClientLaneExecutor.Priority.NORMAL));
+		assertEquals(1, executor.getDroppedCount(ClientLaneExecutor.Priority.HIGH));
+		release.countDown();
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		// by priority, then in order of arrival
+		assertEquals(Arrays.asList(100, 101, 102, 103, 104, 200, 201, 202, 300, 301), results);
+	}
+	
+	public void testStale() throws Exception
+	{
+		executor.setMaxQueueTime(50);
+		DhcpV4Message request = buildMessage(1, null);
+		request.setMessageType((short)DhcpConstants.V4MESSAGE_TYPE_REQUEST);
+		ClientLaneExecutor.Lane lane = executor.laneFor(request, CLIENT_ADDR);
+		List<Integer> results = Collections.synchronizedList(new ArrayList<Integer>());
+		CountDownLatch release = blockLane(lane);
+		assertTrue(executor.execute(recorder(results, 1), request, CLIENT_ADDR));
+		Thread.sleep(200);
+		assertTrue(executor.execute(recorder(results, 2), request, CLIENT_ADDR));
+		release.countDown();
+		executor.setMaxQueueTime(150);
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+		// only the message that waited too long was dropped
+		assertEquals(Arrays.asList(2), results);
+		assertEquals(1, executor.getStaleCount());
+	}
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestRateLimiter.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.netty;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import junit.framework.TestCase;
+
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.jboss.netty.buffer.ChannelBuffers;
+
+import com.jagornet.dhcp.message.DhcpV4Message;
+import com.jagornet.dhcp.message.DhcpV6Message;
+import com.jagornet.dhcp.message.DhcpV6RelayMessage;
+import com.jagornet.dhcp.option.v6.DhcpV6ClientIdOption;
+import com.jagornet.dhcp.option.v6.DhcpV6RelayOption;
+import com.jagornet.dhcp.util.DhcpConstants;
+import com.jagornet.dhcp.xml.OpaqueData;
+import com.jagornet.dhcp.xml.V6ClientIdOption;
+
+public class TestRateLimiter extends TestCase
+{
+	public static InetSocketAddress V4_SERVER_ADDR =
+		new InetSocketAddress(DhcpConstants.V4_SERVER_PORT);
+	public static InetSocketAddress V4_CLIENT_ADDR =
+		new InetSocketAddress(DhcpConstants.ZEROADDR_V4, DhcpConstants.V4_CLIENT_PORT);
+	public static InetSocketAddress V6_SERVER_ADDR =
+		new InetSocketAddress("2001:DB8:3::2", DhcpConstants.V6_SERVER_PORT);
+	public static InetSocketAddress V6_CLIENT_ADDR =
+		new InetSocketAddress("FE80::A:B:C:D", DhcpConstants.V6_CLIENT_PORT);
+	public static InetSocketAddress V6_RELAY_ADDR =
+		new InetSocketAddress("2001:DB8:2::1", DhcpConstants.V6_SERVER_PORT);
+
+	/**
+	 * A rate limiter with fixed limits, rather than the server policies.
+	 */
+	static class FixedRateLimiter extends RateLimiter
+	{
+		private final float clientRate;
+		private final int clientBurst;
+		private final float relayRate;
+		private final int relayBurst;
+		
+		FixedRateLimiter(int maxEntries, float clientRate, int clientBurst,
+				float relayRate, int relayBurst)
+		{
+			super(4, maxEntries);
+			this.clientRate = clientRate;
+			this.clientBurst = clientBurst;
+			this.relayRate = relayRate;
+			this.relayBurst = relayBurst;
+		}
+		
+		@Override
+		protected Bucket newBucket(Kind kind, InetAddress local, InetAddress linkAddr, long now)
+		{
+			if (kind == Kind.CLIENT) {
+				return new Bucket(clientRate, clientBurst, now);
+			}
+			return new Bucket(relayRate, relayBurst, now);
+		}
+	}
+	
+	private ChannelBuffer buildV4Packet(int client, InetAddress giAddr) throws Exception
+	{
+		DhcpV4Message msg = new DhcpV4Message(V4_SERVER_ADDR, V4_CLIENT_ADDR);
+		msg.setOp((short)DhcpConstants.V4_OP_REQUEST);
+		msg.setHtype((short)1);
+		msg.setHlen((short)6);
+		msg.setChAddr(new byte[] { (byte)0xde, (byte)0xbb, (byte)0x1e, 
+									(byte)0, (byte)(client >> 8), (byte)client });
+		if (giAddr != null) {
+			msg.setGiAddr(giAddr);
+		}
+		return ChannelBuffers.wrappedBuffer(msg.encode());
+	}
+	
+	private DhcpV6Message buildV6Message(String duid)
+	{
+		DhcpV6Message msg = new DhcpV6Message(V6_SERVER_ADDR, V6_CLIENT_ADDR);
+		msg.setMessageType(DhcpConstants.V6MESSAGE_TYPE_SOLICIT);
+		msg.setTransactionId(90599);
+		OpaqueData opaque = OpaqueData.Factory.newInstance();
+		opaque.setAsciiValue(duid);
+		V6ClientIdOption clientId = V6ClientIdOption.Factory.newInstance();
+		clientId.setOpaqueData(opaque);
+		msg.putDhcpOption(new DhcpV6ClientIdOption(clientId));
+		return msg;
+	}
+	
+	private DhcpV6RelayMessage buildV6Relay(DhcpV6Message msg, InetAddress linkAddr)
+	{
+		DhcpV6RelayMessage relayMsg = new DhcpV6RelayMessage(V6_SERVER_ADDR, V6_RELAY_ADDR);
+		relayMsg.setMessageType(DhcpConstants.V6MESSAGE_TYPE_RELAY_FORW);
+		relayMsg.setLinkAddress(linkAddr);
+		relayMsg.setPeerAddress(V6_CLIENT_ADDR.getAddress());
+		DhcpV6RelayOption relayOption = new DhcpV6RelayOption();
+		relayOption.setDhcpMessage(msg);
+		relayMsg.putDhcpOption(relayOption);
+		relayMsg.setRelayOption(relayOption);
+		return relayMsg;
+	}
+	
+	public void testBucket() throws Exception
+	{
+		// ten tokens per second, at most three at once
+		RateLimiter.Bucket bucket = new RateLimiter.Bucket(10, 3, 0);
+		assertTrue(bucket.tryAcquire(0));
+		assertTrue(bucket.tryAcquire(0));
+		assertTrue(bucket.tryAcquire(0));
+		assertFalse(bucket.tryAcquire(0));
+		// one token refilled after 100ms
+		assertTrue(bucket.tryAcquire(100000000L));
+		assertFalse(bucket.tryAcquire(100000000L));
+		// and never more than the burst
+		long later = 60000000000L;
+		assertTrue(bucket.tryAcquire(later));
+		assertTrue(bucket.tryAcquire(later));
+		assertTrue(bucket.tryAcquire(later));
+		assertFalse(bucket.tryAcquire(later));
+		
+		RateLimiter.Bucket unlimited = new RateLimiter.Bucket(0, 1, 0);
+		for (int i=0; i<1000; i++) {
+			assertTrue(unlimited.tryAcquire(0));
+		}
+	}
+	
+	public void testV4Client() throws Exception
+	{
+		RateLimiter limiter = new FixedRateLimiter(100, 0.001f, 2, 0, 1);
+		assertTrue(limiter.checkV4(buildV4Packet(1, null), V4_SERVER_ADDR, V4_CLIENT_ADDR));
+		assertTrue(limiter.checkV4(buildV4Packet(1, null), V4_SERVER_ADDR, V4_CLIENT_ADDR));
+		assertFalse(limiter.checkV4(buildV4Packet(1, null), V4_SERVER_ADDR, V4_CLIENT_ADDR));
+		// another client has its own bucket
+		assertTrue(limiter.checkV4(buildV4Packet(2, null), V4_SERVER_ADDR, V4_CLIENT_ADDR));
+		assertEquals(1, limiter.getDroppedCount(RateLimiter.Kind.CLIENT));
+		assertEquals(0, limiter.getDroppedCount(RateLimiter.Kind.RELAY));
+		assertEquals(2, limiter.size());
+	}
+	
+	public void testV4Relay() throws Exception
+	{
+		InetAddress relay = InetAddress.getByName("10.0.0.1");
+		RateLimiter limiter = new FixedRateLimiter(100, 0, 1, 0.001f, 5);
+		for (int i=0; i<5; i++) {
+			assertTrue(limiter.checkV4(buildV4Packet(i, relay), V4_SERVER_ADDR, V4_CLIENT_ADDR));
+		}
+		assertFalse(limiter.checkV4(buildV4Packet(5, relay), V4_SERVER_ADDR, V4_CLIENT_ADDR));
+		// clients which are not relayed are not limited by the relay
+		assertTrue(limiter.checkV4(buildV4Packet(5, null), V4_SERVER_ADDR, V4_CLIENT_ADDR));
+		// nor are the clients of another relay
+		assertTrue(limiter.checkV4(buildV4Packet(5, InetAddress.getByName("10.0.0.2")),
+									V4_SERVER_ADDR, V4_CLIENT_ADDR));
+		assertEquals(1, limiter.getDroppedCount(RateLimiter.Kind.RELAY));
+	}
+	
+	public void testV4NoisyClientBehindRelay() throws Exception
+	{
+		InetAddress relay = InetAddress.getByName("10.0.0.1");
+		RateLimiter limiter = new FixedRateLimiter(100, 0.001f, 2, 0.001f, 5);
+		// a noisy client is dropped once its own bucket is empty
+		for (int i=0; i<2; i++) {
+			assertTrue(limiter.checkV4(buildV4Packet(1, relay), V4_SERVER_ADDR, V4_CLIENT_ADDR));
+		}
+		for (int i=0; i<100; i++) {
+			assertFalse(limiter.checkV4(buildV4Packet(1, relay), V4_SERVER_ADDR, V4_CLIENT_ADDR));
+		}
+		assertEquals(100, limiter.getDroppedCount(RateLimiter.Kind.CLIENT));
+		assertEquals(0, limiter.getDroppedCount(RateLimiter.Kind.RELAY));
+		// without draining the relay bucket for a quiet client of the same relay
+		assertTrue(limiter.checkV4(buildV4Packet(2, relay), V4_SERVER_ADDR, V4_CLIENT_ADDR));
+		assertTrue(limiter.checkV4(buildV4Packet(2, relay), V4_SERVER_ADDR, V4_CLIENT_ADDR));
+		assertTrue(limiter.checkV4(buildV4Packet(3, relay), V4_SERVER_ADDR, V4_CLIENT_ADDR));
+		// once the relay bucket is empty, a client keeps the token it did not use
+		assertFalse(limiter.checkV4(buildV4Packet(4, relay), V4_SERVER_ADDR, V4_CLIENT_ADDR));
+		assertTrue(limiter.checkV4(buildV4Packet(4, null), V4_SERVER_ADDR, V4_CLIENT_ADDR));
+		assertTrue(limiter.checkV4(buildV4Packet(4, null), V4_SERVER_ADDR, V4_CLIENT_ADDR));
+		assertEquals(1, limiter.getDroppedCount(RateLimiter.Kind.RELAY));
+	}
+	
+	public void testV6Client() throws Exception
+	{
+		InetAddress link = InetAddress.getByName("2001:DB8:1::1");
+		RateLimiter limiter = new FixedRateLimiter(100, 0.001f, 1, 0, 1);
+		ChannelBuffer direct = ChannelBuffers.wrappedBuffer(buildV6Message("client1").encode());
+		assertTrue(limiter.checkV6(direct, V6_SERVER_ADDR, V6_CLIENT_ADDR));
+		// the same DUID is found inside the relay message
+		ChannelBuffer relayed = ChannelBuffers.wrappedBuffer(
+				buildV6Relay(buildV6Message("client1"), link).encode());
+		assertFalse(limiter.checkV6(relayed, V6_SERVER_ADDR, V6_RELAY_ADDR));
+		relayed = ChannelBuffers.wrappedBuffer(
+				buildV6Relay(buildV6Message("client2"), link).encode());
+		assertTrue(limiter.checkV6(relayed, V6_SERVER_ADDR, V6_RELAY_ADDR));
+		assertEquals(1, limiter.getDroppedCount(RateLimiter.Kind.CLIENT));
+	}
+	
+	public void testV6Relay() throws Exception
+	{
+		InetAddress link = InetAddress.getByName("2001:DB8:1::1");
+		RateLimiter limiter = new FixedRateLimiter(100, 0, 1, 0.001f, 2);
+		for (int i=0; i<2; i++) {
+			// a second relay in front of the server, which is
+			// not the relay of the client's link
+			DhcpV6RelayMessage relayMsg = buildV6Relay(
+					buildV6Relay(buildV6Message("client" + i), link),
+					InetAddress.getByName("2001:DB8:2::2"));
+			assertTrue(limiter.checkV6(ChannelBuffers.wrappedBuffer(relayMsg.encode()),
+										V6_SERVER_ADDR, V6_RELAY_ADDR));
+		}
+		ChannelBuffer relayed = ChannelBuffers.wrappedBuffer(
+				buildV6Relay(buildV6Message("client2"), link).encode());
+		assertFalse(limiter.checkV6(relayed, V6_SERVER_ADDR, V6_RELAY_ADDR));
+		assertEquals(1, limiter.getDroppedCount(RateLimiter.Kind.RELAY));
+	}
+	
+	public void testEviction() throws Exception
+	{
+		RateLimiter limiter = new FixedRateLimiter(4, 0.001f, 1, 0, 1);
+		for (int i=0; i<100; i++) {
+			assertTrue(limiter.checkV4(buildV4Packet(i, null), V4_SERVER_ADDR, V4_CLIENT_ADDR));
+		}
+		// one bucket per segment
+		assertTrue(limiter.size() <= 4);
+		// the first client was forgotten, so it gets a new bucket
+		assertTrue(limiter.checkV4(buildV4Packet(0, null), V4_SERVER_ADDR, V4_CLIENT_ADDR));
+	}
+}
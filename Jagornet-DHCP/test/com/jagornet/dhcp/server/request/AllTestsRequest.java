@@ -41,6 +41,7 @@ public class AllTestsRequest {
 		suite.addTestSuite(TestDhcpV6DeclineProcessor.class);
 		suite.addTestSuite(TestDhcpV6RequestProcessor.class);
 		suite.addTestSuite(TestDhcpV6ConfirmProcessor.class);
+		suite.addTestSuite(TestRecentMessageCache.class);
 		//$JUnit-END$
 		return suite;
 	}
@@ -40,6 +40,8 @@ import com.jagornet.dhcp.option.v4.DhcpV4RequestedIpAddressOption;
 import com.jagornet.dhcp.option.v4.DhcpV4RoutersOption;
 import com.jagornet.dhcp.option.v4.DhcpV4ServerIdOption;
 import com.jagornet.dhcp.option.v4.DhcpV4SubnetMaskOption;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
 import com.jagornet.dhcp.server.request.binding.V4AddrBindingManager;
 import com.jagornet.dhcp.util.DhcpConstants;
 import com.jagornet.dhcp.util.Util;
@@ -72,6 +74,11 @@ public class BaseTestDhcpV4Processor extends BaseTestCase
 		clientMacAddr = new byte[] { (byte)0xde, (byte)0xbb, (byte)0x1e,
 				(byte)0xde, (byte)0xbb, (byte)0x1e };
 		firstPoolAddr = InetAddress.getByName("192.168.0.1");
+
+		// each request built by these tests is a new client transaction,
+		// even when the transaction id is reused, so don't remember replies
+		DhcpServerPolicies.setProperty(Property.DHCP_PROCESSOR_RECENT_MESSAGE_TIMER, "0");
+		BaseDhcpV4Processor.recentMsgs.clear();
 	}
 	
 	/* (non-Javadoc)
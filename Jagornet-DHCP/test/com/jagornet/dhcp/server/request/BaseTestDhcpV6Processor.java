@@ -43,6 +43,8 @@ import com.jagornet.dhcp.option.v6.DhcpV6IaPrefixOption;
 import com.jagornet.dhcp.option.v6.DhcpV6ServerIdOption;
 import com.jagornet.dhcp.option.v6.DhcpV6SipServerAddressesOption;
 import com.jagornet.dhcp.option.v6.DhcpV6StatusCodeOption;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
 import com.jagornet.dhcp.server.request.binding.V6NaAddrBindingManager;
 import com.jagornet.dhcp.util.DhcpConstants;
 import com.jagornet.dhcp.util.Util;
@@ -81,6 +83,11 @@ public class BaseTestDhcpV6Processor extends BaseTestCase
 		clientId.setOpaqueData(opaque);
 		clientIdOption = new DhcpV6ClientIdOption(clientId);
 		firstPoolAddr = InetAddress.getByName("2001:DB8:1::a");
+
+		// each request built by these tests is a new client transaction,
+		// even when the transaction id is reused, so don't remember replies
+		DhcpServerPolicies.setProperty(Property.DHCP_PROCESSOR_RECENT_MESSAGE_TIMER, "0");
+		BaseDhcpV6Processor.recentMsgs.clear();
 	}
 	
 	/* (non-Javadoc)
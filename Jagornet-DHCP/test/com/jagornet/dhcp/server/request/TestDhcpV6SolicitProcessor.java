@@ -29,6 +29,8 @@ import java.net.InetAddress;
 
 import com.jagornet.dhcp.message.DhcpV6Message;
 import com.jagornet.dhcp.option.v6.DhcpV6ReconfigureAcceptOption;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies;
+import com.jagornet.dhcp.server.config.DhcpServerPolicies.Property;
 import com.jagornet.dhcp.server.request.DhcpV6SolicitProcessor;
 import com.jagornet.dhcp.util.DhcpConstants;
 
@@ -63,6 +65,44 @@ public class TestDhcpV6SolicitProcessor extends BaseTestDhcpV6Processor
 				InetAddress.getByName("2001:DB8:1::FF"));
 	}
 	
+	/**
+	 * Test that a retransmitted solicit is answered with the original advertise.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testNaSolicitRetransmit() throws Exception
+	{
+		DhcpServerPolicies.setProperty(Property.DHCP_PROCESSOR_RECENT_MESSAGE_TIMER, "5000");
+		try {
+			DhcpV6Message requestMsg = buildNaRequestMessage(firstPoolAddr);
+			requestMsg.setMessageType(DhcpConstants.V6MESSAGE_TYPE_SOLICIT);
+			requestMsg.setTransactionId(0x123456);
+	
+			DhcpV6SolicitProcessor processor = 
+				new DhcpV6SolicitProcessor(requestMsg, requestMsg.getRemoteAddress().getAddress());
+			DhcpV6Message replyMsg = processor.processMessage();
+			assertNotNull(replyMsg);
+			
+			DhcpV6Message retransmitMsg = buildNaRequestMessage(firstPoolAddr);
+			retransmitMsg.setMessageType(DhcpConstants.V6MESSAGE_TYPE_SOLICIT);
+			retransmitMsg.setTransactionId(0x123456);
+			processor = 
+				new DhcpV6SolicitProcessor(retransmitMsg, retransmitMsg.getRemoteAddress().getAddress());
+			assertSame(replyMsg, processor.processMessage());
+			
+			// a new transaction is processed again
+			retransmitMsg.setTransactionId(0x654321);
+			processor = 
+				new DhcpV6SolicitProcessor(retransmitMsg, retransmitMsg.getRemoteAddress().getAddress());
+			DhcpV6Message newReplyMsg = processor.processMessage();
+			assertNotNull(newReplyMsg);
+			assertNotSame(replyMsg, newReplyMsg);
+		}
+		finally {
+			DhcpServerPolicies.setProperty(Property.DHCP_PROCESSOR_RECENT_MESSAGE_TIMER, "0");
+		}
+	}
+	
 	public void testNaPdSolicit() throws Exception
 	{
 		DhcpV6Message requestMsg = buildNaPdRequestMessage(firstPoolAddr, null,
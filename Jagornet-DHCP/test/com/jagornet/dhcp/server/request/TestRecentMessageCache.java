@@ -0,0 +1,87 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestRecentMessageCache.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request;
+
+import junit.framework.TestCase;
+
+/**
+ * The Class TestRecentMessageCache.
+ */
+public class TestRecentMessageCache extends TestCase
+{
+	private static final byte[] CLIENT = new byte[] { (byte)0xde, (byte)0xbb, (byte)0x1e };
+	
+	/**
+	 * Test that a request is in progress until completed, and then
+	 * the reply is remembered.
+	 */
+	public void testCheckRecentAndComplete()
+	{
+		RecentMessageCache<String> cache = new RecentMessageCache<String>(4, 100);
+		RecentMessageCache.Key key = new RecentMessageCache.Key(CLIENT, 1, 1);
+		assertNull(cache.checkRecent(key, 5000));
+		
+		// an equal key for the duplicate request
+		RecentMessageCache.Key dupKey = new RecentMessageCache.Key(CLIENT.clone(), 1, 1);
+		RecentMessageCache.Entry<String> entry = cache.checkRecent(dupKey, 5000);
+		assertNotNull(entry);
+		assertNull(entry.getReply());
+		
+		cache.complete(key, "reply", 5000);
+		assertEquals("reply", cache.checkRecent(dupKey, 5000).getReply());
+		
+		// a different message type or transaction id is a new request
+		assertNull(cache.checkRecent(new RecentMessageCache.Key(CLIENT, 1, 3), 5000));
+		assertNull(cache.checkRecent(new RecentMessageCache.Key(CLIENT, 2, 1), 5000));
+		assertEquals(3, cache.size());
+		
+		// a request without a reply is forgotten
+		RecentMessageCache.Key noReplyKey = new RecentMessageCache.Key(CLIENT, 4, 1);
+		assertNull(cache.checkRecent(noReplyKey, 5000));
+		cache.complete(noReplyKey, null, 5000);
+		assertNull(cache.checkRecent(noReplyKey, 5000));
+	}
+	
+	/**
+	 * Test that entries expire, and that the cache is bounded.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testExpireAndBound() throws Exception
+	{
+		RecentMessageCache<String> cache = new RecentMessageCache<String>(1, 10);
+		RecentMessageCache.Key key = new RecentMessageCache.Key(CLIENT, 1, 1);
+		assertNull(cache.checkRecent(key, 10));
+		cache.complete(key, "reply", 10);
+		Thread.sleep(50);
+		assertNull(cache.checkRecent(key, 10));
+		
+		for (int i=0; i<100; i++) {
+			cache.checkRecent(new RecentMessageCache.Key(CLIENT, 100 + i, 1), 5000);
+		}
+		assertEquals(10, cache.size());
+	}
+}
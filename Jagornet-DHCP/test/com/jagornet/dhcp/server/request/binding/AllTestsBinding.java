@@ -34,6 +34,12 @@ public class AllTestsBinding {
 		TestSuite suite = new TestSuite(AllTestsBinding.class.getName());
 		//$JUnit-BEGIN$
 		suite.addTest(TestFreeList.suite());
+		suite.addTestSuite(TestV4FreeList.class);
+		suite.addTestSuite(TestReuseQueue.class);
+		suite.addTestSuite(TestLeaseTimerWheel.class);
+		suite.addTestSuite(TestV4PingChecker.class);
+		suite.addTestSuite(TestRangeIndex.class);
+		suite.addTestSuite(TestStaticBindingIndex.class);
 		suite.addTestSuite(TestV6PrefixBindingPool.class);
 		suite.addTestSuite(TestV6NaAddrBindingManager.class);
 		//$JUnit-END$
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file FakePingProber.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The Class FakePingProber.  A PingProber for testing, which does not send
+ * anything on the network, and answers only for the addresses it is given.
+ */
+public class FakePingProber implements PingProber
+{
+	protected Set<InetAddress> reachable = 
+		Collections.synchronizedSet(new HashSet<InetAddress>());
+	protected AtomicInteger probeCount = new AtomicInteger(0);
+	
+	public void setReachable(InetAddress inetAddr, boolean answer)
+	{
+		if (answer) {
+			reachable.add(inetAddr);
+		}
+		else {
+			reachable.remove(inetAddr);
+		}
+	}
+	
+	public int getProbeCount()
+	{
+		return probeCount.get();
+	}
+	
+	@Override
+	public boolean isReachable(InetAddress inetAddr, int timeout) throws IOException
+	{
+		probeCount.incrementAndGet();
+		return reachable.contains(inetAddr);
+	}
+}
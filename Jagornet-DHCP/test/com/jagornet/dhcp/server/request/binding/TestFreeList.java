@@ -227,6 +227,67 @@ public class TestFreeList extends TestCase
 		}
 	}
 	
+	/**
+	 * Test that freed addresses are found again, and the free count.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testSetFreeAndReuse() throws Exception
+	{
+		BigInteger base = new BigInteger(InetAddress.getByName("3ffe::0").getAddress());
+		for (int i=0; i<10000; i++) {
+			assertEquals(base.add(BigInteger.valueOf(i)), prefix64List.getNextFree());
+		}
+		assertEquals(10000, prefix64List.getUsedCount());
+		prefix64List.setFree(base.add(BigInteger.valueOf(5000)));
+		prefix64List.setFree(base.add(BigInteger.valueOf(17)));
+		assertTrue(prefix64List.isFree(base.add(BigInteger.valueOf(17))));
+		assertEquals(base.add(BigInteger.valueOf(17)), prefix64List.getNextFree());
+		assertEquals(base.add(BigInteger.valueOf(5000)), prefix64List.getNextFree());
+		assertEquals(base.add(BigInteger.valueOf(10000)), prefix64List.getNextFree());
+		assertEquals(BigInteger.valueOf(3), smallPool.getFreeCount());
+	}
+	
+	/**
+	 * Test a fragmented range, where the only free address is far away.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testFragmented() throws Exception
+	{
+		BigInteger base = new BigInteger(InetAddress.getByName("3ffe::0").getAddress());
+		FreeList freeList = new FreeList(base, base.add(BigInteger.valueOf(99999)));
+		for (int i=0; i<100000; i++) {
+			assertNotNull(freeList.getNextFree());
+		}
+		assertNull(freeList.getNextFree());
+		BigInteger last = base.add(BigInteger.valueOf(99998));
+		freeList.setFree(last);
+		assertEquals(last, freeList.getNextFree());
+		assertNull(freeList.getNextFree());
+	}
+	
+	/**
+	 * Test spreading the allocations with an expected utilization.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testExpectedUtilization() throws Exception
+	{
+		FreeList freeList = new FreeList(BigInteger.ZERO, BigInteger.valueOf(15));
+		freeList.setExpectedUtilization(0.25f);
+		assertEquals(BigInteger.valueOf(0), freeList.getNextFree());
+		assertEquals(BigInteger.valueOf(4), freeList.getNextFree());
+		assertEquals(BigInteger.valueOf(8), freeList.getNextFree());
+		assertEquals(BigInteger.valueOf(12), freeList.getNextFree());
+		// wrapped around, so take the next free after the start
+		assertEquals(BigInteger.valueOf(1), freeList.getNextFree());
+		for (int i=5; i<16; i++) {
+			assertNotNull(freeList.getNextFree());
+		}
+		assertNull(freeList.getNextFree());
+	}
+	
 	/**
 	 * Suite.
 	 * 
@@ -241,6 +302,10 @@ public class TestFreeList extends TestCase
 		suite.addTest(new TestFreeList("testSetMidIp1"));
 		suite.addTest(new TestFreeList("testSetMidIp2"));
 		suite.addTest(new TestFreeList("testSetHighIp"));
+		suite.addTest(new TestFreeList("testGetNextFreeAddress"));
+		suite.addTest(new TestFreeList("testSetFreeAndReuse"));
+		suite.addTest(new TestFreeList("testFragmented"));
+		suite.addTest(new TestFreeList("testExpectedUtilization"));
 		return suite;
 	}
 }
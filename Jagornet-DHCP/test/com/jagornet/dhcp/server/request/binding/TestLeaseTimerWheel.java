@@ -0,0 +1,118 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestLeaseTimerWheel.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * The Class TestLeaseTimerWheel.
+ */
+public class TestLeaseTimerWheel extends TestCase
+{
+	/**
+	 * Test that each lease expires after its expire time, and within one
+	 * tick of it, including leases which cascade down through several levels.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testExpireOrder() throws Exception
+	{
+		// a small wheel, so that most leases start in the higher levels
+		LeaseTimerWheel wheel = new LeaseTimerWheel("test", 10, 4, 1000, null);
+		Map<InetAddress, Long> expireTimes = new HashMap<InetAddress, Long>();
+		Random random = new Random(1);
+		for (int i=0; i<500; i++) {
+			InetAddress inetAddr = InetAddress.getByName("10.0." + (i / 256) + "." + (i % 256));
+			long expireTime = 1000 + random.nextInt(20000);
+			expireTimes.put(inetAddr, expireTime);
+			wheel.schedule(inetAddr, expireTime);
+		}
+		assertEquals(500, wheel.size());
+		int expired = 0;
+		for (long now=1000; now<=21010; now+=7) {
+			List<InetAddress> inetAddrs = wheel.advance(now);
+			for (InetAddress inetAddr : inetAddrs) {
+				long expireTime = expireTimes.get(inetAddr);
+				assertTrue(expireTime <= now);
+				// at most one tick late, plus the step of this loop
+				assertTrue(now - expireTime < 10 + 7);
+				expired++;
+			}
+		}
+		assertEquals(500, expired);
+		assertEquals(0, wheel.size());
+	}
+	
+	/**
+	 * Test cancel and reschedule.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testCancelAndReschedule() throws Exception
+	{
+		LeaseTimerWheel wheel = new LeaseTimerWheel("test", 1000, 64, 0, null);
+		InetAddress ip1 = InetAddress.getByName("10.0.0.1");
+		InetAddress ip2 = InetAddress.getByName("10.0.0.2");
+		InetAddress ip3 = InetAddress.getByName("10.0.0.3");
+		wheel.schedule(ip1, 5000);
+		wheel.schedule(ip2, 5000);
+		wheel.schedule(ip3, 3600000);
+		assertTrue(wheel.cancel(ip2));
+		assertFalse(wheel.cancel(ip2));
+		// renew the lease
+		wheel.schedule(ip1, 7200000);
+		assertEquals(2, wheel.size());
+		assertTrue(wheel.advance(10000).isEmpty());
+		List<InetAddress> expired = wheel.advance(3601000);
+		assertEquals(1, expired.size());
+		assertEquals(ip3, expired.get(0));
+		assertTrue(wheel.isScheduled(ip1));
+		expired = wheel.advance(7201000);
+		assertEquals(1, expired.size());
+		assertEquals(ip1, expired.get(0));
+	}
+	
+	/**
+	 * Test that a lease which has already expired is returned on the next advance.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testOverdue() throws Exception
+	{
+		LeaseTimerWheel wheel = new LeaseTimerWheel("test", 1000, 64, 100000, null);
+		InetAddress ip1 = InetAddress.getByName("10.0.0.1");
+		wheel.schedule(ip1, 5000);
+		List<InetAddress> expired = wheel.advance(100000);
+		assertEquals(1, expired.size());
+		assertEquals(ip1, expired.get(0));
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestRangeIndex.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.net.InetAddress;
+
+import junit.framework.TestCase;
+
+/**
+ * The Class TestRangeIndex.
+ */
+public class TestRangeIndex extends TestCase
+{
+	/**
+	 * Test find in disjoint ranges, including the range boundaries and gaps.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testFind() throws Exception
+	{
+		RangeIndex<String> index = new RangeIndex.Builder<String>()
+			.add(InetAddress.getByName("10.0.0.10"), InetAddress.getByName("10.0.0.20"), "a")
+			.add(InetAddress.getByName("10.0.1.0"), InetAddress.getByName("10.0.1.255"), "b")
+			.add(InetAddress.getByName("2001:db8::1"), InetAddress.getByName("2001:db8::ff"), "c")
+			.build();
+		assertEquals(3, index.size());
+		assertNull(index.find(InetAddress.getByName("10.0.0.9")));
+		assertEquals("a", index.find(InetAddress.getByName("10.0.0.10")));
+		assertEquals("a", index.find(InetAddress.getByName("10.0.0.15")));
+		assertEquals("a", index.find(InetAddress.getByName("10.0.0.20")));
+		assertNull(index.find(InetAddress.getByName("10.0.0.21")));
+		assertEquals("b", index.find(InetAddress.getByName("10.0.1.128")));
+		assertNull(index.find(InetAddress.getByName("10.0.2.0")));
+		assertNull(index.find(InetAddress.getByName("2001:db8::")));
+		assertEquals("c", index.find(InetAddress.getByName("2001:db8::1")));
+		assertEquals("c", index.find(InetAddress.getByName("2001:db8::ff")));
+		assertNull(index.find(InetAddress.getByName("2001:db8::100")));
+		assertNull(index.find(InetAddress.getByName("::a00:f")));
+	}
+	
+	/**
+	 * Test that overlapping ranges resolve to the range added first.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testOverlap() throws Exception
+	{
+		RangeIndex<String> index = new RangeIndex.Builder<String>()
+			.add(InetAddress.getByName("192.168.0.100"), InetAddress.getByName("192.168.0.199"), "first")
+			.add(InetAddress.getByName("192.168.0.0"), InetAddress.getByName("192.168.0.255"), "second")
+			.build();
+		// the second range is split around the first
+		assertEquals(3, index.size());
+		assertEquals("second", index.find(InetAddress.getByName("192.168.0.99")));
+		assertEquals("first", index.find(InetAddress.getByName("192.168.0.100")));
+		assertEquals("first", index.find(InetAddress.getByName("192.168.0.199")));
+		assertEquals("second", index.find(InetAddress.getByName("192.168.0.200")));
+		assertEquals("second", index.find(InetAddress.getByName("192.168.0.255")));
+	}
+	
+	/**
+	 * Test adjacent ranges for the same object, and the address space limits.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testAdjacent() throws Exception
+	{
+		RangeIndex<String> index = new RangeIndex.Builder<String>()
+			.add(InetAddress.getByName("0.0.0.0"), InetAddress.getByName("127.255.255.255"), "low")
+			.add(InetAddress.getByName("128.0.0.0"), InetAddress.getByName("255.255.255.255"), "high")
+			.add(InetAddress.getByName("ffff::"), 
+					InetAddress.getByName("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff"), "v6")
+			.add(InetAddress.getByName("::"), InetAddress.getByName("::ffff"), "v6")
+			.build();
+		assertEquals(4, index.size());
+		assertEquals("low", index.find(InetAddress.getByName("0.0.0.0")));
+		assertEquals("low", index.find(InetAddress.getByName("127.255.255.255")));
+		assertEquals("high", index.find(InetAddress.getByName("128.0.0.0")));
+		assertEquals("high", index.find(InetAddress.getByName("255.255.255.255")));
+		assertEquals("v6", index.find(InetAddress.getByName("::")));
+		assertEquals("v6", index.find(InetAddress.getByName("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff")));
+		assertNull(index.find(InetAddress.getByName("::1:0")));
+	}
+}
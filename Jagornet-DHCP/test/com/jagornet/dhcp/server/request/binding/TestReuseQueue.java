@@ -0,0 +1,102 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestReuseQueue.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.net.InetAddress;
+
+import junit.framework.TestCase;
+
+/**
+ * The Class TestReuseQueue.
+ */
+public class TestReuseQueue extends TestCase
+{
+	/**
+	 * Test that addresses are polled in order of reuse time,
+	 * and not before that time.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testPollOrder() throws Exception
+	{
+		ReuseQueue queue = new ReuseQueue();
+		for (int i=0; i<100; i++) {
+			// add in a scrambled order
+			int t = (i * 37) % 100;
+			queue.add(InetAddress.getByName("10.0.0." + t), 1000 + t);
+		}
+		assertEquals(100, queue.size());
+		assertNull(queue.poll(999));
+		for (int i=0; i<100; i++) {
+			assertEquals(InetAddress.getByName("10.0.0." + i), queue.poll(2000));
+		}
+		assertNull(queue.poll(2000));
+		assertEquals(0, queue.size());
+	}
+	
+	/**
+	 * Test that addresses with the same reuse time are polled in FIFO order.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testSameTime() throws Exception
+	{
+		ReuseQueue queue = new ReuseQueue();
+		queue.add(InetAddress.getByName("10.0.0.3"), 0);
+		queue.add(InetAddress.getByName("10.0.0.1"), 0);
+		queue.add(InetAddress.getByName("10.0.0.2"), 0);
+		assertEquals(InetAddress.getByName("10.0.0.3"), queue.poll(0));
+		assertEquals(InetAddress.getByName("10.0.0.1"), queue.poll(0));
+		assertEquals(InetAddress.getByName("10.0.0.2"), queue.poll(0));
+	}
+	
+	/**
+	 * Test remove and re-add of addresses in the queue.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testRemoveAndUpdate() throws Exception
+	{
+		ReuseQueue queue = new ReuseQueue();
+		for (int i=0; i<50; i++) {
+			queue.add(InetAddress.getByName("10.0.0." + i), i);
+		}
+		for (int i=0; i<50; i+=2) {
+			assertTrue(queue.remove(InetAddress.getByName("10.0.0." + i)));
+		}
+		assertFalse(queue.remove(InetAddress.getByName("10.0.0.0")));
+		assertFalse(queue.contains(InetAddress.getByName("10.0.0.2")));
+		assertEquals(25, queue.size());
+		// move the first address to the end of the queue
+		queue.add(InetAddress.getByName("10.0.0.1"), 100);
+		assertEquals(25, queue.size());
+		for (int i=3; i<50; i+=2) {
+			assertEquals(InetAddress.getByName("10.0.0." + i), queue.poll(100));
+		}
+		assertEquals(InetAddress.getByName("10.0.0.1"), queue.poll(100));
+		assertNull(queue.poll(100));
+	}
+}
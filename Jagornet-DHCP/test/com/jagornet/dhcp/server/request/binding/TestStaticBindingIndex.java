@@ -0,0 +1,146 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestStaticBindingIndex.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.jagornet.dhcp.db.IdentityAssoc;
+import com.jagornet.dhcp.message.DhcpMessage;
+import com.jagornet.dhcp.xml.OpaqueData;
+import com.jagornet.dhcp.xml.V4AddressBinding;
+import com.jagornet.dhcp.xml.V6AddressBinding;
+
+/**
+ * The Class TestStaticBindingIndex.
+ */
+public class TestStaticBindingIndex extends TestCase
+{
+	private static final byte[] DUID1 = new byte[] { 0, 1, 2, 3, 4, 5 };
+	private static final byte[] DUID2 = new byte[] { 0, 1, 2, 3, 4, 6 };
+	
+	/**
+	 * Test find v4 static bindings by chaddr.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testFindV4() throws Exception
+	{
+		List<StaticBinding> bindings = new ArrayList<StaticBinding>();
+		for (int i=0; i<1000; i++) {
+			V4AddressBinding xmlBinding = V4AddressBinding.Factory.newInstance();
+			xmlBinding.setChaddr(new byte[] { 0, 0x0c, 0x29, 0, (byte)(i >> 8), (byte)i });
+			xmlBinding.setIpAddress("10.0." + (i >> 8) + "." + (i & 0xff));
+			bindings.add(new V4StaticAddressBinding(xmlBinding));
+		}
+		StaticBindingIndex index = new StaticBindingIndex(bindings);
+		assertEquals(1000, index.size());
+		StaticBinding sb = index.find(new byte[] { 0, 0x0c, 0x29, 0, 1, 2 }, 
+				IdentityAssoc.V4_TYPE, 0, null);
+		assertNotNull(sb);
+		assertEquals("10.0.1.2", sb.getIpAddress());
+		assertNull(index.find(new byte[] { 0, 0x0c, 0x29, 0, 1, 2 }, 
+				IdentityAssoc.NA_TYPE, 0, null));
+		assertNull(index.find(new byte[] { 0, 0x0c, 0x29, 1, 1, 2 }, 
+				IdentityAssoc.V4_TYPE, 0, null));
+		assertNull(index.find(null, IdentityAssoc.V4_TYPE, 0, null));
+	}
+	
+	/**
+	 * Test find v6 static bindings with and without an IAID, which must
+	 * find the first matching binding in configured order.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testFindV6() throws Exception
+	{
+		List<StaticBinding> bindings = new ArrayList<StaticBinding>();
+		bindings.add(buildV6Binding(DUID1, 1, "2001:db8::1"));
+		bindings.add(buildV6Binding(DUID1, -1, "2001:db8::2"));
+		bindings.add(buildV6Binding(DUID1, 2, "2001:db8::3"));
+		bindings.add(buildV6Binding(DUID2, 1, "2001:db8::4"));
+		StaticBindingIndex index = new StaticBindingIndex(bindings);
+		assertEquals("2001:db8::1", index.find(DUID1, IdentityAssoc.NA_TYPE, 1, null).getIpAddress());
+		// the binding for any IAID is configured before the binding for IAID 2
+		assertEquals("2001:db8::2", index.find(DUID1, IdentityAssoc.NA_TYPE, 2, null).getIpAddress());
+		assertEquals("2001:db8::2", index.find(DUID1, IdentityAssoc.NA_TYPE, 3, null).getIpAddress());
+		assertEquals("2001:db8::4", index.find(DUID2, IdentityAssoc.NA_TYPE, 1, null).getIpAddress());
+		assertNull(index.find(DUID2, IdentityAssoc.NA_TYPE, 2, null));
+		assertNull(index.find(DUID1, IdentityAssoc.TA_TYPE, 1, null));
+	}
+	
+	/**
+	 * Test that bindings without a key are still found in configured order.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testFindUnkeyed() throws Exception
+	{
+		List<StaticBinding> bindings = new ArrayList<StaticBinding>();
+		bindings.add(new V6StaticAddressBinding(
+				buildV6Binding(DUID1, -1, "2001:db8::1").getV6AddressBinding(), 
+				IdentityAssoc.NA_TYPE) {
+			@Override
+			public StaticBindingIndex.Key getKey() {
+				return null;
+			}
+		});
+		bindings.add(buildV6Binding(DUID1, 1, "2001:db8::2"));
+		bindings.add(buildV6Binding(DUID2, 1, "2001:db8::3"));
+		bindings.add(new V6StaticAddressBinding(
+				buildV6Binding(DUID2, -1, "2001:db8::4").getV6AddressBinding(), 
+				IdentityAssoc.NA_TYPE) {
+			@Override
+			public boolean matches(byte[] duid, byte iatype, long iaid, DhcpMessage requestMsg) {
+				return true;
+			}
+			@Override
+			public StaticBindingIndex.Key getKey() {
+				return null;
+			}
+		});
+		StaticBindingIndex index = new StaticBindingIndex(bindings);
+		assertEquals(4, index.size());
+		assertEquals("2001:db8::1", index.find(DUID1, IdentityAssoc.NA_TYPE, 1, null).getIpAddress());
+		assertEquals("2001:db8::3", index.find(DUID2, IdentityAssoc.NA_TYPE, 1, null).getIpAddress());
+		assertEquals("2001:db8::4", index.find(DUID2, IdentityAssoc.NA_TYPE, 2, null).getIpAddress());
+	}
+	
+	private V6StaticAddressBinding buildV6Binding(byte[] duid, long iaid, String ip)
+	{
+		V6AddressBinding xmlBinding = V6AddressBinding.Factory.newInstance();
+		OpaqueData opaque = OpaqueData.Factory.newInstance();
+		opaque.setHexValue(duid);
+		xmlBinding.setDuid(opaque);
+		if (iaid >= 0) {
+			xmlBinding.setIaid(iaid);
+		}
+		xmlBinding.setIpAddress(ip);
+		return new V6StaticAddressBinding(xmlBinding, IdentityAssoc.NA_TYPE);
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestV4FreeList.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * The Class TestV4FreeList.
+ */
+public class TestV4FreeList extends TestCase
+{
+	/**
+	 * Test get next free, including a range that is not a multiple of 64.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testGetNextFree() throws Exception
+	{
+		V4FreeList freeList = new V4FreeList(100, 169);	// 70 addresses
+		for (int i=0; i<70; i++) {
+			assertEquals(i, freeList.getNextFree());
+		}
+		assertEquals(-1, freeList.getNextFree());
+		assertEquals(70, freeList.getUsedCount());
+	}
+	
+	/**
+	 * Test set used and set free.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testSetUsedAndFree() throws Exception
+	{
+		V4FreeList freeList = new V4FreeList(0, 255);
+		freeList.setUsed(0);
+		freeList.setUsed(1);
+		freeList.setUsed(255);
+		assertTrue(freeList.isUsed(255));
+		assertFalse(freeList.isUsed(256));
+		assertEquals(2, freeList.getNextFree());
+		for (int i=3; i<255; i++) {
+			freeList.setUsed(i);
+		}
+		assertEquals(-1, freeList.getNextFree());
+		freeList.setFree(1);
+		assertTrue(freeList.isFree(1));
+		assertEquals(1, freeList.getNextFree());
+		assertEquals(256, freeList.getUsedCount());
+	}
+	
+	/**
+	 * Test that concurrent allocations never hand out the same offset.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testThreadedGetNextFree() throws Exception
+	{
+		final V4FreeList freeList = new V4FreeList(0, 65535);
+		final Set<Integer> allocated = new HashSet<Integer>();
+		Thread[] threads = new Thread[8];
+		for (int i=0; i<threads.length; i++) {
+			threads[i] = new Thread(new Runnable() {
+				public void run() {
+					int next;
+					while ((next = freeList.getNextFree()) >= 0) {
+						synchronized (allocated) {
+							assertTrue(allocated.add(next));
+						}
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		assertEquals(65536, allocated.size());
+		assertEquals(65536, freeList.getUsedCount());
+	}
+}
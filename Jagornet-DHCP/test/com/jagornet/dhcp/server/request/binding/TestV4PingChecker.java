@@ -0,0 +1,147 @@
+/*
+ * Copyright 2009-2014 Jagornet Technologies, LLC.  All Rights Reserved.
+ *
+ * This software is the proprietary information of Jagornet Technologies, LLC. 
+ * Use is subject to license terms.
+ *
+ */
+
+/*
+ *   This file TestV4PingChecker.java is part of Jagornet DHCP.
+ *
+ *   Jagornet DHCP is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU General Public License as published by
+ *   the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   Jagornet DHCP is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU General Public License for more details.
+ *
+ *   You should have received a copy of the GNU General Public License
+ *   along with Jagornet DHCP.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+package com.jagornet.dhcp.server.request.binding;
+
+import java.net.InetAddress;
+import java.util.concurrent.Executor;
+
+import junit.framework.TestCase;
+
+import com.jagornet.dhcp.xml.V4AddressPool;
+
+/**
+ * The Class TestV4PingChecker.
+ */
+public class TestV4PingChecker extends TestCase
+{
+	/** Run the probes in the calling thread, so that the test is deterministic. */
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+	
+	private V4AddressBindingPool bp;
+	private FakePingProber prober;
+	
+	@Override
+	protected void setUp() throws Exception
+	{
+		V4AddressPool pool = V4AddressPool.Factory.newInstance();
+		pool.setRange("192.168.0.1-192.168.0.10");
+		bp = new V4AddressBindingPool(pool);
+		prober = new FakePingProber();
+	}
+	
+	/**
+	 * Test that verified addresses are taken in order, and the
+	 * candidates are refilled ahead of time.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testVerifiedAhead() throws Exception
+	{
+		V4PingChecker checker = new V4PingChecker(bp, prober, 100, 3, 60000, 60000, DIRECT);
+		bp.setPingChecker(checker);
+		checker.fill();
+		assertEquals(3, prober.getProbeCount());
+		assertEquals(3, checker.getVerifiedCount());
+		assertEquals(InetAddress.getByName("192.168.0.1"), bp.getNextAvailableAddress());
+		// one more candidate was probed to replace the one taken
+		assertEquals(4, prober.getProbeCount());
+		assertEquals(InetAddress.getByName("192.168.0.2"), bp.getNextAvailableAddress());
+	}
+	
+	/**
+	 * Test that an address which answers the ping is skipped and held
+	 * as a conflict, and is checked again once the conflict expires.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testConflict() throws Exception
+	{
+		InetAddress conflict = InetAddress.getByName("192.168.0.2");
+		prober.setReachable(conflict, true);
+		V4PingChecker checker = new V4PingChecker(bp, prober, 100, 2, 0, 60000, DIRECT);
+		bp.setPingChecker(checker);
+		checker.fill();
+		assertTrue(checker.isConflict(conflict));
+		assertEquals(InetAddress.getByName("192.168.0.1"), bp.getNextAvailableAddress());
+		assertEquals(InetAddress.getByName("192.168.0.3"), bp.getNextAvailableAddress());
+		// the conflict time is zero, so the address is freed on the next fill
+		prober.setReachable(conflict, false);
+		checker.fill();
+		assertFalse(checker.isConflict(conflict));
+		boolean offered = false;
+		InetAddress next = bp.getNextAvailableAddress();
+		while (next != null) {
+			if (next.equals(conflict)) {
+				offered = true;
+			}
+			next = bp.getNextAvailableAddress();
+		}
+		assertTrue(offered);
+	}
+	
+	/**
+	 * Test that a verified address which is bound by other means,
+	 * i.e. requested by a client, is not offered again.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testSetUsedRemovesVerified() throws Exception
+	{
+		V4PingChecker checker = new V4PingChecker(bp, prober, 100, 2, 60000, 60000, DIRECT);
+		bp.setPingChecker(checker);
+		checker.fill();
+		bp.setUsed(InetAddress.getByName("192.168.0.1"));
+		assertEquals(InetAddress.getByName("192.168.0.2"), bp.getNextAvailableAddress());
+	}
+	
+	/**
+	 * Test that an address which was verified too long ago is probed
+	 * again, and is not offered if it now answers.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testStaleVerified() throws Exception
+	{
+		InetAddress taken = InetAddress.getByName("192.168.0.1");
+		V4PingChecker checker = new V4PingChecker(bp, prober, 100, 3, 60000, 1, DIRECT);
+		bp.setPingChecker(checker);
+		checker.fill();
+		assertEquals(3, prober.getProbeCount());
+		// a device takes the address after it was verified
+		prober.setReachable(taken, true);
+		Thread.sleep(10);
+		InetAddress next = bp.getNextAvailableAddress();
+		assertNotNull(next);
+		assertFalse(taken.equals(next));
+		assertTrue(checker.isConflict(taken));
+		assertTrue(prober.getProbeCount() > 3);
+	}
+}
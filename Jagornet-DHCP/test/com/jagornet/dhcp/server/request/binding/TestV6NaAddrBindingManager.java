@@ -26,9 +26,11 @@
 package com.jagornet.dhcp.server.request.binding;
 
 import java.net.InetAddress;
+import java.util.Date;
 import java.util.Iterator;
 
 import com.jagornet.dhcp.db.BaseTestCase;
+import com.jagornet.dhcp.db.IaAddress;
 import com.jagornet.dhcp.db.IdentityAssoc;
 import com.jagornet.dhcp.option.v6.DhcpV6ClientIdOption;
 import com.jagornet.dhcp.option.v6.DhcpV6IaNaOption;
@@ -133,4 +135,34 @@ public class TestV6NaAddrBindingManager extends BaseTestCase
 			assertEquals(ba1.getValidEndTime().getTime(), ba2.getValidEndTime().getTime());
 		}
 	}
+	
+	/**
+	 * Test that an address which is still offered is queued again for
+	 * reuse when its offer expires, rather than dropped from the queue.
+	 * 
+	 * @throws Exception the exception
+	 */
+	public void testReuseOfferedAddress() throws Exception {
+		BaseBindingManager bindingMgr = (BaseBindingManager) manager;
+		InetAddress inetAddr = InetAddress.getByName("2001:DB8:1::F0");
+		BindingPool bp = bindingMgr.findBindingPool(inetAddr);
+		assertNotNull(bp);
+		bp.getReuseQueue().clear();
+		IdentityAssoc ia = buildIA(IdentityAssoc.NA_TYPE, 99, "2001:DB8:1::F0");
+		IaAddress iaAddr = ia.getIaAddresses().iterator().next();
+		iaAddr.setState(IaAddress.ADVERTISED);
+		config.getIaMgr().createIA(ia);
+		
+		long now = System.currentTimeMillis();
+		bp.getReuseQueue().add(inetAddr, now - 1000);
+		assertNull(bindingMgr.reuseAvailableAddress(bp));
+		assertTrue(bp.getReuseQueue().contains(inetAddr));
+		
+		// once the offer has expired, the address is reused
+		iaAddr.setStartTime(new Date(now - 3600000));
+		config.getIaMgr().updateIaAddr(iaAddr);
+		bp.getReuseQueue().add(inetAddr, now - 1000);
+		assertEquals(inetAddr, bindingMgr.reuseAvailableAddress(bp));
+		assertNull(config.getIaMgr().findIA(inetAddr));
+	}
 }